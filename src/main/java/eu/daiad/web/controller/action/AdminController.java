@@ -17,6 +17,9 @@ import eu.daiad.web.model.RestResponse;
 import eu.daiad.web.model.admin.AccountActivity;
 import eu.daiad.web.model.admin.AccountActivityResponse;
 import eu.daiad.web.model.admin.CounterCollectionResponse;
+import eu.daiad.web.model.admin.QueryAdmissionStatisticsResponse;
+import eu.daiad.web.model.admin.QueryCacheStatisticsResponse;
+import eu.daiad.web.model.admin.QueryProfileStatisticsResponse;
 import eu.daiad.web.model.group.GroupQueryRequest;
 import eu.daiad.web.model.group.GroupQueryResponse;
 import eu.daiad.web.model.security.AuthenticatedUser;
@@ -24,6 +27,9 @@ import eu.daiad.web.model.security.RoleConstant;
 import eu.daiad.web.repository.application.IGroupRepository;
 import eu.daiad.web.repository.application.IUserRepository;
 import eu.daiad.web.repository.application.IUtilityRepository;
+import eu.daiad.web.service.DataQueryAdmissionController;
+import eu.daiad.web.service.DataQueryCache;
+import eu.daiad.web.service.DataQueryProfiler;
 
 /**
  * Provides actions for performing administration tasks.
@@ -54,6 +60,18 @@ public class AdminController extends BaseController {
     @Autowired
     private IUtilityRepository utilityRepository;
 
+    /**
+     * Cache of data query results.
+     */
+    @Autowired
+    private DataQueryCache dataQueryCache;
+
+    @Autowired
+    private DataQueryProfiler dataQueryProfiler;
+
+    @Autowired
+    private DataQueryAdmissionController dataQueryAdmissionController;
+
     /**
      * Returns information about all trial user activity.
      *
@@ -124,4 +142,58 @@ public class AdminController extends BaseController {
             return new RestResponse(getError(ex));
         }
     }
+
+    /**
+     * Returns the hit, miss, eviction and invalidation counters of the data
+     * query result cache.
+     *
+     * @return the cache statistics.
+     */
+    @RequestMapping(value = "/action/admin/query/cache", method = RequestMethod.GET, produces = "application/json")
+    @Secured({ RoleConstant.ROLE_SYSTEM_ADMIN })
+    public RestResponse getQueryCacheStatistics() {
+        try {
+            return new QueryCacheStatisticsResponse(dataQueryCache.getStatistics());
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+
+            return new RestResponse(getError(ex));
+        }
+    }
+
+    /**
+     * Returns the execution statistics of data queries aggregated by query
+     * shape.
+     *
+     * @return the query shape statistics.
+     */
+    @RequestMapping(value = "/action/admin/query/profile", method = RequestMethod.GET, produces = "application/json")
+    @Secured({ RoleConstant.ROLE_SYSTEM_ADMIN })
+    public RestResponse getQueryProfileStatistics() {
+        try {
+            return new QueryProfileStatisticsResponse(dataQueryProfiler.getStatistics());
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+
+            return new RestResponse(getError(ex));
+        }
+    }
+
+    /**
+     * Returns the budget usage and the admitted, queued and rejected data
+     * queries of every caller class.
+     *
+     * @return the admission control statistics.
+     */
+    @RequestMapping(value = "/action/admin/query/admission", method = RequestMethod.GET, produces = "application/json")
+    @Secured({ RoleConstant.ROLE_SYSTEM_ADMIN })
+    public RestResponse getQueryAdmissionStatistics() {
+        try {
+            return new QueryAdmissionStatisticsResponse(dataQueryAdmissionController.getStatistics());
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+
+            return new RestResponse(getError(ex));
+        }
+    }
 }
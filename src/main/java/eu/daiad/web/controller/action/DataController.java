@@ -1,7 +1,10 @@
 package eu.daiad.web.controller.action;
 
+import java.io.IOException;
 import java.util.List;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -14,6 +17,8 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import eu.daiad.web.controller.BaseController;
 import eu.daiad.web.model.RestResponse;
 import eu.daiad.web.model.amphiro.HistoricalToRealTimeRequest;
@@ -25,6 +30,7 @@ import eu.daiad.web.model.error.QueryErrorCode;
 import eu.daiad.web.model.query.DataQuery;
 import eu.daiad.web.model.query.DataQueryCollectionResponse;
 import eu.daiad.web.model.query.DataQueryRequest;
+import eu.daiad.web.model.query.DataQueryResponseWriter;
 import eu.daiad.web.model.query.ForecastQuery;
 import eu.daiad.web.model.query.ForecastQueryRequest;
 import eu.daiad.web.model.query.StoreDataQueryRequest;
@@ -63,18 +69,27 @@ public class DataController extends BaseController {
     @Autowired
     private IDataService dataService;
 
+    /**
+     * Serializes streamed query responses.
+     */
+    @Autowired
+    private ObjectMapper objectMapper;
+
     /**
      * Query amphiro b1 session data and smart water meter readings using one or more filtering
      * criteria. Depending on the search criteria, one or more data series may be returned.
      *
      * @param user the currently authenticated user.
      * @param data the data query.
-     * @return the data series.
+     * @param response the HTTP response used for streaming the data series.
+     * @return the data series or null if the data series have been streamed.
      */
     @RequestMapping(value = "/action/query", method = RequestMethod.POST, consumes = "application/json", produces = "application/json")
     @ResponseBody
     @Secured({ RoleConstant.ROLE_USER, RoleConstant.ROLE_UTILITY_ADMIN, RoleConstant.ROLE_SYSTEM_ADMIN })
-    public RestResponse query(@AuthenticationPrincipal AuthenticatedUser user, @RequestBody DataQueryRequest data) {
+    public RestResponse query(@AuthenticationPrincipal AuthenticatedUser user, @RequestBody DataQueryRequest data, HttpServletResponse response) {
+        DataQueryResponseWriter writer = null;
+
         try {
             DataQuery query = data.getQuery();
             if (query == null) {
@@ -85,10 +100,31 @@ public class DataController extends BaseController {
                 query.setTimezone(user.getTimezone());
             }
 
+            if (data.isStream()) {
+                // Write data series directly to the response as soon as they
+                // are computed
+                response.setContentType("application/json;charset=UTF-8");
+
+                writer = new DataQueryResponseWriter(objectMapper, response.getOutputStream());
+                writer.close(dataService.execute(query, writer));
+
+                return null;
+            }
+
             return dataService.execute(query);
         } catch (Exception ex) {
             logger.error(ex.getMessage(), ex);
 
+            if (writer != null) {
+                // The response may have already been partially written
+                try {
+                    writer.close(new RestResponse(getError(ex)));
+                } catch (IOException ioEx) {
+                    logger.error(ioEx.getMessage(), ioEx);
+                }
+                return null;
+            }
+
             return new RestResponse(getError(ex));
         }
     }
@@ -1,6 +1,11 @@
 package eu.daiad.web.controller.api;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -13,11 +18,14 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import eu.daiad.web.controller.BaseRestController;
 import eu.daiad.web.model.AuthenticatedRequest;
 import eu.daiad.web.model.DeviceMeasurementCollection;
 import eu.daiad.web.model.RestResponse;
 import eu.daiad.web.model.amphiro.AmphiroMeasurementCollection;
+import eu.daiad.web.model.amphiro.AmphiroSessionUpdateCollection;
 import eu.daiad.web.model.amphiro.HistoricalToRealTimeRequest;
 import eu.daiad.web.model.amphiro.IgnoreShowerRequest;
 import eu.daiad.web.model.amphiro.MemberAssignmentRequest;
@@ -25,12 +33,17 @@ import eu.daiad.web.model.device.AmphiroDevice;
 import eu.daiad.web.model.device.Device;
 import eu.daiad.web.model.device.EnumDeviceType;
 import eu.daiad.web.model.device.WaterMeterDevice;
+import eu.daiad.web.model.error.DataErrorCode;
 import eu.daiad.web.model.error.DeviceErrorCode;
 import eu.daiad.web.model.error.QueryErrorCode;
+import eu.daiad.web.model.meter.MeterDataStoreStats;
 import eu.daiad.web.model.meter.WaterMeterMeasurementCollection;
+import eu.daiad.web.model.query.BatchDataQueryRequest;
+import eu.daiad.web.model.query.BatchDataQueryResponse;
 import eu.daiad.web.model.query.DataQuery;
 import eu.daiad.web.model.query.DataQueryCollectionResponse;
 import eu.daiad.web.model.query.DataQueryRequest;
+import eu.daiad.web.model.query.DataQueryResponseWriter;
 import eu.daiad.web.model.query.ForecastQuery;
 import eu.daiad.web.model.query.ForecastQueryRequest;
 import eu.daiad.web.model.query.StoreDataQueryRequest;
@@ -41,6 +54,7 @@ import eu.daiad.web.repository.application.IAmphiroTimeOrderedRepository;
 import eu.daiad.web.repository.application.IDeviceRepository;
 import eu.daiad.web.repository.application.IMeterDataRepository;
 import eu.daiad.web.service.IDataService;
+import eu.daiad.web.service.ingestion.DataIngestionQueue;
 
 /**
  * Provides actions for storing Amphiro B1 data to the server and querying
@@ -60,6 +74,12 @@ public class DataController extends BaseRestController {
     @Value("${tmp.folder}")
     private String temporaryPath;
 
+    /**
+     * Maximum number of queries in a single batch request.
+     */
+    @Value("${daiad.query.batch.max-queries:50}")
+    private int maxBatchQueries;
+
     /**
      * Repository for accessing amphiro b1 data indexed by time.
      */
@@ -90,16 +110,31 @@ public class DataController extends BaseRestController {
     @Autowired
     private IDataService dataService;
 
+    /**
+     * Queue for storing device data uploads asynchronously.
+     */
+    @Autowired
+    private DataIngestionQueue ingestionQueue;
+
+    /**
+     * Serializes streamed query responses.
+     */
+    @Autowired
+    private ObjectMapper objectMapper;
+
     /**
      * General purpose method for querying data using a set of filtering
      * criteria. Depending on the given criteria, more than one data series may
      * be returned.
      *
      * @param data the query.
-     * @return the data series.
+     * @param response the HTTP response used for streaming the data series.
+     * @return the data series or null if the data series have been streamed.
      */
     @RequestMapping(value = "/api/v1/data/query", method = RequestMethod.POST, consumes = "application/json", produces = "application/json")
-    public RestResponse query(@RequestBody DataQueryRequest data) {
+    public RestResponse query(@RequestBody DataQueryRequest data, HttpServletResponse response) {
+        DataQueryResponseWriter writer = null;
+
         try {
             AuthenticatedUser user = authenticate(data.getCredentials(), EnumRole.ROLE_USER, EnumRole.ROLE_SYSTEM_ADMIN, EnumRole.ROLE_UTILITY_ADMIN);
 
@@ -112,10 +147,71 @@ public class DataController extends BaseRestController {
                 query.setTimezone(user.getTimezone());
             }
 
+            if (data.isStream()) {
+                // Write data series directly to the response as soon as they
+                // are computed
+                response.setContentType("application/json;charset=UTF-8");
+
+                writer = new DataQueryResponseWriter(objectMapper, response.getOutputStream());
+                writer.close(dataService.execute(query, writer));
+
+                return null;
+            }
+
             return dataService.execute(query);
         } catch (Exception ex) {
             logger.error(ex.getMessage(), ex);
 
+            if (writer != null) {
+                // The response may have already been partially written
+                try {
+                    writer.close(new RestResponse(getError(ex)));
+                } catch (IOException ioEx) {
+                    logger.error(ioEx.getMessage(), ioEx);
+                }
+                return null;
+            }
+
+            return new RestResponse(getError(ex));
+        }
+    }
+
+    /**
+     * Executes a batch of data queries. Queries with the same source and time
+     * filter, e.g. the widgets of a dashboard that differ only in population,
+     * are merged and share the same scans. Requests with more queries than
+     * the configured limit are rejected.
+     *
+     * @param data the queries.
+     * @return the responses of the queries in the same order as the queries.
+     */
+    @RequestMapping(value = "/api/v1/data/query/batch", method = RequestMethod.POST, consumes = "application/json", produces = "application/json")
+    public RestResponse batch(@RequestBody BatchDataQueryRequest data) {
+        try {
+            AuthenticatedUser user = authenticate(data.getCredentials(), EnumRole.ROLE_USER, EnumRole.ROLE_SYSTEM_ADMIN, EnumRole.ROLE_UTILITY_ADMIN);
+
+            List<DataQuery> queries = data.getQueries();
+            if ((queries == null) || (queries.isEmpty()) || (queries.contains(null))) {
+                return createResponse(QueryErrorCode.EMPTY_QUERY);
+            }
+            if (queries.size() > maxBatchQueries) {
+                Map<String, Object> properties = new HashMap<String, Object>();
+                properties.put("count", queries.size());
+                properties.put("limit", maxBatchQueries);
+
+                return createResponse(QueryErrorCode.BATCH_TOO_LARGE, properties);
+            }
+
+            for (DataQuery query : queries) {
+                if (StringUtils.isBlank(query.getTimezone())) {
+                    query.setTimezone(user.getTimezone());
+                }
+            }
+
+            return new BatchDataQueryResponse(dataService.execute(queries));
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+
             return new RestResponse(getError(ex));
         }
     }
@@ -258,7 +354,13 @@ public class DataController extends BaseRestController {
                                             data.getType().toString());
                         }
 
-                        waterMeterMeasurementRepository.store(((WaterMeterDevice) device).getSerial(), (WaterMeterMeasurementCollection) data);
+                        MeterDataStoreStats stats = waterMeterMeasurementRepository.store(((WaterMeterDevice) device).getSerial(),
+                                                                                          (WaterMeterMeasurementCollection) data);
+                        waterMeterMeasurementRepository.flush();
+
+                        if (stats.getFailed() > 0) {
+                            throw createApplicationException(DataErrorCode.METER_DATA_STORE_FAILED).set("count", stats.getFailed());
+                        }
                     }
                     break;
                 default:
@@ -279,6 +381,9 @@ public class DataController extends BaseRestController {
 
     /**
      * Stores Amphiro B1 session and measurement data. Sessions are index by id.
+     * If asynchronous storage is enabled, the data is queued and an empty
+     * collection of session updates is returned, unless the request requires
+     * synchronous storage.
      *
      * @param data the data to store
      * @return the controller's response.
@@ -310,7 +415,17 @@ public class DataController extends BaseRestController {
                             throw createApplicationException(DeviceErrorCode.NOT_SUPPORTED).set("type",
                                             data.getType().toString());
                         }
-                        response = amphiroIndexOrderedRepository.store(authenticatedUser, (AmphiroDevice) device, (AmphiroMeasurementCollection) data);
+
+                        if ((ingestionQueue.isEnabled()) && (!data.isSynchronous())) {
+                            // Invalid data is rejected before it is queued
+                            amphiroIndexOrderedRepository.validate(authenticatedUser, (AmphiroDevice) device, (AmphiroMeasurementCollection) data);
+
+                            ingestionQueue.submit(authenticatedUser, data);
+
+                            response = new AmphiroSessionUpdateCollection();
+                        } else {
+                            response = amphiroIndexOrderedRepository.store(authenticatedUser, (AmphiroDevice) device, (AmphiroMeasurementCollection) data);
+                        }
                     }
                     break;
                 case METER:
@@ -329,7 +444,17 @@ public class DataController extends BaseRestController {
                                             data.getType().toString());
                         }
 
-                        waterMeterMeasurementRepository.store(((WaterMeterDevice) device).getSerial(), (WaterMeterMeasurementCollection) data);
+                        if ((ingestionQueue.isEnabled()) && (!data.isSynchronous())) {
+                            ingestionQueue.submit(authenticatedUser, data);
+                        } else {
+                            MeterDataStoreStats stats = waterMeterMeasurementRepository.store(((WaterMeterDevice) device).getSerial(),
+                                                                                              (WaterMeterMeasurementCollection) data);
+                            waterMeterMeasurementRepository.flush();
+
+                            if (stats.getFailed() > 0) {
+                                throw createApplicationException(DataErrorCode.METER_DATA_STORE_FAILED).set("count", stats.getFailed());
+                            }
+                        }
                     }
                     break;
                 default:
@@ -87,6 +87,18 @@ public enum EnumHBaseTable {
      * Stores smart water meter data aggregates indexed by meter, utility, group, set, segment and commons
      */
     SWM_AGGREGATE("daiad:meter-measurements-aggregate"),
+    /**
+     * Stores the state of the incremental smart water meter data aggregation
+     */
+    SWM_AGGREGATE_STATE("daiad:meter-measurements-aggregate-state"),
+    /**
+     * Stores daily rollups of smart water meter data indexed by meter
+     */
+    SWM_DAILY("daiad:meter-measurements-daily"),
+    /**
+     * Stores the most recent smart water meter reading indexed by meter
+     */
+    SWM_LATEST("daiad:meter-measurements-latest"),
     /**
      * Stores measurements collected by arduino appliances
      */
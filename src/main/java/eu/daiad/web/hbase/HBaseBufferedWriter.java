@@ -0,0 +1,272 @@
+package eu.daiad.web.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Buffers HBase mutations per table and submits them in batches. Buffered
+ * mutations are flushed when the write buffer size is exceeded, periodically
+ * every flush interval and whenever {@link HBaseBufferedWriter#flush()} is
+ * invoked.
+ *
+ * Failed mutations are reported to the {@link MutationFailureListener}
+ * registered when the mutation was submitted.
+ */
+@Component
+public class HBaseBufferedWriter implements InitializingBean, DisposableBean {
+
+    /**
+     * Logger instance for writing events using the configured logging API.
+     */
+    private static final Log logger = LogFactory.getLog(HBaseBufferedWriter.class);
+
+    /**
+     * HBase connection.
+     */
+    @Autowired
+    private HBaseConnectionManager connection;
+
+    /**
+     * Write buffer size in bytes. When the size of the buffered mutations of a
+     * table exceeds this value, the mutations are sent to the region servers.
+     */
+    @Value("${hbase.data.write.buffer.size:2097152}")
+    private long writeBufferSize;
+
+    /**
+     * Interval in milliseconds for flushing buffered mutations. If the value is
+     * not positive, mutations are flushed only when the write buffer is full or
+     * when an explicit flush is requested.
+     */
+    @Value("${hbase.data.write.flush.interval:1000}")
+    private long flushInterval;
+
+    /**
+     * Buffered mutators indexed by table name.
+     */
+    private final ConcurrentMap<String, BufferedMutator> mutators = new ConcurrentHashMap<String, BufferedMutator>();
+
+    /**
+     * Failure listeners for the mutations that have not been flushed yet,
+     * indexed by table name.
+     */
+    private final ConcurrentMap<String, Map<Row, MutationFailureListener>> pending = new ConcurrentHashMap<String, Map<Row, MutationFailureListener>>();
+
+    /**
+     * Scheduler for periodically flushing buffered mutations.
+     */
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (flushInterval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "hbase-buffered-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Exception ex) {
+                        logger.error("Failed to flush buffered HBase mutations.", ex);
+                    }
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        for (String tableName : mutators.keySet()) {
+            BufferedMutator mutator = mutators.remove(tableName);
+            try {
+                flush(tableName, mutator);
+                mutator.close();
+            } catch (Exception ex) {
+                logger.error(String.format("Failed to release buffered mutator for table [%s].", tableName), ex);
+            }
+        }
+    }
+
+    /**
+     * Buffers a list of mutations for the given table.
+     *
+     * @param tableName the table name.
+     * @param mutations the mutations to submit.
+     * @param listener optional listener notified for every mutation that fails.
+     * @throws IOException if the mutations cannot be submitted.
+     */
+    public void write(String tableName, List<? extends Mutation> mutations, MutationFailureListener listener) throws IOException {
+        if ((mutations == null) || (mutations.isEmpty())) {
+            return;
+        }
+
+        if (listener != null) {
+            Map<Row, MutationFailureListener> listeners = getPending(tableName);
+            synchronized (listeners) {
+                for (Mutation mutation : mutations) {
+                    listeners.put(mutation, listener);
+                }
+            }
+        }
+
+        getMutator(tableName).mutate(mutations);
+    }
+
+    /**
+     * Flushes the buffered mutations of all tables. When the method returns,
+     * every mutation submitted before the invocation has either been persisted
+     * or reported to its {@link MutationFailureListener}.
+     *
+     * @throws IOException if flushing fails.
+     */
+    public void flush() throws IOException {
+        for (Map.Entry<String, BufferedMutator> entry : mutators.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Flushes the buffered mutations of a single table.
+     *
+     * @param tableName the table name.
+     * @throws IOException if flushing fails.
+     */
+    public void flush(String tableName) throws IOException {
+        BufferedMutator mutator = mutators.get(tableName);
+        if (mutator != null) {
+            flush(tableName, mutator);
+        }
+    }
+
+    private void flush(String tableName, BufferedMutator mutator) throws IOException {
+        Map<Row, MutationFailureListener> listeners = getPending(tableName);
+
+        List<Row> submitted;
+        synchronized (listeners) {
+            submitted = new ArrayList<Row>(listeners.keySet());
+        }
+
+        mutator.flush();
+
+        // Any failed mutation has already been reported by the exception
+        // listener; the remaining ones have been persisted.
+        synchronized (listeners) {
+            for (Row row : submitted) {
+                listeners.remove(row);
+            }
+        }
+    }
+
+    private Map<Row, MutationFailureListener> getPending(String tableName) {
+        Map<Row, MutationFailureListener> listeners = pending.get(tableName);
+        if (listeners == null) {
+            pending.putIfAbsent(tableName, new IdentityHashMap<Row, MutationFailureListener>());
+            listeners = pending.get(tableName);
+        }
+        return listeners;
+    }
+
+    private BufferedMutator getMutator(final String tableName) throws IOException {
+        BufferedMutator mutator = mutators.get(tableName);
+        if (mutator != null) {
+            return mutator;
+        }
+
+        synchronized (mutators) {
+            mutator = mutators.get(tableName);
+            if (mutator == null) {
+                BufferedMutatorParams params = new BufferedMutatorParams(TableName.valueOf(tableName));
+                params.writeBufferSize(writeBufferSize);
+                params.listener(new BufferedMutator.ExceptionListener() {
+
+                    @Override
+                    public void onException(RetriesExhaustedWithDetailsException ex, BufferedMutator mutator) {
+                        handleException(tableName, ex);
+                    }
+                });
+
+                mutator = connection.getBufferedMutator(params);
+                mutators.put(tableName, mutator);
+            }
+        }
+
+        return mutator;
+    }
+
+    private void handleException(String tableName, RetriesExhaustedWithDetailsException ex) {
+        Map<Row, MutationFailureListener> listeners = getPending(tableName);
+
+        for (int i = 0, count = ex.getNumExceptions(); i < count; i++) {
+            Row row = ex.getRow(i);
+
+            MutationFailureListener listener;
+            synchronized (listeners) {
+                listener = listeners.remove(row);
+            }
+
+            if (listener != null) {
+                try {
+                    listener.onFailure(tableName, row, ex.getCause(i));
+                } catch (Exception listenerException) {
+                    logger.error("Mutation failure listener has failed.", listenerException);
+                }
+            } else {
+                logger.error(String.format("Failed to write mutation to table [%s].", tableName), ex.getCause(i));
+            }
+        }
+    }
+
+    /**
+     * Listener notified when a buffered mutation fails.
+     */
+    public static interface MutationFailureListener {
+
+        /**
+         * Invoked when a mutation has failed after all retries.
+         *
+         * @param tableName the table name.
+         * @param row the failed mutation.
+         * @param cause the failure cause.
+         */
+        void onFailure(String tableName, Row row, Throwable cause);
+
+    }
+
+}
@@ -9,6 +9,8 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
 import org.apache.hadoop.hbase.client.Table;
@@ -87,6 +89,10 @@ public class HBaseConnectionManager implements InitializingBean, DisposableBean
 		return this.connection.getTable(TableName.valueOf(name));
 	}
 
+	public BufferedMutator getBufferedMutator(BufferedMutatorParams params) throws IOException {
+		return this.connection.getBufferedMutator(params);
+	}
+
 	public Admin getAdmin() throws IOException {
 		return this.connection.getAdmin();
 	}
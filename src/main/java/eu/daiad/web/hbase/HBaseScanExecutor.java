@@ -0,0 +1,119 @@
+package eu.daiad.web.hbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded executor for running HBase scans concurrently, e.g. scanning all the
+ * partitions of a table that is salted by time. The number of scans that are
+ * executed in parallel is shared by all queries.
+ */
+@Component
+public class HBaseScanExecutor implements InitializingBean, DisposableBean {
+
+    /**
+     * Maximum number of concurrent scans. If the value is less than 2, scans
+     * are executed by the calling thread.
+     */
+    @Value("${hbase.data.time.partitions.parallelism:5}")
+    private int parallelism;
+
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (parallelism > 1) {
+            executor = new ThreadPoolExecutor(parallelism,
+                                              parallelism,
+                                              60L,
+                                              TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(),
+                                              new ThreadFactory() {
+
+                                                  private final AtomicInteger counter = new AtomicInteger();
+
+                                                  @Override
+                                                  public Thread newThread(Runnable runnable) {
+                                                      Thread thread = new Thread(runnable, "hbase-scan-" + counter.incrementAndGet());
+                                                      thread.setDaemon(true);
+                                                      return thread;
+                                                  }
+                                              });
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the maximum number of concurrent scans.
+     *
+     * @return the parallelism.
+     */
+    public int getParallelism() {
+        return Math.max(1, parallelism);
+    }
+
+    /**
+     * Executes a list of tasks and waits for all of them to complete. If any
+     * task fails, the remaining tasks are cancelled and the first failure is
+     * rethrown.
+     *
+     * @param tasks the tasks to execute.
+     * @return the task results in the same order as the tasks.
+     * @throws Exception if any task fails or the calling thread is interrupted.
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<T>(tasks.size());
+
+        if ((executor == null) || (tasks.size() < 2)) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        } finally {
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package eu.daiad.web.hbase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+
+import eu.daiad.web.model.query.QueryExecutionProfile;
+
+/**
+ * Counts the scans, rows, cells and bytes read from HBase. Instances are not
+ * thread safe. Every task that scans a table should use its own instance and
+ * add it to the query profile when it completes.
+ */
+public class HBaseScanStatistics {
+
+    private long scans;
+
+    private long rows;
+
+    private long cells;
+
+    private long bytes;
+
+    /**
+     * Records a new scan.
+     */
+    public void addScan() {
+        scans++;
+    }
+
+    /**
+     * Records a row returned by a scan.
+     *
+     * @param result the row.
+     */
+    public void addRow(Result result) {
+        rows++;
+
+        Cell[] rawCells = result.rawCells();
+        if (rawCells != null) {
+            cells += rawCells.length;
+
+            for (Cell cell : rawCells) {
+                bytes += cell.getRowLength() + cell.getFamilyLength() + cell.getQualifierLength() + cell.getValueLength();
+            }
+        }
+    }
+
+    /**
+     * Adds the recorded statistics to a query profile and resets the counters.
+     *
+     * @param profile the query profile.
+     */
+    public void addTo(QueryExecutionProfile profile) {
+        profile.addScans(scans, rows, cells, bytes);
+
+        scans = 0;
+        rows = 0;
+        cells = 0;
+        bytes = 0;
+    }
+
+}
@@ -0,0 +1,258 @@
+package eu.daiad.web.hbase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Encodes and decodes the top-k/bottom-k user entries stored in the
+ * {@code top} and {@code bottom} columns of the aggregate tables.
+ *
+ * Two formats are supported. The legacy text format stores every entry as the
+ * tokens {@code key;label;serial;value}. The binary format, version 1, has the
+ * following layout:
+ *
+ * <pre>
+ * [version(1)] [entry count(4)] [string count(4)] [string offsets(4 * string count)]
+ * [entries(28 * entry count)] [strings]
+ * </pre>
+ *
+ * Every entry is composed of the user key (16), the label string index (4),
+ * the serial number string index (4) and the value as a float (4). Strings are
+ * stored once as a dictionary, each one encoded as its UTF-8 length (2)
+ * followed by its bytes. Since entries have a fixed width, the first or last
+ * k entries are decoded without reading the remaining ones.
+ *
+ * Entries are sorted in ascending order of their value in both formats.
+ */
+public final class RankingCellCodec {
+
+    /**
+     * Binary format version 1. The first byte of a legacy text cell is always
+     * a hexadecimal digit of a UUID and can never be equal to this value.
+     */
+    public static final byte FORMAT_VERSION_1 = 1;
+
+    private static final int HEADER_SIZE = 9;
+
+    private static final int ENTRY_SIZE = 28;
+
+    private static final int TEXT_TOKENS = 4;
+
+    private RankingCellCodec() {
+
+    }
+
+    /**
+     * Returns true if the cell value is encoded using the binary format.
+     *
+     * @param data the cell value.
+     * @return true if the value is binary; Otherwise false.
+     */
+    public static boolean isBinary(byte[] data) {
+        return ((data != null) && (data.length >= HEADER_SIZE) && (data[0] == FORMAT_VERSION_1));
+    }
+
+    /**
+     * Encodes entries using the binary format.
+     *
+     * @param entries the entries sorted in ascending order of value.
+     * @return the encoded cell value.
+     */
+    public static byte[] encode(List<Entry> entries) {
+        List<byte[]> strings = new ArrayList<byte[]>();
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        int[] labels = new int[entries.size()];
+        int[] serials = new int[entries.size()];
+        int stringSize = 0;
+
+        for (int i = 0, count = entries.size(); i < count; i++) {
+            labels[i] = lookup(entries.get(i).getLabel(), dictionary, strings);
+            serials[i] = lookup(entries.get(i).getSerial(), dictionary, strings);
+        }
+        for (byte[] value : strings) {
+            stringSize += 2 + value.length;
+        }
+
+        int entriesOffset = HEADER_SIZE + 4 * strings.size();
+        int stringsOffset = entriesOffset + ENTRY_SIZE * entries.size();
+
+        byte[] data = new byte[stringsOffset + stringSize];
+
+        data[0] = FORMAT_VERSION_1;
+        Bytes.putInt(data, 1, entries.size());
+        Bytes.putInt(data, 5, strings.size());
+
+        int offset = stringsOffset;
+        for (int i = 0, count = strings.size(); i < count; i++) {
+            byte[] value = strings.get(i);
+
+            Bytes.putInt(data, HEADER_SIZE + 4 * i, offset);
+            offset = Bytes.putShort(data, offset, (short) value.length);
+            offset = Bytes.putBytes(data, offset, value, 0, value.length);
+        }
+
+        offset = entriesOffset;
+        for (int i = 0, count = entries.size(); i < count; i++) {
+            Entry entry = entries.get(i);
+
+            offset = Bytes.putLong(data, offset, entry.getKey().getMostSignificantBits());
+            offset = Bytes.putLong(data, offset, entry.getKey().getLeastSignificantBits());
+            offset = Bytes.putInt(data, offset, labels[i]);
+            offset = Bytes.putInt(data, offset, serials[i]);
+            offset = Bytes.putFloat(data, offset, entry.getValue());
+        }
+
+        return data;
+    }
+
+    private static int lookup(String value, Map<String, Integer> dictionary, List<byte[]> strings) {
+        if (value == null) {
+            value = "";
+        }
+
+        Integer index = dictionary.get(value);
+        if (index == null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Top/Bottom-k user entry string is too long.");
+            }
+
+            index = strings.size();
+            dictionary.put(value, index);
+            strings.add(bytes);
+        }
+        return index;
+    }
+
+    /**
+     * Decodes the entries of a cell in either format.
+     *
+     * @param data the cell value.
+     * @param first if true, the first entries are decoded; Otherwise the last ones.
+     * @param limit the maximum number of entries to decode.
+     * @return the entries sorted in ascending order of value.
+     */
+    public static List<Entry> decode(byte[] data, boolean first, int limit) {
+        if (isBinary(data)) {
+            return decodeBinary(data, first, limit);
+        }
+        return decodeText(new String(data, StandardCharsets.UTF_8), first, limit);
+    }
+
+    /**
+     * Decodes all the entries of a cell in either format.
+     *
+     * @param data the cell value.
+     * @return the entries sorted in ascending order of value.
+     */
+    public static List<Entry> decode(byte[] data) {
+        return decode(data, true, Integer.MAX_VALUE);
+    }
+
+    private static List<Entry> decodeBinary(byte[] data, boolean first, int limit) {
+        int total = Bytes.toInt(data, 1);
+        int stringCount = Bytes.toInt(data, 5);
+
+        int entriesOffset = HEADER_SIZE + 4 * stringCount;
+        if ((total < 0) || (stringCount < 0) || (data.length < entriesOffset + (long) ENTRY_SIZE * total)) {
+            throw new IllegalArgumentException("Top/Bottom-k user entry binary data is not valid.");
+        }
+
+        int count = Math.min(total, Math.max(limit, 0));
+        int start = (first ? 0 : total - count);
+
+        // Strings shared by the decoded entries are decoded once
+        String[] strings = new String[stringCount];
+
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = start, end = start + count; i < end; i++) {
+            int offset = entriesOffset + ENTRY_SIZE * i;
+
+            UUID key = new UUID(Bytes.toLong(data, offset), Bytes.toLong(data, offset + 8));
+            String label = getString(data, strings, Bytes.toInt(data, offset + 16));
+            String serial = getString(data, strings, Bytes.toInt(data, offset + 20));
+            float value = Bytes.toFloat(data, offset + 24);
+
+            entries.add(new Entry(key, label, serial, value));
+        }
+
+        return entries;
+    }
+
+    private static String getString(byte[] data, String[] strings, int index) {
+        if (strings[index] == null) {
+            int offset = Bytes.toInt(data, HEADER_SIZE + 4 * index);
+            int length = Bytes.toShort(data, offset) & 0xFFFF;
+
+            strings[index] = new String(data, offset + 2, length, StandardCharsets.UTF_8);
+        }
+        return strings[index];
+    }
+
+    private static List<Entry> decodeText(String data, boolean first, int limit) {
+        String[] tokens = StringUtils.split(data, ";");
+        if (tokens.length % TEXT_TOKENS != 0) {
+            throw new IllegalArgumentException("Top/Bottom-k user entry number of tokens is not valid.");
+        }
+
+        int total = tokens.length / TEXT_TOKENS;
+        int count = Math.min(total, Math.max(limit, 0));
+        int start = (first ? 0 : total - count);
+
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = start, end = start + count; i < end; i++) {
+            entries.add(new Entry(UUID.fromString(tokens[i * TEXT_TOKENS]),
+                                  tokens[i * TEXT_TOKENS + 1],
+                                  tokens[i * TEXT_TOKENS + 2],
+                                  Float.parseFloat(tokens[i * TEXT_TOKENS + 3])));
+        }
+
+        return entries;
+    }
+
+    /**
+     * A top-k/bottom-k user entry.
+     */
+    public static class Entry {
+
+        private final UUID key;
+
+        private final String label;
+
+        private final String serial;
+
+        private final float value;
+
+        public Entry(UUID key, String label, String serial, float value) {
+            this.key = key;
+            this.label = label;
+            this.serial = serial;
+            this.value = value;
+        }
+
+        public UUID getKey() {
+            return key;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getSerial() {
+            return serial;
+        }
+
+        public float getValue() {
+            return value;
+        }
+    }
+
+}
@@ -19,6 +19,7 @@ import eu.daiad.web.model.device.Device;
 import eu.daiad.web.model.device.DeviceRegistrationQuery;
 import eu.daiad.web.model.device.EnumDeviceType;
 import eu.daiad.web.model.device.WaterMeterDevice;
+import eu.daiad.web.model.error.DataErrorCode;
 import eu.daiad.web.model.meter.MeterDataStoreStats;
 import eu.daiad.web.model.meter.WaterMeterDataPoint;
 import eu.daiad.web.model.meter.WaterMeterDataSeries;
@@ -134,6 +135,12 @@ public class CleanHBaseMeterDataJobBuilder extends BaseJobBuilder implements IJo
                                             }
 
                                             MeterDataStoreStats stats = meterDataRepository.store(meterDevice.getSerial(), data);
+                                            meterDataRepository.flush();
+
+                                            if (stats.getFailed() > 0) {
+                                                throw createApplicationException(DataErrorCode.METER_DATA_STORE_FAILED).set("count", stats.getFailed());
+                                            }
+
                                             totalUpdates +=stats.getUpdated();
                                         }
                                     }
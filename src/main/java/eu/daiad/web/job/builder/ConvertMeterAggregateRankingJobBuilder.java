@@ -0,0 +1,151 @@
+package eu.daiad.web.job.builder;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobParametersIncrementer;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.tasklet.StoppableTasklet;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import eu.daiad.web.repository.application.IMeterAggregateDataRepository;
+import eu.daiad.web.repository.application.IMeterForecastingAggregateDataRepository;
+
+/**
+ * Job that converts the top-k/bottom-k cells of the smart water meter data and
+ * forecasting aggregate tables from the legacy text format to the binary
+ * format. Cells that are already binary are skipped, hence the job can be
+ * executed repeatedly.
+ */
+@Component
+public class ConvertMeterAggregateRankingJobBuilder extends BaseJobBuilder implements IJobBuilder {
+
+    /**
+     * Logger instance for writing events using the configured logging API.
+     */
+    private static final Log logger = LogFactory.getLog(ConvertMeterAggregateRankingJobBuilder.class);
+
+    /**
+     * Convert smart water meter data aggregates.
+     */
+    private static final String STEP_CONVERT_METER_DATA = "convert-meter-data";
+
+    /**
+     * Convert smart water meter forecasting data aggregates.
+     */
+    private static final String STEP_CONVERT_FORECASTING_DATA = "convert-forecasting-data";
+
+    /**
+     * Repository for accessing smart water meter data aggregates.
+     */
+    @Autowired
+    private IMeterAggregateDataRepository meterAggregateDataRepository;
+
+    /**
+     * Repository for accessing smart water meter forecasting data aggregates.
+     */
+    @Autowired
+    private IMeterForecastingAggregateDataRepository meterForecastingAggregateDataRepository;
+
+    /**
+     * Build step for converting smart water meter data aggregates.
+     *
+     * @return the conversion step.
+     */
+    private Step convertMeterData() {
+        return stepBuilderFactory.get(STEP_CONVERT_METER_DATA).tasklet(new StoppableTasklet() {
+
+            /**
+             * Set when the step is stopped; checked for every converted row.
+             */
+            private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+            @Override
+            public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) {
+                try {
+                    long total = meterAggregateDataRepository.convertRankingCells(stopped);
+
+                    logger.info(String.format("Converted %d smart water meter data ranking cells.", total));
+                } catch (Exception ex) {
+                    if (stopped.get()) {
+                        logger.warn("Conversion of smart water meter data ranking cells has been stopped.", ex);
+                    } else {
+                        logger.fatal("Failed to convert smart water meter data ranking cells.", ex);
+                    }
+
+                    throw ex;
+                }
+
+                return RepeatStatus.FINISHED;
+            }
+
+            @Override
+            public void stop() {
+                stopped.set(true);
+            }
+
+        }).build();
+    }
+
+    /**
+     * Build step for converting smart water meter forecasting data aggregates.
+     *
+     * @return the conversion step.
+     */
+    private Step convertForecastingData() {
+        return stepBuilderFactory.get(STEP_CONVERT_FORECASTING_DATA).tasklet(new StoppableTasklet() {
+
+            /**
+             * Set when the step is stopped; checked for every converted row.
+             */
+            private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+            @Override
+            public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) {
+                try {
+                    long total = meterForecastingAggregateDataRepository.convertRankingCells(stopped);
+
+                    logger.info(String.format("Converted %d smart water meter forecasting data ranking cells.", total));
+                } catch (Exception ex) {
+                    if (stopped.get()) {
+                        logger.warn("Conversion of smart water meter forecasting data ranking cells has been stopped.", ex);
+                    } else {
+                        logger.fatal("Failed to convert smart water meter forecasting data ranking cells.", ex);
+                    }
+
+                    throw ex;
+                }
+
+                return RepeatStatus.FINISHED;
+            }
+
+            @Override
+            public void stop() {
+                stopped.set(true);
+            }
+
+        }).build();
+    }
+
+    /**
+     * Build a ranking cell conversion job.
+     *
+     * @param name the job name.
+     * @param incrementer the job parameter incrementer used for generating
+     *                    unique job execution instances.
+     */
+    @Override
+    public Job build(String name, JobParametersIncrementer incrementer) throws Exception {
+        return jobBuilderFactory.get(name)
+                                .incrementer(incrementer)
+                                .start(convertMeterData())
+                                .next(convertForecastingData())
+                                .build();
+    }
+}
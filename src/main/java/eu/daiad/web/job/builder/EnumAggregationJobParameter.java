@@ -47,7 +47,14 @@ public enum EnumAggregationJobParameter {
     /**
      * Date interval end instant.
      */
-    FILENAME_USERS("daiad.filename.users");
+    FILENAME_USERS("daiad.filename.users"),
+    /**
+     * Top-k / Bottom-k cell format. Supported values are {@code text} and
+     * {@code binary}. Binary cells are encoded using
+     * {@link eu.daiad.web.hbase.RankingCellCodec}. If not set, the value of
+     * the {@code hbase.data.aggregate.ranking.format} property is used.
+     */
+    RANKING_FORMAT("daiad.ranking.format");
 
     private final String value;
 
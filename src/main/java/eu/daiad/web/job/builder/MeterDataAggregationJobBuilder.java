@@ -11,6 +11,7 @@ import org.springframework.batch.core.StepExecution;
 import org.springframework.batch.core.listener.ExecutionContextPromotionListener;
 import org.springframework.batch.item.ExecutionContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import eu.daiad.web.job.task.CreateDirectoryTask;
@@ -70,6 +71,12 @@ public class MeterDataAggregationJobBuilder extends BaseJobBuilder implements IJ
     @Autowired
     private DeleteDirectoryTask deleteLocalWorkingDir;
 
+    /**
+     * Format of the top-k / bottom-k cells written by the MapReduce job. A
+     * job parameter with the same name overrides this value.
+     */
+    @Value("${hbase.data.aggregate.ranking.format:binary}")
+    private String rankingFormat;
 
     /**
      * Builds a step for creating the local working directory.
@@ -118,6 +125,15 @@ public class MeterDataAggregationJobBuilder extends BaseJobBuilder implements IJ
                                             jobContext.put(jobContextKey, stepContext.get(stepContextKey));
                                         }
 
+                                        // Set the top-k / bottom-k cell format
+                                        jobContextKey = STEP_SUBMIT_JOB +
+                                                        Constants.PARAMETER_NAME_DELIMITER +
+                                                        EnumAggregationJobParameter.RANKING_FORMAT.getValue();
+
+                                        if (!stepExecution.getJobParameters().getParameters().containsKey(jobContextKey)) {
+                                            jobContext.put(jobContextKey, rankingFormat);
+                                        }
+
                                         return null;
                                      }
 
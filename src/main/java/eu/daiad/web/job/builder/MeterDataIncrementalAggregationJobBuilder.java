@@ -0,0 +1,49 @@
+package eu.daiad.web.job.builder;
+
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobParametersIncrementer;
+import org.springframework.batch.core.Step;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import eu.daiad.web.job.task.AggregateMeterDataTask;
+
+/**
+ * Job for incrementally computing smart water meter data aggregates inside the
+ * application. Unlike {@link MeterDataAggregationJobBuilder}, no MapReduce job
+ * is submitted; only the aggregates affected by readings stored since the
+ * previous execution are recomputed.
+ */
+@Component
+public class MeterDataIncrementalAggregationJobBuilder extends BaseJobBuilder implements IJobBuilder {
+
+    /**
+     * Step for computing aggregates.
+     */
+    private static final String STEP_AGGREGATE = "aggregate";
+
+    /**
+     * Task for computing aggregates.
+     */
+    @Autowired
+    private AggregateMeterDataTask aggregateMeterDataTask;
+
+    /**
+     * Builds a step for computing aggregates.
+     *
+     * @return the configured step.
+     */
+    private Step aggregate() {
+        return stepBuilderFactory.get(STEP_AGGREGATE)
+                                 .tasklet(aggregateMeterDataTask)
+                                 .build();
+    }
+
+    @Override
+    public Job build(String name, JobParametersIncrementer incrementer) throws Exception {
+        return jobBuilderFactory.get(name)
+                                .incrementer(incrementer)
+                                .start(aggregate())
+                                .build();
+    }
+}
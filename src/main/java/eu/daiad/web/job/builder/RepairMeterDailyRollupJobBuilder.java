@@ -0,0 +1,98 @@
+package eu.daiad.web.job.builder;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobParametersIncrementer;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.tasklet.StoppableTasklet;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import eu.daiad.web.repository.application.IMeterDataRepository;
+
+/**
+ * Job that recomputes the smart water meter daily rollups of the days marked
+ * as dirty that have not been recomputed after a flush, e.g. because the
+ * application has stopped or the rollup update has failed. Repaired days are
+ * unmarked, hence the job can be executed repeatedly.
+ */
+@Component
+public class RepairMeterDailyRollupJobBuilder extends BaseJobBuilder implements IJobBuilder {
+
+    /**
+     * Logger instance for writing events using the configured logging API.
+     */
+    private static final Log logger = LogFactory.getLog(RepairMeterDailyRollupJobBuilder.class);
+
+    /**
+     * Repair smart water meter daily rollups.
+     */
+    private static final String STEP_REPAIR_ROLLUPS = "repair-rollups";
+
+    /**
+     * Repository for accessing smart water meter data.
+     */
+    @Autowired
+    private IMeterDataRepository meterDataRepository;
+
+    /**
+     * Build step for repairing smart water meter daily rollups.
+     *
+     * @return the repair step.
+     */
+    private Step repairRollups() {
+        return stepBuilderFactory.get(STEP_REPAIR_ROLLUPS).tasklet(new StoppableTasklet() {
+
+            /**
+             * Set when the step is stopped; checked for every scanned row.
+             */
+            private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+            @Override
+            public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) {
+                try {
+                    long total = meterDataRepository.repairDailyRollups(stopped);
+
+                    logger.info(String.format("Repaired %d smart water meter daily rollups.", total));
+                } catch (Exception ex) {
+                    if (stopped.get()) {
+                        logger.warn("Repair of smart water meter daily rollups has been stopped.", ex);
+                    } else {
+                        logger.fatal("Failed to repair smart water meter daily rollups.", ex);
+                    }
+
+                    throw ex;
+                }
+
+                return RepeatStatus.FINISHED;
+            }
+
+            @Override
+            public void stop() {
+                stopped.set(true);
+            }
+
+        }).build();
+    }
+
+    /**
+     * Build a daily rollup repair job.
+     *
+     * @param name the job name.
+     * @param incrementer the job parameter incrementer used for generating
+     *                    unique job execution instances.
+     */
+    @Override
+    public Job build(String name, JobParametersIncrementer incrementer) throws Exception {
+        return jobBuilderFactory.get(name)
+                                .incrementer(incrementer)
+                                .start(repairRollups())
+                                .build();
+    }
+}
@@ -0,0 +1,314 @@
+package eu.daiad.web.job.task;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.DateTimeZone;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.tasklet.StoppableTasklet;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import eu.daiad.web.domain.application.AreaGroupMemberEntity;
+import eu.daiad.web.model.device.Device;
+import eu.daiad.web.model.device.EnumDeviceType;
+import eu.daiad.web.model.device.WaterMeterDevice;
+import eu.daiad.web.model.error.SchedulerErrorCode;
+import eu.daiad.web.model.group.Group;
+import eu.daiad.web.model.meter.MeterAggregationGroup;
+import eu.daiad.web.model.security.AuthenticatedUser;
+import eu.daiad.web.model.utility.UtilityInfo;
+import eu.daiad.web.repository.application.IDeviceRepository;
+import eu.daiad.web.repository.application.IGroupRepository;
+import eu.daiad.web.repository.application.IMeterAggregationRepository;
+import eu.daiad.web.repository.application.ISpatialRepository;
+import eu.daiad.web.repository.application.IUserRepository;
+import eu.daiad.web.repository.application.IUtilityRepository;
+import eu.daiad.web.service.MeterAggregationEngine;
+
+/**
+ * Task for incrementally computing the smart water meter data aggregates of
+ * all utilities, groups and areas. Only the aggregates affected by readings
+ * stored since the last execution are recomputed.
+ */
+@Component
+public class AggregateMeterDataTask extends BaseTask implements StoppableTasklet {
+
+    /**
+     * Logger instance for writing events using the configured logging API.
+     */
+    private static final Log logger = LogFactory.getLog(AggregateMeterDataTask.class);
+
+    /**
+     * Default number of meters processed concurrently.
+     */
+    private static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * Default number of users stored for top-k/bottom-k rankings.
+     */
+    private static final int DEFAULT_TOP_QUERY_LIMIT = 10;
+
+    /**
+     * Default interval in seconds by which the watermark is moved back. Cells
+     * written during this interval are scanned again by the next execution,
+     * which covers in-flight writes and clock skew between the application
+     * and the region servers.
+     */
+    private static final int DEFAULT_WATERMARK_LAG = 300;
+
+    /**
+     * Repository for accessing utility data.
+     */
+    @Autowired
+    private IUtilityRepository utilityRepository;
+
+    /**
+     * Repository for accessing group data.
+     */
+    @Autowired
+    private IGroupRepository groupRepository;
+
+    /**
+     * Repository for accessing spatial data.
+     */
+    @Autowired
+    private ISpatialRepository spatialRepository;
+
+    /**
+     * Repository for accessing user data.
+     */
+    @Autowired
+    private IUserRepository userRepository;
+
+    /**
+     * Repository for accessing device (smart water meter) data.
+     */
+    @Autowired
+    private IDeviceRepository deviceRepository;
+
+    /**
+     * Repository for reading smart water meter data and storing aggregates.
+     */
+    @Autowired
+    private IMeterAggregationRepository meterAggregationRepository;
+
+    /**
+     * The engine of the running execution.
+     */
+    private volatile MeterAggregationEngine engine;
+
+    @Override
+    public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) {
+        try {
+            // Get all step parameters
+            Map<String, String> parameters = getStepParameters(chunkContext.getStepContext());
+
+            int parallelism = getInteger(parameters, EnumInParameter.PARALLELISM.getValue(), DEFAULT_PARALLELISM);
+            int limit = getInteger(parameters, EnumInParameter.TOP_QUERY_LIMIT.getValue(), DEFAULT_TOP_QUERY_LIMIT);
+            int lag = getInteger(parameters, EnumInParameter.WATERMARK_LAG.getValue(), DEFAULT_WATERMARK_LAG);
+
+            long watermark = meterAggregationRepository.getWatermark();
+            long now = System.currentTimeMillis();
+
+            Map<ByteBuffer, long[]> changes = meterAggregationRepository.getChangedMeters(watermark, now);
+
+            MeterAggregationEngine.Statistics statistics = null;
+            if (!changes.isEmpty()) {
+                engine = new MeterAggregationEngine(meterAggregationRepository, parallelism, limit);
+
+                statistics = engine.execute(getGroups(), changes);
+            }
+
+            meterAggregationRepository.setWatermark(Math.max(watermark, now - lag * 1000L));
+
+            StringBuilder text = new StringBuilder();
+
+            text.append("Meter data aggregation\n");
+            text.append(String.format("Changed meters : %d\n", changes.size()));
+            if (statistics != null) {
+                text.append(String.format("Groups         : %d\n", statistics.getGroups()));
+                text.append(String.format("Meters         : %d\n", statistics.getMeters()));
+                text.append(String.format("Readings       : %d\n", statistics.getReadings()));
+                text.append(String.format("Aggregates     : %d\n", statistics.getRows()));
+            }
+
+            logger.info(text.toString());
+        } catch (Throwable t) {
+            throw wrapApplicationException(t, SchedulerErrorCode.SCHEDULER_JOB_STEP_FAILED).set("step", chunkContext.getStepContext().getStepName());
+        } finally {
+            engine = null;
+        }
+
+        return RepeatStatus.FINISHED;
+    }
+
+    private int getInteger(Map<String, String> parameters, String key, int defaultValue) {
+        Integer value = getInteger(parameters, key, false);
+
+        return (value == null ? defaultValue : value);
+    }
+
+    /**
+     * Creates the aggregation groups of all utilities. The members of every
+     * utility, segment, commons and set are exported along with the members
+     * of the group inside every utility area.
+     *
+     * @return a list of {@link MeterAggregationGroup}.
+     * @throws Exception if group members cannot be loaded.
+     */
+    private List<MeterAggregationGroup> getGroups() throws Exception {
+        List<MeterAggregationGroup> groups = new ArrayList<MeterAggregationGroup>();
+
+        MessageDigest md = MessageDigest.getInstance("MD5");
+
+        // Members are resolved once since users belong to multiple groups
+        Map<UUID, List<MeterAggregationGroup.Member>> members = new HashMap<UUID, List<MeterAggregationGroup.Member>>();
+        Map<MeterAggregationGroup.Member, WaterMeterDevice> meters = new HashMap<MeterAggregationGroup.Member, WaterMeterDevice>();
+
+        for (UtilityInfo utility : utilityRepository.getUtilities()) {
+            if (StringUtils.isBlank(utility.getTimezone())) {
+                continue;
+            }
+
+            DateTimeZone timezone = DateTimeZone.forID(utility.getTimezone());
+            List<AreaGroupMemberEntity> areas = spatialRepository.getAreasByUtilityId(utility.getKey());
+
+            addGroup(groups, utility.getKey(), timezone, areas, utilityRepository.getMembers(utility.getKey()), members, meters, md);
+
+            for (Group group : groupRepository.getAll(utility.getKey())) {
+                switch (group.getType()) {
+                    case UTILITY: case CLUSTER:
+                        // (a) a utility is already exported and
+                        // (b) a cluster is always expanded to segments
+                        break;
+                    case SEGMENT: case COMMONS: case SET:
+                        addGroup(groups, group.getKey(), timezone, areas, groupRepository.getGroupMemberKeys(group.getKey()), members, meters, md);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(String.format("Group type [%s] is not supported.",  group.getType()));
+                }
+            }
+        }
+
+        return groups;
+    }
+
+    private void addGroup(List<MeterAggregationGroup> groups,
+                          UUID groupKey,
+                          DateTimeZone timezone,
+                          List<AreaGroupMemberEntity> areas,
+                          List<UUID> userKeys,
+                          Map<UUID, List<MeterAggregationGroup.Member>> members,
+                          Map<MeterAggregationGroup.Member, WaterMeterDevice> meters,
+                          MessageDigest md) throws Exception {
+        MeterAggregationGroup group = new MeterAggregationGroup(groupKey, null, timezone);
+        Map<UUID, MeterAggregationGroup> areaGroups = new LinkedHashMap<UUID, MeterAggregationGroup>();
+
+        for (UUID userKey : userKeys) {
+            for (MeterAggregationGroup.Member member : getMembers(userKey, members, meters, md)) {
+                group.getMembers().add(member);
+
+                WaterMeterDevice meter = meters.get(member);
+                if (meter.getLocation() == null) {
+                    continue;
+                }
+                for (AreaGroupMemberEntity area : areas) {
+                    if (area.getGeometry().contains(meter.getLocation())) {
+                        MeterAggregationGroup areaGroup = areaGroups.get(area.getKey());
+                        if (areaGroup == null) {
+                            areaGroup = new MeterAggregationGroup(groupKey, area.getKey(), timezone);
+                            areaGroups.put(area.getKey(), areaGroup);
+                        }
+                        areaGroup.getMembers().add(member);
+                    }
+                }
+            }
+        }
+
+        if (!group.getMembers().isEmpty()) {
+            groups.add(group);
+        }
+        groups.addAll(areaGroups.values());
+    }
+
+    private List<MeterAggregationGroup.Member> getMembers(UUID userKey,
+                                                          Map<UUID, List<MeterAggregationGroup.Member>> members,
+                                                          Map<MeterAggregationGroup.Member, WaterMeterDevice> meters,
+                                                          MessageDigest md) throws Exception {
+        List<MeterAggregationGroup.Member> result = members.get(userKey);
+        if (result != null) {
+            return result;
+        }
+
+        result = new ArrayList<MeterAggregationGroup.Member>();
+
+        List<Device> devices = deviceRepository.getUserDevices(userKey, EnumDeviceType.METER);
+        if (!devices.isEmpty()) {
+            AuthenticatedUser user = userRepository.getUserByKey(userKey);
+            String label = (user == null ? "" : user.getUsername());
+
+            for (Device device : devices) {
+                WaterMeterDevice meter = (WaterMeterDevice) device;
+
+                MeterAggregationGroup.Member member = new MeterAggregationGroup.Member(md.digest(meter.getSerial().getBytes("UTF-8")),
+                                                                                       meter.getSerial(),
+                                                                                       userKey,
+                                                                                       label);
+                result.add(member);
+                meters.put(member, meter);
+            }
+        }
+
+        members.put(userKey, result);
+
+        return result;
+    }
+
+    @Override
+    public void stop() {
+        MeterAggregationEngine current = engine;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    /**
+     * Enumeration of task input parameters.
+     */
+    public static enum EnumInParameter {
+        /**
+         * Number of meters processed concurrently.
+         */
+        PARALLELISM("parallelism"),
+        /**
+         * Number of users stored for top-k/bottom-k rankings.
+         */
+        TOP_QUERY_LIMIT("top.query.limit"),
+        /**
+         * Interval in seconds by which the watermark is moved back.
+         */
+        WATERMARK_LAG("watermark.lag");
+
+        private final String value;
+
+        public String getValue() {
+            return value;
+        }
+
+        private EnumInParameter(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -74,6 +74,11 @@ public class ConsumptionClusterTask extends BaseTask implements StoppableTasklet
      */
     private final String COUNTER_METER = "meter";
 
+    /**
+     * Number of users whose comparison queries are executed as a single batch.
+     */
+    private static final int QUERY_BATCH_SIZE = 100;
+
     /**
      * Repository for accessing utility data.
      */
@@ -395,122 +400,163 @@ public class ConsumptionClusterTask extends BaseTask implements StoppableTasklet
 
         ComparisonRanking.WaterIq all = convertWaterIq(context, context.comparisons.getAll());
 
-        for(UUID key : context.comparisons.getUserKeys()) {
-            UserComparisonAndRanking user = context.comparisons.getUserByKey(key);
+        List<UUID> userKeys = new ArrayList<UUID>(context.comparisons.getUserKeys());
 
-            // Override results for similar users from savings potential algorithm results
-            overrideWaterIqWithSavingPotentialResult(context, user);
+        for (int offset = 0, total = userKeys.size(); offset < total; offset += QUERY_BATCH_SIZE) {
+            List<UUID> batchKeys = userKeys.subList(offset, Math.min(offset + QUERY_BATCH_SIZE, total));
 
-            // Build data query for the last month total consumption
-            ComparisonRanking.MonthlyConsumtpion monthlyConsumtpion = new ComparisonRanking.MonthlyConsumtpion(context.start.getYear(), context.start.getMonthOfYear());
+            // Queries of all users share the same time filter and are merged
+            // by the data service, hence the meter data is scanned once per
+            // batch instead of once per user
+            List<DataQuery> queries = new ArrayList<DataQuery>();
 
-            DataQuery lastMonthQuery = DataQueryBuilder.create()
-                                                       .timezone(context.timezone)
-                                                       .absolute(context.start, context.end, EnumTimeAggregation.MONTH)
-                                                       .user("self", user.getKey())
-                                                       .users("similar", user.getSimilarUsers())
-                                                       .users("neighbor", user.getNeighborUsers())
-                                                       .users("utility", context.comparisons.getUserKeys().toArray(new UUID[] {}))
-                                                       .sum()
-                                                       .meter()
-                                                       .build();
+            for (UUID key : batchKeys) {
+                UserComparisonAndRanking user = context.comparisons.getUserByKey(key);
 
-            DataQueryResponse result = dataService.execute(lastMonthQuery);
+                // Override results for similar users from savings potential algorithm results
+                overrideWaterIqWithSavingPotentialResult(context, user);
 
-            if (result.getSuccess()) {
-                for (GroupDataSeries series : result.getMeters()) {
-                    if ((!series.getPoints().isEmpty()) && (series.getPoints().size() != 1)) {
-                        throw new RuntimeException("Expected a single value for the series.");
-                    }
-                }
+                queries.add(createComparisonQuery(context, user, EnumTimeAggregation.MONTH));
+                queries.add(createComparisonQuery(context, user, EnumTimeAggregation.DAY));
+            }
 
-                for (GroupDataSeries series : result.getMeters()) {
-                    switch (series.getLabel()) {
-                        case "self":
-                            if (!series.getPoints().isEmpty()) {
-                                monthlyConsumtpion.user = ((MeterDataPoint) series.getPoints().get(0)).getVolume().get(EnumMetric.SUM) / user.getHouseholdSize();
-                            }
-                            break;
-                        case "similar":
-                            if (!series.getPoints().isEmpty()) {
-                                monthlyConsumtpion.similar = ((MeterDataPoint) series.getPoints().get(0)).getVolume().get(EnumMetric.SUM) / user.getSimilarTotalMembers();
-                            }
-                            break;
-                        case "neighbor":
-                            if (!series.getPoints().isEmpty()) {
-                                monthlyConsumtpion.nearest = ((MeterDataPoint) series.getPoints().get(0)).getVolume().get(EnumMetric.SUM) / user.getNeighborTotalMembers();
-                            }
-                            break;
-                        case "utility":
-                            if (!series.getPoints().isEmpty()) {
-                                monthlyConsumtpion.all = ((MeterDataPoint) series.getPoints().get(0)).getVolume().get(EnumMetric.SUM) / context.comparisons.getAllTotalMembers();
-                            }
-                            break;
-                    }
+            List<DataQueryResponse> results = dataService.execute(queries);
+
+            for (int index = 0, count = batchKeys.size(); index < count; index++) {
+                updateComparisonAndRanking(context,
+                                           context.comparisons.getUserByKey(batchKeys.get(index)),
+                                           all,
+                                           results.get(2 * index),
+                                           results.get(2 * index + 1),
+                                           startAsText,
+                                           endAsText);
+            }
+        }
+    }
+
+    /**
+     * Creates a query for the consumption of a user, the similar users, the
+     * neighbors and all the users of the utility.
+     *
+     * @param context job execution data.
+     * @param user the user.
+     * @param granularity the time granularity.
+     * @return the query.
+     */
+    private DataQuery createComparisonQuery(ExecutionContext context, UserComparisonAndRanking user, EnumTimeAggregation granularity) {
+        return DataQueryBuilder.create()
+                               .timezone(context.timezone)
+                               .absolute(context.start, context.end, granularity)
+                               .user("self", user.getKey())
+                               .users("similar", user.getSimilarUsers())
+                               .users("neighbor", user.getNeighborUsers())
+                               .users("utility", context.comparisons.getUserKeys().toArray(new UUID[] {}))
+                               .sum()
+                               .meter()
+                               .build();
+    }
+
+    /**
+     * Updates the water IQ of a user.
+     *
+     * @param context job execution data.
+     * @param user the user.
+     * @param all the water IQ of all users.
+     * @param result the response of the last month total consumption query.
+     * @param dailyResult the response of the last month total daily consumption query.
+     * @param startAsText the start of the interval.
+     * @param endAsText the end of the interval.
+     */
+    private void updateComparisonAndRanking(ExecutionContext context,
+                                            UserComparisonAndRanking user,
+                                            ComparisonRanking.WaterIq all,
+                                            DataQueryResponse result,
+                                            DataQueryResponse dailyResult,
+                                            String startAsText,
+                                            String endAsText) {
+        // Last month total consumption
+        ComparisonRanking.MonthlyConsumtpion monthlyConsumtpion = new ComparisonRanking.MonthlyConsumtpion(context.start.getYear(), context.start.getMonthOfYear());
+
+        if (result.getSuccess()) {
+            for (GroupDataSeries series : result.getMeters()) {
+                if ((!series.getPoints().isEmpty()) && (series.getPoints().size() != 1)) {
+                    throw new RuntimeException("Expected a single value for the series.");
                 }
             }
 
-            // Build data query for the last month total daily consumption
-            Map<Integer, ComparisonRanking.DailyConsumption> dailyConsumption = new HashMap<Integer, ComparisonRanking.DailyConsumption>();
-
-            DataQuery dailyQuery = DataQueryBuilder.create()
-                                                   .timezone(context.timezone)
-                                                   .absolute(context.start, context.end, EnumTimeAggregation.DAY)
-                                                   .user("self", user.getKey())
-                                                   .users("similar", user.getSimilarUsers())
-                                                   .users("neighbor", user.getNeighborUsers())
-                                                   .users("utility", context.comparisons.getUserKeys().toArray(new UUID[] {}))
-                                                   .sum()
-                                                   .meter()
-                                                   .build();
-
-            result = dataService.execute(dailyQuery);
-
-            if (result.getSuccess()) {
-                for (GroupDataSeries series : result.getMeters()) {
-                    switch (series.getLabel()) {
-                        case "self":
-                            for(DataPoint point : series.getPoints()) {
-                                MeterDataPoint meter = (MeterDataPoint) point;
-
-                                getDailyConsumption(context, dailyConsumption, meter).user = meter.getVolume().get(EnumMetric.SUM) / user.getHouseholdSize();
-                            }
-                            break;
-                        case "similar":
-                            for(DataPoint point : series.getPoints()) {
-                                MeterDataPoint meter = (MeterDataPoint) point;
-
-                                getDailyConsumption(context, dailyConsumption, meter).similar = meter.getVolume().get(EnumMetric.SUM) / user.getSimilarTotalMembers();
-                            }
-                            break;
-                        case "neighbor":
-                            for(DataPoint point : series.getPoints()) {
-                                MeterDataPoint meter = (MeterDataPoint) point;
-
-                                getDailyConsumption(context, dailyConsumption, meter).nearest = meter.getVolume().get(EnumMetric.SUM) / user.getNeighborTotalMembers();
-                            }
-                            break;
-                        case "utility":
-                            for(DataPoint point : series.getPoints()) {
-                                MeterDataPoint meter = (MeterDataPoint) point;
-
-                                getDailyConsumption(context, dailyConsumption, meter).all = meter.getVolume().get(EnumMetric.SUM) / context.comparisons.getAllTotalMembers();
-                            }
-                            break;
-                    }
+            for (GroupDataSeries series : result.getMeters()) {
+                switch (series.getLabel()) {
+                    case "self":
+                        if (!series.getPoints().isEmpty()) {
+                            monthlyConsumtpion.user = ((MeterDataPoint) series.getPoints().get(0)).getVolume().get(EnumMetric.SUM) / user.getHouseholdSize();
+                        }
+                        break;
+                    case "similar":
+                        if (!series.getPoints().isEmpty()) {
+                            monthlyConsumtpion.similar = ((MeterDataPoint) series.getPoints().get(0)).getVolume().get(EnumMetric.SUM) / user.getSimilarTotalMembers();
+                        }
+                        break;
+                    case "neighbor":
+                        if (!series.getPoints().isEmpty()) {
+                            monthlyConsumtpion.nearest = ((MeterDataPoint) series.getPoints().get(0)).getVolume().get(EnumMetric.SUM) / user.getNeighborTotalMembers();
+                        }
+                        break;
+                    case "utility":
+                        if (!series.getPoints().isEmpty()) {
+                            monthlyConsumtpion.all = ((MeterDataPoint) series.getPoints().get(0)).getVolume().get(EnumMetric.SUM) / context.comparisons.getAllTotalMembers();
+                        }
+                        break;
                 }
             }
+        }
+
+        // Last month total daily consumption
+        Map<Integer, ComparisonRanking.DailyConsumption> dailyConsumption = new HashMap<Integer, ComparisonRanking.DailyConsumption>();
+
+        if (dailyResult.getSuccess()) {
+            for (GroupDataSeries series : dailyResult.getMeters()) {
+                switch (series.getLabel()) {
+                    case "self":
+                        for(DataPoint point : series.getPoints()) {
+                            MeterDataPoint meter = (MeterDataPoint) point;
 
-            waterIqRepository.update(user.getKey(),
-                                     startAsText,
-                                     endAsText,
-                                     convertWaterIq(context, user.getSelf()),
-                                     convertWaterIq(context, user.getSimilarWaterIq()),
-                                     convertWaterIq(context, user.getNeighborWaterIq()),
-                                     all,
-                                     monthlyConsumtpion,
-                                     toList(dailyConsumption.values()));
+                            getDailyConsumption(context, dailyConsumption, meter).user = meter.getVolume().get(EnumMetric.SUM) / user.getHouseholdSize();
+                        }
+                        break;
+                    case "similar":
+                        for(DataPoint point : series.getPoints()) {
+                            MeterDataPoint meter = (MeterDataPoint) point;
+
+                            getDailyConsumption(context, dailyConsumption, meter).similar = meter.getVolume().get(EnumMetric.SUM) / user.getSimilarTotalMembers();
+                        }
+                        break;
+                    case "neighbor":
+                        for(DataPoint point : series.getPoints()) {
+                            MeterDataPoint meter = (MeterDataPoint) point;
+
+                            getDailyConsumption(context, dailyConsumption, meter).nearest = meter.getVolume().get(EnumMetric.SUM) / user.getNeighborTotalMembers();
+                        }
+                        break;
+                    case "utility":
+                        for(DataPoint point : series.getPoints()) {
+                            MeterDataPoint meter = (MeterDataPoint) point;
+
+                            getDailyConsumption(context, dailyConsumption, meter).all = meter.getVolume().get(EnumMetric.SUM) / context.comparisons.getAllTotalMembers();
+                        }
+                        break;
+                }
+            }
         }
+
+        waterIqRepository.update(user.getKey(),
+                                 startAsText,
+                                 endAsText,
+                                 convertWaterIq(context, user.getSelf()),
+                                 convertWaterIq(context, user.getSimilarWaterIq()),
+                                 convertWaterIq(context, user.getNeighborWaterIq()),
+                                 all,
+                                 monthlyConsumtpion,
+                                 toList(dailyConsumption.values()));
     }
 
     /**
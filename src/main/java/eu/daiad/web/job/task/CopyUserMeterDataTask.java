@@ -18,7 +18,9 @@ import eu.daiad.web.model.device.DeviceRegistrationQuery;
 import eu.daiad.web.model.device.EnumDeviceType;
 import eu.daiad.web.model.device.WaterMeterDevice;
 import eu.daiad.web.model.error.ApplicationException;
+import eu.daiad.web.model.error.DataErrorCode;
 import eu.daiad.web.model.error.SharedErrorCode;
+import eu.daiad.web.model.meter.MeterDataStoreStats;
 import eu.daiad.web.model.meter.WaterMeterDataPoint;
 import eu.daiad.web.model.meter.WaterMeterDataSeries;
 import eu.daiad.web.model.meter.WaterMeterMeasurementCollection;
@@ -141,7 +143,12 @@ public class CopyUserMeterDataTask extends BaseTask implements StoppableTasklet
             data.add(point.getTimestamp(), point.getVolume(), point.getDifference());
         }
 
-        meterDataRepository.store(targetMeterSerial, data);
+        MeterDataStoreStats stats = meterDataRepository.store(targetMeterSerial, data);
+        meterDataRepository.flush();
+
+        if (stats.getFailed() > 0) {
+            throw createApplicationException(DataErrorCode.METER_DATA_STORE_FAILED).set("count", stats.getFailed());
+        }
 
         StringBuilder text = new StringBuilder();
         text.append(String.format("Copied data from [%s - %s] to [%s - %s]. ", sourceUserName, sourceMeterSerial, targetUserName, targetMeterSerial));
@@ -21,6 +21,12 @@ public class DeviceMeasurementCollection extends AuthenticatedRequest {
 
 	private UUID deviceKey;
 
+	/**
+	 * Stores the data before responding even if asynchronous storage is
+	 * enabled, e.g. for clients that require the updated sessions.
+	 */
+	private boolean synchronous;
+
 	public UUID getDeviceKey() {
 		return deviceKey;
 	}
@@ -29,6 +35,14 @@ public class DeviceMeasurementCollection extends AuthenticatedRequest {
 		this.deviceKey = deviceKey;
 	}
 
+	public boolean isSynchronous() {
+		return synchronous;
+	}
+
+	public void setSynchronous(boolean synchronous) {
+		this.synchronous = synchronous;
+	}
+
 	public EnumDeviceType getType() {
 		return this.type;
 	}
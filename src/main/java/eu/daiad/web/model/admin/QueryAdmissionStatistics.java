@@ -0,0 +1,87 @@
+package eu.daiad.web.model.admin;
+
+import eu.daiad.web.model.query.EnumQueryCaller;
+
+public class QueryAdmissionStatistics {
+
+    private EnumQueryCaller caller;
+
+    private long capacity;
+
+    private long available;
+
+    private int timeout;
+
+    private long admitted;
+
+    private long queued;
+
+    private long rejected;
+
+    private long queueTime;
+
+    public EnumQueryCaller getCaller() {
+        return caller;
+    }
+
+    public void setCaller(EnumQueryCaller caller) {
+        this.caller = caller;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public long getAvailable() {
+        return available;
+    }
+
+    public void setAvailable(long available) {
+        this.available = available;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    public void setAdmitted(long admitted) {
+        this.admitted = admitted;
+    }
+
+    public long getQueued() {
+        return queued;
+    }
+
+    public void setQueued(long queued) {
+        this.queued = queued;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+
+    public long getQueueTime() {
+        return queueTime;
+    }
+
+    public void setQueueTime(long queueTime) {
+        this.queueTime = queueTime;
+    }
+
+}
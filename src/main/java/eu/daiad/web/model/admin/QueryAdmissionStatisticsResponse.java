@@ -0,0 +1,19 @@
+package eu.daiad.web.model.admin;
+
+import java.util.List;
+
+import eu.daiad.web.model.RestResponse;
+
+public class QueryAdmissionStatisticsResponse extends RestResponse {
+
+    private List<QueryAdmissionStatistics> budgets;
+
+    public QueryAdmissionStatisticsResponse(List<QueryAdmissionStatistics> budgets) {
+        this.budgets = budgets;
+    }
+
+    public List<QueryAdmissionStatistics> getBudgets() {
+        return budgets;
+    }
+
+}
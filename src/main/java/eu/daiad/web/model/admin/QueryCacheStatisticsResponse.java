@@ -0,0 +1,17 @@
+package eu.daiad.web.model.admin;
+
+import eu.daiad.web.model.RestResponse;
+
+public class QueryCacheStatisticsResponse extends RestResponse {
+
+    private QueryCacheStatistics statistics;
+
+    public QueryCacheStatisticsResponse(QueryCacheStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public QueryCacheStatistics getStatistics() {
+        return statistics;
+    }
+
+}
@@ -0,0 +1,19 @@
+package eu.daiad.web.model.admin;
+
+import java.util.List;
+
+import eu.daiad.web.model.RestResponse;
+
+public class QueryProfileStatisticsResponse extends RestResponse {
+
+    private List<QueryShapeStatistics> shapes;
+
+    public QueryProfileStatisticsResponse(List<QueryShapeStatistics> shapes) {
+        this.shapes = shapes;
+    }
+
+    public List<QueryShapeStatistics> getShapes() {
+        return shapes;
+    }
+
+}
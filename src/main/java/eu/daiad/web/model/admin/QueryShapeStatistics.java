@@ -0,0 +1,93 @@
+package eu.daiad.web.model.admin;
+
+public class QueryShapeStatistics {
+
+    private String shape;
+
+    private long count;
+
+    private long slow;
+
+    private long totalDuration;
+
+    private long maxDuration;
+
+    private long rows;
+
+    private long cells;
+
+    private long bytes;
+
+    public QueryShapeStatistics(String shape) {
+        this.shape = shape;
+    }
+
+    public QueryShapeStatistics(QueryShapeStatistics statistics) {
+        shape = statistics.shape;
+        count = statistics.count;
+        slow = statistics.slow;
+        totalDuration = statistics.totalDuration;
+        maxDuration = statistics.maxDuration;
+        rows = statistics.rows;
+        cells = statistics.cells;
+        bytes = statistics.bytes;
+    }
+
+    /**
+     * Records the execution of a query.
+     *
+     * @param duration the query duration in milliseconds.
+     * @param slow true if the duration exceeds the slow query threshold.
+     * @param rows the number of HBase rows scanned.
+     * @param cells the number of HBase cells scanned.
+     * @param bytes the number of bytes read from HBase.
+     */
+    public void add(long duration, boolean slow, long rows, long cells, long bytes) {
+        count++;
+        if (slow) {
+            this.slow++;
+        }
+        totalDuration += duration;
+        maxDuration = Math.max(maxDuration, duration);
+        this.rows += rows;
+        this.cells += cells;
+        this.bytes += bytes;
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSlow() {
+        return slow;
+    }
+
+    public long getTotalDuration() {
+        return totalDuration;
+    }
+
+    public long getMaxDuration() {
+        return maxDuration;
+    }
+
+    public long getAverageDuration() {
+        return (count == 0 ? 0 : totalDuration / count);
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getCells() {
+        return cells;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+}
@@ -9,7 +9,9 @@ public enum DataErrorCode implements ErrorCode {
 	SESSION_NOT_FOUND,
 	DUPLICATE_SESSION_ID,
 	HBASE_INVALID_COLUMN,
-	REALTIME_ALREADY_EXISTS;
+	REALTIME_ALREADY_EXISTS,
+	INGESTION_QUEUE_FULL,
+	METER_DATA_STORE_FAILED;
 
 	@Override
 	public String getMessageKey() {
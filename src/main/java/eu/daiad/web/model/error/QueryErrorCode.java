@@ -18,7 +18,10 @@ public enum QueryErrorCode implements ErrorCode {
     RANKING_INVALID_FIELD,
     RANKING_INVALID_METRIC,
     METRIC_INVALID,
-    SOURCE_INVALID;
+    SOURCE_INVALID,
+    TIMEOUT,
+    REJECTED,
+    BATCH_TOO_LARGE;
 
 	@Override
 	public String getMessageKey() {
@@ -0,0 +1,74 @@
+package eu.daiad.web.model.meter;
+
+import java.util.List;
+
+import eu.daiad.web.hbase.RankingCellCodec;
+
+/**
+ * Pre-aggregated smart water meter data of a population group for a single
+ * time bucket. Metrics are computed over the consumption (volume difference)
+ * of the individual readings; the top-k/bottom-k users are ranked by their
+ * total consumption in the time bucket.
+ */
+public class MeterAggregate {
+
+    private final double sum;
+
+    private final double min;
+
+    private final double max;
+
+    private final int count;
+
+    private final List<RankingCellCodec.Entry> top;
+
+    private final List<RankingCellCodec.Entry> bottom;
+
+    public MeterAggregate(double sum, double min, double max, int count, List<RankingCellCodec.Entry> top, List<RankingCellCodec.Entry> bottom) {
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.count = count;
+        this.top = top;
+        this.bottom = bottom;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getAverage() {
+        return (count == 0 ? 0 : sum / count);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the users with the highest consumption in ascending order.
+     *
+     * @return a list of users.
+     */
+    public List<RankingCellCodec.Entry> getTop() {
+        return top;
+    }
+
+    /**
+     * Returns the users with the lowest consumption in ascending order.
+     *
+     * @return a list of users.
+     */
+    public List<RankingCellCodec.Entry> getBottom() {
+        return bottom;
+    }
+
+}
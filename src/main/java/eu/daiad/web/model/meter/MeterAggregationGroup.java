@@ -0,0 +1,84 @@
+package eu.daiad.web.model.meter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * A population group whose smart water meter data is pre-aggregated. A group
+ * is either a utility, a segment, a commons or a set of users, optionally
+ * restricted to a single area. Aggregates are computed using the time zone of
+ * the group utility.
+ */
+public class MeterAggregationGroup {
+
+    private final UUID groupKey;
+
+    private final UUID areaKey;
+
+    private final DateTimeZone timezone;
+
+    private final List<Member> members = new ArrayList<Member>();
+
+    public MeterAggregationGroup(UUID groupKey, UUID areaKey, DateTimeZone timezone) {
+        this.groupKey = groupKey;
+        this.areaKey = areaKey;
+        this.timezone = timezone;
+    }
+
+    public UUID getGroupKey() {
+        return groupKey;
+    }
+
+    public UUID getAreaKey() {
+        return areaKey;
+    }
+
+    public DateTimeZone getTimezone() {
+        return timezone;
+    }
+
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * A smart water meter of a group member.
+     */
+    public static class Member {
+
+        private final byte[] serialHash;
+
+        private final String serial;
+
+        private final UUID userKey;
+
+        private final String label;
+
+        public Member(byte[] serialHash, String serial, UUID userKey, String label) {
+            this.serialHash = serialHash;
+            this.serial = serial;
+            this.userKey = userKey;
+            this.label = label;
+        }
+
+        public byte[] getSerialHash() {
+            return serialHash;
+        }
+
+        public String getSerial() {
+            return serial;
+        }
+
+        public UUID getUserKey() {
+            return userKey;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+}
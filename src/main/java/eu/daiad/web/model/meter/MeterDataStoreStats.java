@@ -1,11 +1,16 @@
 package eu.daiad.web.model.meter;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class MeterDataStoreStats {
 
     private int updated = 0;
 
     private int created = 0;
 
+    private Set<Long> failed = new HashSet<Long>();
+
     public void update() {
         updated++;
     }
@@ -14,6 +19,15 @@ public class MeterDataStoreStats {
         created++;
     }
 
+    /**
+     * Records a reading that could not be written.
+     *
+     * @param timestamp the reading timestamp.
+     */
+    public synchronized void fail(long timestamp) {
+        failed.add(timestamp);
+    }
+
     public int getUpdated() {
         return updated;
     }
@@ -22,4 +36,12 @@ public class MeterDataStoreStats {
         return created;
     }
 
+    public synchronized int getFailed() {
+        return failed.size();
+    }
+
+    public synchronized Set<Long> getFailedTimestamps() {
+        return new HashSet<Long>(failed);
+    }
+
 }
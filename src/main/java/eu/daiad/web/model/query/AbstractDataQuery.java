@@ -14,6 +14,8 @@ public abstract class AbstractDataQuery {
 
     private boolean usingPreAggregation;
 
+    private boolean profile;
+
     @JsonIgnore
     private AuthenticatedUser executor;
 
@@ -57,6 +59,20 @@ public abstract class AbstractDataQuery {
         this.usingPreAggregation = usingPreAggregation;
     }
 
+    /**
+     * Returns true if the execution profile of the query should be included
+     * in the response.
+     *
+     * @return true if the execution profile is requested.
+     */
+    public boolean isProfile() {
+        return profile;
+    }
+
+    public void setProfile(boolean profile) {
+        this.profile = profile;
+    }
+
     public AuthenticatedUser getExecutor() {
         return executor;
     }
@@ -69,4 +69,15 @@ public class AmphiroDataPoint extends DataPoint {
         }
 	    return m;
 	}
+
+	@Override
+	public AmphiroDataPoint copy() {
+		AmphiroDataPoint p = (getTimestamp() == null ? new AmphiroDataPoint() : new AmphiroDataPoint(getTimestamp()));
+		p.volume.putAll(volume);
+		p.duration.putAll(duration);
+		p.temperature.putAll(temperature);
+		p.energy.putAll(energy);
+		p.flow.putAll(flow);
+		return p;
+	}
 }
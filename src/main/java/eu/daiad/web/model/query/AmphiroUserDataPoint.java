@@ -39,4 +39,15 @@ public class AmphiroUserDataPoint extends UserDataPoint {
 	public Map<EnumMetric, Double> getVolume() {
 		return volume;
 	}
+
+	@Override
+	public AmphiroUserDataPoint copy() {
+		AmphiroUserDataPoint p = new AmphiroUserDataPoint(getKey(), getLabel());
+		p.volume.putAll(volume);
+		p.duration.putAll(duration);
+		p.temperature.putAll(temperature);
+		p.energy.putAll(energy);
+		p.flow.putAll(flow);
+		return p;
+	}
 }
@@ -0,0 +1,20 @@
+package eu.daiad.web.model.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.daiad.web.model.AuthenticatedRequest;
+
+public class BatchDataQueryRequest extends AuthenticatedRequest {
+
+    private List<DataQuery> queries = new ArrayList<DataQuery>();
+
+    public List<DataQuery> getQueries() {
+        return queries;
+    }
+
+    public void setQueries(List<DataQuery> queries) {
+        this.queries = queries;
+    }
+
+}
@@ -0,0 +1,19 @@
+package eu.daiad.web.model.query;
+
+import java.util.List;
+
+import eu.daiad.web.model.RestResponse;
+
+public class BatchDataQueryResponse extends RestResponse {
+
+    private List<DataQueryResponse> responses;
+
+    public BatchDataQueryResponse(List<DataQueryResponse> responses) {
+        this.responses = responses;
+    }
+
+    public List<DataQueryResponse> getResponses() {
+        return responses;
+    }
+
+}
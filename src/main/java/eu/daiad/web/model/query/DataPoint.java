@@ -32,4 +32,13 @@ public class DataPoint {
     public Map<EnumMetric, Double> field(EnumDataField field) {
         return null;
     }
+
+    /**
+     * Creates a deep copy of the data point.
+     *
+     * @return the copy.
+     */
+    public DataPoint copy() {
+        return (timestamp == null ? new DataPoint(type) : new DataPoint(type, timestamp));
+    }
 }
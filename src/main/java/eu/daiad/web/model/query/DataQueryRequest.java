@@ -6,6 +6,12 @@ public class DataQueryRequest extends AuthenticatedRequest {
 
 	private DataQuery query;
 
+	/**
+	 * If true, the data series are streamed to the client as soon as they are
+	 * computed instead of serializing the response after the query completes.
+	 */
+	private boolean stream = false;
+
 	public DataQuery getQuery() {
 		return query;
 	}
@@ -14,4 +20,12 @@ public class DataQueryRequest extends AuthenticatedRequest {
 		this.query = query;
 	}
 
+	public boolean isStream() {
+		return stream;
+	}
+
+	public void setStream(boolean stream) {
+		this.stream = stream;
+	}
+
 }
@@ -0,0 +1,198 @@
+package eu.daiad.web.model.query;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.daiad.web.model.RestResponse;
+
+/**
+ * Writes a {@link DataQueryResponse} incrementally to an output stream. The
+ * data series are written as soon as they are computed, before the query
+ * execution completes, and every data point is released after it has been
+ * serialized. The remaining response properties are written by
+ * {@link DataQueryResponseWriter#close(RestResponse)}.
+ *
+ * The resulting document has the same properties as a serialized
+ * {@link DataQueryResponse}, although not necessarily in the same order. If
+ * writing a data series fails, any arrays and objects left open are closed
+ * before the remaining properties are written; hence the document is always
+ * valid JSON.
+ */
+public class DataQueryResponseWriter {
+
+    private final JsonGenerator generator;
+
+    private boolean started = false;
+
+    private boolean devicesWritten = false;
+
+    private boolean metersWritten = false;
+
+    /**
+     * True if a field name has been written without a value.
+     */
+    private boolean valuePending = false;
+
+    public DataQueryResponseWriter(ObjectMapper objectMapper, OutputStream output) throws IOException {
+        generator = objectMapper.getFactory().createGenerator(output, JsonEncoding.UTF8);
+    }
+
+    /**
+     * Returns true if any content has been written.
+     *
+     * @return true if the response has started.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Writes the amphiro b1 data series. The data points of the series are
+     * removed.
+     *
+     * @param series the data series.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeDevices(List<GroupDataSeries> series) throws IOException {
+        // A partially written field must not be written again
+        devicesWritten = true;
+        writeSeries("devices", series);
+    }
+
+    /**
+     * Writes the smart water meter data series. The data points of the series
+     * are removed.
+     *
+     * @param series the data series.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeMeters(List<GroupDataSeries> series) throws IOException {
+        metersWritten = true;
+        writeSeries("meters", series);
+    }
+
+    /**
+     * Writes the remaining properties of a response and closes the document.
+     * If the response is not a {@link DataQueryResponse}, e.g. the query has
+     * failed after some data series have been written, only the errors are
+     * written.
+     *
+     * @param response the response.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void close(RestResponse response) throws IOException {
+        start();
+        closeContexts();
+
+        if (response instanceof DataQueryResponse) {
+            DataQueryResponse dataResponse = (DataQueryResponse) response;
+
+            if (!devicesWritten) {
+                generator.writeObjectField("devices", dataResponse.getDevices());
+            }
+            if (!metersWritten) {
+                generator.writeObjectField("meters", dataResponse.getMeters());
+            }
+        }
+        if (response instanceof QueryResponse) {
+            QueryResponse queryResponse = (QueryResponse) response;
+
+            generator.writeStringField("timezone", queryResponse.getTimezone());
+            generator.writeObjectField("areas", queryResponse.getAreas());
+            generator.writeObjectField("execution", queryResponse.getExecution());
+        }
+
+        generator.writeObjectField("errors", response.getErrors());
+        generator.writeBooleanField("success", response.getSuccess());
+
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            generator.writeStartObject();
+            started = true;
+        }
+    }
+
+    /**
+     * Closes the arrays and objects left open by a failed write, down to the
+     * response object. A field name without a value is completed with a null
+     * value.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void closeContexts() throws IOException {
+        if (valuePending) {
+            generator.writeNull();
+            valuePending = false;
+        }
+
+        JsonStreamContext context = generator.getOutputContext();
+        while ((!context.inRoot()) && (!context.getParent().inRoot())) {
+            if (context.inArray()) {
+                generator.writeEndArray();
+            } else {
+                generator.writeEndObject();
+            }
+            context = generator.getOutputContext();
+        }
+    }
+
+    private void writeSeries(String fieldName, List<GroupDataSeries> series) throws IOException {
+        start();
+
+        generator.writeFieldName(fieldName);
+        valuePending = true;
+        if (series == null) {
+            generator.writeNull();
+            valuePending = false;
+        } else {
+            generator.writeStartArray();
+            valuePending = false;
+            for (GroupDataSeries s : series) {
+                writeSeries(s);
+            }
+            generator.writeEndArray();
+        }
+
+        // Send the data series to the client before the query completes
+        generator.flush();
+    }
+
+    private void writeSeries(GroupDataSeries series) throws IOException {
+        List<DataPoint> points = series.getPoints();
+
+        generator.writeStartObject();
+        generator.writeStringField("label", series.getLabel());
+        generator.writeNumberField("population", series.getPopulation());
+        if (series.getAreaId() == null) {
+            generator.writeNullField("areaId");
+        } else {
+            generator.writeNumberField("areaId", series.getAreaId());
+        }
+        generator.writeBooleanField("empty", points.isEmpty());
+
+        generator.writeFieldName("points");
+        valuePending = true;
+        generator.writeStartArray();
+        valuePending = false;
+        for (int i = 0, count = points.size(); i < count; i++) {
+            generator.writeObject(points.get(i));
+            // Release the point once it is serialized
+            points.set(i, null);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+
+        points.clear();
+    }
+
+}
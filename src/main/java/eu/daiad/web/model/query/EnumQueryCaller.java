@@ -0,0 +1,20 @@
+package eu.daiad.web.model.query;
+
+/**
+ * Class of the caller of a data query. Every class has a separate admission
+ * control budget.
+ */
+public enum EnumQueryCaller {
+    /**
+     * Queries of end users e.g. from the mobile and home web applications.
+     */
+    MOBILE,
+    /**
+     * Queries of utility and system administrators.
+     */
+    UTILITY,
+    /**
+     * Queries with no authenticated user e.g. from jobs and message resolvers.
+     */
+    BATCH;
+}
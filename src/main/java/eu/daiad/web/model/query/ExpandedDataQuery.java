@@ -1,6 +1,7 @@
 package eu.daiad.web.model.query;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.joda.time.DateTimeZone;
@@ -23,6 +24,14 @@ public class ExpandedDataQuery {
 
     private List<EnumMetric> metrics;
 
+    private List<String> plans = Collections.synchronizedList(new ArrayList<String>());
+
+    private QueryExecutionProfile profile = new QueryExecutionProfile();
+
+    private TimeBucketCalendar calendar;
+
+    private boolean calendarCreated = false;
+
     private ExpandedDataQuery() {
         metrics = new ArrayList<EnumMetric>();
         for (EnumMetric m : EnumMetric.values()) {
@@ -47,6 +56,7 @@ public class ExpandedDataQuery {
 
     public void setStartDateTime(long startDateTime) {
         this.startDateTime = startDateTime;
+        resetCalendar();
     }
 
     public long getEndDateTime() {
@@ -55,6 +65,7 @@ public class ExpandedDataQuery {
 
     public void setEndDateTime(long endDateTime) {
         this.endDateTime = endDateTime;
+        resetCalendar();
     }
 
     public EnumTimeAggregation getGranularity() {
@@ -63,6 +74,7 @@ public class ExpandedDataQuery {
 
     public void setGranularity(EnumTimeAggregation granularity) {
         this.granularity = granularity;
+        resetCalendar();
     }
 
     public List<EnumMetric> getMetrics() {
@@ -77,6 +89,49 @@ public class ExpandedDataQuery {
         return timezone;
     }
 
+    /**
+     * Returns the time buckets of the query. The calendar is created once and
+     * shared by all the repositories that execute the query.
+     *
+     * @return the {@link TimeBucketCalendar} or null if the query time interval is not supported.
+     */
+    public synchronized TimeBucketCalendar getCalendar() {
+        if (!calendarCreated) {
+            calendar = TimeBucketCalendar.create(granularity, timezone, startDateTime, endDateTime);
+            calendarCreated = true;
+        }
+        return calendar;
+    }
+
+    private synchronized void resetCalendar() {
+        calendar = null;
+        calendarCreated = false;
+    }
+
+    /**
+     * Returns the execution plans selected by the repositories that executed
+     * this query.
+     *
+     * @return a list of plan descriptions.
+     */
+    public List<String> getPlans() {
+        return plans;
+    }
+
+    public void addPlan(String plan) {
+        plans.add(plan);
+    }
+
+    /**
+     * Returns the execution profile updated by the service and the
+     * repositories that execute this query.
+     *
+     * @return the execution profile.
+     */
+    public QueryExecutionProfile getProfile() {
+        return profile;
+    }
+
     public boolean isUsingPreAggregation() {
         return usingPreAggregation;
     }
@@ -1,14 +1,14 @@
 package eu.daiad.web.model.query;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 import org.apache.commons.collections4.Predicate;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
 
 import eu.daiad.web.model.EnumTimeAggregation;
@@ -23,10 +23,46 @@ public class GroupDataSeries
 
     List<DataPoint> points = new ArrayList<DataPoint>();
 
+    /**
+     * Accumulated values of the data points indexed by bucket timestamp. The
+     * metric maps of the data points are updated only when the points are read.
+     */
+    private final BucketIndex buckets = new BucketIndex();
+
+    private List<EnumMetric> metrics;
+
+    private boolean dirty = false;
+
+    private static final int METRIC_COUNT = EnumMetric.values().length;
+
+    private static final int FIELD_VOLUME = 0;
+
+    private static final int FIELD_ENERGY = 1;
+
+    private static final int FIELD_DURATION = 2;
+
+    private static final int FIELD_TEMPERATURE = 3;
+
+    private static final int FIELD_FLOW = 4;
+
+    private static final int METER_FIELDS = 1;
+
+    private static final int AMPHIRO_FIELDS = 5;
+
+    /**
+     * Optional precomputed time buckets of the query.
+     */
+    private final TimeBucketCalendar calendar;
+
     public GroupDataSeries(String label, int population, Long areaId) {
+        this(label, population, areaId, null);
+    }
+
+    public GroupDataSeries(String label, int population, Long areaId, TimeBucketCalendar calendar) {
         this.label = label;
         this.population = population;
         this.areaId = areaId;
+        this.calendar = calendar;
     }
 
     public String getLabel() {
@@ -34,98 +70,83 @@ public class GroupDataSeries
     }
 
     public List<DataPoint> getPoints() {
+        flush();
         return points;
     }
 
-    private DataPoint createDataPoint(List<EnumMetric> metrics, DataPoint.EnumDataPointType type, Long timestamp) {
+    private DataPoint createDataPoint(DataPoint.EnumDataPointType type, long timestamp) {
         switch (type) {
             case METER:
-                MeterDataPoint mp = (timestamp == null ? new MeterDataPoint() : new MeterDataPoint(timestamp));
-
-                for (EnumMetric m : metrics) {
-                    if (m == EnumMetric.MIN) {
-                        mp.getVolume().put(m, Double.MAX_VALUE);
-                    } else {
-                        mp.getVolume().put(m, 0.0);
-                    }
-                }
-
-                points.add(mp);
-
-                return mp;
+                return new MeterDataPoint(timestamp);
             case AMPHIRO:
-                AmphiroDataPoint ap = (timestamp == null ? new AmphiroDataPoint() : new AmphiroDataPoint(timestamp));
-
-                for (EnumMetric m : metrics) {
-                    if (m == EnumMetric.MIN) {
-                        ap.getVolume().put(m, Double.MAX_VALUE);
-                        ap.getEnergy().put(m, Double.MAX_VALUE);
-                        ap.getTemperature().put(m, Double.MAX_VALUE);
-                        ap.getDuration().put(m, Double.MAX_VALUE);
-                        ap.getFlow().put(m, Double.MAX_VALUE);
-                    } else {
-                        ap.getVolume().put(m, 0.0);
-                        ap.getEnergy().put(m, 0.0);
-                        ap.getTemperature().put(m, 0.0);
-                        ap.getDuration().put(m, 0.0);
-                        ap.getFlow().put(m, 0.0);
-                    }
-                }
-
-                points.add(ap);
-
-                return ap;
+                return new AmphiroDataPoint(timestamp);
+            case RANKING:
+                return new RankingDataPoint(timestamp);
             default:
                 throw new IllegalArgumentException("Data point type is not supported.");
-
         }
     }
 
-    private DataPoint getDataPoint(EnumTimeAggregation granularity,
-                                   long timestamp,
-                                   List<EnumMetric> metrics,
-                                   DataPoint.EnumDataPointType type,
-                                   DateTimeZone timezone) {
-        DateTime date = new DateTime(timestamp, timezone);
-
-        switch (granularity) {
-            case HOUR:
-                date = new DateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), date.getHourOfDay(), 0, 0, timezone);
-                break;
-            case DAY:
-                date = new DateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), 0, 0, 0, timezone);
-                break;
-            case WEEK:
-                DateTime sunday = date.withDayOfWeek(DateTimeConstants.SUNDAY);
+    private long getBucketTimestamp(EnumTimeAggregation granularity, long timestamp, DateTimeZone timezone) {
+        if ((calendar != null) && (calendar.matches(granularity, timezone))) {
+            return calendar.getBucket(timestamp);
+        }
+        return TimeBucketCalendar.truncate(granularity, timestamp, timezone);
+    }
 
-                date = new DateTime(sunday.getYear(), sunday.getMonthOfYear(), sunday.getDayOfMonth(), 0, 0, 0, timezone);
-                break;
-            case MONTH:
-                date = new DateTime(date.getYear(), date.getMonthOfYear(), 1, 0, 0, 0, timezone);
-                break;
-            case YEAR:
-                date = new DateTime(date.getYear(), 1, 1, 0, 0, 0, timezone);
-                break;
-            default:
-                throw new IllegalArgumentException("Granularity level not supported.");
+    private Bucket getBucket(EnumTimeAggregation granularity,
+                             long timestamp,
+                             List<EnumMetric> metrics,
+                             DataPoint.EnumDataPointType type,
+                             int fields,
+                             DateTimeZone timezone) {
+        timestamp = getBucketTimestamp(granularity, timestamp, timezone);
+
+        Bucket bucket = buckets.get(timestamp);
+        if (bucket == null) {
+            DataPoint point = createDataPoint(type, timestamp);
+            bucket = new Bucket(timestamp, point, (type == DataPoint.EnumDataPointType.RANKING ? 0 : fields));
+
+            buckets.put(bucket);
+            points.add(point);
         }
+        if (this.metrics == null) {
+            this.metrics = metrics;
+        }
+        dirty = true;
 
-        DataPoint p = null;
-        timestamp = date.getMillis();
+        return bucket;
+    }
 
-        for (int i = 0, count = points.size(); i < count; i++) {
-            if (timestamp == points.get(i).getTimestamp()) {
-                p = points.get(i);
+    private UserBucket getUserBucket(EnumTimeAggregation granularity,
+                                     UUID key,
+                                     String label,
+                                     long timestamp,
+                                     List<EnumMetric> metrics,
+                                     DataPoint.EnumDataPointType type,
+                                     DateTimeZone timezone) {
+        Bucket ranking = getBucket(granularity, timestamp, metrics, DataPoint.EnumDataPointType.RANKING, 0, timezone);
+
+        UserBucket user = ranking.users.get(key);
+        if (user != null) {
+            return user;
+        }
 
+        switch (type) {
+            case METER:
+                user = new UserBucket(new MeterUserDataPoint(key, label), METER_FIELDS);
                 break;
-            }
+            case AMPHIRO:
+                user = new UserBucket(new AmphiroUserDataPoint(key, label), AMPHIRO_FIELDS);
+                break;
+            default:
+                throw new IllegalArgumentException("Data point type is not supported.");
         }
 
-        if (p == null) {
-            p = createDataPoint(metrics, type, timestamp);
-        }
+        ranking.users.put(key, user);
+        ((RankingDataPoint) ranking.point).getUsers().add(user.point);
 
-        return p;
+        return user;
     }
 
     public void addAmhiroDataPoint(EnumTimeAggregation granularity,
@@ -137,81 +158,13 @@ public class GroupDataSeries
                                    double flow,
                                    List<EnumMetric> metrics,
                                    DateTimeZone timezone) {
-        AmphiroDataPoint point = (AmphiroDataPoint) getDataPoint(granularity, timestamp, metrics, DataPoint.EnumDataPointType.AMPHIRO, timezone);
+        Bucket bucket = getBucket(granularity, timestamp, metrics, DataPoint.EnumDataPointType.AMPHIRO, AMPHIRO_FIELDS, timezone);
 
-        boolean avg = false;
-        for (EnumMetric m : metrics) {
-            switch (m) {
-                case COUNT:
-                    point.getVolume().put(m, point.getVolume().get(m) + 1);
-                    point.getEnergy().put(m, point.getEnergy().get(m) + 1);
-                    point.getDuration().put(m, point.getDuration().get(m) + 1);
-                    point.getTemperature().put(m, point.getTemperature().get(m) + 1);
-                    point.getFlow().put(m, point.getFlow().get(m) + 1);
-                    break;
-                case SUM:
-                    point.getVolume().put(m, point.getVolume().get(m) + volume);
-                    point.getEnergy().put(m, point.getEnergy().get(m) + energy);
-                    point.getDuration().put(m, point.getDuration().get(m) + duration);
-                    point.getTemperature().put(m, point.getTemperature().get(m) + temperature);
-                    point.getFlow().put(m, point.getFlow().get(m) + flow);
-                    break;
-                case MIN:
-                    if (point.getVolume().get(m) > volume) {
-                        point.getVolume().put(m, volume);
-                    }
-                    if (point.getEnergy().get(m) > energy) {
-                        point.getEnergy().put(m, energy);
-                    }
-                    if (point.getDuration().get(m) > duration) {
-                        point.getDuration().put(m, duration);
-                    }
-                    if (point.getTemperature().get(m) > temperature) {
-                        point.getTemperature().put(m, temperature);
-                    }
-                    if (point.getFlow().get(m) > flow) {
-                        point.getFlow().put(m, flow);
-                    }
-                    break;
-                case MAX:
-                    if (point.getVolume().get(m) < volume) {
-                        point.getVolume().put(m, volume);
-                    }
-                    if (point.getEnergy().get(m) < energy) {
-                        point.getEnergy().put(m, energy);
-                    }
-                    if (point.getDuration().get(m) < duration) {
-                        point.getDuration().put(m, duration);
-                    }
-                    if (point.getTemperature().get(m) < temperature) {
-                        point.getTemperature().put(m, temperature);
-                    }
-                    if (point.getFlow().get(m) < flow) {
-                        point.getFlow().put(m, flow);
-                    }
-                    break;
-                case AVERAGE:
-                    avg = true;
-                default:
-                    // Ignore
-            }
-        }
-        if (avg) {
-            double count = point.getVolume().get(EnumMetric.COUNT);
-            if (count == 0) {
-                point.getVolume().put(EnumMetric.AVERAGE, 0.0);
-                point.getEnergy().put(EnumMetric.AVERAGE, 0.0);
-                point.getDuration().put(EnumMetric.AVERAGE, 0.0);
-                point.getTemperature().put(EnumMetric.AVERAGE, 0.0);
-                point.getFlow().put(EnumMetric.AVERAGE, 0.0);
-            } else {
-                point.getVolume().put(EnumMetric.AVERAGE, point.getVolume().get(EnumMetric.SUM) / count);
-                point.getEnergy().put(EnumMetric.AVERAGE, point.getEnergy().get(EnumMetric.SUM) / count);
-                point.getDuration().put(EnumMetric.AVERAGE, point.getDuration().get(EnumMetric.SUM) / count);
-                point.getTemperature().put(EnumMetric.AVERAGE, point.getTemperature().get(EnumMetric.SUM) / count);
-                point.getFlow().put(EnumMetric.AVERAGE, point.getFlow().get(EnumMetric.SUM) / count);
-            }
-        }
+        update(bucket.values, FIELD_VOLUME, volume, volume, volume);
+        update(bucket.values, FIELD_ENERGY, energy, energy, energy);
+        update(bucket.values, FIELD_DURATION, duration, duration, duration);
+        update(bucket.values, FIELD_TEMPERATURE, temperature, temperature, temperature);
+        update(bucket.values, FIELD_FLOW, flow, flow, flow);
     }
 
     public void addMeterRankingDataPoint(EnumTimeAggregation granularity,
@@ -222,35 +175,51 @@ public class GroupDataSeries
                                          double volume,
                                          List<EnumMetric> metrics,
                                          DateTimeZone timezone) {
-        MeterUserDataPoint point = (MeterUserDataPoint) getUserDataPoint(granularity,
-                                                                         key,
-                                                                         label,
-                                                                         timestamp,
-                                                                         metrics,
-                                                                         DataPoint.EnumDataPointType.METER,
-                                                                         timezone);
+        UserBucket user = getUserBucket(granularity, key, label, timestamp, metrics, DataPoint.EnumDataPointType.METER, timezone);
 
-        for (EnumMetric m : metrics) {
-            switch (m) {
-                case COUNT:
-                    point.getVolume().put(m, point.getVolume().get(m) + 1);
-                    break;
-                case SUM:
-                    point.getVolume().put(m, point.getVolume().get(m) + difference);
-                    break;
-                case MIN:
-                    if (point.getVolume().get(m) > (volume - difference)) {
-                        point.getVolume().put(m, (volume - difference));
-                    }
-                    break;
-                case MAX:
-                    if (point.getVolume().get(m) < volume) {
-                        point.getVolume().put(m, volume);
-                    }
-                    break;
-                default:
-                    // Ignore
-            }
+        // The minimum is the volume before the reading and the maximum the
+        // volume after the reading
+        update(user.values, FIELD_VOLUME, difference, volume - difference, volume);
+    }
+
+    /**
+     * Adds the pre-aggregated readings of a user's smart water meter for an
+     * interval that is entirely contained in a single time bucket, e.g. a
+     * daily rollup. The result is identical to adding every reading of the
+     * interval using {@link #addMeterRankingDataPoint}.
+     *
+     * @param granularity the time granularity.
+     * @param key the user key.
+     * @param label the user label.
+     * @param timestamp a timestamp inside the interval.
+     * @param count the number of readings.
+     * @param difference the sum of the reading differences.
+     * @param min the minimum volume before any reading.
+     * @param max the maximum volume after any reading.
+     * @param metrics the query metrics.
+     * @param timezone the query time zone.
+     */
+    public void addMeterRankingRollup(EnumTimeAggregation granularity,
+                                      UUID key,
+                                      String label,
+                                      long timestamp,
+                                      int count,
+                                      double difference,
+                                      double min,
+                                      double max,
+                                      List<EnumMetric> metrics,
+                                      DateTimeZone timezone) {
+        UserBucket user = getUserBucket(granularity, key, label, timestamp, metrics, DataPoint.EnumDataPointType.METER, timezone);
+
+        int offset = FIELD_VOLUME * METRIC_COUNT;
+
+        user.values[offset + EnumMetric.COUNT.ordinal()] += count;
+        user.values[offset + EnumMetric.SUM.ordinal()] += difference;
+        if (user.values[offset + EnumMetric.MIN.ordinal()] > min) {
+            user.values[offset + EnumMetric.MIN.ordinal()] = min;
+        }
+        if (user.values[offset + EnumMetric.MAX.ordinal()] < max) {
+            user.values[offset + EnumMetric.MAX.ordinal()] = max;
         }
     }
 
@@ -265,182 +234,187 @@ public class GroupDataSeries
                                            double flow,
                                            List<EnumMetric> metrics,
                                            DateTimeZone timezone) {
-        AmphiroUserDataPoint point = (AmphiroUserDataPoint) getUserDataPoint(granularity,
-                                                                             key,
-                                                                             label,
-                                                                             timestamp,
-                                                                             metrics,
-                                                                             DataPoint.EnumDataPointType.AMPHIRO,
-                                                                             timezone);
-
-        boolean avg = false;
-        for (EnumMetric m : metrics) {
-            switch (m) {
-                case COUNT:
-                    point.getVolume().put(m, point.getVolume().get(m) + 1);
-                    point.getEnergy().put(m, point.getEnergy().get(m) + 1);
-                    point.getDuration().put(m, point.getDuration().get(m) + 1);
-                    point.getTemperature().put(m, point.getTemperature().get(m) + 1);
-                    point.getFlow().put(m, point.getFlow().get(m) + 1);
-                    break;
-                case SUM:
-                    point.getVolume().put(m, point.getVolume().get(m) + volume);
-                    point.getEnergy().put(m, point.getEnergy().get(m) + energy);
-                    point.getDuration().put(m, point.getDuration().get(m) + duration);
-                    point.getTemperature().put(m, point.getTemperature().get(m) + temperature);
-                    point.getFlow().put(m, point.getFlow().get(m) + flow);
-                    break;
-                case MIN:
-                    if (point.getVolume().get(m) > volume) {
-                        point.getVolume().put(m, volume);
-                    }
-                    if (point.getEnergy().get(m) > energy) {
-                        point.getEnergy().put(m, energy);
-                    }
-                    if (point.getDuration().get(m) > duration) {
-                        point.getDuration().put(m, duration);
-                    }
-                    if (point.getTemperature().get(m) > temperature) {
-                        point.getTemperature().put(m, temperature);
-                    }
-                    if (point.getFlow().get(m) > flow) {
-                        point.getFlow().put(m, flow);
-                    }
-                    break;
-                case MAX:
-                    if (point.getVolume().get(m) < volume) {
-                        point.getVolume().put(m, volume);
-                    }
-                    if (point.getEnergy().get(m) < energy) {
-                        point.getEnergy().put(m, energy);
-                    }
-                    if (point.getDuration().get(m) < duration) {
-                        point.getDuration().put(m, duration);
-                    }
-                    if (point.getTemperature().get(m) < temperature) {
-                        point.getTemperature().put(m, temperature);
-                    }
-                    if (point.getFlow().get(m) < flow) {
-                        point.getFlow().put(m, flow);
+        UserBucket user = getUserBucket(granularity, key, label, timestamp, metrics, DataPoint.EnumDataPointType.AMPHIRO, timezone);
+
+        update(user.values, FIELD_VOLUME, volume, volume, volume);
+        update(user.values, FIELD_ENERGY, energy, energy, energy);
+        update(user.values, FIELD_DURATION, duration, duration, duration);
+        update(user.values, FIELD_TEMPERATURE, temperature, temperature, temperature);
+        update(user.values, FIELD_FLOW, flow, flow, flow);
+    }
+
+    /**
+     * Merges the data points of a partial series into this series. Both series
+     * must have been computed by the same query over disjoint sets of data,
+     * e.g. different HBase partitions.
+     *
+     * @param partial the partial series to merge.
+     */
+    public void merge(GroupDataSeries partial) {
+        for (Bucket source : partial.buckets.values()) {
+            Bucket target = buckets.get(source.timestamp);
+
+            if (target == null) {
+                buckets.put(source);
+                points.add(source.point);
+            } else if (source.users != null) {
+                for (UserBucket user : source.users.values()) {
+                    UserBucket existing = target.users.get(user.point.getKey());
+
+                    if (existing == null) {
+                        target.users.put(user.point.getKey(), user);
+                        ((RankingDataPoint) target.point).getUsers().add(user.point);
+                    } else {
+                        merge(existing.values, user.values);
                     }
-                    break;
-                case AVERAGE:
-                    avg = true;
-                default:
-                    // Ignore
-            }
-        }
-        if (avg) {
-            double count = point.getVolume().get(EnumMetric.COUNT);
-            if (count == 0) {
-                point.getVolume().put(EnumMetric.AVERAGE, 0.0);
-                point.getEnergy().put(EnumMetric.AVERAGE, 0.0);
-                point.getDuration().put(EnumMetric.AVERAGE, 0.0);
-                point.getTemperature().put(EnumMetric.AVERAGE, 0.0);
-                point.getFlow().put(EnumMetric.AVERAGE, 0.0);
+                }
             } else {
-                point.getVolume().put(EnumMetric.AVERAGE, point.getVolume().get(EnumMetric.SUM) / count);
-                point.getEnergy().put(EnumMetric.AVERAGE, point.getEnergy().get(EnumMetric.SUM) / count);
-                point.getDuration().put(EnumMetric.AVERAGE, point.getDuration().get(EnumMetric.SUM) / count);
-                point.getTemperature().put(EnumMetric.AVERAGE, point.getTemperature().get(EnumMetric.SUM) / count);
-                point.getFlow().put(EnumMetric.AVERAGE, point.getFlow().get(EnumMetric.SUM) / count);
+                merge(target.values, source.values);
             }
         }
-    }
-
-    private RankingDataPoint getRankingDataPoint(EnumTimeAggregation granularity, long timestamp, DateTimeZone timezone) {
-        DateTime date = new DateTime(timestamp, timezone);
 
-        switch (granularity) {
-            case HOUR:
-                date = new DateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), date.getHourOfDay(), 0, 0, timezone);
-                break;
-            case DAY:
-                date = new DateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), 0, 0, 0, timezone);
-                break;
-            case WEEK:
-                DateTime sunday = date.withDayOfWeek(DateTimeConstants.SUNDAY);
+        if (metrics == null) {
+            metrics = partial.metrics;
+        }
+        dirty = true;
+    }
 
-                date = new DateTime(sunday.getYear(), sunday.getMonthOfYear(), sunday.getDayOfMonth(), 0, 0, 0, timezone);
-                break;
-            case MONTH:
-                date = new DateTime(date.getYear(), date.getMonthOfYear(), 1, 0, 0, 0, timezone);
-                break;
-            case YEAR:
-                date = new DateTime(date.getYear(), 1, 1, 0, 0, 0, timezone);
-                break;
-            default:
-                throw new IllegalArgumentException("Granularity level not supported.");
+    /**
+     * Copies the accumulated values to the metric maps of the data points.
+     */
+    private void flush() {
+        if (!dirty) {
+            return;
         }
+        dirty = false;
 
-        timestamp = date.getMillis();
+        for (Bucket bucket : buckets.values()) {
+            flush(bucket);
+        }
+    }
 
-        for (int i = 0, count = points.size(); i < count; i++) {
-            if (timestamp == points.get(i).getTimestamp()) {
-                return (RankingDataPoint) points.get(i);
+    /**
+     * Copies the accumulated values of a single bucket to the metric maps of
+     * its data points.
+     *
+     * @param bucket the bucket.
+     */
+    private void flush(Bucket bucket) {
+        if (bucket.users != null) {
+            for (UserBucket user : bucket.users.values()) {
+                if (user.point instanceof MeterUserDataPoint) {
+                    // Average is not computed for meter rankings
+                    flush(((MeterUserDataPoint) user.point).getVolume(), user.values, FIELD_VOLUME, false);
+                } else {
+                    AmphiroUserDataPoint point = (AmphiroUserDataPoint) user.point;
+
+                    flush(point.getVolume(), user.values, FIELD_VOLUME, true);
+                    flush(point.getEnergy(), user.values, FIELD_ENERGY, true);
+                    flush(point.getDuration(), user.values, FIELD_DURATION, true);
+                    flush(point.getTemperature(), user.values, FIELD_TEMPERATURE, true);
+                    flush(point.getFlow(), user.values, FIELD_FLOW, true);
+                }
             }
+        } else if (bucket.point instanceof AmphiroDataPoint) {
+            AmphiroDataPoint point = (AmphiroDataPoint) bucket.point;
+
+            flush(point.getVolume(), bucket.values, FIELD_VOLUME, true);
+            flush(point.getEnergy(), bucket.values, FIELD_ENERGY, true);
+            flush(point.getDuration(), bucket.values, FIELD_DURATION, true);
+            flush(point.getTemperature(), bucket.values, FIELD_TEMPERATURE, true);
+            flush(point.getFlow(), bucket.values, FIELD_FLOW, true);
+        } else if (bucket.point instanceof MeterDataPoint) {
+            flush(((MeterDataPoint) bucket.point).getVolume(), bucket.values, FIELD_VOLUME, true);
         }
+    }
 
-        RankingDataPoint point = new RankingDataPoint(timestamp);
-        points.add(point);
-
-        return point;
+    /**
+     * Replaces every ranking data point with a single data point that
+     * aggregates the values of all users using
+     * {@link RankingDataPoint#aggregate}. The metric maps of the user data
+     * points are populated and released one bucket at a time; hence, for
+     * large populations, the user values of at most one bucket are held in
+     * maps at any time.
+     *
+     * @param metrics the query metrics.
+     * @param type the type of the aggregated data points.
+     */
+    public void aggregateRankings(List<EnumMetric> metrics, DataPoint.EnumDataPointType type) {
+        ArrayList<DataPoint> result = new ArrayList<DataPoint>();
 
-    }
+        if (!dirty) {
+            for (DataPoint point : points) {
+                result.add(((RankingDataPoint) point).aggregate(metrics, type));
+            }
+        } else {
+            for (Bucket bucket : buckets.values()) {
+                flush(bucket);
 
-    private UserDataPoint getUserDataPoint(EnumTimeAggregation granularity,
-                                           UUID key,
-                                           String label,
-                                           long timestamp,
-                                           List<EnumMetric> metrics,
-                                           DataPoint.EnumDataPointType type,
-                                           DateTimeZone timezone) {
-        RankingDataPoint ranking = getRankingDataPoint(granularity, timestamp, timezone);
+                RankingDataPoint ranking = (RankingDataPoint) bucket.point;
+                result.add(ranking.aggregate(metrics, type));
 
-        for (UserDataPoint point : ranking.getUsers()) {
-            if (point.getKey().equals(key)) {
-                return point;
+                ranking.getUsers().clear();
+                bucket.users.clear();
             }
         }
 
-        switch (type) {
-            case METER:
-                MeterUserDataPoint meterPoint = new MeterUserDataPoint(key, label);
-                ranking.getUsers().add(meterPoint);
+        setPoints(result);
+    }
+
+    private void flush(Map<EnumMetric, Double> target, double[] values, int field, boolean average) {
+        int offset = field * METRIC_COUNT;
 
-                for (EnumMetric m : metrics) {
-                    if (m == EnumMetric.MIN) {
-                        meterPoint.getVolume().put(m, Double.MAX_VALUE);
+        for (EnumMetric m : metrics) {
+            switch (m) {
+                case COUNT:
+                case SUM:
+                case MIN:
+                case MAX:
+                    target.put(m, values[offset + m.ordinal()]);
+                    break;
+                case AVERAGE:
+                    double count = values[offset + EnumMetric.COUNT.ordinal()];
+                    if ((!average) || (count == 0)) {
+                        target.put(m, 0.0);
                     } else {
-                        meterPoint.getVolume().put(m, 0.0);
+                        target.put(m, values[offset + EnumMetric.SUM.ordinal()] / count);
                     }
+                    break;
+                default:
+                    target.put(m, 0.0);
+            }
+        }
+    }
 
-                }
+    private static double[] createValues(int fields) {
+        double[] values = new double[fields * METRIC_COUNT];
+        for (int field = 0; field < fields; field++) {
+            values[field * METRIC_COUNT + EnumMetric.MIN.ordinal()] = Double.MAX_VALUE;
+        }
+        return values;
+    }
 
-                return meterPoint;
-            case AMPHIRO:
-                AmphiroUserDataPoint amphiroPoint = new AmphiroUserDataPoint(key, label);
-                ranking.getUsers().add(amphiroPoint);
-
-                for (EnumMetric m : metrics) {
-                    if (m == EnumMetric.MIN) {
-                        amphiroPoint.getVolume().put(m, Double.MAX_VALUE);
-                        amphiroPoint.getEnergy().put(m, Double.MAX_VALUE);
-                        amphiroPoint.getTemperature().put(m, Double.MAX_VALUE);
-                        amphiroPoint.getDuration().put(m, Double.MAX_VALUE);
-                        amphiroPoint.getFlow().put(m, Double.MAX_VALUE);
-                    } else {
-                        amphiroPoint.getVolume().put(m, 0.0);
-                        amphiroPoint.getEnergy().put(m, 0.0);
-                        amphiroPoint.getTemperature().put(m, 0.0);
-                        amphiroPoint.getDuration().put(m, 0.0);
-                        amphiroPoint.getFlow().put(m, 0.0);
-                    }
-                }
+    private static void update(double[] values, int field, double sum, double min, double max) {
+        int offset = field * METRIC_COUNT;
 
-                return amphiroPoint;
-            default:
-                throw new IllegalArgumentException("Data point type is not supported.");
+        values[offset + EnumMetric.COUNT.ordinal()] += 1;
+        values[offset + EnumMetric.SUM.ordinal()] += sum;
+        if (values[offset + EnumMetric.MIN.ordinal()] > min) {
+            values[offset + EnumMetric.MIN.ordinal()] = min;
+        }
+        if (values[offset + EnumMetric.MAX.ordinal()] < max) {
+            values[offset + EnumMetric.MAX.ordinal()] = max;
+        }
+    }
+
+    private static void merge(double[] target, double[] source) {
+        for (int offset = 0; offset < target.length; offset += METRIC_COUNT) {
+            target[offset + EnumMetric.COUNT.ordinal()] += source[offset + EnumMetric.COUNT.ordinal()];
+            target[offset + EnumMetric.SUM.ordinal()] += source[offset + EnumMetric.SUM.ordinal()];
+            target[offset + EnumMetric.MIN.ordinal()] = Math.min(target[offset + EnumMetric.MIN.ordinal()],
+                                                                 source[offset + EnumMetric.MIN.ordinal()]);
+            target[offset + EnumMetric.MAX.ordinal()] = Math.max(target[offset + EnumMetric.MAX.ordinal()],
+                                                                 source[offset + EnumMetric.MAX.ordinal()]);
         }
     }
 
@@ -450,19 +424,43 @@ public class GroupDataSeries
 
     public void setPoints(ArrayList<DataPoint> points) {
         this.points = points;
+
+        buckets.clear();
+        dirty = false;
     }
 
     public Long getAreaId() {
         return areaId;
     }
 
+    /**
+     * Creates a deep copy of the series. Accumulated values are copied to the
+     * data points first, hence reading the points of the copy never modifies
+     * it.
+     *
+     * @return the copy.
+     */
+    public GroupDataSeries copy() {
+        List<DataPoint> source = getPoints();
+
+        ArrayList<DataPoint> copies = new ArrayList<DataPoint>(source.size());
+        for (DataPoint point : source) {
+            copies.add(point.copy());
+        }
+
+        GroupDataSeries series = new GroupDataSeries(label, population, areaId, calendar);
+        series.setPoints(copies);
+
+        return series;
+    }
+
     public boolean isEmpty() {
         return points.isEmpty();
     }
 
     public DataPoint getTemporalNearest(long timestamp) {
         DataPoint result = null;
-        for (DataPoint p : points) {
+        for (DataPoint p : getPoints()) {
             if (result == null) {
                 result = p;
             } else if (Math.abs(result.getTimestamp() - timestamp) > Math.abs(p.getTimestamp() - timestamp)) {
@@ -491,7 +489,7 @@ public class GroupDataSeries
             if (points.size() != 1)
                 return null;
 
-            DataPoint p0 = points.get(0);
+            DataPoint p0 = getPoints().get(0);
             Map<EnumMetric, Double> m = p0.field(field);
             return m != null? m.get(metric) : null;
         }
@@ -500,7 +498,7 @@ public class GroupDataSeries
         public Double get(EnumDataField field, EnumMetric metric, Predicate<Point> pred)
         {
             Double result = null;
-            for (DataPoint datapoint: points) {
+            for (DataPoint datapoint: getPoints()) {
                 Map<EnumMetric, Double> f = datapoint.field(field);
                 if (f == null)
                     continue; // the field is not present
@@ -573,6 +571,8 @@ public class GroupDataSeries
             this.metric = metric;
 
             // Set endIndex, examine if series contains the given field
+            flush();
+
             int size = points.size();
             if (size > 0) {
                 DataPoint p0 = points.get(0);
@@ -615,4 +615,113 @@ public class GroupDataSeries
             }
         }
     }
+
+    /**
+     * Accumulated values of a single data point.
+     */
+    private static class Bucket
+    {
+        private final long timestamp;
+
+        private final DataPoint point;
+
+        private final double[] values;
+
+        private final Map<UUID, UserBucket> users;
+
+        public Bucket(long timestamp, DataPoint point, int fields)
+        {
+            this.timestamp = timestamp;
+            this.point = point;
+
+            if (point instanceof RankingDataPoint) {
+                values = null;
+                users = new HashMap<UUID, UserBucket>();
+            } else {
+                values = createValues(fields);
+                users = null;
+            }
+        }
+    }
+
+    /**
+     * Accumulated values of a single user of a ranking data point.
+     */
+    private static class UserBucket
+    {
+        private final UserDataPoint point;
+
+        private final double[] values;
+
+        public UserBucket(UserDataPoint point, int fields)
+        {
+            this.point = point;
+            this.values = createValues(fields);
+        }
+    }
+
+    /**
+     * Open addressing hash index of buckets by timestamp. Buckets are iterated
+     * in insertion order.
+     */
+    private static class BucketIndex
+    {
+        private long[] keys = new long[16];
+
+        private Bucket[] entries = new Bucket[16];
+
+        private final List<Bucket> values = new ArrayList<Bucket>();
+
+        public Bucket get(long timestamp)
+        {
+            int mask = entries.length - 1;
+            for (int i = hash(timestamp) & mask; entries[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == timestamp) {
+                    return entries[i];
+                }
+            }
+            return null;
+        }
+
+        public void put(Bucket bucket)
+        {
+            if ((values.size() + 1) * 2 > entries.length) {
+                keys = new long[entries.length * 2];
+                entries = new Bucket[entries.length * 2];
+                for (Bucket existing : values) {
+                    insert(existing);
+                }
+            }
+            insert(bucket);
+            values.add(bucket);
+        }
+
+        public List<Bucket> values()
+        {
+            return values;
+        }
+
+        public void clear()
+        {
+            Arrays.fill(entries, null);
+            values.clear();
+        }
+
+        private void insert(Bucket bucket)
+        {
+            int mask = entries.length - 1;
+            int i = hash(bucket.timestamp) & mask;
+            while (entries[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = bucket.timestamp;
+            entries[i] = bucket;
+        }
+
+        private static int hash(long key)
+        {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
 }
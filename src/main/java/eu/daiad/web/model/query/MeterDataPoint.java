@@ -44,4 +44,11 @@ public class MeterDataPoint extends DataPoint {
     public Map<EnumMetric, Double> field(EnumDataField field) {
         return volume;
     }
+
+    @Override
+    public MeterDataPoint copy() {
+        MeterDataPoint p = (getTimestamp() == null ? new MeterDataPoint() : new MeterDataPoint(getTimestamp()));
+        p.volume.putAll(volume);
+        return p;
+    }
 }
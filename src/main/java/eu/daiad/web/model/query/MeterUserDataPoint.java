@@ -16,4 +16,10 @@ public class MeterUserDataPoint extends UserDataPoint {
 		return volume;
 	}
 
+	@Override
+	public MeterUserDataPoint copy() {
+		MeterUserDataPoint p = new MeterUserDataPoint(getKey(), getLabel());
+		p.volume.putAll(volume);
+		return p;
+	}
 }
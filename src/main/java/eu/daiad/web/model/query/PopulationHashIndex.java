@@ -0,0 +1,161 @@
+package eu.daiad.web.model.query;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the members of the population groups of an {@link ExpandedDataQuery}
+ * by either smart water meter serial number hash or user key hash. For every
+ * hash the index returns the groups and the positions of the member inside
+ * every group.
+ */
+public class PopulationHashIndex {
+
+    private final Map<ByteBuffer, List<Member>> members = new LinkedHashMap<ByteBuffer, List<Member>>();
+
+    private PopulationHashIndex() {
+
+    }
+
+    /**
+     * Creates an index of the population groups by smart water meter serial
+     * number hash.
+     *
+     * @param groups the population groups.
+     * @return a new {@link PopulationHashIndex}.
+     */
+    public static PopulationHashIndex bySerialHash(List<ExpandedPopulationFilter> groups) {
+        PopulationHashIndex index = new PopulationHashIndex();
+
+        for (int group = 0, count = groups.size(); group < count; group++) {
+            index.add(groups.get(group).getSerialHashes(), group);
+        }
+
+        return index;
+    }
+
+    /**
+     * Creates an index of the population groups by user key hash.
+     *
+     * @param groups the population groups.
+     * @return a new {@link PopulationHashIndex}.
+     */
+    public static PopulationHashIndex byUserKeyHash(List<ExpandedPopulationFilter> groups) {
+        PopulationHashIndex index = new PopulationHashIndex();
+
+        for (int group = 0, count = groups.size(); group < count; group++) {
+            index.add(groups.get(group).getUserKeyHashes(), group);
+        }
+
+        return index;
+    }
+
+    private void add(List<byte[]> hashes, int group) {
+        for (int position = 0, count = hashes.size(); position < count; position++) {
+            ByteBuffer key = ByteBuffer.wrap(hashes.get(position));
+
+            List<Member> entries = members.get(key);
+            if (entries == null) {
+                entries = new ArrayList<Member>(1);
+                members.put(key, entries);
+            }
+            entries.add(new Member(group, position));
+        }
+    }
+
+    /**
+     * Returns the group members for the given hash.
+     *
+     * @param hash the hash.
+     * @return a list of {@link Member} or an empty list if the hash is not indexed.
+     */
+    public List<Member> get(byte[] hash) {
+        return get(hash, 0, hash.length);
+    }
+
+    /**
+     * Returns the group members for the hash stored in a region of a byte
+     * array, e.g. a slice of an HBase row key.
+     *
+     * @param array the array that contains the hash.
+     * @param offset the hash offset.
+     * @param length the hash length.
+     * @return a list of {@link Member} or an empty list if the hash is not indexed.
+     */
+    public List<Member> get(byte[] array, int offset, int length) {
+        List<Member> entries = members.get(ByteBuffer.wrap(array, offset, length));
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the distinct indexed hashes.
+     *
+     * @return a list of hashes.
+     */
+    public List<byte[]> getHashes() {
+        List<byte[]> hashes = new ArrayList<byte[]>(members.size());
+        for (ByteBuffer key : members.keySet()) {
+            hashes.add(key.array());
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the number of distinct indexed hashes.
+     *
+     * @return the number of hashes.
+     */
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Returns true if the index contains no hashes.
+     *
+     * @return true if the index is empty.
+     */
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * A member of a population group.
+     */
+    public static class Member {
+
+        private final int group;
+
+        private final int index;
+
+        public Member(int group, int index) {
+            this.group = group;
+            this.index = index;
+        }
+
+        /**
+         * Returns the index of the population group.
+         *
+         * @return the group index.
+         */
+        public int getGroup() {
+            return group;
+        }
+
+        /**
+         * Returns the position of the member in the group.
+         *
+         * @return the member index.
+         */
+        public int getIndex() {
+            return index;
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package eu.daiad.web.model.query;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+/**
+ * A user of a population along with the smart water meter of the user and
+ * the MD5 hashes used by HBase row keys. Instances are shared by cached
+ * populations and must not be modified.
+ */
+public final class PopulationMember {
+
+    private final UUID userKey;
+
+    private final String username;
+
+    private final String serial;
+
+    private final byte[] userKeyHash;
+
+    private final byte[] serialHash;
+
+    /**
+     * Creates a new member.
+     *
+     * @param md an MD5 message digest.
+     * @param userKey the user key.
+     * @param username the user name.
+     * @param serial the serial number of the user smart water meter or null if no meter is registered.
+     */
+    public PopulationMember(MessageDigest md, UUID userKey, String username, String serial) {
+        this.userKey = userKey;
+        this.username = username;
+        this.serial = serial;
+
+        userKeyHash = md.digest(userKey.toString().getBytes(StandardCharsets.UTF_8));
+        serialHash = (serial == null ? null : md.digest(serial.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public UUID getUserKey() {
+        return userKey;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    public byte[] getUserKeyHash() {
+        return userKeyHash;
+    }
+
+    public byte[] getSerialHash() {
+        return serialHash;
+    }
+
+}
@@ -0,0 +1,163 @@
+package eu.daiad.web.model.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution profile of a data query. The profile records the duration of
+ * every execution phase in milliseconds and the volume of data read from
+ * HBase. Phases with the same name are accumulated. Repositories that execute
+ * sub-queries concurrently may update the profile from different threads.
+ */
+public class QueryExecutionProfile {
+
+    /**
+     * Population expansion, e.g. resolving groups, utilities and meters.
+     */
+    public static final String PHASE_POPULATION = "population";
+
+    /**
+     * Splitting population groups by area.
+     */
+    public static final String PHASE_SPATIAL = "spatial";
+
+    /**
+     * Waiting for the admission control budget of the query caller.
+     */
+    public static final String PHASE_QUEUE = "queue";
+
+    /**
+     * HBase scanning including the aggregation of rows to time buckets.
+     */
+    public static final String PHASE_SCAN = "scan";
+
+    /**
+     * Post processing of the aggregated data series e.g. ranking.
+     */
+    public static final String PHASE_RANKING = "ranking";
+
+    /**
+     * Serving a query from the query result cache.
+     */
+    public static final String PHASE_CACHE = "cache";
+
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    private final AtomicLong scans = new AtomicLong();
+
+    private final AtomicLong partitions = new AtomicLong();
+
+    private final AtomicLong rows = new AtomicLong();
+
+    private final AtomicLong cells = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private long users;
+
+    /**
+     * Adds the duration of a phase.
+     *
+     * @param phase the phase name, optionally prefixed by the data source e.g. meter.scan.
+     * @param duration the duration in milliseconds.
+     */
+    public synchronized void addPhase(String phase, long duration) {
+        Long total = phases.get(phase);
+
+        phases.put(phase, (total == null ? duration : total + duration));
+    }
+
+    /**
+     * Adds the duration of a phase since the given time.
+     *
+     * @param phase the phase name.
+     * @param startTime the phase start time in milliseconds.
+     * @return the current time in milliseconds, which can be used as the start time of the next phase.
+     */
+    public long endPhase(String phase, long startTime) {
+        long now = System.currentTimeMillis();
+
+        addPhase(phase, now - startTime);
+
+        return now;
+    }
+
+    /**
+     * Records the data read by one or more HBase scans.
+     *
+     * @param scans the number of scans.
+     * @param rows the number of rows returned by the scans.
+     * @param cells the number of cells returned by the scans.
+     * @param bytes the number of bytes returned by the scans.
+     */
+    public void addScans(long scans, long rows, long cells, long bytes) {
+        this.scans.addAndGet(scans);
+        this.rows.addAndGet(rows);
+        this.cells.addAndGet(cells);
+        this.bytes.addAndGet(bytes);
+    }
+
+    /**
+     * Records the number of table partitions touched by a query.
+     *
+     * @param partitions the number of partitions.
+     */
+    public void addPartitions(long partitions) {
+        this.partitions.addAndGet(partitions);
+    }
+
+    /**
+     * Adds the phases and the scanned data of another profile, e.g. of a
+     * query that has been merged with other queries.
+     *
+     * @param profile the profile to add.
+     */
+    public void add(QueryExecutionProfile profile) {
+        for (Map.Entry<String, Long> phase : profile.getPhases().entrySet()) {
+            addPhase(phase.getKey(), phase.getValue());
+        }
+
+        addScans(profile.getScans(), profile.getRows(), profile.getCells(), profile.getBytes());
+        addPartitions(profile.getPartitions());
+    }
+
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<String, Long>(phases);
+    }
+
+    public long getScans() {
+        return scans.get();
+    }
+
+    public long getPartitions() {
+        return partitions.get();
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    public long getCells() {
+        return cells.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public synchronized long getUsers() {
+        return users;
+    }
+
+    public synchronized void setUsers(long users) {
+        this.users = users;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("phases=%s, users=%d, scans=%d, partitions=%d, rows=%d, cells=%d, bytes=%d",
+                             getPhases(), getUsers(), getScans(), getPartitions(), getRows(), getCells(), getBytes());
+    }
+
+}
@@ -1,10 +1,14 @@
 package eu.daiad.web.model.query;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.joda.time.DateTimeZone;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import eu.daiad.web.model.RestResponse;
 import eu.daiad.web.model.spatial.LabeledGeometry;
 
@@ -44,6 +48,10 @@ public abstract class QueryResponse extends RestResponse {
 
         private long duration;
 
+        private List<String> plans = new ArrayList<String>();
+
+        private QueryExecutionProfile profile;
+
         public long getDuration() {
             return duration;
         }
@@ -52,5 +60,18 @@ public abstract class QueryResponse extends RestResponse {
             this.duration = duration;
         }
 
+        public List<String> getPlans() {
+            return plans;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public QueryExecutionProfile getProfile() {
+            return profile;
+        }
+
+        public void setProfile(QueryExecutionProfile profile) {
+            this.profile = profile;
+        }
+
     }
 }
@@ -80,4 +80,13 @@ public class RankingDataPoint extends DataPoint {
 				return null;
 		}
 	}
+
+	@Override
+	public RankingDataPoint copy() {
+		RankingDataPoint p = (getTimestamp() == null ? new RankingDataPoint() : new RankingDataPoint(getTimestamp()));
+		for (UserDataPoint user : users) {
+			p.users.add(user.copy());
+		}
+		return p;
+	}
 }
@@ -0,0 +1,126 @@
+package eu.daiad.web.model.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selects the top/bottom-k users of a {@link RankingDataPoint} using a bounded
+ * heap over primitive ranking values. Selection requires O(n log k) time and
+ * the selected users are returned in ascending order of their ranking value.
+ * Users with equal values are ordered by their position in the input list,
+ * hence the result is identical to sorting all users and trimming the list.
+ */
+public final class RankingSelector {
+
+    private RankingSelector() {
+
+    }
+
+    /**
+     * Selects the top/bottom-k users.
+     *
+     * @param users the users to rank.
+     * @param values the ranking value of every user.
+     * @param type the ranking type.
+     * @param limit the maximum number of users to select.
+     * @return the selected users in ascending order of ranking value.
+     */
+    public static List<UserDataPoint> select(List<UserDataPoint> users, double[] values, EnumRankingType type, int limit) {
+        int size = Math.min(users.size(), Math.max(0, limit));
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+
+        // For top-k the heap root is the smallest selected user; for bottom-k
+        // the largest one
+        boolean top = (type == EnumRankingType.TOP);
+
+        int[] heap = new int[size];
+        int count = 0;
+
+        for (int i = 0, n = users.size(); i < n; i++) {
+            if (count < size) {
+                heap[count] = i;
+                siftUp(heap, count, values, top);
+                count++;
+            } else if (precedes(heap[0], i, values, top)) {
+                heap[0] = i;
+                siftDown(heap, count, values, top);
+            }
+        }
+
+        // Removing the root repeatedly returns the selected users in ascending
+        // order for top-k and in descending order for bottom-k
+        UserDataPoint[] selected = new UserDataPoint[count];
+        for (int remaining = count; remaining > 0; remaining--) {
+            int root = heap[0];
+
+            heap[0] = heap[remaining - 1];
+            siftDown(heap, remaining - 1, values, top);
+
+            selected[top ? count - remaining : remaining - 1] = users.get(root);
+        }
+
+        List<UserDataPoint> result = new ArrayList<UserDataPoint>(count);
+        Collections.addAll(result, selected);
+
+        return result;
+    }
+
+    /**
+     * Returns true if user a is ordered before user b in ascending order of
+     * ranking value.
+     */
+    private static boolean less(int a, int b, double[] values) {
+        if (values[a] != values[b]) {
+            return (values[a] < values[b]);
+        }
+        return (a < b);
+    }
+
+    /**
+     * Returns true if user a must be closer to the heap root than user b.
+     */
+    private static boolean precedes(int a, int b, double[] values, boolean top) {
+        return (top ? less(a, b, values) : less(b, a, values));
+    }
+
+    private static void siftUp(int[] heap, int index, double[] values, boolean top) {
+        int item = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!precedes(item, heap[parent], values, top)) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = item;
+    }
+
+    private static void siftDown(int[] heap, int count, double[] values, boolean top) {
+        if (count == 0) {
+            return;
+        }
+
+        int index = 0;
+        int item = heap[0];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= count) {
+                break;
+            }
+            if ((child + 1 < count) && (precedes(heap[child + 1], heap[child], values, top))) {
+                child++;
+            }
+            if (!precedes(heap[child], item, values, top)) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = item;
+    }
+
+}
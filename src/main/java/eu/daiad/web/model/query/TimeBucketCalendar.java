@@ -0,0 +1,292 @@
+package eu.daiad.web.model.query;
+
+import java.util.Arrays;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+
+import eu.daiad.web.model.EnumTimeAggregation;
+
+/**
+ * Time buckets of a query computed once for the query time interval, time zone
+ * and granularity. The bucket of a timestamp is found using binary search over
+ * the sorted interval boundaries instead of truncating a new {@link DateTime}
+ * for every reading. Boundaries are computed in the query time zone and hence
+ * account for daylight saving time transitions.
+ *
+ * Timestamps outside the query time interval are truncated using
+ * {@link TimeBucketCalendar#truncate}.
+ */
+public class TimeBucketCalendar {
+
+    /**
+     * Maximum number of buckets. For larger intervals no calendar is created.
+     */
+    private static final int MAX_BUCKET_COUNT = 1000000;
+
+    private final EnumTimeAggregation granularity;
+
+    private final DateTimeZone timezone;
+
+    /**
+     * Sorted start instants of the bucket intervals. The last element is the
+     * end of the last interval.
+     */
+    private final long[] boundaries;
+
+    /**
+     * Bucket timestamp of every interval.
+     */
+    private final long[] buckets;
+
+    private TimeBucketCalendar(EnumTimeAggregation granularity, DateTimeZone timezone, long[] boundaries, long[] buckets) {
+        this.granularity = granularity;
+        this.timezone = timezone;
+        this.boundaries = boundaries;
+        this.buckets = buckets;
+    }
+
+    /**
+     * Creates a new calendar for the given time interval.
+     *
+     * @param granularity the time granularity.
+     * @param timezone the time zone.
+     * @param startTime the time interval lower limit.
+     * @param endTime the time interval upper limit.
+     * @return a new {@link TimeBucketCalendar} or null if a calendar cannot be created.
+     */
+    public static TimeBucketCalendar create(EnumTimeAggregation granularity, DateTimeZone timezone, long startTime, long endTime) {
+        if ((granularity == null) || (timezone == null) || (endTime < startTime)) {
+            return null;
+        }
+
+        switch (granularity) {
+            case HOUR:
+            case DAY:
+            case WEEK:
+            case MONTH:
+            case YEAR:
+                break;
+            default:
+                return null;
+        }
+
+        try {
+            long[] boundaries = new long[64];
+            int count = 0;
+
+            DateTime current = getIntervalStart(granularity, new DateTime(startTime, timezone));
+            DateTime step = current;
+
+            while (true) {
+                if (count == boundaries.length) {
+                    if (count > MAX_BUCKET_COUNT) {
+                        return null;
+                    }
+                    boundaries = Arrays.copyOf(boundaries, count * 2);
+                }
+                boundaries[count++] = current.getMillis();
+
+                if (current.getMillis() > endTime) {
+                    break;
+                }
+
+                // Advance until the next interval is reached; when clocks are
+                // set back, truncating an instant may return the current start
+                DateTime next;
+                do {
+                    step = advance(granularity, step);
+                    next = getIntervalStart(granularity, step);
+                } while (next.getMillis() <= current.getMillis());
+
+                current = next;
+            }
+
+            boundaries = Arrays.copyOf(boundaries, count);
+
+            long[] buckets = new long[count - 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = truncate(granularity, boundaries[i], timezone);
+            }
+
+            return new TimeBucketCalendar(granularity, timezone, boundaries, buckets);
+        } catch (IllegalArgumentException ex) {
+            // Local midnight may not exist for some time zones
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the calendar has been created for the given granularity
+     * and time zone.
+     *
+     * @param granularity the time granularity.
+     * @param timezone the time zone.
+     * @return true if the calendar can be used.
+     */
+    public boolean matches(EnumTimeAggregation granularity, DateTimeZone timezone) {
+        return ((this.granularity == granularity) && (this.timezone.equals(timezone)));
+    }
+
+    /**
+     * Returns the bucket timestamp for the given timestamp.
+     *
+     * @param timestamp the timestamp.
+     * @return the bucket timestamp.
+     */
+    public long getBucket(long timestamp) {
+        int index = getIndex(timestamp);
+        if (index < 0) {
+            return truncate(granularity, timestamp, timezone);
+        }
+
+        return buckets[index];
+    }
+
+    /**
+     * Returns the index of the bucket for the given timestamp.
+     *
+     * @param timestamp the timestamp.
+     * @return the bucket index or -1 if the timestamp is outside the calendar interval.
+     */
+    public int getIndex(long timestamp) {
+        if ((timestamp < boundaries[0]) || (timestamp >= boundaries[boundaries.length - 1])) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(boundaries, timestamp);
+        if (index < 0) {
+            index = -index - 2;
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns true if the given interval is exactly the interval of a bucket.
+     *
+     * @param start the interval start instant.
+     * @param end the interval end instant (exclusive).
+     * @return true if the interval matches a bucket; Otherwise false.
+     */
+    public boolean isBucketInterval(long start, long end) {
+        int index = getIndex(start);
+
+        return ((index >= 0) && (boundaries[index] == start) && (boundaries[index + 1] == end));
+    }
+
+    /**
+     * Returns the bucket timestamp of the bucket at the given index.
+     *
+     * @param index the bucket index.
+     * @return the bucket timestamp.
+     */
+    public long getBucketAt(int index) {
+        return buckets[index];
+    }
+
+    /**
+     * Returns the start instant of the bucket at the given index. For an index
+     * equal to {@link #size()}, the end instant of the last bucket is returned.
+     *
+     * @param index the bucket index.
+     * @return the start instant.
+     */
+    public long getBoundary(int index) {
+        return boundaries[index];
+    }
+
+    /**
+     * Returns the start instant of the first bucket.
+     *
+     * @return the start instant.
+     */
+    public long getStart() {
+        return boundaries[0];
+    }
+
+    /**
+     * Returns the end instant (exclusive) of the last bucket.
+     *
+     * @return the end instant.
+     */
+    public long getEnd() {
+        return boundaries[boundaries.length - 1];
+    }
+
+    /**
+     * Returns the number of buckets.
+     *
+     * @return the number of buckets.
+     */
+    public int size() {
+        return buckets.length;
+    }
+
+    /**
+     * Truncates a timestamp to the bucket timestamp for the given granularity.
+     * Weekly buckets are identified by the Sunday of the week.
+     *
+     * @param granularity the time granularity.
+     * @param timestamp the timestamp.
+     * @param timezone the time zone.
+     * @return the bucket timestamp.
+     */
+    public static long truncate(EnumTimeAggregation granularity, long timestamp, DateTimeZone timezone) {
+        DateTime date = new DateTime(timestamp, timezone);
+
+        switch (granularity) {
+            case HOUR:
+                date = new DateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), date.getHourOfDay(), 0, 0, timezone);
+                break;
+            case DAY:
+                date = new DateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), 0, 0, 0, timezone);
+                break;
+            case WEEK:
+                DateTime sunday = date.withDayOfWeek(DateTimeConstants.SUNDAY);
+
+                date = new DateTime(sunday.getYear(), sunday.getMonthOfYear(), sunday.getDayOfMonth(), 0, 0, 0, timezone);
+                break;
+            case MONTH:
+                date = new DateTime(date.getYear(), date.getMonthOfYear(), 1, 0, 0, 0, timezone);
+                break;
+            case YEAR:
+                date = new DateTime(date.getYear(), 1, 1, 0, 0, 0, timezone);
+                break;
+            default:
+                throw new IllegalArgumentException("Granularity level not supported.");
+        }
+
+        return date.getMillis();
+    }
+
+    private static DateTime getIntervalStart(EnumTimeAggregation granularity, DateTime date) {
+        switch (granularity) {
+            case WEEK:
+                DateTime monday = date.withDayOfWeek(DateTimeConstants.MONDAY);
+
+                return new DateTime(monday.getYear(), monday.getMonthOfYear(), monday.getDayOfMonth(), 0, 0, 0, date.getZone());
+            default:
+                return new DateTime(truncate(granularity, date.getMillis(), date.getZone()), date.getZone());
+        }
+    }
+
+    private static DateTime advance(EnumTimeAggregation granularity, DateTime date) {
+        switch (granularity) {
+            case HOUR:
+                return date.plusHours(1);
+            case DAY:
+                return date.plusDays(1);
+            case WEEK:
+                return date.plusWeeks(1);
+            case MONTH:
+                return date.plusMonths(1);
+            case YEAR:
+                return date.plusYears(1);
+            default:
+                throw new IllegalArgumentException("Granularity level not supported.");
+        }
+    }
+
+}
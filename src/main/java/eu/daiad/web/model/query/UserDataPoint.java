@@ -21,4 +21,12 @@ public class UserDataPoint {
 		return key;
 	}
 
+	/**
+	 * Creates a deep copy of the data point.
+	 *
+	 * @return the copy.
+	 */
+	public UserDataPoint copy() {
+		return new UserDataPoint(key, label);
+	}
 }
@@ -0,0 +1,78 @@
+package eu.daiad.web.model.spatial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Spatial index over a list of {@link LabeledGeometry} instances. Geometries
+ * are stored in an R-tree as prepared geometries, hence a geometry is tested
+ * only against the areas whose envelope intersects its envelope. Instances
+ * are not thread safe.
+ */
+public class LabeledGeometryIndex {
+
+    private final STRtree tree = new STRtree();
+
+    /**
+     * Creates a new index.
+     *
+     * @param areas the areas to index. Areas with no geometry are ignored.
+     */
+    public LabeledGeometryIndex(List<LabeledGeometry> areas) {
+        PreparedGeometryFactory factory = new PreparedGeometryFactory();
+
+        for (int index = 0, count = areas.size(); index < count; index++) {
+            Geometry geometry = areas.get(index).getGeometry();
+            if (geometry != null) {
+                tree.insert(geometry.getEnvelopeInternal(), new Entry(index, factory.create(geometry)));
+            }
+        }
+
+        tree.build();
+    }
+
+    /**
+     * Returns the indexes of the areas that contain a geometry.
+     *
+     * @param geometry the geometry to test.
+     * @return the indexes of the areas in ascending order.
+     */
+    public List<Integer> contains(Geometry geometry) {
+        List<Integer> result = new ArrayList<Integer>();
+
+        if (geometry == null) {
+            return result;
+        }
+
+        for (Object item : tree.query(geometry.getEnvelopeInternal())) {
+            Entry entry = (Entry) item;
+
+            if (entry.geometry.contains(geometry)) {
+                result.add(entry.index);
+            }
+        }
+
+        Collections.sort(result);
+
+        return result;
+    }
+
+    private static class Entry {
+
+        private final int index;
+
+        private final PreparedGeometry geometry;
+
+        Entry(int index, PreparedGeometry geometry) {
+            this.index = index;
+            this.geometry = geometry;
+        }
+    }
+
+}
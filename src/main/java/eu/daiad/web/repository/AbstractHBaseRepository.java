@@ -18,8 +18,10 @@ import org.springframework.beans.factory.annotation.Value;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import eu.daiad.web.hbase.EnumHBaseColumnFamily;
+import eu.daiad.web.hbase.HBaseBufferedWriter;
 import eu.daiad.web.hbase.EnumHBaseTable;
 import eu.daiad.web.hbase.HBaseConnectionManager;
+import eu.daiad.web.hbase.HBaseScanExecutor;
 import eu.daiad.web.model.error.SharedErrorCode;
 
 /**
@@ -63,6 +65,18 @@ public abstract class AbstractHBaseRepository extends BaseRepository {
     @Autowired
     protected HBaseConnectionManager connection;
 
+    /**
+     * Buffered writer for submitting mutations in batches.
+     */
+    @Autowired
+    protected HBaseBufferedWriter writer;
+
+    /**
+     * Executor for scanning table partitions concurrently.
+     */
+    @Autowired
+    protected HBaseScanExecutor scanExecutor;
+
     /**
      * Number of partitions used for distributing row keys that are ordered by
      * time.
@@ -213,6 +227,20 @@ public abstract class AbstractHBaseRepository extends BaseRepository {
      * @throws IOException if increasing the counter or resource release has failed.
      */
     protected long increment(String row, String column) throws IOException {
+        return increment(row, column, 1);
+    }
+
+    /**
+     * Increments a counter by the given amount e.g. for reserving a range of
+     * values using a single request.
+     *
+     * @param row the counter row.
+     * @param column the counter column.
+     * @param amount the increment.
+     * @return the new counter value.
+     * @throws IOException if increasing the counter or resource release has failed.
+     */
+    protected long increment(String row, String column, long amount) throws IOException {
         Table table = null;
 
         try {
@@ -221,7 +249,7 @@ public abstract class AbstractHBaseRepository extends BaseRepository {
             return table.incrementColumnValue(Bytes.toBytes(row),
                                               Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue()),
                                               Bytes.toBytes(column),
-                                              1);
+                                              amount);
         } finally {
             try {
                 if (table != null) {
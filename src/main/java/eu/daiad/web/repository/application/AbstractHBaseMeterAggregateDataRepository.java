@@ -1,17 +1,33 @@
 package eu.daiad.web.repository.application;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
 
+import eu.daiad.web.hbase.EnumHBaseColumnFamily;
+import eu.daiad.web.hbase.HBaseBufferedWriter.MutationFailureListener;
+import eu.daiad.web.hbase.RankingCellCodec;
 import eu.daiad.web.model.EnumTimeAggregation;
+import eu.daiad.web.model.error.ApplicationException;
+import eu.daiad.web.model.error.SharedErrorCode;
 import eu.daiad.web.model.query.EnumMetric;
 import eu.daiad.web.model.query.EnumRankingType;
 import eu.daiad.web.model.query.MeterUserDataPoint;
@@ -19,6 +35,26 @@ import eu.daiad.web.model.query.MeterUserDataPoint;
 
 public class AbstractHBaseMeterAggregateDataRepository extends AbstractHBaseMeterDataRepository {
 
+    /**
+     * Logger instance for writing events using the configured logging API.
+     */
+    private static final Log logger = LogFactory.getLog(AbstractHBaseMeterAggregateDataRepository.class);
+
+    /**
+     * Column qualifier of the volume sum.
+     */
+    protected static final byte[] AGGREGATE_SUM_QUALIFIER = Bytes.toBytes("sum");
+
+    /**
+     * Column qualifier of the top-k users.
+     */
+    protected static final byte[] RANKING_TOP_QUALIFIER = Bytes.toBytes("top");
+
+    /**
+     * Column qualifier of the bottom-k users.
+     */
+    protected static final byte[] RANKING_BOTTOM_QUALIFIER = Bytes.toBytes("bottom");
+
     public AbstractHBaseMeterAggregateDataRepository() {
         super();
     }
@@ -95,35 +131,135 @@ public class AbstractHBaseMeterAggregateDataRepository extends AbstractHBaseMete
         return rowKey;
     }
 
-    protected List<MeterUserDataPoint> parseMeterUserDataPoints(EnumRankingType ranking, long timestamp, String data, int limit) {
-        List<MeterUserDataPoint> users = new ArrayList<MeterUserDataPoint>();
-
-        String[] tokens = StringUtils.split(data, ";");
-        if (tokens.length % 4 != 0) {
-            throw new IllegalArgumentException("Top/Bottom-k user entry number of tokens is not valid.");
-        }
+    /**
+     * Decodes the top-k/bottom-k users of an aggregate cell. Both the binary
+     * and the legacy text format are supported; only the selected entries are
+     * decoded.
+     *
+     * @param ranking the ranking type.
+     * @param timestamp the data point timestamp.
+     * @param data the cell value.
+     * @param limit the maximum number of users.
+     * @return the users sorted in ascending order of volume.
+     */
+    protected List<MeterUserDataPoint> parseMeterUserDataPoints(EnumRankingType ranking, long timestamp, byte[] data, int limit) {
+        List<RankingCellCodec.Entry> entries;
 
         switch (ranking) {
             case TOP:
-                for (int i = Math.max(tokens.length / 4 - limit, 0), count = tokens.length / 4; i < count; i++) {
-                    MeterUserDataPoint user = new MeterUserDataPoint(UUID.fromString(tokens[i * 4]), tokens[i * 4 + 1]);
-                    user.getVolume().put(EnumMetric.SUM, (double) Float.parseFloat(tokens[i * 4 + 3]));
-
-                    users.add(user);
-                }
+                entries = RankingCellCodec.decode(data, false, limit);
                 break;
             case BOTTOM:
-                for (int i = 0, count = Math.min(tokens.length / 4, limit); i < count; i++) {
-                    MeterUserDataPoint user = new MeterUserDataPoint(UUID.fromString(tokens[i * 4]), tokens[i * 4 + 1]);
-                    user.getVolume().put(EnumMetric.SUM, (double) Float.parseFloat(tokens[i * 4 + 3]));
-
-                    users.add(user);
-                }
+                entries = RankingCellCodec.decode(data, true, limit);
                 break;
             default:
                 throw new IllegalArgumentException(String.format("Ranking [%s] is not supported.", ranking));
         }
 
+        List<MeterUserDataPoint> users = new ArrayList<MeterUserDataPoint>(entries.size());
+        for (RankingCellCodec.Entry entry : entries) {
+            MeterUserDataPoint user = new MeterUserDataPoint(entry.getKey(), entry.getLabel());
+            user.getVolume().put(EnumMetric.SUM, (double) entry.getValue());
+
+            users.add(user);
+        }
+
         return users;
     }
+
+    /**
+     * Rewrites the top-k/bottom-k cells of an aggregate table that are stored
+     * using the legacy text format to the binary format. Cells that are already
+     * binary are skipped, hence the conversion can be safely repeated. The stop
+     * flag is checked before every row; cells converted before a stop request
+     * are persisted.
+     *
+     * @param tableName the aggregate table name.
+     * @param stopped flag set when the conversion must stop.
+     * @return the number of converted cells.
+     * @throws ApplicationException if an error occurs or the conversion is stopped.
+     */
+    protected long convertRankingCells(String tableName, AtomicBoolean stopped) throws ApplicationException {
+        Table table = null;
+        ResultScanner scanner = null;
+
+        long converted = 0;
+
+        try {
+            table = connection.getTable(tableName);
+
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            Scan scan = new Scan();
+            scan.setCaching(scanCacheSize);
+            scan.addColumn(columnFamily, RANKING_TOP_QUALIFIER);
+            scan.addColumn(columnFamily, RANKING_BOTTOM_QUALIFIER);
+
+            scanner = table.getScanner(scan);
+
+            final AtomicLong failed = new AtomicLong();
+
+            MutationFailureListener listener = new MutationFailureListener() {
+
+                @Override
+                public void onFailure(String tableName, Row row, Throwable cause) {
+                    failed.incrementAndGet();
+                }
+            };
+
+            boolean interrupted = false;
+
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                if (stopped.get()) {
+                    interrupted = true;
+                    break;
+                }
+
+                Put put = null;
+
+                for (byte[] qualifier : new byte[][] { RANKING_TOP_QUALIFIER, RANKING_BOTTOM_QUALIFIER }) {
+                    byte[] value = r.getValue(columnFamily, qualifier);
+
+                    if ((value != null) && (!RankingCellCodec.isBinary(value))) {
+                        if (put == null) {
+                            put = new Put(r.getRow());
+                        }
+                        put.addColumn(columnFamily, qualifier, RankingCellCodec.encode(RankingCellCodec.decode(value)));
+                        converted++;
+                    }
+                }
+
+                if (put != null) {
+                    writer.write(tableName, Arrays.asList(put), listener);
+                }
+            }
+
+            writer.flush(tableName);
+
+            if (failed.get() > 0) {
+                throw new IOException(String.format("Failed to convert %d rows of table [%s].", failed.get(), tableName));
+            }
+            if (interrupted) {
+                throw new InterruptedException(String.format("Conversion of table [%s] has been stopped after %d cells.",
+                                                             tableName, converted));
+            }
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        } finally {
+            try {
+                if (scanner != null) {
+                    scanner.close();
+                    scanner = null;
+                }
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+
+        return converted;
+    }
 }
@@ -1,11 +1,25 @@
 package eu.daiad.web.repository.application;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FuzzyRowFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.joda.time.DateTimeZone;
+import org.springframework.beans.factory.annotation.Value;
 
+import eu.daiad.web.hbase.HBaseScanStatistics;
+import eu.daiad.web.model.EnumTimeAggregation;
 import eu.daiad.web.model.meter.WaterMeterMeasurement;
 import eu.daiad.web.model.query.DataPoint;
 import eu.daiad.web.model.query.EnumMetric;
@@ -14,20 +28,242 @@ import eu.daiad.web.model.query.ExpandedPopulationFilter;
 import eu.daiad.web.model.query.GroupDataSeries;
 import eu.daiad.web.model.query.MeterUserDataPoint;
 import eu.daiad.web.model.query.RankingDataPoint;
+import eu.daiad.web.model.query.RankingSelector;
+import eu.daiad.web.model.query.TimeBucketCalendar;
 import eu.daiad.web.model.query.UserDataPoint;
 import eu.daiad.web.repository.AbstractHBaseRepository;
 
 public class AbstractHBaseMeterDataRepository  extends AbstractHBaseRepository {
 
+    /**
+     * Estimated cost of positioning a scanner expressed as the number of rows
+     * that can be read in the same time.
+     */
+    private static final long SCAN_SEEK_COST = 50;
+
     /**
      * The time interval used for grouping data in a single HBase row.
      */
     protected EnumTimeInterval interval;
 
+    /**
+     * Estimated number of smart water meters stored in the tables partitioned
+     * by time. Used by the query planner for estimating the cost of scanning
+     * all time partitions.
+     */
+    @Value("${hbase.data.planner.meters:10000}")
+    protected int estimatedMeterCount;
+
+    /**
+     * Maximum number of smart water meters for which rows are filtered by the
+     * region servers when scanning the tables partitioned by time.
+     */
+    @Value("${hbase.data.planner.filter.meters:2000}")
+    protected int maxFilteredMeterCount;
+
+    /**
+     * Time zone of the days of the smart water meter daily rollups. Rollups
+     * are used only by queries whose days have the same boundaries.
+     */
+    @Value("${hbase.data.rollup.timezone:Europe/Athens}")
+    protected String rollupTimezone;
+
     public AbstractHBaseMeterDataRepository() {
 
     }
 
+    /**
+     * Returns the time zone of the smart water meter daily rollups.
+     *
+     * @return the time zone.
+     */
+    protected DateTimeZone getRollupTimezone() {
+        return DateTimeZone.forID(rollupTimezone);
+    }
+
+    /**
+     * Reads the readings of a smart water meter. For granularities coarser
+     * than an hour, every day of the query time zone that has a daily rollup
+     * is read as a single cell from the {@link eu.daiad.web.hbase.EnumHBaseTable#SWM_DAILY}
+     * table. Raw readings are scanned from the {@link eu.daiad.web.hbase.EnumHBaseTable#SWM_USER}
+     * table only for the remaining ranges of days. Days marked as dirty are
+     * always read from the raw readings since their rollup may be stale.
+     *
+     * @param dailyTable the table of the daily rollups.
+     * @param detailTable the table of the readings indexed by meter.
+     * @param columnFamily the column family.
+     * @param serialHash the MD5 hash of the serial number.
+     * @param granularity the query time granularity.
+     * @param timezone the query time zone.
+     * @param startTime the time interval lower limit after adjusting it to the query granularity.
+     * @param endTime the time interval upper limit after adjusting it to the query granularity.
+     * @param callback the callback that receives the rollups and the readings.
+     * @return the number of days read from rollups.
+     * @throws Exception if a scan fails.
+     */
+    protected int scanMeter(Table dailyTable,
+                            Table detailTable,
+                            byte[] columnFamily,
+                            byte[] serialHash,
+                            EnumTimeAggregation granularity,
+                            DateTimeZone timezone,
+                            long startTime,
+                            long endTime,
+                            MeterDailyRollup.Callback callback) throws Exception {
+        TimeBucketCalendar days = null;
+        if (granularity != EnumTimeAggregation.HOUR) {
+            days = TimeBucketCalendar.create(EnumTimeAggregation.DAY, timezone, startTime, endTime);
+        }
+        if (days == null) {
+            scanReadings(detailTable, columnFamily, serialHash, startTime, endTime, callback);
+            return 0;
+        }
+        if (!callback.accept(serialHash, 0)) {
+            return 0;
+        }
+
+        boolean[] covered = new boolean[days.size()];
+        int coveredCount = 0;
+
+        List<MeterDailyRollup> rollups = new ArrayList<MeterDailyRollup>();
+        Set<Long> dirty = new HashSet<Long>();
+
+        ResultScanner scanner = null;
+        try {
+            DateTimeZone rollupZone = getRollupTimezone();
+
+            Scan scan = new Scan();
+            scan.setCaching(scanCacheSize);
+            scan.addFamily(columnFamily);
+            scan.setStartRow(MeterDailyRollup.createRowKey(serialHash, startTime, rollupZone));
+            scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(MeterDailyRollup.createRowKey(serialHash, endTime, rollupZone)));
+
+            scanner = dailyTable.getScanner(scan);
+
+            HBaseScanStatistics statistics = callback.getStatistics();
+            if (statistics != null) {
+                statistics.addScan();
+            }
+
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                if (statistics != null) {
+                    statistics.addRow(r);
+                }
+
+                for (Cell cell : r.rawCells()) {
+                    if (MeterDailyRollup.isMarker(cell)) {
+                        dirty.add(MeterDailyRollup.getMarkerDay(cell));
+                        continue;
+                    }
+
+                    MeterDailyRollup rollup = MeterDailyRollup.fromCell(cell);
+
+                    // A rollup is used only if it is a day of the query time zone
+                    if ((rollup == null) || (rollup.getStart() < startTime) || (endTime < rollup.getEnd() - 1) ||
+                        (!days.isBucketInterval(rollup.getStart(), rollup.getEnd()))) {
+                        continue;
+                    }
+
+                    rollups.add(rollup);
+                }
+            }
+        } finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+        }
+
+        // Markers are sorted after the rollups of the same row
+        for (MeterDailyRollup rollup : rollups) {
+            if (dirty.contains(rollup.getStart())) {
+                continue;
+            }
+
+            int index = days.getIndex(rollup.getStart());
+            if (covered[index]) {
+                continue;
+            }
+            covered[index] = true;
+            coveredCount++;
+
+            if (rollup.getCount() > 0) {
+                callback.onRollup(serialHash, rollup);
+            }
+        }
+
+        // Scan raw readings for every range of days without a rollup
+        for (int i = 0, count = covered.length; i < count;) {
+            if (covered[i]) {
+                i++;
+                continue;
+            }
+
+            int j = i;
+            while ((j < count) && (!covered[j])) {
+                j++;
+            }
+
+            scanReadings(detailTable,
+                         columnFamily,
+                         serialHash,
+                         Math.max(startTime, days.getBoundary(i)),
+                         Math.min(endTime, days.getBoundary(j) - 1),
+                         callback);
+            i = j;
+        }
+
+        return coveredCount;
+    }
+
+    /**
+     * Scans the raw readings of a smart water meter from the
+     * {@link eu.daiad.web.hbase.EnumHBaseTable#SWM_USER} table.
+     *
+     * @param detailTable the table of the readings indexed by meter.
+     * @param columnFamily the column family.
+     * @param serialHash the MD5 hash of the serial number.
+     * @param startTime the time interval lower limit.
+     * @param endTime the time interval upper limit.
+     * @param callback the callback that receives the readings.
+     * @throws Exception if the scan fails.
+     */
+    protected void scanReadings(Table detailTable,
+                                byte[] columnFamily,
+                                byte[] serialHash,
+                                long startTime,
+                                long endTime,
+                                MeterRowDecoder.Callback callback) throws Exception {
+        ResultScanner scanner = null;
+        try {
+            Scan scan = new Scan();
+            scan.setCaching(scanCacheSize);
+            scan.addFamily(columnFamily);
+            scan.setStartRow(createMeterRowKey(serialHash, endTime));
+            scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(createMeterRowKey(serialHash, startTime)));
+
+            scanner = detailTable.getScanner(scan);
+
+            HBaseScanStatistics statistics = callback.getStatistics();
+            if (statistics != null) {
+                statistics.addScan();
+            }
+
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                if (statistics != null) {
+                    statistics.addRow(r);
+                }
+
+                if (!MeterRowDecoder.decode(r, columnFamily, 16, 0, startTime, endTime, callback)) {
+                    break;
+                }
+            }
+        } finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+        }
+    }
+
     /**
      * Computes the key and the column qualifier prefix for an instance of
      * {@link WaterMeterMeasurement}.
@@ -92,6 +328,65 @@ public class AbstractHBaseMeterDataRepository  extends AbstractHBaseRepository {
         return createMeterRowKeyQualifierPrefix(meterSerialHash, timestamp).rowKey;
     }
 
+    /**
+     * Selects the cheapest scan plan for a query. The cost of each plan is
+     * estimated as the number of rows read plus the cost of positioning the
+     * scanners. Scanning by meter reads every row of the requested meters in
+     * the time interval but requires a separate scanner per meter. Scanning by
+     * time requires a scanner per partition but reads the rows of all meters
+     * in the time interval.
+     *
+     * @param meters the number of meters in the query population.
+     * @param startTime the time interval lower limit after adjusting it to the query granularity.
+     * @param endTime the time interval upper limit after adjusting it to the query granularity.
+     * @return the selected {@link EnumScanPlan}.
+     */
+    protected EnumScanPlan planScan(int meters, long startTime, long endTime) {
+        long rows = ((endTime - startTime) / (interval.getValue() * 1000L)) + 1;
+
+        long byMeterCost = meters * (SCAN_SEEK_COST + rows);
+        long byTimeCost = (timePartitions * SCAN_SEEK_COST) + (Math.max(meters, estimatedMeterCount) * rows);
+
+        if (byMeterCost < byTimeCost) {
+            return EnumScanPlan.BY_METER;
+        }
+        return EnumScanPlan.BY_TIME;
+    }
+
+    /**
+     * Creates a server side filter for scanning a partition of a table
+     * partitioned by time that returns only the rows of the given meters. The
+     * row key is composed of the partition, the time bucket and the meter
+     * serial number hash; the time bucket is not fixed.
+     *
+     * @param partition the partition.
+     * @param serialHashes the MD5 hashes of the serial numbers.
+     * @return a new {@link FuzzyRowFilter} or null if the filter should not be applied.
+     */
+    protected Filter createPartitionedRowFilter(short partition, List<byte[]> serialHashes) {
+        if ((serialHashes.isEmpty()) || (serialHashes.size() > maxFilteredMeterCount)) {
+            return null;
+        }
+
+        byte[] partitionBytes = Bytes.toBytes(partition);
+
+        List<Pair<byte[], byte[]>> keys = new ArrayList<Pair<byte[], byte[]>>(serialHashes.size());
+        for (byte[] serialHash : serialHashes) {
+            byte[] rowKey = new byte[partitionBytes.length + 8 + serialHash.length];
+            byte[] mask = new byte[rowKey.length];
+
+            System.arraycopy(partitionBytes, 0, rowKey, 0, partitionBytes.length);
+            System.arraycopy(serialHash, 0, rowKey, partitionBytes.length + 8, serialHash.length);
+
+            // Mask value 1 marks the time bucket bytes that may have any value
+            Arrays.fill(mask, partitionBytes.length, partitionBytes.length + 8, (byte) 1);
+
+            keys.add(new Pair<byte[], byte[]>(rowKey, mask));
+        }
+
+        return new FuzzyRowFilter(keys);
+    }
+
     /**
      * Transforms data series points depending on the query type. For ranking
      * queries, only the top/bottom k results are returned. For other queries
@@ -105,52 +400,44 @@ public class AbstractHBaseMeterDataRepository  extends AbstractHBaseRepository {
         if (filter.getRanking() == null) {
             // Aggregate all user data points of a ranking data point to a
             // single meter data point
-            ArrayList<DataPoint> points = new ArrayList<DataPoint>();
-
-            for (DataPoint point : series.getPoints()) {
-                points.add(((RankingDataPoint) point).aggregate(query.getMetrics(), DataPoint.EnumDataPointType.METER));
-            }
-
-            series.setPoints(points);
+            series.aggregateRankings(query.getMetrics(), DataPoint.EnumDataPointType.METER);
         } else {
-            // Truncate (n-k) users and keep top/bottom-k only
-            for (DataPoint point : series.getPoints()) {
-                RankingDataPoint ranking = (RankingDataPoint) point;
-
-                Collections.sort(ranking.getUsers(), new Comparator<UserDataPoint>() {
-
-                    @Override
-                    public int compare(UserDataPoint u1, UserDataPoint u2) {
-                        MeterUserDataPoint m1 = (MeterUserDataPoint) u1;
-                        MeterUserDataPoint m2 = (MeterUserDataPoint) u2;
-
-                        if (m1.getVolume().get(EnumMetric.SUM) < m2.getVolume().get(EnumMetric.SUM)) {
-                            return -1;
-                        }
-                        if (m1.getVolume().get(EnumMetric.SUM) > m2.getVolume().get(EnumMetric.SUM)) {
-                            return 1;
-                        }
-                        return 0;
+            // Keep top/bottom-k users only
+            selectRankingUsers(filter, series);
+        }
+    }
+
+    /**
+     * Keeps only the top/bottom-k users of every ranking data point of a
+     * series, ordered by ascending total consumption. If the ranking type is
+     * not supported, all data points are removed.
+     *
+     * @param filter the applied filter for the given series.
+     * @param series the series to transform.
+     */
+    protected void selectRankingUsers(ExpandedPopulationFilter filter, GroupDataSeries series) {
+        switch (filter.getRanking().getType()) {
+            case TOP:
+            case BOTTOM:
+                for (DataPoint point : series.getPoints()) {
+                    RankingDataPoint ranking = (RankingDataPoint) point;
+
+                    double[] values = new double[ranking.getUsers().size()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = ((MeterUserDataPoint) ranking.getUsers().get(i)).getVolume().get(EnumMetric.SUM);
                     }
-                });
-
-                int limit = filter.getRanking().getLimit();
-                switch (filter.getRanking().getType()) {
-                    case TOP:
-                        for (int i = 0, max = ranking.getUsers().size() - limit; i < max; i++) {
-                            ranking.getUsers().remove(0);
-                        }
-                        break;
-                    case BOTTOM:
-                        for (int i = ranking.getUsers().size() - 1, max = limit - 1; i > max; i--) {
-                            ranking.getUsers().remove(i);
-                        }
-                        break;
-                    default:
-                        series.getPoints().clear();
-                        break;
+
+                    List<UserDataPoint> selected = RankingSelector.select(ranking.getUsers(),
+                                                                          values,
+                                                                          filter.getRanking().getType(),
+                                                                          filter.getRanking().getLimit());
+                    ranking.getUsers().clear();
+                    ranking.getUsers().addAll(selected);
                 }
-            }
+                break;
+            default:
+                series.getPoints().clear();
+                break;
         }
     }
 
@@ -251,6 +538,20 @@ public class AbstractHBaseMeterDataRepository  extends AbstractHBaseRepository {
     }
 
 
+    /**
+     * Table access methods for executing a query.
+     */
+    protected enum EnumScanPlan {
+        /**
+         * Prefix scans over the table indexed by meter.
+         */
+        BY_METER,
+        /**
+         * Range scans over every partition of the table indexed by time.
+         */
+        BY_TIME;
+    }
+
     /**
      * Represents a HBase row key and column qualifier prefix.
      */
@@ -1,6 +1,7 @@
 package eu.daiad.web.repository.application;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -9,11 +10,14 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
@@ -30,12 +34,14 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Repository;
 
 import com.google.common.collect.ImmutableMap;
 
 import eu.daiad.web.hbase.EnumHBaseColumnFamily;
+import eu.daiad.web.hbase.HBaseScanStatistics;
 import eu.daiad.web.model.KeyValuePair;
 import eu.daiad.web.model.amphiro.AmphiroAbstractDataPoint;
 import eu.daiad.web.model.amphiro.AmphiroAbstractSession;
@@ -70,7 +76,10 @@ import eu.daiad.web.model.query.EnumMetric;
 import eu.daiad.web.model.query.ExpandedDataQuery;
 import eu.daiad.web.model.query.ExpandedPopulationFilter;
 import eu.daiad.web.model.query.GroupDataSeries;
+import eu.daiad.web.model.query.PopulationHashIndex;
+import eu.daiad.web.model.query.QueryExecutionProfile;
 import eu.daiad.web.model.query.RankingDataPoint;
+import eu.daiad.web.model.query.RankingSelector;
 import eu.daiad.web.model.query.UserDataPoint;
 import eu.daiad.web.model.security.AuthenticatedUser;
 
@@ -220,6 +229,13 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
      */
     private static final Log logger = LogFactory.getLog(HBaseAmphiroRepository.class);
 
+    /**
+     * Execution profile phases of amphiro b1 queries.
+     */
+    private static final String PHASE_SCAN = "amphiro." + QueryExecutionProfile.PHASE_SCAN;
+
+    private static final String PHASE_RANKING = "amphiro." + QueryExecutionProfile.PHASE_RANKING;
+
     /**
      * HBase table for storing amphiro b1 real-time session measurements.
      */
@@ -235,6 +251,14 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
      */
     private final String amphiroTableSessionByUser = "daiad:amphiro-sessions-by-user-v3";
 
+    /**
+     * Maximum number of users for which a query scans the sessions of every
+     * user from the table indexed by user instead of scanning all partitions
+     * of the table indexed by time.
+     */
+    @Value("${hbase.data.planner.amphiro.users:100}")
+    private int maxUserScanCount;
+
     /**
      * Returns the current API version.
      *
@@ -280,6 +304,28 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
         return updates;
     }
 
+    /**
+     * Validates and normalizes session and measurement data for an amphiro b1
+     * device without storing it.
+     *
+     * @param user the owner of the device.
+     * @param device the device.
+     * @param data a collection of amphiro b1 sessions and measurement time series.
+     * @throws ApplicationException if the data is not valid.
+     */
+    @Override
+    public void validate(AuthenticatedUser user, AmphiroDevice device, AmphiroMeasurementCollection data) throws ApplicationException {
+        if ((data == null) || (data.getSessions() == null) || (data.getSessions().isEmpty())) {
+            return;
+        }
+
+        try {
+            preProcessData(user, device, data);
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+    }
+
     /**
      * Logs amphiro b1 sessions and measurement time series to external files
      * before saving them to HBase.
@@ -711,144 +757,66 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
      * @return the session versions.
      */
     private SessionVersions getSessionVersions(byte[] rowKey, boolean includeMeasurements) {
-        Table table = null;
-        ResultScanner scanner = null;
+        List<byte[]> rowKeys = new ArrayList<byte[]>();
+        rowKeys.add(rowKey);
 
-        try {
-            table = connection.getTable(amphiroTableSessionByUser);
+        return getSessionVersions(rowKeys, includeMeasurements).get(0);
+    }
 
-            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+    /**
+     * Searches for session data given a list of HBase row keys. Sessions and
+     * measurements are fetched using a single batched get per table.
+     *
+     * @param rowKeys the row keys.
+     * @param includeMeasurements fetch measurements if the session is a real-time one.
+     * @return the session versions in the same order as the row keys.
+     */
+    private List<SessionVersions> getSessionVersions(List<byte[]> rowKeys, boolean includeMeasurements) {
+        List<SessionVersions> result = new ArrayList<SessionVersions>(rowKeys.size());
 
-            Get get = new Get(rowKey);
-            Result result = table.get(get);
+        if (rowKeys.isEmpty()) {
+            return result;
+        }
 
-            if (result.getRow() != null) {
-                NavigableMap<byte[], byte[]> map = result.getFamilyMap(columnFamily);
+        Table table = null;
 
-                long sessionId = Long.MAX_VALUE - Bytes.toLong(Arrays.copyOfRange(rowKey, 32, 40));
+        try {
+            table = connection.getTable(amphiroTableSessionByUser);
 
-                AmphiroSessionDetails historical = new AmphiroSessionDetails();
-                historical.setId(sessionId);
-                historical.setHistory(true);
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
 
-                AmphiroSessionDetails realtime = new AmphiroSessionDetails();
-                realtime.setId(sessionId);
-                realtime.setHistory(false);
+            List<Get> gets = new ArrayList<Get>(rowKeys.size());
+            for (byte[] rowKey : rowKeys) {
+                gets.add(new Get(rowKey));
+            }
 
-                AmphiroSession.Member member = new AmphiroSession.Member();
+            Result[] rows = table.get(gets);
 
-                for (Entry<byte[], byte[]> entry : map.entrySet()) {
-                    String qualifier = Bytes.toString(entry.getKey());
+            List<byte[]> measurementRowKeys = new ArrayList<byte[]>();
+            List<AmphiroSessionDetails> realtimeSessions = new ArrayList<AmphiroSessionDetails>();
 
-                    switch (getSessionColumn(qualifier, false)) {
-                        case COLUMN_RT_SESSION_TIMESTAMP:
-                            realtime.setTimestamp(Bytes.toLong(entry.getValue()));
-                            break;
-                        case COLUMN_RT_SESSION_VOLUME:
-                            realtime.setVolume(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_RT_SESSION_ENERGY:
-                            realtime.setEnergy(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_RT_SESSION_DURATION:
-                            realtime.setDuration(Bytes.toInt(entry.getValue()));
-                            break;
-                        case COLUMN_RT_SESSION_TEMPERATURE:
-                            realtime.setTemperature(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_RT_SESSION_FLOW:
-                            realtime.setFlow(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_HIST_SESSION_TIMESTAMP:
-                            historical.setTimestamp(Bytes.toLong(entry.getValue()));
-                            break;
-                        case COLUMN_HIST_SESSION_VOLUME:
-                            historical.setVolume(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_HIST_SESSION_ENERGY:
-                            historical.setEnergy(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_HIST_SESSION_DURATION:
-                            historical.setDuration(Bytes.toInt(entry.getValue()));
-                            break;
-                        case COLUMN_HIST_SESSION_TEMPERATURE:
-                            historical.setTemperature(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_HIST_SESSION_FLOW:
-                            historical.setFlow(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_SHARED_MEMBER_INDEX:
-                            member.setIndex(Bytes.toInt(entry.getValue()));
-                            break;
-                        case COLUMN_SHARED_MEMBER_MODE:
-                            member.setMode(EnumMemberSelectionMode.fromString(new String(entry.getValue(), StandardCharsets.UTF_8)));
-                            break;
-                        case COLUMN_SHARED_MEMBER_TIMESTAMP:
-                            member.setTimestamp(Bytes.toLong(entry.getValue()));
-                            break;
-                        case COLUMN_SHARED_IGNORE_VALUE:
-                            realtime.setIgnored(Bytes.toBoolean(entry.getValue()));
-                            historical.setIgnored(Bytes.toBoolean(entry.getValue()));
-                            break;
-                        case COLUMN_SHARED_IGNORE_TIMESTAMP:
-                            realtime.setIgnoredTimestamp(Bytes.toLong(entry.getValue()));
-                            historical.setIgnoredTimestamp(Bytes.toLong(entry.getValue()));
-                            break;
-                        case COLUMN_RT_MODE:
-                            realtime.setRealTimeMode(EnumRealTimeMode.fromString(new String(entry.getValue(), StandardCharsets.UTF_8)));
-                            break;
-                        default:
-                            if (qualifier.startsWith(COLUMN_HIST_PROPERTY_PREFIX)) {
-                                historical.addProperty(StringUtils.substringAfter(qualifier, COLUMN_HIST_PROPERTY_PREFIX),
-                                                       new String(entry.getValue(), StandardCharsets.UTF_8));
-                            }
-                            if (qualifier.startsWith(COLUMN_RT_PROPERTY_PREFIX)) {
-                                realtime.addProperty(StringUtils.substringAfter(qualifier, COLUMN_RT_PROPERTY_PREFIX),
-                                                     new String(entry.getValue(), StandardCharsets.UTF_8));
-                            }
-                            break;
-                    }
-                }
+            for (int i = 0, count = rowKeys.size(); i < count; i++) {
+                SessionVersions versions = toSessionVersions(rowKeys.get(i), rows[i], columnFamily);
 
-                // Reset objects if no data exist
-                if (historical.getTimestamp() == null) {
-                    historical = null;
+                if ((includeMeasurements) && (versions.realtime != null)) {
+                    measurementRowKeys.add(rowKeys.get(i));
+                    realtimeSessions.add(versions.realtime);
                 }
 
-                if (realtime.getTimestamp() == null) {
-                    realtime = null;
-                } else if (includeMeasurements) {
-                    realtime.setMeasurements(getSessionMeasurements(rowKey));
-                }
+                result.add(versions);
+            }
 
-                // Set member
-                if (member.getIndex() != null) {
-                    if (member.getTimestamp() == null) {
-                        if (realtime != null) {
-                            member.setTimestamp(realtime.getTimestamp());
-                        } else if (historical != null) {
-                            member.setTimestamp(historical.getTimestamp());
-                        }
-                    }
+            if (!measurementRowKeys.isEmpty()) {
+                List<ArrayList<AmphiroMeasurement>> measurements = getSessionMeasurements(measurementRowKeys);
 
-                    if (historical != null) {
-                        historical.setMember(member);
-                    }
-                    if (realtime != null) {
-                        realtime.setMember(member);
-                    }
+                for (int i = 0, count = realtimeSessions.size(); i < count; i++) {
+                    realtimeSessions.get(i).setMeasurements(measurements.get(i));
                 }
-
-                return new SessionVersions(historical, realtime);
             }
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
         } finally {
             try {
-                if (scanner != null) {
-                    scanner.close();
-                    scanner = null;
-                }
                 if (table != null) {
                     table.close();
                     table = null;
@@ -858,87 +826,171 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
             }
         }
 
-        return new SessionVersions(null, null);
+        return result;
     }
 
     /**
-     * Returns the time-series of an amphiro b1 session given its row key.
+     * Creates the session versions stored in a row of the sessions table
+     * indexed by user.
      *
-     * @param rowKey the session row key.
-     * @return a list of measurements.
+     * @param rowKey the row key.
+     * @param result the row fetched from HBase.
+     * @param columnFamily the column family.
+     * @return the session versions.
      */
-    private ArrayList<AmphiroMeasurement> getSessionMeasurements(byte[] rowKey) {
-        ArrayList<AmphiroMeasurement> measurements = new ArrayList<AmphiroMeasurement>();
+    private SessionVersions toSessionVersions(byte[] rowKey, Result result, byte[] columnFamily) {
+        if (result.getRow() != null) {
+            NavigableMap<byte[], byte[]> map = result.getFamilyMap(columnFamily);
 
-        Table table = null;
-        ResultScanner scanner = null;
+            long sessionId = Long.MAX_VALUE - Bytes.toLong(Arrays.copyOfRange(rowKey, 32, 40));
 
-        try {
-            table = connection.getTable(amphiroTableMeasurements);
-
-            Get get = new Get(rowKey);
-            Result sessionResult = table.get(get);
+            AmphiroSessionDetails historical = new AmphiroSessionDetails();
+            historical.setId(sessionId);
+            historical.setHistory(true);
 
-            long currentIndex = -1;
+            AmphiroSessionDetails realtime = new AmphiroSessionDetails();
+            realtime.setId(sessionId);
+            realtime.setHistory(false);
 
-            AmphiroMeasurement measurement = null;
+            AmphiroSession.Member member = new AmphiroSession.Member();
 
-            if (sessionResult.getRow() != null) {
-                long sessionId = Long.MAX_VALUE - Bytes.toLong(Arrays.copyOfRange(rowKey, 32, 40));
+            for (Entry<byte[], byte[]> entry : map.entrySet()) {
+                String qualifier = Bytes.toString(entry.getKey());
 
-                byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
-                NavigableMap<byte[], byte[]> map = sessionResult.getFamilyMap(columnFamily);
-
-                for (Entry<byte[], byte[]> entry : map.entrySet()) {
-                    long currentColumnIndex = Bytes.toLong(Arrays.copyOfRange(entry.getKey(), 0, 8));
-
-                    if (currentIndex != currentColumnIndex) {
-                        if (measurement != null) {
-                            measurements.add(measurement);
+                switch (getSessionColumn(qualifier, false)) {
+                    case COLUMN_RT_SESSION_TIMESTAMP:
+                        realtime.setTimestamp(Bytes.toLong(entry.getValue()));
+                        break;
+                    case COLUMN_RT_SESSION_VOLUME:
+                        realtime.setVolume(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_RT_SESSION_ENERGY:
+                        realtime.setEnergy(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_RT_SESSION_DURATION:
+                        realtime.setDuration(Bytes.toInt(entry.getValue()));
+                        break;
+                    case COLUMN_RT_SESSION_TEMPERATURE:
+                        realtime.setTemperature(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_RT_SESSION_FLOW:
+                        realtime.setFlow(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_HIST_SESSION_TIMESTAMP:
+                        historical.setTimestamp(Bytes.toLong(entry.getValue()));
+                        break;
+                    case COLUMN_HIST_SESSION_VOLUME:
+                        historical.setVolume(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_HIST_SESSION_ENERGY:
+                        historical.setEnergy(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_HIST_SESSION_DURATION:
+                        historical.setDuration(Bytes.toInt(entry.getValue()));
+                        break;
+                    case COLUMN_HIST_SESSION_TEMPERATURE:
+                        historical.setTemperature(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_HIST_SESSION_FLOW:
+                        historical.setFlow(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_SHARED_MEMBER_INDEX:
+                        member.setIndex(Bytes.toInt(entry.getValue()));
+                        break;
+                    case COLUMN_SHARED_MEMBER_MODE:
+                        member.setMode(EnumMemberSelectionMode.fromString(new String(entry.getValue(), StandardCharsets.UTF_8)));
+                        break;
+                    case COLUMN_SHARED_MEMBER_TIMESTAMP:
+                        member.setTimestamp(Bytes.toLong(entry.getValue()));
+                        break;
+                    case COLUMN_SHARED_IGNORE_VALUE:
+                        realtime.setIgnored(Bytes.toBoolean(entry.getValue()));
+                        historical.setIgnored(Bytes.toBoolean(entry.getValue()));
+                        break;
+                    case COLUMN_SHARED_IGNORE_TIMESTAMP:
+                        realtime.setIgnoredTimestamp(Bytes.toLong(entry.getValue()));
+                        historical.setIgnoredTimestamp(Bytes.toLong(entry.getValue()));
+                        break;
+                    case COLUMN_RT_MODE:
+                        realtime.setRealTimeMode(EnumRealTimeMode.fromString(new String(entry.getValue(), StandardCharsets.UTF_8)));
+                        break;
+                    default:
+                        if (qualifier.startsWith(COLUMN_HIST_PROPERTY_PREFIX)) {
+                            historical.addProperty(StringUtils.substringAfter(qualifier, COLUMN_HIST_PROPERTY_PREFIX),
+                                                   new String(entry.getValue(), StandardCharsets.UTF_8));
                         }
-                        currentIndex = currentColumnIndex;
+                        if (qualifier.startsWith(COLUMN_RT_PROPERTY_PREFIX)) {
+                            realtime.addProperty(StringUtils.substringAfter(qualifier, COLUMN_RT_PROPERTY_PREFIX),
+                                                 new String(entry.getValue(), StandardCharsets.UTF_8));
+                        }
+                        break;
+                }
+            }
 
-                        measurement = new AmphiroMeasurement();
-                        measurement.setSessionId(sessionId);
-                        measurement.setIndex(currentIndex);
-                    }
+            // Reset objects if no data exist
+            if (historical.getTimestamp() == null) {
+                historical = null;
+            }
 
-                    int qualifierLength = Arrays.copyOfRange(entry.getKey(), 8, 9)[0];
-                    byte[] qualifierBytes = Arrays.copyOfRange(entry.getKey(), 9, 9 + qualifierLength);
-                    String qualifier = Bytes.toString(qualifierBytes);
+            if (realtime.getTimestamp() == null) {
+                realtime = null;
+            }
 
-                    switch (getMeasurementColumn(qualifier)) {
-                        case COLUMN_MEASUREMENT_VOLUME:
-                            measurement.setVolume(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_MEASUREMENT_ENERGY:
-                            measurement.setEnergy(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_MEASUREMENT_TEMPERATURE:
-                            measurement.setTemperature(Bytes.toFloat(entry.getValue()));
-                            break;
-                        case COLUMN_MEASUREMENT_TIMESTAMP:
-                            measurement.setTimestamp(Bytes.toLong(entry.getValue()));
-                            break;
-                        default:
-                            // Ignore
-                            break;
+            // Set member
+            if (member.getIndex() != null) {
+                if (member.getTimestamp() == null) {
+                    if (realtime != null) {
+                        member.setTimestamp(realtime.getTimestamp());
+                    } else if (historical != null) {
+                        member.setTimestamp(historical.getTimestamp());
                     }
                 }
-                if (measurement != null) {
-                    measurements.add(measurement);
+
+                if (historical != null) {
+                    historical.setMember(member);
+                }
+                if (realtime != null) {
+                    realtime.setMember(member);
                 }
             }
 
-            return measurements;
+            return new SessionVersions(historical, realtime);
+        }
+
+        return new SessionVersions(null, null);
+    }
+
+    /**
+     * Returns the time-series of a list of amphiro b1 sessions given their row
+     * keys using a single batched get.
+     *
+     * @param rowKeys the session row keys.
+     * @return a list of measurements for every session in the same order as the row keys.
+     */
+    private List<ArrayList<AmphiroMeasurement>> getSessionMeasurements(List<byte[]> rowKeys) {
+        List<ArrayList<AmphiroMeasurement>> result = new ArrayList<ArrayList<AmphiroMeasurement>>(rowKeys.size());
+
+        Table table = null;
+
+        try {
+            table = connection.getTable(amphiroTableMeasurements);
+
+            List<Get> gets = new ArrayList<Get>(rowKeys.size());
+            for (byte[] rowKey : rowKeys) {
+                gets.add(new Get(rowKey));
+            }
+
+            Result[] rows = table.get(gets);
+
+            for (int i = 0, count = rowKeys.size(); i < count; i++) {
+                result.add(toMeasurements(rowKeys.get(i), rows[i]));
+            }
+
+            return result;
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
         } finally {
             try {
-                if (scanner != null) {
-                    scanner.close();
-                    scanner = null;
-                }
                 if (table != null) {
                     table.close();
                     table = null;
@@ -950,7 +1002,74 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
     }
 
     /**
-     * Stores session time-series.
+     * Creates the time-series of an amphiro b1 session from a row of the
+     * measurements table.
+     *
+     * @param rowKey the session row key.
+     * @param sessionResult the row fetched from HBase.
+     * @return a list of measurements.
+     */
+    private ArrayList<AmphiroMeasurement> toMeasurements(byte[] rowKey, Result sessionResult) {
+        ArrayList<AmphiroMeasurement> measurements = new ArrayList<AmphiroMeasurement>();
+
+        long currentIndex = -1;
+
+        AmphiroMeasurement measurement = null;
+
+        if (sessionResult.getRow() != null) {
+            long sessionId = Long.MAX_VALUE - Bytes.toLong(Arrays.copyOfRange(rowKey, 32, 40));
+
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+            NavigableMap<byte[], byte[]> map = sessionResult.getFamilyMap(columnFamily);
+
+            for (Entry<byte[], byte[]> entry : map.entrySet()) {
+                long currentColumnIndex = Bytes.toLong(Arrays.copyOfRange(entry.getKey(), 0, 8));
+
+                if (currentIndex != currentColumnIndex) {
+                    if (measurement != null) {
+                        measurements.add(measurement);
+                    }
+                    currentIndex = currentColumnIndex;
+
+                    measurement = new AmphiroMeasurement();
+                    measurement.setSessionId(sessionId);
+                    measurement.setIndex(currentIndex);
+                }
+
+                int qualifierLength = Arrays.copyOfRange(entry.getKey(), 8, 9)[0];
+                byte[] qualifierBytes = Arrays.copyOfRange(entry.getKey(), 9, 9 + qualifierLength);
+                String qualifier = Bytes.toString(qualifierBytes);
+
+                switch (getMeasurementColumn(qualifier)) {
+                    case COLUMN_MEASUREMENT_VOLUME:
+                        measurement.setVolume(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_MEASUREMENT_ENERGY:
+                        measurement.setEnergy(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_MEASUREMENT_TEMPERATURE:
+                        measurement.setTemperature(Bytes.toFloat(entry.getValue()));
+                        break;
+                    case COLUMN_MEASUREMENT_TIMESTAMP:
+                        measurement.setTimestamp(Bytes.toLong(entry.getValue()));
+                        break;
+                    default:
+                        // Ignore
+                        break;
+                }
+            }
+            if (measurement != null) {
+                measurements.add(measurement);
+            }
+        }
+
+        return measurements;
+    }
+
+    /**
+     * Stores session time-series. Measurement indexes are reserved using a
+     * single counter increment and all rows are written using a single batched
+     * put.
      *
      * @param userKey the owner of the device.
      * @param data the data to store.
@@ -964,8 +1083,10 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
 
             byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
 
-            // Compute the next valid index value and remove existing
-            // measurements from the message.
+            List<byte[]> rowKeys = new ArrayList<byte[]>();
+            List<AmphiroMeasurement> inserted = new ArrayList<AmphiroMeasurement>();
+
+            // Remove existing measurements from the message
             for (AmphiroSession s : data.getSessions()) {
                 if(s.isHistory()) {
                     continue;
@@ -987,36 +1108,48 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
                     }
                 }
 
-                if (!measurements.isEmpty()) {
-                    for (int i = 0; i < measurements.size(); i++) {
-                        AmphiroMeasurement m = measurements.get(i);
+                for (AmphiroMeasurement m : measurements) {
+                    if (m.getVolume() >= 0) {
+                        rowKeys.add(rowKey);
+                        inserted.add(m);
+                    }
+                }
+            }
 
-                        if (m.getVolume() < 0) {
-                            continue;
-                        }
+            if (inserted.isEmpty()) {
+                return;
+            }
 
-                        byte[] indexBytes = Bytes.toBytes((long) increment(COUNTER_GROUP, COUNTER_MEASUREMENT));
+            // Reserve a range of indexes; the counter returns the last one
+            long index = increment(COUNTER_GROUP, COUNTER_MEASUREMENT, inserted.size()) - inserted.size();
 
-                        byte[] column = null;
+            List<Put> puts = new ArrayList<Put>(inserted.size());
 
-                        Put p = new Put(rowKey);
+            for (int i = 0, count = inserted.size(); i < count; i++) {
+                AmphiroMeasurement m = inserted.get(i);
 
-                        column = concatenate(indexBytes, appendLength(Bytes.toBytes(EnumMeasurementColumn.COLUMN_MEASUREMENT_TIMESTAMP.getValue())));
-                        p.addColumn(columnFamily, column, Bytes.toBytes(m.getTimestamp()));
+                byte[] indexBytes = Bytes.toBytes(++index);
 
-                        column = concatenate(indexBytes, appendLength(Bytes.toBytes(EnumMeasurementColumn.COLUMN_MEASUREMENT_VOLUME.getValue())));
-                        p.addColumn(columnFamily, column, Bytes.toBytes(m.getVolume()));
+                byte[] column = null;
 
-                        column = concatenate(indexBytes, appendLength(Bytes.toBytes(EnumMeasurementColumn.COLUMN_MEASUREMENT_ENERGY.getValue())));
-                        p.addColumn(columnFamily, column, Bytes.toBytes(m.getEnergy()));
+                Put p = new Put(rowKeys.get(i));
 
-                        column = concatenate(indexBytes, appendLength(Bytes.toBytes(EnumMeasurementColumn.COLUMN_MEASUREMENT_TEMPERATURE.getValue())));
-                        p.addColumn(columnFamily, column, Bytes.toBytes(m.getTemperature()));
+                column = concatenate(indexBytes, appendLength(Bytes.toBytes(EnumMeasurementColumn.COLUMN_MEASUREMENT_TIMESTAMP.getValue())));
+                p.addColumn(columnFamily, column, Bytes.toBytes(m.getTimestamp()));
 
-                        table.put(p);
-                    }
-                }
+                column = concatenate(indexBytes, appendLength(Bytes.toBytes(EnumMeasurementColumn.COLUMN_MEASUREMENT_VOLUME.getValue())));
+                p.addColumn(columnFamily, column, Bytes.toBytes(m.getVolume()));
+
+                column = concatenate(indexBytes, appendLength(Bytes.toBytes(EnumMeasurementColumn.COLUMN_MEASUREMENT_ENERGY.getValue())));
+                p.addColumn(columnFamily, column, Bytes.toBytes(m.getEnergy()));
+
+                column = concatenate(indexBytes, appendLength(Bytes.toBytes(EnumMeasurementColumn.COLUMN_MEASUREMENT_TEMPERATURE.getValue())));
+                p.addColumn(columnFamily, column, Bytes.toBytes(m.getTemperature()));
+
+                puts.add(p);
             }
+
+            table.put(puts);
         } finally {
             try {
                 if (table != null) {
@@ -1337,7 +1470,9 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
     }
 
     /**
-     * Stores amphiro b1 session indexed by shower id.
+     * Stores amphiro b1 session indexed by shower id. The existing versions of
+     * all sessions are fetched using a single batched get and all rows are
+     * written using a single batched put.
      *
      * @param userKey the user key.
      * @param data the data to store.
@@ -1351,19 +1486,35 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
             table = connection.getTable(amphiroTableSessionByUser);
             byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
 
+            // Get existing rows if any exist
+            List<byte[]> rowKeys = new ArrayList<byte[]>();
+            for (AmphiroSession s : data.getSessions()) {
+                rowKeys.add(getSessionKey(userKey, data.getDeviceKey(), s.getId()));
+            }
+
+            List<SessionVersions> versions = getSessionVersions(rowKeys, true);
+
+            List<Put> puts = new ArrayList<Put>();
+            Set<ByteBuffer> updatedRowKeys = new HashSet<ByteBuffer>();
+
             for (int i = data.getSessions().size() - 1; i >= 0; i--) {
                 AmphiroSession s = data.getSessions().get(i);
 
-                // Get existing row if any exists and set update properties
-                SessionVersions existing = getSessionVersions(getSessionKey(userKey,
-                                                                            data.getDeviceKey(),
-                                                                            data.getSessions().get(i).getId()), true);
+                byte[] rowKey = rowKeys.get(i);
 
-                s.setVersions(existing);
+                // The historical and the real-time version of a session may be
+                // stored by the same request. In this case, the row must be
+                // read again after writing the first version.
+                if (updatedRowKeys.add(ByteBuffer.wrap(rowKey))) {
+                    s.setVersions(versions.get(i));
+                } else {
+                    table.put(puts);
+                    puts.clear();
 
-                // Decide update actions
-                byte[] rowKey = getSessionKey(userKey, data.getDeviceKey(), s.getId());
+                    s.setVersions(getSessionVersions(rowKey, true));
+                }
 
+                // Decide update actions
                 Put put = null;
                 byte[] column;
 
@@ -1560,7 +1711,7 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
                         put.addColumn(columnFamily, column, s.getProperties().get(p).getValue().getBytes(StandardCharsets.UTF_8));
                     }
 
-                    table.put(put);
+                    puts.add(put);
                 } else {
                     // No session is inserted. Check for additional properties.
                     if ((!s.getVersions().isEmpty()) && (s.getProperties() != null) && (!s.getProperties().isEmpty())) {
@@ -1594,11 +1745,13 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
                         }
 
                         if (put.size() > 0) {
-                            table.put(put);
+                            puts.add(put);
                         }
                     }
                 }
             }
+
+            table.put(puts);
         } finally {
             try {
                 if (table != null) {
@@ -1612,7 +1765,9 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
     }
 
     /**
-     * Stores amphiro b1 session indexed by shower timestamp.
+     * Stores amphiro b1 session indexed by shower timestamp. Rows are deleted
+     * and written using a single batched delete and a single batched put
+     * respectively.
      *
      * @param userKey the user key.
      * @param data the data to store.
@@ -1630,6 +1785,9 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
             table = connection.getTable(amphiroTableSessionByTime);
             byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
 
+            List<Delete> deletes = new ArrayList<Delete>();
+            List<Put> puts = new ArrayList<Put>();
+
             for (int i = 0; i < data.getSessions().size(); i++) {
                 AmphiroSession s = data.getSessions().get(i);
 
@@ -1707,12 +1865,7 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
                         // Case (a)
                         if (s.getTimestamp() < s.getVersions().historical.getTimestamp()) {
                             // Delete existing record
-                            for (short partitionIndex = 0; partitionIndex < timePartitions; partitionIndex++) {
-                                byte[] deleteRowKey = getSessionTimePartitionedKey(userKey, data.getDeviceKey(), s.getId(), s.getVersions().historical.getTimestamp());
-
-                                Delete delete = new Delete(deleteRowKey);
-                                table.delete(delete);
-                            }
+                            deletes.add(new Delete(getSessionTimePartitionedKey(userKey, data.getDeviceKey(), s.getId(), s.getVersions().historical.getTimestamp())));
 
                             put = new Put(getSessionTimePartitionedKey(userKey, data.getDeviceKey(), s.getId(), s.getTimestamp()));
 
@@ -1804,12 +1957,7 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
                      */
                     if ((s.getVersions().historical != null) && (s.getVersions().realtime == null)) {
                         // Delete existing record
-                        for (short partitionIndex = 0; partitionIndex < timePartitions; partitionIndex++) {
-                            byte[] deleteRowKey = getSessionTimePartitionedKey(userKey, data.getDeviceKey(), s.getId(), s.getVersions().historical.getTimestamp());
-
-                            Delete delete = new Delete(deleteRowKey);
-                            table.delete(delete);
-                        }
+                        deletes.add(new Delete(getSessionTimePartitionedKey(userKey, data.getDeviceKey(), s.getId(), s.getVersions().historical.getTimestamp())));
 
                         // Case (a)
                         put = new Put(getSessionTimePartitionedKey(userKey, data.getDeviceKey(), s.getId(), s.getTimestamp()));
@@ -1908,9 +2056,16 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
                         put.addColumn(columnFamily, column, s.getProperties().get(p).getValue().getBytes(StandardCharsets.UTF_8));
                     }
 
-                    table.put(put);
+                    puts.add(put);
                 }
             }
+
+            // Delete moved rows before writing their new versions, since a new
+            // row key may be equal to the old one
+            if (!deletes.isEmpty()) {
+                table.delete(deletes);
+            }
+            table.put(puts);
         } finally {
             try {
                 if (table != null) {
@@ -2379,18 +2534,12 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
      * @throws ApplicationException if query execution fails.
      */
     @Override
-    public ArrayList<GroupDataSeries> query(ExpandedDataQuery query) throws ApplicationException {
-        Table table = null;
-        ResultScanner scanner = null;
+    public ArrayList<GroupDataSeries> query(final ExpandedDataQuery query) throws ApplicationException {
+        long phaseStart = System.currentTimeMillis();
 
-        ArrayList<GroupDataSeries> result = new ArrayList<GroupDataSeries>();
-        for (ExpandedPopulationFilter filter : query.getGroups()) {
-            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId()));
-        }
-        try {
-            table = connection.getTable(amphiroTableSessionByTime);
-            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+        ArrayList<GroupDataSeries> result = createSeries(query);
 
+        try {
             DateTime startDate = new DateTime(query.getStartDateTime(), DateTimeZone.UTC);
             DateTime endDate = new DateTime(query.getEndDateTime(), DateTimeZone.UTC);
 
@@ -2430,149 +2579,223 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
                                     query.getGranularity());
             }
 
-            for (short p = 0; p < timePartitions; p++) {
-                Scan scan = new Scan();
-                scan.setCaching(scanCacheSize);
-                scan.addFamily(columnFamily);
-
-                byte[] partitionBytes = Bytes.toBytes(p);
-
-                long from = startDate.getMillis() / 1000;
-                from = from - (from % EnumTimeInterval.DAY.getValue());
-                byte[] fromBytes = Bytes.toBytes(from);
+            final long startTime = startDate.getMillis();
+            final long endTime = endDate.getMillis();
 
-                long to = endDate.getMillis() / 1000;
-                to = to - (to % EnumTimeInterval.DAY.getValue());
-                byte[] toBytes = Bytes.toBytes(to);
+            final PopulationHashIndex populationIndex = PopulationHashIndex.byUserKeyHash(query.getGroups());
 
-                // Scanner row key prefix start
-                byte[] rowKey = new byte[partitionBytes.length + fromBytes.length];
+            List<Callable<ArrayList<GroupDataSeries>>> tasks = new ArrayList<Callable<ArrayList<GroupDataSeries>>>();
 
-                System.arraycopy(partitionBytes, 0, rowKey, 0, partitionBytes.length);
-                System.arraycopy(fromBytes, 0, rowKey, partitionBytes.length, fromBytes.length);
+            if (populationIndex.size() <= maxUserScanCount) {
+                // Distribute user prefix scans to the available threads
+                List<byte[]> hashes = populationIndex.getHashes();
+                int taskCount = Math.min(hashes.size(), scanExecutor.getParallelism());
 
-                scan.setStartRow(rowKey);
+                for (int t = 0; t < taskCount; t++) {
+                    final List<byte[]> userKeyHashes = new ArrayList<byte[]>();
+                    for (int i = t, count = hashes.size(); i < count; i += taskCount) {
+                        userKeyHashes.add(hashes.get(i));
+                    }
 
-                // Scanner row key prefix end
-                rowKey = new byte[partitionBytes.length + toBytes.length];
+                    tasks.add(new Callable<ArrayList<GroupDataSeries>>() {
 
-                System.arraycopy(partitionBytes, 0, rowKey, 0, partitionBytes.length);
-                System.arraycopy(toBytes, 0, rowKey, partitionBytes.length, toBytes.length);
+                        @Override
+                        public ArrayList<GroupDataSeries> call() throws Exception {
+                            return queryUsers(query, populationIndex, userKeyHashes, startTime, endTime);
+                        }
+                    });
+                }
 
-                scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(rowKey));
+                query.addPlan(String.format("%s: %d user prefix scans", amphiroTableSessionByUser, hashes.size()));
+            } else {
+                for (short p = 0; p < timePartitions; p++) {
+                    final short partition = p;
 
-                scanner = table.getScanner(scan);
+                    tasks.add(new Callable<ArrayList<GroupDataSeries>>() {
 
-                for (Result r = scanner.next(); r != null; r = scanner.next()) {
-                    NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
+                        @Override
+                        public ArrayList<GroupDataSeries> call() throws Exception {
+                            return queryPartition(query, populationIndex, partition, startTime, endTime);
+                        }
+                    });
+                }
 
-                    if (map != null) {
-                        rowKey = r.getRow();
+                query.addPlan(String.format("%s: %d partition scans", amphiroTableSessionByTime, timePartitions));
+                query.getProfile().addPartitions(timePartitions);
+            }
 
-                        byte[] userHash = Arrays.copyOfRange(r.getRow(), 10, 26);
+            for (ArrayList<GroupDataSeries> partial : scanExecutor.invokeAll(tasks)) {
+                for (int filterIndex = 0, count = result.size(); filterIndex < count; filterIndex++) {
+                    result.get(filterIndex).merge(partial.get(filterIndex));
+                }
+            }
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
 
-                        Long timestamp = null;
-                        Integer duration = null;
-                        Float volume = null, energy = null, temperature = null, flow = null;
+        phaseStart = query.getProfile().endPhase(PHASE_SCAN, phaseStart);
 
-                        for (Entry<byte[], byte[]> entry : map.entrySet()) {
-                            String qualifier = Bytes.toString(entry.getKey());
+        // Post process results
+        int filterIndex = 0;
+        for (final ExpandedPopulationFilter filter : query.getGroups()) {
+            GroupDataSeries series = result.get(filterIndex);
 
-                            // Always the historical values override the
-                            // real-time ones except for the timestamp
-                            switch (getSessionColumn(qualifier, false)) {
-                                case COLUMN_RT_SESSION_TIMESTAMP:
-                                    timestamp = Bytes.toLong(entry.getValue());
-                                    break;
-                                case COLUMN_RT_SESSION_VOLUME:
-                                    if (volume == null) {
-                                        volume = Bytes.toFloat(entry.getValue());
-                                    }
-                                    break;
-                                case COLUMN_RT_SESSION_ENERGY:
-                                    if (energy == null) {
-                                        energy = Bytes.toFloat(entry.getValue());
-                                    }
-                                    break;
-                                case COLUMN_RT_SESSION_DURATION:
-                                    if (duration == null) {
-                                        duration = Bytes.toInt(entry.getValue());
-                                    }
-                                    break;
-                                case COLUMN_RT_SESSION_TEMPERATURE:
-                                    if (temperature == null) {
-                                        temperature = Bytes.toFloat(entry.getValue());
-                                    }
-                                    break;
-                                case COLUMN_RT_SESSION_FLOW:
-                                    if (flow == null) {
-                                        flow = Bytes.toFloat(entry.getValue());
-                                    }
-                                    break;
-                                case COLUMN_HIST_SESSION_TIMESTAMP:
-                                    if (timestamp == null) {
-                                        timestamp = Bytes.toLong(entry.getValue());
-                                    }
-                                    break;
-                                case COLUMN_HIST_SESSION_VOLUME:
-                                    volume = Bytes.toFloat(entry.getValue());
-                                    break;
-                                case COLUMN_HIST_SESSION_ENERGY:
-                                    energy = Bytes.toFloat(entry.getValue());
-                                    break;
-                                case COLUMN_HIST_SESSION_DURATION:
-                                    duration = Bytes.toInt(entry.getValue());
-                                    break;
-                                case COLUMN_HIST_SESSION_TEMPERATURE:
-                                    temperature = Bytes.toFloat(entry.getValue());
-                                    break;
-                                case COLUMN_HIST_SESSION_FLOW:
-                                    flow = Bytes.toFloat(entry.getValue());
-                                    break;
-                                default:
-                                    // Ignore
-                                    break;
+            if (filter.getRanking() != null) {
+                // Keep top/bottom-k users only
+                switch (filter.getRanking().getType()) {
+                    case TOP:
+                    case BOTTOM:
+                        EnumDataField field = filter.getRanking().getField();
+                        EnumMetric metric = filter.getRanking().getMetric();
+
+                        for (DataPoint point : series.getPoints()) {
+                            RankingDataPoint ranking = (RankingDataPoint) point;
+
+                            double[] values = new double[ranking.getUsers().size()];
+                            for (int i = 0; i < values.length; i++) {
+                                values[i] = getRankingValue((AmphiroUserDataPoint) ranking.getUsers().get(i), field, metric);
                             }
+
+                            List<UserDataPoint> selected = RankingSelector.select(ranking.getUsers(),
+                                                                                  values,
+                                                                                  filter.getRanking().getType(),
+                                                                                  filter.getRanking().getLimit());
+                            ranking.getUsers().clear();
+                            ranking.getUsers().addAll(selected);
                         }
+                        break;
+                    default:
+                        series.getPoints().clear();
+                        break;
+                }
+            }
+            filterIndex++;
+        }
 
-                        int filterIndex = 0;
-                        for (ExpandedPopulationFilter filter : query.getGroups()) {
-                            GroupDataSeries series = result.get(filterIndex);
-
-                            int index = inArray(filter.getUserKeyHashes(), userHash);
-                            if ((timestamp != null) && (index >= 0)) {
-                                if (filter.getRanking() == null) {
-                                    series.addAmhiroDataPoint(query.getGranularity(),
-                                                              timestamp,
-                                                              volume,
-                                                              energy,
-                                                              duration,
-                                                              temperature,
-                                                              flow,
-                                                              query.getMetrics(),
-                                                              query.getTimezone());
-                                } else {
-                                    series.addAmphiroRankingDataPoint(query.getGranularity(),
-                                                                      filter.getUserKeys().get(index),
-                                                                      filter.getLabels().get(index),
-                                                                      timestamp,
-                                                                      volume,
-                                                                      energy,
-                                                                      duration,
-                                                                      temperature,
-                                                                      flow,
-                                                                      query.getMetrics(),
-                                                                      query.getTimezone());
-                                }
-                            }
+        cleanSeries(query, result);
 
-                            filterIndex++;
-                        }
+        query.getProfile().endPhase(PHASE_RANKING, phaseStart);
+
+        return result;
+    }
+
+    /**
+     * Returns the value of a user data point used for ranking users.
+     *
+     * @param point the user data point.
+     * @param field the ranking field.
+     * @param metric the ranking metric.
+     * @return the ranking value.
+     */
+    private double getRankingValue(AmphiroUserDataPoint point, EnumDataField field, EnumMetric metric) {
+        switch (field) {
+            case VOLUME:
+                return point.getVolume().get(metric);
+            case ENERGY:
+                return point.getEnergy().get(metric);
+            case DURATION:
+                return point.getDuration().get(metric);
+            case TEMPERATURE:
+                return point.getTemperature().get(metric);
+            case FLOW:
+                return point.getFlow().get(metric);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Creates an empty data series for every population group of a query.
+     *
+     * @param query the query.
+     * @return a list of {@link GroupDataSeries}.
+     */
+    private ArrayList<GroupDataSeries> createSeries(ExpandedDataQuery query) {
+        ArrayList<GroupDataSeries> result = new ArrayList<GroupDataSeries>();
+        for (ExpandedPopulationFilter filter : query.getGroups()) {
+            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId(), query.getCalendar()));
+        }
+        return result;
+    }
+
+    /**
+     * Scans a single time partition of the sessions table that is indexed by
+     * time and aggregates the sessions to a new partial data series for every
+     * population group.
+     *
+     * @param query the query.
+     * @param populationIndex the population groups indexed by user key hash.
+     * @param partition the partition to scan.
+     * @param startTime the time interval lower limit.
+     * @param endTime the time interval upper limit.
+     * @return a list of partial {@link GroupDataSeries}.
+     * @throws Exception if the scan fails.
+     */
+    private ArrayList<GroupDataSeries> queryPartition(ExpandedDataQuery query,
+                                                      PopulationHashIndex populationIndex,
+                                                      short partition,
+                                                      long startTime,
+                                                      long endTime) throws Exception {
+        Table table = null;
+        ResultScanner scanner = null;
+
+        ArrayList<GroupDataSeries> result = createSeries(query);
+
+        try {
+            table = connection.getTable(amphiroTableSessionByTime);
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            Scan scan = new Scan();
+            scan.setCaching(scanCacheSize);
+            scan.addFamily(columnFamily);
+
+            byte[] partitionBytes = Bytes.toBytes(partition);
+
+            long from = startTime / 1000;
+            from = from - (from % EnumTimeInterval.DAY.getValue());
+            byte[] fromBytes = Bytes.toBytes(from);
+
+            long to = endTime / 1000;
+            to = to - (to % EnumTimeInterval.DAY.getValue());
+            byte[] toBytes = Bytes.toBytes(to);
+
+            // Scanner row key prefix start
+            byte[] rowKey = new byte[partitionBytes.length + fromBytes.length];
+
+            System.arraycopy(partitionBytes, 0, rowKey, 0, partitionBytes.length);
+            System.arraycopy(fromBytes, 0, rowKey, partitionBytes.length, fromBytes.length);
+
+            scan.setStartRow(rowKey);
+
+            // Scanner row key prefix end
+            rowKey = new byte[partitionBytes.length + toBytes.length];
+
+            System.arraycopy(partitionBytes, 0, rowKey, 0, partitionBytes.length);
+            System.arraycopy(toBytes, 0, rowKey, partitionBytes.length, toBytes.length);
+
+            scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(rowKey));
+
+            scanner = table.getScanner(scan);
+
+            HBaseScanStatistics statistics = new HBaseScanStatistics();
+            statistics.addScan();
+
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                statistics.addRow(r);
+
+                NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
+
+                if (map != null) {
+                    List<PopulationHashIndex.Member> members = populationIndex.get(r.getRow(), 10, 16);
+                    if (members.isEmpty()) {
+                        continue;
                     }
+
+                    aggregateSession(query, members, map, Long.MIN_VALUE, Long.MAX_VALUE, result);
                 }
             }
-        } catch (Exception ex) {
-            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+
+            statistics.addTo(query.getProfile());
         } finally {
             try {
                 if (scanner != null) {
@@ -2588,104 +2811,211 @@ public class HBaseAmphiroRepository extends AbstractAmphiroHBaseRepository imple
             }
         }
 
-        // Post process results
-        int filterIndex = 0;
-        for (final ExpandedPopulationFilter filter : query.getGroups()) {
-            GroupDataSeries series = result.get(filterIndex);
+        return result;
+    }
 
-            if (filter.getRanking() != null) {
-                // Truncate (n-k) users and keep top/bottom-k only
-                for (DataPoint point : series.getPoints()) {
-                    RankingDataPoint ranking = (RankingDataPoint) point;
+    /**
+     * Scans the sessions of a set of users from the table indexed by user and
+     * aggregates the sessions in the time interval to a new partial data
+     * series for every population group. Sessions are ordered by id instead
+     * of time, hence every session of a user is read; the scan is cheaper
+     * than scanning all partitions of the table indexed by time only for small
+     * populations.
+     *
+     * @param query the query.
+     * @param populationIndex the population groups indexed by user key hash.
+     * @param userKeyHashes the user key hashes of the users to scan.
+     * @param startTime the time interval lower limit.
+     * @param endTime the time interval upper limit.
+     * @return a list of partial {@link GroupDataSeries}.
+     * @throws Exception if the scan fails.
+     */
+    private ArrayList<GroupDataSeries> queryUsers(ExpandedDataQuery query,
+                                                  PopulationHashIndex populationIndex,
+                                                  List<byte[]> userKeyHashes,
+                                                  long startTime,
+                                                  long endTime) throws Exception {
+        Table table = null;
+        ResultScanner scanner = null;
 
-                    final EnumDataField field = filter.getRanking().getField();
+        ArrayList<GroupDataSeries> result = createSeries(query);
 
-                    Collections.sort(ranking.getUsers(), new Comparator<UserDataPoint>() {
+        try {
+            table = connection.getTable(amphiroTableSessionByUser);
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
 
-                        @Override
-                        public int compare(UserDataPoint u1, UserDataPoint u2) {
-                            AmphiroUserDataPoint m1 = (AmphiroUserDataPoint) u1;
-                            AmphiroUserDataPoint m2 = (AmphiroUserDataPoint) u2;
-
-                            switch (field) {
-                                case VOLUME:
-                                    if (m1.getVolume().get(filter.getRanking().getMetric()) < m2.getVolume().get(filter.getRanking().getMetric())) {
-                                        return -1;
-                                    }
-                                    if (m1.getVolume().get(filter.getRanking().getMetric()) > m2.getVolume().get(filter.getRanking().getMetric())) {
-                                        return 1;
-                                    }
+            // Select the same sessions as the scans over the table indexed by
+            // time, which is partitioned by day
+            long from = startTime / 1000;
+            from = from - (from % EnumTimeInterval.DAY.getValue());
 
-                                    break;
-                                case ENERGY:
-                                    if (m1.getEnergy().get(filter.getRanking().getMetric()) < m2.getEnergy().get(filter.getRanking().getMetric())) {
-                                        return -1;
-                                    }
-                                    if (m1.getEnergy().get(filter.getRanking().getMetric()) > m2.getEnergy().get(filter.getRanking().getMetric())) {
-                                        return 1;
-                                    }
+            long to = endTime / 1000;
+            to = to - (to % EnumTimeInterval.DAY.getValue());
 
-                                    break;
-                                case DURATION:
-                                    if (m1.getDuration().get(filter.getRanking().getMetric()) < m2.getDuration().get(filter.getRanking().getMetric())) {
-                                        return -1;
-                                    }
-                                    if (m1.getDuration().get(filter.getRanking().getMetric()) > m2.getDuration().get(filter.getRanking().getMetric())) {
-                                        return 1;
-                                    }
+            long lowerTime = from * 1000L;
+            long upperTime = (to + EnumTimeInterval.DAY.getValue()) * 1000L;
 
-                                    break;
-                                case TEMPERATURE:
-                                    if (m1.getTemperature().get(filter.getRanking().getMetric()) < m2.getTemperature().get(filter.getRanking().getMetric())) {
-                                        return -1;
-                                    }
-                                    if (m1.getTemperature().get(filter.getRanking().getMetric()) > m2.getTemperature().get(filter.getRanking().getMetric())) {
-                                        return 1;
-                                    }
+            HBaseScanStatistics statistics = new HBaseScanStatistics();
 
-                                    break;
-                                case FLOW:
-                                    if (m1.getFlow().get(filter.getRanking().getMetric()) < m2.getFlow().get(filter.getRanking().getMetric())) {
-                                        return -1;
-                                    }
-                                    if (m1.getFlow().get(filter.getRanking().getMetric()) > m2.getFlow().get(filter.getRanking().getMetric())) {
-                                        return 1;
-                                    }
+            for (byte[] userKeyHash : userKeyHashes) {
+                List<PopulationHashIndex.Member> members = populationIndex.get(userKeyHash);
 
-                                    break;
-                                default:
-                                    break;
-                            }
-                            return 0;
-                        }
-                    });
+                Scan scan = new Scan();
+                scan.setCaching(scanCacheSize);
+                scan.addFamily(columnFamily);
+                scan.setStartRow(userKeyHash);
+                scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(userKeyHash));
 
-                    int limit = filter.getRanking().getLimit();
-                    switch (filter.getRanking().getType()) {
-                        case TOP:
-                            for (int i = 0, max = ranking.getUsers().size() - limit; i < max; i++) {
-                                ranking.getUsers().remove(0);
-                            }
-                            break;
-                        case BOTTOM:
-                            for (int i = ranking.getUsers().size() - 1, max = limit - 1; i > max; i--) {
-                                ranking.getUsers().remove(i);
-                            }
-                            break;
-                        default:
-                            series.getPoints().clear();
-                            break;
+                scanner = table.getScanner(scan);
+                statistics.addScan();
+
+                for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                    statistics.addRow(r);
+
+                    NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
+
+                    if (map != null) {
+                        aggregateSession(query, members, map, lowerTime, upperTime, result);
                     }
                 }
+
+                scanner.close();
+                scanner = null;
             }
-            filterIndex++;
-        }
 
-        cleanSeries(query, result);
+            statistics.addTo(query.getProfile());
+        } finally {
+            try {
+                if (scanner != null) {
+                    scanner.close();
+                    scanner = null;
+                }
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
 
         return result;
     }
 
+    /**
+     * Decodes the columns of a session row and adds the session to the
+     * partial data series of the population groups of the session owner.
+     * Sessions outside the given time interval are ignored.
+     *
+     * @param query the query.
+     * @param members the population group members of the session owner.
+     * @param map the session row columns.
+     * @param lowerTime the time interval lower limit, inclusive.
+     * @param upperTime the time interval upper limit, exclusive.
+     * @param result the partial data series.
+     */
+    private void aggregateSession(ExpandedDataQuery query,
+                                  List<PopulationHashIndex.Member> members,
+                                  NavigableMap<byte[], byte[]> map,
+                                  long lowerTime,
+                                  long upperTime,
+                                  ArrayList<GroupDataSeries> result) {
+        Long timestamp = null;
+        Integer duration = null;
+        Float volume = null, energy = null, temperature = null, flow = null;
+
+        for (Entry<byte[], byte[]> entry : map.entrySet()) {
+            String qualifier = Bytes.toString(entry.getKey());
+
+            // Always the historical values override the
+            // real-time ones except for the timestamp
+            switch (getSessionColumn(qualifier, false)) {
+                case COLUMN_RT_SESSION_TIMESTAMP:
+                    timestamp = Bytes.toLong(entry.getValue());
+                    break;
+                case COLUMN_RT_SESSION_VOLUME:
+                    if (volume == null) {
+                        volume = Bytes.toFloat(entry.getValue());
+                    }
+                    break;
+                case COLUMN_RT_SESSION_ENERGY:
+                    if (energy == null) {
+                        energy = Bytes.toFloat(entry.getValue());
+                    }
+                    break;
+                case COLUMN_RT_SESSION_DURATION:
+                    if (duration == null) {
+                        duration = Bytes.toInt(entry.getValue());
+                    }
+                    break;
+                case COLUMN_RT_SESSION_TEMPERATURE:
+                    if (temperature == null) {
+                        temperature = Bytes.toFloat(entry.getValue());
+                    }
+                    break;
+                case COLUMN_RT_SESSION_FLOW:
+                    if (flow == null) {
+                        flow = Bytes.toFloat(entry.getValue());
+                    }
+                    break;
+                case COLUMN_HIST_SESSION_TIMESTAMP:
+                    if (timestamp == null) {
+                        timestamp = Bytes.toLong(entry.getValue());
+                    }
+                    break;
+                case COLUMN_HIST_SESSION_VOLUME:
+                    volume = Bytes.toFloat(entry.getValue());
+                    break;
+                case COLUMN_HIST_SESSION_ENERGY:
+                    energy = Bytes.toFloat(entry.getValue());
+                    break;
+                case COLUMN_HIST_SESSION_DURATION:
+                    duration = Bytes.toInt(entry.getValue());
+                    break;
+                case COLUMN_HIST_SESSION_TEMPERATURE:
+                    temperature = Bytes.toFloat(entry.getValue());
+                    break;
+                case COLUMN_HIST_SESSION_FLOW:
+                    flow = Bytes.toFloat(entry.getValue());
+                    break;
+                default:
+                    // Ignore
+                    break;
+            }
+        }
+
+        if ((timestamp != null) && (timestamp >= lowerTime) && (timestamp < upperTime)) {
+            for (PopulationHashIndex.Member member : members) {
+                ExpandedPopulationFilter filter = query.getGroups().get(member.getGroup());
+                GroupDataSeries series = result.get(member.getGroup());
+
+                if (filter.getRanking() == null) {
+                    series.addAmhiroDataPoint(query.getGranularity(),
+                                              timestamp,
+                                              volume,
+                                              energy,
+                                              duration,
+                                              temperature,
+                                              flow,
+                                              query.getMetrics(),
+                                              query.getTimezone());
+                } else {
+                    series.addAmphiroRankingDataPoint(query.getGranularity(),
+                                                      filter.getUserKeys().get(member.getIndex()),
+                                                      filter.getLabels().get(member.getIndex()),
+                                                      timestamp,
+                                                      volume,
+                                                      energy,
+                                                      duration,
+                                                      temperature,
+                                                      flow,
+                                                      query.getMetrics(),
+                                                      query.getTimezone());
+                }
+            }
+        }
+    }
+
     /**
      * Removes metrics from a result that are not supported by the query.
      *
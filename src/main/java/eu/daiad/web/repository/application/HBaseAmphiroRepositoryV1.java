@@ -1212,7 +1212,7 @@ public class HBaseAmphiroRepositoryV1 extends AbstractAmphiroHBaseRepository imp
 
         ArrayList<GroupDataSeries> result = new ArrayList<GroupDataSeries>();
         for (ExpandedPopulationFilter filter : query.getGroups()) {
-            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId()));
+            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId(), query.getCalendar()));
         }
         try {
             table = connection.getTable(amphiroTableSessionByTime);
@@ -731,6 +731,17 @@ public class HBaseAmphiroRepositoryV2 extends AbstractAmphiroHBaseRepository imp
         }
     }
 
+    @Override
+    public void validate(AuthenticatedUser user, AmphiroDevice device, AmphiroMeasurementCollection data) throws ApplicationException {
+        try {
+            if ((data != null) && (data.getSessions() != null) && (data.getSessions().size() != 0)) {
+                preProcessData(data);
+            }
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+    }
+
     @Override
     public AmphiroSessionUpdateCollection store(AuthenticatedUser user, AmphiroDevice device,
                                                 AmphiroMeasurementCollection data) throws ApplicationException {
@@ -1358,7 +1369,7 @@ public class HBaseAmphiroRepositoryV2 extends AbstractAmphiroHBaseRepository imp
 
         ArrayList<GroupDataSeries> result = new ArrayList<GroupDataSeries>();
         for (ExpandedPopulationFilter filter : query.getGroups()) {
-            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId()));
+            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId(), query.getCalendar()));
         }
         try {
             table = connection.getTable(amphiroTableSessionByTime);
@@ -1,12 +1,13 @@
 package eu.daiad.web.repository.application;
 
-import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,6 +22,7 @@ import org.springframework.stereotype.Repository;
 
 import eu.daiad.web.hbase.EnumHBaseColumnFamily;
 import eu.daiad.web.hbase.EnumHBaseTable;
+import eu.daiad.web.hbase.HBaseScanStatistics;
 import eu.daiad.web.model.error.ApplicationException;
 import eu.daiad.web.model.error.DataErrorCode;
 import eu.daiad.web.model.error.SharedErrorCode;
@@ -33,6 +35,7 @@ import eu.daiad.web.model.query.ExpandedPopulationFilter;
 import eu.daiad.web.model.query.GroupDataSeries;
 import eu.daiad.web.model.query.MeterDataPoint;
 import eu.daiad.web.model.query.MeterUserDataPoint;
+import eu.daiad.web.model.query.QueryExecutionProfile;
 import eu.daiad.web.model.query.RankingDataPoint;
 import eu.daiad.web.model.query.UserDataPoint;
 
@@ -44,6 +47,13 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
      */
     private static final Log logger = LogFactory.getLog(HBaseMeterAggregateDataRepository.class);
 
+    /**
+     * Execution profile phases of pre-aggregated smart water meter queries.
+     */
+    private static final String PHASE_SCAN = "meter." + QueryExecutionProfile.PHASE_SCAN;
+
+    private static final String PHASE_RANKING = "meter." + QueryExecutionProfile.PHASE_RANKING;
+
     public HBaseMeterAggregateDataRepository() {
         interval = EnumTimeInterval.HOUR;
     }
@@ -56,8 +66,13 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
      * @throws ApplicationException if an error occurs or query validation fails.
      */
     @Override
-    public List<GroupDataSeries> query(ExpandedDataQuery query) throws ApplicationException {
+    public List<GroupDataSeries> query(final ExpandedDataQuery query) throws ApplicationException {
+        long phaseStart = System.currentTimeMillis();
+
+        final HBaseScanStatistics statistics = new HBaseScanStatistics();
+
         Table detailTable = null;
+        Table dailyTable = null;
         Table aggregateTable = null;
 
         ResultScanner scanner = null;
@@ -67,6 +82,7 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
             MessageDigest md = MessageDigest.getInstance("MD5");
 
             detailTable = connection.getTable(EnumHBaseTable.SWM_USER.getValue());
+            dailyTable = connection.getTable(EnumHBaseTable.SWM_DAILY.getValue());
             aggregateTable = connection.getTable(EnumHBaseTable.SWM_AGGREGATE.getValue());
 
             byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
@@ -128,69 +144,89 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
             }
 
             for (ExpandedPopulationFilter filter : query.getGroups()) {
-                GroupDataSeries series = new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId());
+                final GroupDataSeries series = new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId(), query.getCalendar());
 
                 if(filter.getType() == EnumPopulationFilterType.USER) {
-                    for (int index = 0, count = filter.getSerialHashes().size(); index < count; index++) {
-                        Scan scan = new Scan();
-                        scan.setCaching(scanCacheSize);
-                        scan.addFamily(columnFamily);
-
-                        scan.setStartRow(createMeterRowKey(filter.getSerialHashes().get(index), endDate.getMillis()));
-                        scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(createMeterRowKey(filter.getSerialHashes().get(index), startDate.getMillis())));
-
-                        scanner = detailTable.getScanner(scan);
+                    int rollupCount = 0;
 
-                        for (Result r = scanner.next(); r != null; r = scanner.next()) {
-                            NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
-
-                            long timeBucket = Bytes.toLong(Arrays.copyOfRange(r.getRow(), 16, 24));
-
-                            Float volume = null, difference = null;
-
-                            for (Entry<byte[], byte[]> entry : map.entrySet()) {
-                                short offset = Bytes.toShort(Arrays.copyOfRange(entry.getKey(), 0, 2));
-                                long timestamp = ((Long.MAX_VALUE / 1000L) - (timeBucket + (long) offset)) * 1000L;
-
-                                if ((startDate.getMillis() <= timestamp) && (timestamp <= endDate.getMillis())) {
-                                    int length = (int) Arrays.copyOfRange(entry.getKey(), 2, 3)[0];
-                                    byte[] slice = Arrays.copyOfRange(entry.getKey(), 3, 3 + length);
-
-                                    String columnQualifier = Bytes.toString(slice);
-                                    if (columnQualifier.equals("v")) {
-                                        volume = Bytes.toFloat(entry.getValue());
-                                    }
-                                    if (columnQualifier.equals("d")) {
-                                        difference = Bytes.toFloat(entry.getValue());
-                                    }
+                    for (int index = 0, count = filter.getSerialHashes().size(); index < count; index++) {
+                        final UUID userKey = filter.getUserKeys().get(index);
+                        final String label = filter.getLabels().get(index);
+
+                        MeterDailyRollup.Callback callback = new MeterDailyRollup.Callback() {
+
+                            @Override
+                            public boolean onReading(byte[] row, int serialHashOffset, long timestamp, float volume, float difference) {
+                                series.addMeterRankingDataPoint(
+                                    query.getGranularity(),
+                                    userKey,
+                                    label,
+                                    timestamp,
+                                    difference,
+                                    volume,
+                                    query.getMetrics(),
+                                    query.getTimezone());
+                                return true;
+                            }
 
-                                    if ((difference != null) && (volume != null)) {
-                                        series.addMeterRankingDataPoint(
-                                            query.getGranularity(),
-                                            filter.getUserKeys().get(index),
-                                            filter.getLabels().get(index),
-                                            timestamp,
-                                            difference,
-                                            volume,
-                                            query.getMetrics(),
-                                            query.getTimezone());
-
-                                        volume = difference = null;
-                                    }
+                            @Override
+                            public void onRollup(byte[] serialHash, MeterDailyRollup rollup) {
+                                series.addMeterRankingRollup(
+                                    query.getGranularity(),
+                                    userKey,
+                                    label,
+                                    rollup.getStart(),
+                                    rollup.getCount(),
+                                    rollup.getDifference(),
+                                    rollup.getMin(),
+                                    rollup.getMax(),
+                                    query.getMetrics(),
+                                    query.getTimezone());
+                            }
 
-                                }
+                            @Override
+                            public HBaseScanStatistics getStatistics() {
+                                return statistics;
                             }
-                        }
-                        if (scanner != null) {
-                            scanner.close();
-                            scanner = null;
-                        }
+                        };
+
+                        rollupCount += scanMeter(dailyTable,
+                                                 detailTable,
+                                                 columnFamily,
+                                                 filter.getSerialHashes().get(index),
+                                                 query.getGranularity(),
+                                                 query.getTimezone(),
+                                                 startDate.getMillis(),
+                                                 endDate.getMillis(),
+                                                 callback);
+                    }
+                    if (rollupCount > 0) {
+                        query.addPlan(String.format("%s: %d daily rollups", EnumHBaseTable.SWM_DAILY.getValue(), rollupCount));
                     }
                     flatProjectSeries(query, filter, series);
                 } else {
                     Scan scan = new Scan();
                     scan.setCaching(scanCacheSize);
-                    scan.addFamily(columnFamily);
+                    if (filter.getRanking() == null) {
+                        scan.addFamily(columnFamily);
+                    } else {
+                        // Fetch only the cell of the requested ranking type. The
+                        // sum column is also fetched so that every time bucket
+                        // still returns a row
+                        scan.addColumn(columnFamily, AGGREGATE_SUM_QUALIFIER);
+
+                        switch (filter.getRanking().getType()) {
+                            case TOP:
+                                scan.addColumn(columnFamily, RANKING_TOP_QUALIFIER);
+                                break;
+                            case BOTTOM:
+                                scan.addColumn(columnFamily, RANKING_BOTTOM_QUALIFIER);
+                                break;
+                            default:
+                                scan.addFamily(columnFamily);
+                                break;
+                        }
+                    }
 
                     Long from = unixTimestampToLong(startDate.getMillis(), query.getTimezone(), query.getGranularity());
                     Long to = unixTimestampToLong(endDate.getMillis(), query.getTimezone(), query.getGranularity());
@@ -202,8 +238,11 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
                     scan.setStopRow(rowKey);
 
                     scanner = aggregateTable.getScanner(scan);
+                    statistics.addScan();
 
                     for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                        statistics.addRow(r);
+
                         NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
 
                         // The row key has the form [MD5 Hash(16), Aggregation Level(1), Time(8)]
@@ -262,7 +301,7 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
                                                 rankingDataPoint.getUsers().addAll(
                                                     parseMeterUserDataPoints(filter.getRanking().getType(),
                                                                              timestamp,
-                                                                             new String(entry.getValue(), StandardCharsets.UTF_8),
+                                                                             entry.getValue(),
                                                                              filter.getRanking().getLimit()));
                                             }
                                             break;
@@ -271,7 +310,7 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
                                                 rankingDataPoint.getUsers().addAll(
                                                     parseMeterUserDataPoints(filter.getRanking().getType(),
                                                                              timestamp,
-                                                                             new String(entry.getValue(), StandardCharsets.UTF_8),
+                                                                             entry.getValue(),
                                                                              filter.getRanking().getLimit()));
                                             }
                                             break;
@@ -287,6 +326,8 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
                 }
                 result.add(series);
             }
+
+            statistics.addTo(query.getProfile());
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
         } finally {
@@ -299,6 +340,10 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
                     detailTable.close();
                     detailTable = null;
                 }
+                if (dailyTable != null) {
+                    dailyTable.close();
+                    dailyTable = null;
+                }
                 if (aggregateTable != null) {
                     aggregateTable.close();
                     aggregateTable = null;
@@ -308,11 +353,28 @@ public class HBaseMeterAggregateDataRepository  extends AbstractHBaseMeterAggreg
             }
         }
 
+        phaseStart = query.getProfile().endPhase(PHASE_SCAN, phaseStart);
+
         cleanSeries(query, result);
 
+        query.getProfile().endPhase(PHASE_RANKING, phaseStart);
+
         return result;
     }
 
+    /**
+     * Converts the top-k/bottom-k cells stored using the legacy text format to
+     * the binary format. Cells converted before a stop request are persisted.
+     *
+     * @param stopped flag set when the conversion must stop.
+     * @return the number of converted cells.
+     * @throws ApplicationException if an error occurs or the conversion is stopped.
+     */
+    @Override
+    public long convertRankingCells(AtomicBoolean stopped) throws ApplicationException {
+        return convertRankingCells(EnumHBaseTable.SWM_AGGREGATE.getValue(), stopped);
+    }
+
     private void cleanSeries(ExpandedDataQuery query, List<GroupDataSeries> result) {
         int filterIndex = 0;
         for (final ExpandedPopulationFilter filter : query.getGroups()) {
@@ -0,0 +1,339 @@
+package eu.daiad.web.repository.application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import eu.daiad.web.hbase.EnumHBaseColumnFamily;
+import eu.daiad.web.hbase.EnumHBaseTable;
+import eu.daiad.web.hbase.HBaseBufferedWriter.MutationFailureListener;
+import eu.daiad.web.hbase.RankingCellCodec;
+import eu.daiad.web.model.EnumTimeAggregation;
+import eu.daiad.web.model.error.ApplicationException;
+import eu.daiad.web.model.error.SharedErrorCode;
+import eu.daiad.web.model.meter.MeterAggregate;
+import eu.daiad.web.model.meter.MeterAggregationGroup;
+import eu.daiad.web.service.DataQueryCache;
+
+@Repository()
+public class HBaseMeterAggregationRepository extends AbstractHBaseMeterAggregateDataRepository implements IMeterAggregationRepository {
+
+    /**
+     * Logger instance for writing events using the configured logging API.
+     */
+    private static final Log logger = LogFactory.getLog(HBaseMeterAggregationRepository.class);
+
+    /**
+     * Row key of the smart water meter data aggregation state.
+     */
+    private static final byte[] STATE_ROW_KEY = Bytes.toBytes("meter-data");
+
+    /**
+     * Column qualifier of the aggregation watermark.
+     */
+    private static final byte[] WATERMARK_QUALIFIER = Bytes.toBytes("w");
+
+    private static final byte[] MIN_QUALIFIER = Bytes.toBytes("min");
+
+    private static final byte[] MAX_QUALIFIER = Bytes.toBytes("max");
+
+    private static final byte[] AVERAGE_QUALIFIER = Bytes.toBytes("avg");
+
+    private static final byte[] COUNT_QUALIFIER = Bytes.toBytes("cnt");
+
+    /**
+     * Number of aggregates that have failed to be persisted since the last
+     * flush.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Cache of data query results invalidated by stored aggregates.
+     */
+    @Autowired
+    private DataQueryCache dataQueryCache;
+
+    /**
+     * Listener for counting aggregates that have failed to be persisted.
+     */
+    private final MutationFailureListener listener = new MutationFailureListener() {
+
+        @Override
+        public void onFailure(String tableName, Row row, Throwable cause) {
+            failed.incrementAndGet();
+        }
+    };
+
+    public HBaseMeterAggregationRepository() {
+        interval = EnumTimeInterval.HOUR;
+    }
+
+    @Override
+    public long getWatermark() throws ApplicationException {
+        Table table = null;
+
+        try {
+            table = connection.getTable(EnumHBaseTable.SWM_AGGREGATE_STATE.getValue());
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            Get get = new Get(STATE_ROW_KEY);
+            get.addColumn(columnFamily, WATERMARK_QUALIFIER);
+
+            byte[] value = table.get(get).getValue(columnFamily, WATERMARK_QUALIFIER);
+
+            return (value == null ? 0L : Bytes.toLong(value));
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        } finally {
+            try {
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+    }
+
+    @Override
+    public void setWatermark(long timestamp) throws ApplicationException {
+        Table table = null;
+
+        try {
+            table = connection.getTable(EnumHBaseTable.SWM_AGGREGATE_STATE.getValue());
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            Put put = new Put(STATE_ROW_KEY);
+            put.addColumn(columnFamily, WATERMARK_QUALIFIER, Bytes.toBytes(timestamp));
+
+            table.put(put);
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        } finally {
+            try {
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+    }
+
+    /**
+     * Finds the changed smart water meters by scanning all partitions of the
+     * {@link EnumHBaseTable#SWM_TIME} table for cells written during the given
+     * time interval. The region servers skip any store file whose time range
+     * does not overlap the interval and return only keys.
+     */
+    @Override
+    public Map<ByteBuffer, long[]> getChangedMeters(final long startTime, final long endTime) throws ApplicationException {
+        Map<ByteBuffer, long[]> result = new HashMap<ByteBuffer, long[]>();
+
+        try {
+            List<Callable<Map<ByteBuffer, long[]>>> tasks = new ArrayList<Callable<Map<ByteBuffer, long[]>>>();
+
+            for (short p = 0; p < timePartitions; p++) {
+                final short partition = p;
+
+                tasks.add(new Callable<Map<ByteBuffer, long[]>>() {
+
+                    @Override
+                    public Map<ByteBuffer, long[]> call() throws Exception {
+                        return getChangedMeters(partition, startTime, endTime);
+                    }
+                });
+            }
+
+            for (Map<ByteBuffer, long[]> partial : scanExecutor.invokeAll(tasks)) {
+                for (Map.Entry<ByteBuffer, long[]> entry : partial.entrySet()) {
+                    updateInterval(result, entry.getKey(), entry.getValue()[0]);
+                    updateInterval(result, entry.getKey(), entry.getValue()[1]);
+                }
+            }
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+
+        return result;
+    }
+
+    private Map<ByteBuffer, long[]> getChangedMeters(short partition, long startTime, long endTime) throws Exception {
+        Map<ByteBuffer, long[]> result = new HashMap<ByteBuffer, long[]>();
+
+        Table table = null;
+        ResultScanner scanner = null;
+
+        try {
+            table = connection.getTable(EnumHBaseTable.SWM_TIME.getValue());
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            byte[] prefix = Bytes.toBytes(partition);
+
+            Scan scan = new Scan();
+            scan.setCaching(scanCacheSize);
+            scan.addFamily(columnFamily);
+            scan.setTimeRange(startTime, endTime);
+            scan.setFilter(new KeyOnlyFilter());
+            scan.setStartRow(prefix);
+            scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(prefix));
+
+            scanner = table.getScanner(scan);
+
+            // The row key has the form [Partition(2), Time Bucket(8), MD5 Hash(16)]
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                Cell[] cells = r.rawCells();
+                if ((cells == null) || (cells.length == 0)) {
+                    continue;
+                }
+
+                byte[] row = r.getRow();
+                long timeBucket = Bytes.toLong(row, 2);
+                ByteBuffer serialHash = ByteBuffer.wrap(Arrays.copyOfRange(row, 10, 26));
+
+                for (Cell cell : cells) {
+                    short offset = Bytes.toShort(cell.getQualifierArray(), cell.getQualifierOffset());
+                    long timestamp = ((Long.MAX_VALUE / 1000L) - (timeBucket + (long) offset)) * 1000L;
+
+                    updateInterval(result, serialHash, timestamp);
+                }
+            }
+        } finally {
+            try {
+                if (scanner != null) {
+                    scanner.close();
+                    scanner = null;
+                }
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+
+        return result;
+    }
+
+    private void updateInterval(Map<ByteBuffer, long[]> intervals, ByteBuffer serialHash, long timestamp) {
+        long[] interval = intervals.get(serialHash);
+        if (interval == null) {
+            intervals.put(serialHash, new long[] { timestamp, timestamp });
+        } else {
+            interval[0] = Math.min(interval[0], timestamp);
+            interval[1] = Math.max(interval[1], timestamp);
+        }
+    }
+
+    @Override
+    public void readMeter(byte[] serialHash, long startTime, long endTime, MeterRowDecoder.Callback callback) throws ApplicationException {
+        Table table = null;
+        ResultScanner scanner = null;
+
+        try {
+            table = connection.getTable(EnumHBaseTable.SWM_USER.getValue());
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            Scan scan = new Scan();
+            scan.setCaching(scanCacheSize);
+            scan.addFamily(columnFamily);
+            scan.setStartRow(createMeterRowKey(serialHash, endTime));
+            scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(createMeterRowKey(serialHash, startTime)));
+
+            scanner = table.getScanner(scan);
+
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                if (!MeterRowDecoder.decode(r, columnFamily, 16, 0, startTime, endTime, callback)) {
+                    break;
+                }
+            }
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        } finally {
+            try {
+                if (scanner != null) {
+                    scanner.close();
+                    scanner = null;
+                }
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+    }
+
+    @Override
+    public void store(MeterAggregationGroup group, EnumTimeAggregation granularity, long timestamp, MeterAggregate aggregate) throws ApplicationException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            long time = unixTimestampToLong(timestamp, group.getTimezone(), granularity);
+
+            Put put = new Put(createAggregateRowKey(md, group.getGroupKey(), group.getAreaKey(), granularity, time));
+
+            put.addColumn(columnFamily, AGGREGATE_SUM_QUALIFIER, Bytes.toBytes((float) aggregate.getSum()));
+            put.addColumn(columnFamily, MIN_QUALIFIER, Bytes.toBytes((float) aggregate.getMin()));
+            put.addColumn(columnFamily, MAX_QUALIFIER, Bytes.toBytes((float) aggregate.getMax()));
+            put.addColumn(columnFamily, AVERAGE_QUALIFIER, Bytes.toBytes((float) aggregate.getAverage()));
+            put.addColumn(columnFamily, COUNT_QUALIFIER, Bytes.toBytes(aggregate.getCount()));
+
+            if (!aggregate.getTop().isEmpty()) {
+                put.addColumn(columnFamily, RANKING_TOP_QUALIFIER, RankingCellCodec.encode(aggregate.getTop()));
+            }
+            if (!aggregate.getBottom().isEmpty()) {
+                put.addColumn(columnFamily, RANKING_BOTTOM_QUALIFIER, RankingCellCodec.encode(aggregate.getBottom()));
+            }
+
+            writer.write(EnumHBaseTable.SWM_AGGREGATE.getValue(), Arrays.asList(put), listener);
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+    }
+
+    @Override
+    public void flush() throws ApplicationException {
+        try {
+            writer.flush(EnumHBaseTable.SWM_AGGREGATE.getValue());
+
+            dataQueryCache.invalidatePreAggregated();
+
+            long count = failed.getAndSet(0);
+            if (count > 0) {
+                throw new IOException(String.format("Failed to store %d aggregates.", count));
+            }
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+    }
+
+}
@@ -1,29 +1,57 @@
 package eu.daiad.web.repository.application;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Map.Entry;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 import eu.daiad.web.hbase.EnumHBaseColumnFamily;
 import eu.daiad.web.hbase.EnumHBaseTable;
+import eu.daiad.web.hbase.HBaseBufferedWriter;
+import eu.daiad.web.hbase.HBaseScanStatistics;
+import eu.daiad.web.model.EnumTimeAggregation;
 import eu.daiad.web.model.TemporalConstants;
 import eu.daiad.web.model.error.ApplicationException;
 import eu.daiad.web.model.error.DataErrorCode;
@@ -42,23 +70,117 @@ import eu.daiad.web.model.query.ExpandedDataQuery;
 import eu.daiad.web.model.query.ExpandedPopulationFilter;
 import eu.daiad.web.model.query.GroupDataSeries;
 import eu.daiad.web.model.query.MeterUserDataPoint;
+import eu.daiad.web.model.query.PopulationHashIndex;
+import eu.daiad.web.model.query.QueryExecutionProfile;
 import eu.daiad.web.model.query.RankingDataPoint;
+import eu.daiad.web.model.query.TimeBucketCalendar;
 import eu.daiad.web.model.query.UserDataPoint;
+import eu.daiad.web.service.DataQueryCache;
 
 @Repository()
-public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository implements IMeterDataRepository {
+public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository implements IMeterDataRepository, InitializingBean, DisposableBean {
 
     /**
      * Logger instance for writing events using the configured logging API.
      */
     private static final Log logger = LogFactory.getLog(HBaseMeterDataRepository.class);
 
+    /**
+     * Column qualifier of the most recent volume in the {@link EnumHBaseTable#SWM_LATEST} table.
+     */
+    private static final byte[] LATEST_VOLUME_QUALIFIER = Bytes.toBytes("v");
+
+    /**
+     * Execution profile phases of smart water meter queries.
+     */
+    private static final String PHASE_SCAN = "meter." + QueryExecutionProfile.PHASE_SCAN;
+
+    private static final String PHASE_RANKING = "meter." + QueryExecutionProfile.PHASE_RANKING;
+
+    /**
+     * Days of the stored readings whose rollup markers must be set to ready by
+     * the next flush, indexed by the serial number hash of the meter. Every day
+     * is mapped to the value of the pending marker written by the store
+     * operation.
+     */
+    private final Map<ByteBuffer, Map<Long, byte[]>> pendingRollups = new HashMap<ByteBuffer, Map<Long, byte[]>>();
+
+    /**
+     * Days whose daily rollups must be recomputed by the rollup worker indexed
+     * by the serial number hash of the meter.
+     */
+    private final Map<ByteBuffer, Set<Long>> readyRollups = new HashMap<ByteBuffer, Set<Long>>();
+
+    /**
+     * True if a rollup update has been submitted to the rollup worker and has
+     * not started yet.
+     */
+    private final AtomicBoolean rollupUpdateScheduled = new AtomicBoolean(false);
+
+    /**
+     * Most recent readings of the store operations that must be written to the
+     * {@link EnumHBaseTable#SWM_LATEST} table by the next flush.
+     */
+    private final List<LatestReadingCandidates> pendingLatestReadings = new ArrayList<LatestReadingCandidates>();
+
+    /**
+     * Time in milliseconds after which a pending rollup marker is repaired by
+     * {@link HBaseMeterDataRepository#repairDailyRollups(AtomicBoolean)} even
+     * though it has never been set to ready. Such a marker is left by a store
+     * operation whose readings have not been flushed, e.g. because the
+     * application has stopped.
+     */
+    @Value("${hbase.data.rollup.pending.timeout:3600000}")
+    private long pendingRollupTimeout;
+
+    /**
+     * Cache of data query results invalidated by stored readings.
+     */
+    @Autowired
+    private DataQueryCache dataQueryCache;
+
+    /**
+     * Worker that recomputes daily rollups outside of the flush operations.
+     */
+    private ExecutorService rollupExecutor;
+
     public HBaseMeterDataRepository() {
         interval = EnumTimeInterval.HOUR;
     }
 
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        rollupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "meter-daily-rollup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (rollupExecutor != null) {
+            rollupExecutor.shutdown();
+            // Days that are not recomputed keep their markers and are repaired
+            // by the rollup repair job
+            if (!rollupExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                rollupExecutor.shutdownNow();
+            }
+            rollupExecutor = null;
+        }
+    }
+
     /**
-     * Stores a collection of smart water meter readings to HBase.
+     * Stores a collection of smart water meter readings to HBase. Readings are
+     * buffered by {@link HBaseBufferedWriter} and are durable only after
+     * {@link HBaseMeterDataRepository#flush()} returns. Before any reading is
+     * buffered, the days of the readings are marked as dirty in the
+     * {@link EnumHBaseTable#SWM_DAILY} table; queries ignore the daily rollups
+     * of marked days.
      *
      * @param serial the smart water meter unique serial number.
      * @param data a collection of {@link WaterMeterMeasurement}.
@@ -120,8 +242,18 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
                 }
             }
 
-            storeDataByMeter(serial, data);
-            storeDataByTime(serial, data);
+            MessageDigest md = MessageDigest.getInstance("MD5");
+
+            byte[] meterSerialHash = md.digest(serial.getBytes("UTF-8"));
+
+            Map<Long, byte[]> markers = markRollups(meterSerialHash, data);
+
+            MeasurementFailureListener listener = new MeasurementFailureListener(serial, stats);
+
+            List<Put> puts = storeDataByMeter(serial, data, listener);
+            storeDataByTime(serial, data, listener);
+            registerLatestReading(serial, data, puts, listener);
+            registerRollups(ByteBuffer.wrap(meterSerialHash), markers, true);
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
         }
@@ -130,16 +262,603 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
     }
 
     /**
-     * Stores smart water meter data indexed by serial number.
+     * Flushes all buffered smart water meter readings. When the method returns,
+     * every reading stored before the invocation is either persisted or
+     * reported as failed to the {@link MeterDataStoreStats} returned by the
+     * corresponding {@link HBaseMeterDataRepository#store} invocation. The
+     * most recent reading of every meter is written to the
+     * {@link EnumHBaseTable#SWM_LATEST} table only after its reading has been
+     * persisted to the {@link EnumHBaseTable#SWM_USER} table. Then the markers
+     * of the days with stored readings are set to ready and the daily rollups
+     * of these days are recomputed asynchronously. Finally, cached query
+     * results for the same days are invalidated.
+     */
+    @Override
+    public void flush() {
+        Map<ByteBuffer, Map<Long, byte[]>> rollups;
+        synchronized (pendingRollups) {
+            rollups = new HashMap<ByteBuffer, Map<Long, byte[]>>(pendingRollups);
+            pendingRollups.clear();
+        }
+
+        List<LatestReadingCandidates> latest;
+        synchronized (pendingLatestReadings) {
+            latest = new ArrayList<LatestReadingCandidates>(pendingLatestReadings);
+            pendingLatestReadings.clear();
+        }
+
+        boolean persisted = false;
+
+        try {
+            try {
+                writer.flush(EnumHBaseTable.SWM_USER.getValue());
+                writer.flush(EnumHBaseTable.SWM_TIME.getValue());
+                persisted = true;
+
+                storeLatestReadings(latest);
+                latest.clear();
+
+                writer.flush(EnumHBaseTable.SWM_LATEST.getValue());
+            } catch (Exception ex) {
+                throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+            } finally {
+                // Readings whose state is unknown are checked by the next flush
+                if (!latest.isEmpty()) {
+                    synchronized (pendingLatestReadings) {
+                        pendingLatestReadings.addAll(0, latest);
+                    }
+                }
+                if (!persisted) {
+                    for (Map.Entry<ByteBuffer, Map<Long, byte[]>> entry : rollups.entrySet()) {
+                        registerRollups(entry.getKey(), entry.getValue(), false);
+                    }
+                }
+            }
+
+            try {
+                scheduleRollupUpdate(markRollupsReady(rollups));
+            } catch (Exception ex) {
+                // Readings are already persisted; marked days are read from
+                // the raw readings until the rollup repair job recomputes them
+                logger.error("Failed to schedule smart water meter daily rollup updates.", ex);
+            }
+        } finally {
+            // Queries read the raw readings of marked days
+            DateTimeZone timezone = getRollupTimezone();
+
+            for (Map.Entry<ByteBuffer, Map<Long, byte[]>> entry : rollups.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+
+                long start = Collections.min(entry.getValue().keySet());
+                long end = new DateTime(Collections.max(entry.getValue().keySet()), timezone).plusDays(1).withTimeAtStartOfDay().getMillis();
+
+                dataQueryCache.invalidateMeter(entry.getKey().array(), start, end);
+            }
+        }
+    }
+
+    /**
+     * Marks the days of a collection of readings as dirty. The markers are
+     * written synchronously before any reading is submitted; hence the daily
+     * rollup of a day is never used once any new reading of the day may have
+     * been persisted.
      *
-     * @param serial the smart water meter data unique serial number.
+     * @param serialHash the MD5 hash of the serial number.
      * @param data a collection of {@link WaterMeterMeasurement}.
+     * @return the value of the pending marker of every day.
+     * @throws Exception if the markers cannot be written.
      */
-    private void storeDataByMeter(String serial, WaterMeterMeasurementCollection data) {
+    private Map<Long, byte[]> markRollups(byte[] serialHash, WaterMeterMeasurementCollection data) throws Exception {
+        Map<Long, byte[]> markers = new HashMap<Long, byte[]>();
+        Map<ByteBuffer, Put> puts = new LinkedHashMap<ByteBuffer, Put>();
+
+        byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+        DateTimeZone timezone = getRollupTimezone();
+
+        for (WaterMeterMeasurement m : data.getMeasurements()) {
+            if (m.getVolume() < 0) {
+                continue;
+            }
+
+            long day = new DateTime(m.getTimestamp(), timezone).withTimeAtStartOfDay().getMillis();
+            if (markers.containsKey(day)) {
+                continue;
+            }
+
+            byte[] value = MeterDailyRollup.createMarkerValue(MeterDailyRollup.MARKER_PENDING);
+            markers.put(day, value);
+
+            // Markers of the days of the same month share a row
+            ByteBuffer rowKey = ByteBuffer.wrap(MeterDailyRollup.createRowKey(serialHash, day, timezone));
+
+            Put p = puts.get(rowKey);
+            if (p == null) {
+                p = new Put(rowKey.array());
+                puts.put(rowKey, p);
+            }
+            p.addColumn(columnFamily, MeterDailyRollup.createMarkerQualifier(day), value);
+        }
+
+        if (puts.isEmpty()) {
+            return markers;
+        }
+
         Table table = null;
+
         try {
-            table = connection.getTable(EnumHBaseTable.SWM_USER.getValue());
+            table = connection.getTable(EnumHBaseTable.SWM_DAILY.getValue());
+
+            table.put(new ArrayList<Put>(puts.values()));
+        } finally {
+            try {
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+
+        return markers;
+    }
+
+    /**
+     * Registers the pending markers of a store operation. A store operation
+     * replaces the registered value of a day since its marker has overwritten
+     * the marker of any previous store operation. Markers of a failed flush
+     * are registered again without replacing the value of a day, which has
+     * been registered by a more recent store operation.
+     *
+     * @param serialHash the MD5 hash of the serial number.
+     * @param markers the value of the pending marker of every day.
+     * @param replace true if registered values are replaced.
+     */
+    private void registerRollups(ByteBuffer serialHash, Map<Long, byte[]> markers, boolean replace) {
+        if (markers.isEmpty()) {
+            return;
+        }
+        synchronized (pendingRollups) {
+            Map<Long, byte[]> pending = pendingRollups.get(serialHash);
+            if (pending == null) {
+                pending = new HashMap<Long, byte[]>();
+                pendingRollups.put(serialHash, pending);
+            }
+            for (Map.Entry<Long, byte[]> entry : markers.entrySet()) {
+                if ((replace) || (!pending.containsKey(entry.getKey()))) {
+                    pending.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the pending markers of persisted readings to ready. A marker is
+     * updated only if it still has the value written by the store operation.
+     * Otherwise, another store operation has marked the day again and sets the
+     * marker to ready once its own readings are persisted.
+     *
+     * @param rollups the value of the pending marker of every day indexed by
+     *            the serial number hash.
+     * @return the days whose markers have been set to ready.
+     * @throws Exception if a marker cannot be updated.
+     */
+    private Map<ByteBuffer, Set<Long>> markRollupsReady(Map<ByteBuffer, Map<Long, byte[]>> rollups) throws Exception {
+        Map<ByteBuffer, Set<Long>> ready = new HashMap<ByteBuffer, Set<Long>>();
+        if (rollups.isEmpty()) {
+            return ready;
+        }
+
+        Table table = null;
+
+        try {
+            table = connection.getTable(EnumHBaseTable.SWM_DAILY.getValue());
+
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+            DateTimeZone timezone = getRollupTimezone();
+
+            for (Map.Entry<ByteBuffer, Map<Long, byte[]>> entry : rollups.entrySet()) {
+                byte[] serialHash = entry.getKey().array();
+
+                Set<Long> days = new HashSet<Long>();
+
+                for (Map.Entry<Long, byte[]> marker : entry.getValue().entrySet()) {
+                    byte[] rowKey = MeterDailyRollup.createRowKey(serialHash, marker.getKey(), timezone);
+                    byte[] qualifier = MeterDailyRollup.createMarkerQualifier(marker.getKey());
+
+                    Put p = new Put(rowKey);
+                    p.addColumn(columnFamily, qualifier, MeterDailyRollup.createMarkerValue(MeterDailyRollup.MARKER_READY));
+
+                    if (table.checkAndPut(rowKey, columnFamily, qualifier, marker.getValue(), p)) {
+                        days.add(marker.getKey());
+                    }
+                }
+
+                if (!days.isEmpty()) {
+                    ready.put(entry.getKey(), days);
+                }
+            }
+        } finally {
+            try {
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+
+        return ready;
+    }
+
+    /**
+     * Submits the days whose markers are ready to the rollup worker. At most
+     * one update is waiting for the worker at any time; it recomputes all the
+     * days submitted until it starts.
+     *
+     * @param days the days indexed by the serial number hash.
+     */
+    private void scheduleRollupUpdate(Map<ByteBuffer, Set<Long>> days) {
+        if (days.isEmpty()) {
+            return;
+        }
+
+        synchronized (readyRollups) {
+            for (Map.Entry<ByteBuffer, Set<Long>> entry : days.entrySet()) {
+                Set<Long> ready = readyRollups.get(entry.getKey());
+                if (ready == null) {
+                    ready = new HashSet<Long>();
+                    readyRollups.put(entry.getKey(), ready);
+                }
+                ready.addAll(entry.getValue());
+            }
+        }
+
+        if (!rollupUpdateScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            rollupExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    rollupUpdateScheduled.set(false);
+
+                    updateRollups();
+                }
+            });
+        } catch (RuntimeException ex) {
+            rollupUpdateScheduled.set(false);
+            throw ex;
+        }
+    }
+
+    /**
+     * Recomputes the daily rollups of the days submitted to the rollup worker.
+     * Days whose rollups fail to be recomputed keep their markers and are
+     * repaired by the rollup repair job.
+     */
+    private void updateRollups() {
+        Map<ByteBuffer, Set<Long>> pending;
+        synchronized (readyRollups) {
+            if (readyRollups.isEmpty()) {
+                return;
+            }
+            pending = new HashMap<ByteBuffer, Set<Long>>(readyRollups);
+            readyRollups.clear();
+        }
+
+        Table dailyTable = null;
+        Table detailTable = null;
+
+        try {
+            dailyTable = connection.getTable(EnumHBaseTable.SWM_DAILY.getValue());
+            detailTable = connection.getTable(EnumHBaseTable.SWM_USER.getValue());
+
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            for (Map.Entry<ByteBuffer, Set<Long>> entry : pending.entrySet()) {
+                try {
+                    NavigableMap<Long, byte[]> markers = getReadyMarkers(dailyTable, columnFamily, entry.getKey().array(), entry.getValue());
+
+                    repairRollups(dailyTable, detailTable, columnFamily, entry.getKey().array(), markers);
+                } catch (Exception ex) {
+                    logger.error(String.format("Failed to update daily rollups of meter [%s].", Bytes.toStringBinary(entry.getKey().array())), ex);
+                }
+            }
+        } catch (Exception ex) {
+            logger.error("Failed to update smart water meter daily rollups.", ex);
+        } finally {
+            try {
+                if (dailyTable != null) {
+                    dailyTable.close();
+                    dailyTable = null;
+                }
+                if (detailTable != null) {
+                    detailTable.close();
+                    detailTable = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+    }
+
+    /**
+     * Reads the ready markers of a set of days of a smart water meter using a
+     * single multi-get request.
+     *
+     * @param dailyTable the table of the daily rollups.
+     * @param columnFamily the column family.
+     * @param serialHash the MD5 hash of the serial number.
+     * @param days the days.
+     * @return the marker value of every day with a ready marker.
+     * @throws Exception if the request fails.
+     */
+    private NavigableMap<Long, byte[]> getReadyMarkers(Table dailyTable, byte[] columnFamily, byte[] serialHash, Set<Long> days) throws Exception {
+        DateTimeZone timezone = getRollupTimezone();
+
+        Map<ByteBuffer, Get> gets = new LinkedHashMap<ByteBuffer, Get>();
+        for (long day : days) {
+            ByteBuffer rowKey = ByteBuffer.wrap(MeterDailyRollup.createRowKey(serialHash, day, timezone));
+
+            Get get = gets.get(rowKey);
+            if (get == null) {
+                get = new Get(rowKey.array());
+                gets.put(rowKey, get);
+            }
+            get.addColumn(columnFamily, MeterDailyRollup.createMarkerQualifier(day));
+        }
+
+        NavigableMap<Long, byte[]> markers = new TreeMap<Long, byte[]>();
+
+        for (Result r : dailyTable.get(new ArrayList<Get>(gets.values()))) {
+            if ((r == null) || (r.isEmpty())) {
+                continue;
+            }
+            for (Cell cell : r.rawCells()) {
+                if (!MeterDailyRollup.isMarker(cell)) {
+                    continue;
+                }
 
+                byte[] value = CellUtil.cloneValue(cell);
+                if (MeterDailyRollup.getMarkerState(value) == MeterDailyRollup.MARKER_READY) {
+                    markers.put(MeterDailyRollup.getMarkerDay(cell), value);
+                }
+            }
+        }
+
+        return markers;
+    }
+
+    /**
+     * Recomputes the daily rollups of the marked days of a smart water meter
+     * and removes their markers. Every range of consecutive days is computed
+     * using a single scan. Rollup cells are versioned using the time the scan
+     * has started; hence when two operations recompute the same day
+     * concurrently, the rollup computed from the most recent readings is
+     * always returned. A marker is removed only if it has not changed since
+     * it was read; a day marked again in the meantime keeps its marker and is
+     * recomputed later.
+     *
+     * @param dailyTable the table of the daily rollups.
+     * @param detailTable the table of the readings indexed by meter.
+     * @param columnFamily the column family.
+     * @param serialHash the MD5 hash of the serial number.
+     * @param markers the marker value of every day.
+     * @return the number of days whose markers have been removed.
+     * @throws Exception if a scan or a mutation fails.
+     */
+    private int repairRollups(Table dailyTable,
+                              Table detailTable,
+                              byte[] columnFamily,
+                              byte[] serialHash,
+                              NavigableMap<Long, byte[]> markers) throws Exception {
+        if (markers.isEmpty()) {
+            return 0;
+        }
+
+        DateTimeZone timezone = getRollupTimezone();
+
+        List<Long> days = new ArrayList<Long>(markers.keySet());
+        List<Put> puts = new ArrayList<Put>();
+
+        for (int i = 0, count = days.size(); i < count;) {
+            // Find the range of consecutive days
+            int j = i + 1;
+            long end = new DateTime(days.get(i), timezone).plusDays(1).withTimeAtStartOfDay().getMillis();
+            while ((j < count) && (days.get(j) == end)) {
+                end = new DateTime(end, timezone).plusDays(1).withTimeAtStartOfDay().getMillis();
+                j++;
+            }
+
+            puts.addAll(computeRollups(detailTable, columnFamily, serialHash, timezone, days.get(i), end));
+            i = j;
+        }
+
+        dailyTable.put(puts);
+
+        int repaired = 0;
+        for (Map.Entry<Long, byte[]> marker : markers.entrySet()) {
+            byte[] rowKey = MeterDailyRollup.createRowKey(serialHash, marker.getKey(), timezone);
+            byte[] qualifier = MeterDailyRollup.createMarkerQualifier(marker.getKey());
+
+            Delete delete = new Delete(rowKey);
+            delete.addColumns(columnFamily, qualifier);
+
+            if (dailyTable.checkAndDelete(rowKey, columnFamily, qualifier, marker.getValue(), delete)) {
+                repaired++;
+            }
+        }
+
+        return repaired;
+    }
+
+    /**
+     * Recomputes the daily rollups of all marked days. Days with ready markers
+     * are left by failed or interrupted rollup updates. Days with pending
+     * markers older than the pending timeout are left by store operations
+     * whose readings have never been flushed; whatever readings have been
+     * persisted are aggregated. The stop flag is checked before every row.
+     *
+     * @param stopped flag set when the repair must stop.
+     * @return the number of repaired days.
+     * @throws ApplicationException if an error occurs or the repair is stopped.
+     */
+    @Override
+    public long repairDailyRollups(AtomicBoolean stopped) throws ApplicationException {
+        Table dailyTable = null;
+        Table detailTable = null;
+        ResultScanner scanner = null;
+
+        long repaired = 0;
+
+        try {
+            dailyTable = connection.getTable(EnumHBaseTable.SWM_DAILY.getValue());
+            detailTable = connection.getTable(EnumHBaseTable.SWM_USER.getValue());
+
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            long pendingThreshold = System.currentTimeMillis() - pendingRollupTimeout;
+
+            Scan scan = new Scan();
+            scan.setCaching(scanCacheSize);
+            scan.addFamily(columnFamily);
+            scan.setFilter(new ColumnPrefixFilter(new byte[] { MeterDailyRollup.MARKER_PREFIX }));
+
+            scanner = dailyTable.getScanner(scan);
+
+            boolean interrupted = false;
+
+            // Rows of the same meter are adjacent
+            byte[] serialHash = null;
+            NavigableMap<Long, byte[]> markers = new TreeMap<Long, byte[]>();
+
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                if (stopped.get()) {
+                    interrupted = true;
+                    break;
+                }
+
+                byte[] rowSerialHash = Arrays.copyOf(r.getRow(), 16);
+                if ((serialHash != null) && (!Arrays.equals(serialHash, rowSerialHash))) {
+                    repaired += repairRollups(dailyTable, detailTable, columnFamily, serialHash, markers);
+                    markers.clear();
+                }
+                serialHash = rowSerialHash;
+
+                for (Cell cell : r.rawCells()) {
+                    if (!MeterDailyRollup.isMarker(cell)) {
+                        continue;
+                    }
+
+                    byte[] value = CellUtil.cloneValue(cell);
+                    byte state = MeterDailyRollup.getMarkerState(value);
+
+                    if ((state == MeterDailyRollup.MARKER_READY) ||
+                        ((state == MeterDailyRollup.MARKER_PENDING) && (cell.getTimestamp() < pendingThreshold))) {
+                        markers.put(MeterDailyRollup.getMarkerDay(cell), value);
+                    }
+                }
+            }
+
+            if (serialHash != null) {
+                repaired += repairRollups(dailyTable, detailTable, columnFamily, serialHash, markers);
+            }
+
+            if (interrupted) {
+                throw new InterruptedException(String.format("Daily rollup repair has been stopped after %d days.", repaired));
+            }
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        } finally {
+            try {
+                if (scanner != null) {
+                    scanner.close();
+                    scanner = null;
+                }
+                if (dailyTable != null) {
+                    dailyTable.close();
+                    dailyTable = null;
+                }
+                if (detailTable != null) {
+                    detailTable.close();
+                    detailTable = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+
+        return repaired;
+    }
+
+    /**
+     * Computes the daily rollups of a smart water meter for a range of
+     * consecutive days.
+     *
+     * @param table the table of the readings indexed by meter.
+     * @param columnFamily the column family.
+     * @param serialHash the MD5 hash of the serial number.
+     * @param timezone the rollup time zone.
+     * @param startTime the start instant of the first day.
+     * @param endTime the end instant (exclusive) of the last day.
+     * @return a {@link Put} for every day.
+     * @throws Exception if the scan fails.
+     */
+    private List<Put> computeRollups(Table table,
+                                     byte[] columnFamily,
+                                     byte[] serialHash,
+                                     DateTimeZone timezone,
+                                     long startTime,
+                                     long endTime) throws Exception {
+        final TimeBucketCalendar calendar = TimeBucketCalendar.create(EnumTimeAggregation.DAY, timezone, startTime, endTime - 1);
+
+        final MeterDailyRollup[] rollups = new MeterDailyRollup[calendar.size()];
+        for (int i = 0; i < rollups.length; i++) {
+            rollups[i] = new MeterDailyRollup(calendar.getBoundary(i), calendar.getBoundary(i + 1));
+        }
+
+        long version = System.currentTimeMillis();
+
+        scanReadings(table, columnFamily, serialHash, startTime, endTime - 1, new MeterRowDecoder.Callback() {
+
+            @Override
+            public boolean onReading(byte[] row, int serialHashOffset, long timestamp, float volume, float difference) {
+                int index = calendar.getIndex(timestamp);
+                if (index >= 0) {
+                    rollups[index].add(volume, difference);
+                }
+                return true;
+            }
+        });
+
+        List<Put> puts = new ArrayList<Put>(rollups.length);
+        for (MeterDailyRollup rollup : rollups) {
+            Put p = new Put(MeterDailyRollup.createRowKey(serialHash, rollup.getStart(), timezone));
+            p.addColumn(columnFamily, rollup.getQualifier(), version, rollup.getValue());
+
+            puts.add(p);
+        }
+
+        return puts;
+    }
+
+    /**
+     * Stores smart water meter data indexed by serial number.
+     *
+     * @param serial the smart water meter data unique serial number.
+     * @param data a collection of {@link WaterMeterMeasurement}.
+     * @param listener listener for recording failed readings.
+     * @return the mutations of the readings with a valid volume in the order
+     *         of the readings.
+     */
+    private List<Put> storeDataByMeter(String serial, WaterMeterMeasurementCollection data, MeasurementFailureListener listener) {
+        try {
             MessageDigest md = MessageDigest.getInstance("MD5");
 
             byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
@@ -147,6 +866,8 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
             byte[] meterSerial = serial.getBytes("UTF-8");
             byte[] meterSerialHash = md.digest(meterSerial);
 
+            List<Put> puts = new ArrayList<Put>();
+
             for (int i = 0; i < data.getMeasurements().size(); i++) {
                 WaterMeterMeasurement m = data.getMeasurements().get(i);
 
@@ -167,19 +888,15 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
                 column = concatenate(key.qualifierPrefix, appendLength(Bytes.toBytes("s")));
                 p.addColumn(columnFamily, column, serial.getBytes(StandardCharsets.UTF_8));
 
-                table.put(p);
+                listener.register(p, m.getTimestamp());
+                puts.add(p);
             }
+
+            writer.write(EnumHBaseTable.SWM_USER.getValue(), puts, listener);
+
+            return puts;
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
-        } finally {
-            try {
-                if (table != null) {
-                    table.close();
-                    table = null;
-                }
-            } catch (Exception ex) {
-                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
-            }
         }
     }
 
@@ -188,13 +905,10 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
      *
      * @param serial the smart water meter data unique serial number.
      * @param data a collection of {@link WaterMeterMeasurement}.
+     * @param listener listener for recording failed readings.
      */
-    private void storeDataByTime(String serial, WaterMeterMeasurementCollection data) {
-        Table table = null;
-
+    private void storeDataByTime(String serial, WaterMeterMeasurementCollection data, MeasurementFailureListener listener) {
         try {
-            table = connection.getTable(EnumHBaseTable.SWM_TIME.getValue());
-
             MessageDigest md = MessageDigest.getInstance("MD5");
 
             byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
@@ -202,6 +916,8 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
             byte[] meterSerial = serial.getBytes("UTF-8");
             byte[] meterSerialHash = md.digest(meterSerial);
 
+            List<Put> puts = new ArrayList<Put>();
+
             for (int i = 0; i < data.getMeasurements().size(); i++) {
                 WaterMeterMeasurement m = data.getMeasurements().get(i);
 
@@ -222,10 +938,210 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
                 column = concatenate(key.qualifierPrefix, appendLength(Bytes.toBytes("s")));
                 p.addColumn(columnFamily, column, serial.getBytes(StandardCharsets.UTF_8));
 
-                table.put(p);
+                listener.register(p, m.getTimestamp());
+                puts.add(p);
+            }
+
+            writer.write(EnumHBaseTable.SWM_TIME.getValue(), puts, listener);
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+    }
+
+    /**
+     * Registers the readings of a store operation that may update the most
+     * recent reading of a smart water meter. The update is deferred until the
+     * next flush, when the outcome of the {@link EnumHBaseTable#SWM_USER}
+     * mutations is known.
+     *
+     * @param serial the smart water meter data unique serial number.
+     * @param data a collection of {@link WaterMeterMeasurement}.
+     * @param puts the {@link EnumHBaseTable#SWM_USER} mutations of the readings
+     *            with a valid volume in the order of the readings.
+     * @param listener listener for recording failed readings.
+     * @throws Exception if the serial number hash cannot be computed.
+     */
+    private void registerLatestReading(String serial,
+                                       WaterMeterMeasurementCollection data,
+                                       List<Put> puts,
+                                       MeasurementFailureListener listener) throws Exception {
+        if (puts.isEmpty()) {
+            return;
+        }
+
+        MessageDigest md = MessageDigest.getInstance("MD5");
+
+        byte[] meterSerialHash = md.digest(serial.getBytes("UTF-8"));
+
+        LatestReadingCandidates candidates = new LatestReadingCandidates(serial, meterSerialHash, listener, puts.size());
+
+        int index = 0;
+        for (WaterMeterMeasurement m : data.getMeasurements()) {
+            if (m.getVolume() >= 0) {
+                candidates.add(puts.get(index++), m.getTimestamp(), m.getVolume());
+            }
+        }
+
+        synchronized (pendingLatestReadings) {
+            pendingLatestReadings.add(candidates);
+        }
+    }
+
+    /**
+     * Updates the most recent reading of smart water meters. For every store
+     * operation, the most recent reading whose {@link EnumHBaseTable#SWM_USER}
+     * mutation has not failed is written. The reading timestamp is used as
+     * the cell timestamp; hence HBase always returns the most recent reading
+     * regardless of the order in which readings are written.
+     * <p>
+     * Meters with no entry in the {@link EnumHBaseTable#SWM_LATEST} table may
+     * have readings stored before the table has been introduced. Their entry
+     * is seeded with the most recent persisted reading found by scanning the
+     * {@link EnumHBaseTable#SWM_USER} table; hence an upload of old readings
+     * never indexes a reading older than the most recent one.
+     *
+     * @param pending the candidate readings of the store operations.
+     * @throws Exception if the mutations cannot be submitted.
+     */
+    private void storeLatestReadings(List<LatestReadingCandidates> pending) throws Exception {
+        byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+        Map<String, WaterMeterStatus> seeds = getLatestReadingSeeds(pending);
+
+        for (LatestReadingCandidates candidates : pending) {
+            int index = candidates.getLatest();
+            if (index < 0) {
+                continue;
+            }
+
+            long timestamp = candidates.timestamps[index];
+            float volume = candidates.volumes[index];
+
+            WaterMeterStatus seed = seeds.get(candidates.serial);
+            if ((seed != null) && (seed.getTimestamp() > timestamp)) {
+                timestamp = seed.getTimestamp();
+                volume = seed.getVolume();
+            }
+
+            Put p = new Put(candidates.serialHash);
+            p.addColumn(columnFamily, LATEST_VOLUME_QUALIFIER, timestamp, Bytes.toBytes(volume));
+
+            candidates.listener.register(p, candidates.timestamps[index]);
+
+            List<Put> puts = new ArrayList<Put>();
+            puts.add(p);
+
+            writer.write(EnumHBaseTable.SWM_LATEST.getValue(), puts, candidates.listener);
+        }
+    }
+
+    /**
+     * Returns the most recent persisted reading of the meters of a set of
+     * store operations that have no entry in the
+     * {@link EnumHBaseTable#SWM_LATEST} table.
+     *
+     * @param pending the candidate readings of the store operations.
+     * @return a map with the most recent reading indexed by serial number.
+     * @throws Exception if the request fails.
+     */
+    private Map<String, WaterMeterStatus> getLatestReadingSeeds(List<LatestReadingCandidates> pending) throws Exception {
+        Map<String, WaterMeterStatus> seeds = new HashMap<String, WaterMeterStatus>();
+
+        Map<String, byte[]> serials = new LinkedHashMap<String, byte[]>();
+        for (LatestReadingCandidates candidates : pending) {
+            if (candidates.getLatest() >= 0) {
+                serials.put(candidates.serial, candidates.serialHash);
+            }
+        }
+        if (serials.isEmpty()) {
+            return seeds;
+        }
+
+        List<String> missing = new ArrayList<String>();
+
+        Table table = null;
+
+        try {
+            table = connection.getTable(EnumHBaseTable.SWM_LATEST.getValue());
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            List<String> keys = new ArrayList<String>(serials.keySet());
+            List<Get> gets = new ArrayList<Get>(keys.size());
+            for (String serial : keys) {
+                Get get = new Get(serials.get(serial));
+                get.addColumn(columnFamily, LATEST_VOLUME_QUALIFIER);
+
+                gets.add(get);
+            }
+
+            boolean[] exists = table.existsAll(gets);
+
+            for (int i = 0; i < keys.size(); i++) {
+                if (!exists[i]) {
+                    missing.add(keys.get(i));
+                }
+            }
+        } finally {
+            try {
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            WaterMeterStatusQueryResult scanned = scanStatus(missing.toArray(new String[missing.size()]), Long.MAX_VALUE, true);
+            for (WaterMeterStatus status : scanned.getDevices()) {
+                seeds.put(status.getSerial(), status);
+            }
+        }
+
+        return seeds;
+    }
+
+    /**
+     * Returns the most recent reading of a set of smart water meters using a
+     * single multi-get request. Meters with no entry in the
+     * {@link EnumHBaseTable#SWM_LATEST} table are not included in the result.
+     *
+     * @param serials the unique smart water meter serial numbers to search.
+     * @return a map with the most recent reading indexed by serial number.
+     * @throws Exception if the request fails.
+     */
+    private Map<String, WaterMeterDataPoint> getLatestReadings(String serials[]) throws Exception {
+        Map<String, WaterMeterDataPoint> readings = new HashMap<String, WaterMeterDataPoint>();
+
+        Table table = null;
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+
+            table = connection.getTable(EnumHBaseTable.SWM_LATEST.getValue());
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            List<Get> gets = new ArrayList<Get>(serials.length);
+            for (String serial : serials) {
+                Get get = new Get(md.digest(serial.getBytes("UTF-8")));
+                get.addColumn(columnFamily, LATEST_VOLUME_QUALIFIER);
+
+                gets.add(get);
+            }
+
+            Result[] results = table.get(gets);
+
+            for (int i = 0; i < serials.length; i++) {
+                Cell cell = results[i].getColumnLatestCell(columnFamily, LATEST_VOLUME_QUALIFIER);
+                if (cell != null) {
+                    WaterMeterDataPoint reading = new WaterMeterDataPoint();
+                    reading.setTimestamp(cell.getTimestamp());
+                    reading.setVolume(Bytes.toFloat(cell.getValueArray(), cell.getValueOffset()));
+
+                    readings.put(serials[i], reading);
+                }
             }
-        } catch (Exception ex) {
-            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
         } finally {
             try {
                 if (table != null) {
@@ -236,6 +1152,8 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
                 logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
             }
         }
+
+        return readings;
     }
 
     /**
@@ -275,14 +1193,73 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
 
     /**
      * Returns the most recent status for a set of smart water meters
-     * before/after the specified timestamp.
+     * before/after the specified timestamp. The status is resolved from the
+     * {@link EnumHBaseTable#SWM_LATEST} table. Meter readings are scanned only
+     * for meters that are not indexed or whose most recent reading does not
+     * answer the request, e.g. when searching for a reading before a timestamp
+     * that is older than the most recent one.
+     *
+     * @param serials the unique smart water meter serial numbers to search.
+     * @param timeThreshold time interval upper limit.
+     * @param descending true if true, the most recent status before the timestamp is returned; Otherwise, the most recent one after is returned.
+     * @return a collection of {@link WaterMeterStatus}.
+     */
+    private WaterMeterStatusQueryResult getStatus(String serials[], long timeThreshold, boolean descending) {
+        try {
+            Map<String, WaterMeterDataPoint> latest = getLatestReadings(serials);
+
+            Map<String, WaterMeterStatus> devices = new HashMap<String, WaterMeterStatus>();
+            List<String> unresolved = new ArrayList<String>();
+
+            for (String serial : serials) {
+                WaterMeterDataPoint reading = latest.get(serial);
+
+                if (reading == null) {
+                    unresolved.add(serial);
+                } else if ((descending) && (reading.getTimestamp() <= timeThreshold)) {
+                    WaterMeterStatus status = new WaterMeterStatus(serial);
+                    status.setTimestamp(reading.getTimestamp());
+                    status.setVolume(reading.getVolume());
+
+                    devices.put(serial, status);
+                } else if ((!descending) && (reading.getTimestamp() < timeThreshold)) {
+                    // No reading exists after the timestamp
+                } else {
+                    unresolved.add(serial);
+                }
+            }
+
+            if (!unresolved.isEmpty()) {
+                WaterMeterStatusQueryResult scanned = scanStatus(unresolved.toArray(new String[unresolved.size()]), timeThreshold, descending);
+                for (WaterMeterStatus status : scanned.getDevices()) {
+                    devices.put(status.getSerial(), status);
+                }
+            }
+
+            WaterMeterStatusQueryResult data = new WaterMeterStatusQueryResult();
+            for (String serial : serials) {
+                WaterMeterStatus status = devices.get(serial);
+                if (status != null) {
+                    data.getDevices().add(status);
+                }
+            }
+
+            return data;
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+    }
+
+    /**
+     * Scans the readings of a set of smart water meters for the most recent
+     * status before/after the specified timestamp.
      *
      * @param serials the unique smart water meter serial numbers to search.
      * @param timeThreshold time interval upper limit.
      * @param descending true if true, the most recent status before the timestamp is returned; Otherwise, the most recent one after is returned.
      * @return a collection of {@link WaterMeterStatus}.
      */
-    private  WaterMeterStatusQueryResult getStatus(String serials[], long timeThreshold, boolean descending) {
+    private WaterMeterStatusQueryResult scanStatus(String serials[], long timeThreshold, boolean descending) {
         WaterMeterStatusQueryResult data = new WaterMeterStatusQueryResult();
 
         Table table = null;
@@ -310,69 +1287,25 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
                 scan.setCaching(4);
                 scanner = table.getScanner(scan);
 
-                int valueCount = 0;
-                boolean stopScanner = false;
+                StatusCollector collector = new StatusCollector(meterSerialHash, descending);
 
-                WaterMeterStatus status = new WaterMeterStatus(serials[deviceIndex]);
-                WaterMeterDataPoint value1 = new WaterMeterDataPoint();
-                WaterMeterDataPoint value2 = new WaterMeterDataPoint();
+                long startTime = (descending ? Long.MIN_VALUE : timeThreshold);
+                long endTime = (descending ? timeThreshold : Long.MAX_VALUE);
 
                 for (Result r = scanner.next(); r != null; r = scanner.next()) {
-                    byte[] currentSerialHash = Arrays.copyOfRange(r.getRow(), 0, 16);
-                    if (!Arrays.equals(currentSerialHash, meterSerialHash)) {
-                        break;
-                    }
-
-                    long timeBucket = Bytes.toLong(Arrays.copyOfRange(r.getRow(), 16, 24));
-
-                    NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
-                    for (Entry<byte[], byte[]> entry : map.entrySet()) {
-                        short offset = Bytes.toShort(Arrays.copyOfRange(entry.getKey(), 0, 2));
-                        long timestamp = ((Long.MAX_VALUE / 1000) - (timeBucket + (long) offset)) * 1000L;
-
-                        if(descending) {
-                            if (timestamp <= timeThreshold) {
-                                int length = (int) Arrays.copyOfRange(entry.getKey(), 2, 3)[0];
-                                byte[] slice = Arrays.copyOfRange(entry.getKey(), 3, 3 + length);
-                                String columnQualifier = Bytes.toString(slice);
-
-                                if (columnQualifier.equals("v")) {
-                                    valueCount++;
-                                    if (value2.getTimestamp() < timestamp) {
-                                        value1.setTimestamp(value2.getTimestamp());
-                                        value1.setVolume(value2.getVolume());
-
-                                        value2.setTimestamp(timestamp);
-                                        value2.setVolume(Bytes.toFloat(entry.getValue()));
-                                    } else if (value1.getTimestamp() < timestamp) {
-                                        value1.setTimestamp(timestamp);
-                                        value1.setVolume(Bytes.toFloat(entry.getValue()));
-                                    }
-                                }
-                            }
-                            if (valueCount == 2) {
-                                stopScanner = true;
-                                break;
-                            }
-                        } else {
-                            if (timestamp >= timeThreshold) {
-                                int length = (int) Arrays.copyOfRange(entry.getKey(), 2, 3)[0];
-                                byte[] slice = Arrays.copyOfRange(entry.getKey(), 3, 3 + length);
-                                String columnQualifier = Bytes.toString(slice);
-
-                                if (columnQualifier.equals("v")) {
-                                    valueCount++;
-                                    stopScanner = true;
-                                    value2.setTimestamp(timestamp);
-                                    value2.setVolume(Bytes.toFloat(entry.getValue()));
-                                }
-                            }
-                        }
-                    }
-                    if (stopScanner) {
+                    if ((!MeterRowDecoder.decode(r, columnFamily, 16, 0, startTime, endTime, collector)) || (collector.isDone())) {
                         break;
                     }
                 }
+
+                scanner.close();
+                scanner = null;
+
+                WaterMeterStatus status = new WaterMeterStatus(serials[deviceIndex]);
+
+                int valueCount = collector.getValueCount();
+                WaterMeterDataPoint value2 = collector.getLatest();
+
                 switch (valueCount) {
                     case 0:
                         // No value found
@@ -414,7 +1347,7 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
      * @return a collection of {@link WaterMeterDataSeries}.
      */
     @Override
-    public WaterMeterMeasurementQueryResult searchMeasurements(String serials[], DateTimeZone timezone, WaterMeterMeasurementQuery query) {
+    public WaterMeterMeasurementQueryResult searchMeasurements(String serials[], final DateTimeZone timezone, WaterMeterMeasurementQuery query) {
         Table table = null;
         ResultScanner scanner = null;
 
@@ -507,39 +1440,24 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
 
                 data.getSeries().add(series);
 
-                for (Result r = scanner.next(); r != null; r = scanner.next()) {
-                    NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
-
-                    long timeBucket = Bytes.toLong(Arrays.copyOfRange(r.getRow(), 16, 24));
+                final WaterMeterDataSeries currentSeries = series;
 
-                    Float volume = null, difference = null;
+                MeterRowDecoder.Callback callback = new MeterRowDecoder.Callback() {
 
-                    for (Entry<byte[], byte[]> entry : map.entrySet()) {
-                        short offset = Bytes.toShort(Arrays.copyOfRange(entry.getKey(), 0, 2));
-                        long timestamp = ((Long.MAX_VALUE / 1000L) - (timeBucket + (long) offset)) * 1000L;
-
-                        if ((startDate.getMillis() <= timestamp) && (timestamp <= endDate.getMillis())) {
-                            int length = (int) Arrays.copyOfRange(entry.getKey(), 2, 3)[0];
-                            byte[] slice = Arrays.copyOfRange(entry.getKey(), 3, 3 + length);
-
-                            String columnQualifier = Bytes.toString(slice);
-                            if (columnQualifier.equals("v")) {
-                                volume = Bytes.toFloat(entry.getValue());
-                            }
-                            if (columnQualifier.equals("d")) {
-                                difference = Bytes.toFloat(entry.getValue());
-                            }
-
-                            if ((volume != null) && (difference != null)) {
-                                series.add(timestamp, volume, difference, timezone);
-
-                                volume = null;
-                                difference = null;
-                            }
-                        }
+                    @Override
+                    public boolean onReading(byte[] row, int serialHashOffset, long timestamp, float volume, float difference) {
+                        currentSeries.add(timestamp, volume, difference, timezone);
+                        return true;
                     }
+                };
+
+                for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                    MeterRowDecoder.decode(r, columnFamily, 16, 0, startDate.getMillis(), endDate.getMillis(), callback);
                 }
 
+                scanner.close();
+                scanner = null;
+
                 series.sort();
             }
 
@@ -563,25 +1481,23 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
     }
 
     /**
-     * Executes a query for smart water meter data.
+     * Executes a query for smart water meter data. Depending on the estimated
+     * cost, either the readings of every meter are scanned from the
+     * {@link EnumHBaseTable#SWM_USER} table or all time partitions of the
+     * {@link EnumHBaseTable#SWM_TIME} table are scanned. Scans are executed
+     * concurrently and the partial results are merged.
      *
      * @param query the query for filtering data.
      * @return a collection of {@link GroupDataSeries}.
      * @throws ApplicationException if an error occurs or query validation fails.
      */
     @Override
-    public ArrayList<GroupDataSeries> query(ExpandedDataQuery query) throws ApplicationException {
-        Table table = null;
-        ResultScanner scanner = null;
+    public ArrayList<GroupDataSeries> query(final ExpandedDataQuery query) throws ApplicationException {
+        long phaseStart = System.currentTimeMillis();
 
-        ArrayList<GroupDataSeries> result = new ArrayList<GroupDataSeries>();
-        for (ExpandedPopulationFilter filter : query.getGroups()) {
-            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId()));
-        }
-        try {
-            table = connection.getTable(EnumHBaseTable.SWM_TIME.getValue());
-            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+        ArrayList<GroupDataSeries> result = createSeries(query);
 
+        try {
             DateTime startDate = new DateTime(query.getStartDateTime(), query.getTimezone());
             DateTime endDate = new DateTime(query.getEndDateTime(), query.getTimezone());
 
@@ -620,77 +1536,150 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
                     throw createApplicationException(DataErrorCode.TIME_GRANULARITY_NOT_SUPPORTED).set("level", query.getGranularity());
             }
 
-            for (short p = 0; p < timePartitions; p++) {
-                Scan scan = new Scan();
-                scan.setCaching(scanCacheSize);
-                scan.addFamily(columnFamily);
+            final long startTime = startDate.getMillis();
+            final long endTime = endDate.getMillis();
 
-                byte[] rowKey = createPartitionedRowKey(p, endDate.getMillis());
-                scan.setStartRow(rowKey);
+            final PopulationHashIndex populationIndex = PopulationHashIndex.bySerialHash(query.getGroups());
 
-                rowKey = createPartitionedRowKey(p, startDate.getMillis());
-                scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(rowKey));
-
-                scanner = table.getScanner(scan);
+            List<Callable<ArrayList<GroupDataSeries>>> tasks = new ArrayList<Callable<ArrayList<GroupDataSeries>>>();
 
-                for (Result r = scanner.next(); r != null; r = scanner.next()) {
-                    NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
+            switch (planScan(populationIndex.size(), startTime, endTime)) {
+                case BY_METER:
+                    // Distribute meter prefix scans to the available threads
+                    List<byte[]> hashes = populationIndex.getHashes();
+                    int taskCount = Math.min(hashes.size(), scanExecutor.getParallelism());
 
-                    long timeBucket = Bytes.toLong(Arrays.copyOfRange(r.getRow(), 2, 10));
-                    byte[] serialHash = Arrays.copyOfRange(r.getRow(), 10, 26);
+                    for (int t = 0; t < taskCount; t++) {
+                        final List<byte[]> serialHashes = new ArrayList<byte[]>();
+                        for (int i = t, count = hashes.size(); i < count; i += taskCount) {
+                            serialHashes.add(hashes.get(i));
+                        }
 
-                    Float volume = null, difference = null;
-                    long lastTimestamp = 0;
+                        tasks.add(new Callable<ArrayList<GroupDataSeries>>() {
 
-                    for (Entry<byte[], byte[]> entry : map.entrySet()) {
-                        short offset = Bytes.toShort(Arrays.copyOfRange(entry.getKey(), 0, 2));
-                        long timestamp = ((Long.MAX_VALUE / 1000) - (timeBucket + (long) offset)) * 1000L;
+                            @Override
+                            public ArrayList<GroupDataSeries> call() throws Exception {
+                                return queryMeters(query, populationIndex, serialHashes, startTime, endTime);
+                            }
+                        });
+                    }
 
-                        if ((startDate.getMillis() <= timestamp) && (timestamp <= endDate.getMillis())) {
-                            int length = (int) Arrays.copyOfRange(entry.getKey(), 2, 3)[0];
-                            byte[] slice = Arrays.copyOfRange(entry.getKey(), 3, 3 + length);
+                    query.addPlan(String.format("%s: %d meter prefix scans", EnumHBaseTable.SWM_USER.getValue(), hashes.size()));
+                    break;
+                default:
+                    for (short p = 0; p < timePartitions; p++) {
+                        final short partition = p;
 
-                            String columnQualifier = Bytes.toString(slice);
-                            if (columnQualifier.equals("v")) {
-                                volume = Bytes.toFloat(entry.getValue());
-                            }
-                            if (columnQualifier.equals("d")) {
-                                difference = Bytes.toFloat(entry.getValue());
-                            }
+                        tasks.add(new Callable<ArrayList<GroupDataSeries>>() {
 
-                            if (lastTimestamp == timestamp) {
-                                if ((difference != null) && (volume != null)) {
-                                    int filterIndex = 0;
-                                    for (ExpandedPopulationFilter filter : query.getGroups()) {
-                                        GroupDataSeries series = result.get(filterIndex);
-
-                                        int index = inArray(filter.getSerialHashes(), serialHash);
-                                        if (index >= 0) {
-                                            series.addMeterRankingDataPoint(
-                                                query.getGranularity(),
-                                                filter.getUserKeys().get(index),
-                                                filter.getLabels().get(index),
-                                                timestamp,
-                                                difference,
-                                                volume,
-                                                query.getMetrics(),
-                                                query.getTimezone());
-
-                                        }
-
-                                        filterIndex++;
-                                    }
-                                    volume = difference = null;
-                                }
-                            } else {
-                                lastTimestamp = timestamp;
+                            @Override
+                            public ArrayList<GroupDataSeries> call() throws Exception {
+                                return queryPartition(query, populationIndex, partition, startTime, endTime);
                             }
-                        }
+                        });
                     }
+
+                    query.addPlan(String.format("%s: %d partition scans", EnumHBaseTable.SWM_TIME.getValue(), timePartitions));
+                    query.getProfile().addPartitions(timePartitions);
+                    break;
+            }
+
+            for (ArrayList<GroupDataSeries> partial : scanExecutor.invokeAll(tasks)) {
+                for (int filterIndex = 0, count = result.size(); filterIndex < count; filterIndex++) {
+                    result.get(filterIndex).merge(partial.get(filterIndex));
                 }
             }
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+
+        phaseStart = query.getProfile().endPhase(PHASE_SCAN, phaseStart);
+
+        // Post process results
+        int filterIndex = 0;
+        for (final ExpandedPopulationFilter filter : query.getGroups()) {
+            flatProjectSeries(query, filter, result.get(filterIndex));
+            filterIndex++;
+        }
+
+        cleanSeries(query, result);
+
+        query.getProfile().endPhase(PHASE_RANKING, phaseStart);
+
+        return result;
+    }
+
+    /**
+     * Creates an empty data series for every population group of a query.
+     *
+     * @param query the query.
+     * @return a list of {@link GroupDataSeries}.
+     */
+    private ArrayList<GroupDataSeries> createSeries(ExpandedDataQuery query) {
+        ArrayList<GroupDataSeries> result = new ArrayList<GroupDataSeries>();
+        for (ExpandedPopulationFilter filter : query.getGroups()) {
+            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId(), query.getCalendar()));
+        }
+        return result;
+    }
+
+    /**
+     * Scans a single time partition of the {@link EnumHBaseTable#SWM_TIME}
+     * table and aggregates the readings to a new partial data series for every
+     * population group.
+     *
+     * @param query the query.
+     * @param populationIndex the population groups indexed by serial number hash.
+     * @param partition the partition to scan.
+     * @param startTime the time interval lower limit.
+     * @param endTime the time interval upper limit.
+     * @return a list of partial {@link GroupDataSeries}.
+     * @throws Exception if the scan fails.
+     */
+    private ArrayList<GroupDataSeries> queryPartition(ExpandedDataQuery query,
+                                                      PopulationHashIndex populationIndex,
+                                                      short partition,
+                                                      long startTime,
+                                                      long endTime) throws Exception {
+        Table table = null;
+        ResultScanner scanner = null;
+
+        ArrayList<GroupDataSeries> result = createSeries(query);
+
+        try {
+            table = connection.getTable(EnumHBaseTable.SWM_TIME.getValue());
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            Scan scan = new Scan();
+            scan.setCaching(scanCacheSize);
+            scan.addFamily(columnFamily);
+
+            byte[] rowKey = createPartitionedRowKey(partition, endTime);
+            scan.setStartRow(rowKey);
+
+            rowKey = createPartitionedRowKey(partition, startTime);
+            scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(rowKey));
+
+            // Let the region servers skip rows of meters outside the population
+            Filter filter = createPartitionedRowFilter(partition, populationIndex.getHashes());
+            if (filter != null) {
+                scan.setFilter(filter);
+            }
+
+            scanner = table.getScanner(scan);
+
+            MeterRowAggregator aggregator = new MeterRowAggregator(query, populationIndex, result);
+
+            HBaseScanStatistics statistics = new HBaseScanStatistics();
+            statistics.addScan();
+
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                statistics.addRow(r);
+
+                MeterRowDecoder.decode(r, columnFamily, 2, 10, startTime, endTime, aggregator);
+            }
+
+            statistics.addTo(query.getProfile());
         } finally {
             try {
                 if (scanner != null) {
@@ -706,14 +1695,67 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
             }
         }
 
-        // Post process results
-        int filterIndex = 0;
-        for (final ExpandedPopulationFilter filter : query.getGroups()) {
-            flatProjectSeries(query, filter, result.get(filterIndex));
-            filterIndex++;
-        }
+        return result;
+    }
 
-        cleanSeries(query, result);
+    /**
+     * Scans the readings of a set of smart water meters from the
+     * {@link EnumHBaseTable#SWM_USER} table and aggregates them to a new
+     * partial data series for every population group. Days with a daily
+     * rollup are read from the {@link EnumHBaseTable#SWM_DAILY} table.
+     *
+     * @param query the query.
+     * @param populationIndex the population groups indexed by serial number hash.
+     * @param serialHashes the serial number hashes of the meters to scan.
+     * @param startTime the time interval lower limit.
+     * @param endTime the time interval upper limit.
+     * @return a list of partial {@link GroupDataSeries}.
+     * @throws Exception if the scan fails.
+     */
+    private ArrayList<GroupDataSeries> queryMeters(ExpandedDataQuery query,
+                                                   PopulationHashIndex populationIndex,
+                                                   List<byte[]> serialHashes,
+                                                   long startTime,
+                                                   long endTime) throws Exception {
+        Table table = null;
+        Table dailyTable = null;
+
+        ArrayList<GroupDataSeries> result = createSeries(query);
+
+        try {
+            table = connection.getTable(EnumHBaseTable.SWM_USER.getValue());
+            dailyTable = connection.getTable(EnumHBaseTable.SWM_DAILY.getValue());
+            byte[] columnFamily = Bytes.toBytes(EnumHBaseColumnFamily.DEFAULT.getValue());
+
+            MeterRowAggregator aggregator = new MeterRowAggregator(query, populationIndex, result);
+
+            for (byte[] serialHash : serialHashes) {
+                scanMeter(dailyTable,
+                          table,
+                          columnFamily,
+                          serialHash,
+                          query.getGranularity(),
+                          query.getTimezone(),
+                          startTime,
+                          endTime,
+                          aggregator);
+            }
+
+            aggregator.getStatistics().addTo(query.getProfile());
+        } finally {
+            try {
+                if (table != null) {
+                    table.close();
+                    table = null;
+                }
+                if (dailyTable != null) {
+                    dailyTable.close();
+                    dailyTable = null;
+                }
+            } catch (Exception ex) {
+                logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ex);
+            }
+        }
 
         return result;
     }
@@ -745,4 +1787,246 @@ public class HBaseMeterDataRepository extends AbstractHBaseMeterDataRepository i
         }
     }
 
+    /**
+     * Aggregates decoded readings to the data series of the population groups
+     * the meter of every row belongs to. Group members are resolved once per
+     * row.
+     */
+    private static class MeterRowAggregator extends MeterDailyRollup.Callback {
+
+        private final ExpandedDataQuery query;
+
+        private final PopulationHashIndex populationIndex;
+
+        private final List<GroupDataSeries> result;
+
+        private List<PopulationHashIndex.Member> members;
+
+        private final HBaseScanStatistics statistics = new HBaseScanStatistics();
+
+        public MeterRowAggregator(ExpandedDataQuery query, PopulationHashIndex populationIndex, List<GroupDataSeries> result) {
+            this.query = query;
+            this.populationIndex = populationIndex;
+            this.result = result;
+        }
+
+        @Override
+        public boolean accept(byte[] row, int serialHashOffset) {
+            members = populationIndex.get(row, serialHashOffset, 16);
+
+            return (!members.isEmpty());
+        }
+
+        @Override
+        public boolean onReading(byte[] row, int serialHashOffset, long timestamp, float volume, float difference) {
+            for (PopulationHashIndex.Member member : members) {
+                ExpandedPopulationFilter filter = query.getGroups().get(member.getGroup());
+
+                result.get(member.getGroup()).addMeterRankingDataPoint(
+                    query.getGranularity(),
+                    filter.getUserKeys().get(member.getIndex()),
+                    filter.getLabels().get(member.getIndex()),
+                    timestamp,
+                    difference,
+                    volume,
+                    query.getMetrics(),
+                    query.getTimezone());
+            }
+            return true;
+        }
+
+        @Override
+        public void onRollup(byte[] serialHash, MeterDailyRollup rollup) {
+            for (PopulationHashIndex.Member member : members) {
+                ExpandedPopulationFilter filter = query.getGroups().get(member.getGroup());
+
+                result.get(member.getGroup()).addMeterRankingRollup(
+                    query.getGranularity(),
+                    filter.getUserKeys().get(member.getIndex()),
+                    filter.getLabels().get(member.getIndex()),
+                    rollup.getStart(),
+                    rollup.getCount(),
+                    rollup.getDifference(),
+                    rollup.getMin(),
+                    rollup.getMax(),
+                    query.getMetrics(),
+                    query.getTimezone());
+            }
+        }
+
+        @Override
+        public HBaseScanStatistics getStatistics() {
+            return statistics;
+        }
+
+    }
+
+    /**
+     * Collects the most recent reading of a single meter before or after a
+     * timestamp. Decoding stops when a row of a different meter is reached.
+     */
+    private static class StatusCollector extends MeterRowDecoder.Callback {
+
+        private final byte[] serialHash;
+
+        private final boolean descending;
+
+        private final WaterMeterDataPoint previous = new WaterMeterDataPoint();
+
+        private final WaterMeterDataPoint latest = new WaterMeterDataPoint();
+
+        private int valueCount = 0;
+
+        private boolean done = false;
+
+        public StatusCollector(byte[] serialHash, boolean descending) {
+            this.serialHash = serialHash;
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean accept(byte[] row, int serialHashOffset) {
+            if (!Bytes.equals(row, serialHashOffset, serialHash.length, serialHash, 0, serialHash.length)) {
+                done = true;
+            }
+            return (!done);
+        }
+
+        @Override
+        public boolean onReading(byte[] row, int serialHashOffset, long timestamp, float volume, float difference) {
+            valueCount++;
+
+            if (!descending) {
+                latest.setTimestamp(timestamp);
+                latest.setVolume(volume);
+
+                done = true;
+            } else {
+                if (latest.getTimestamp() < timestamp) {
+                    previous.setTimestamp(latest.getTimestamp());
+                    previous.setVolume(latest.getVolume());
+
+                    latest.setTimestamp(timestamp);
+                    latest.setVolume(volume);
+                } else if (previous.getTimestamp() < timestamp) {
+                    previous.setTimestamp(timestamp);
+                    previous.setVolume(volume);
+                }
+
+                done = (valueCount == 2);
+            }
+
+            return (!done);
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public int getValueCount() {
+            return valueCount;
+        }
+
+        public WaterMeterDataPoint getLatest() {
+            return latest;
+        }
+
+    }
+
+    /**
+     * Records the readings of a single store operation whose mutations have
+     * failed.
+     */
+    private static class MeasurementFailureListener implements HBaseBufferedWriter.MutationFailureListener {
+
+        private final String serial;
+
+        private final MeterDataStoreStats stats;
+
+        private final Map<Row, Long> timestamps = new IdentityHashMap<Row, Long>();
+
+        private final Set<Row> failed = Collections.newSetFromMap(new IdentityHashMap<Row, Boolean>());
+
+        public MeasurementFailureListener(String serial, MeterDataStoreStats stats) {
+            this.serial = serial;
+            this.stats = stats;
+        }
+
+        public synchronized void register(Row row, long timestamp) {
+            timestamps.put(row, timestamp);
+        }
+
+        public synchronized boolean hasFailed(Row row) {
+            return failed.contains(row);
+        }
+
+        @Override
+        public void onFailure(String tableName, Row row, Throwable cause) {
+            Long timestamp;
+            synchronized (this) {
+                timestamp = timestamps.remove(row);
+                failed.add(row);
+            }
+            if (timestamp != null) {
+                stats.fail(timestamp);
+
+                logger.error(String.format("Failed to store reading [%d] for meter [%s] to table [%s].",
+                                           timestamp, serial, tableName), cause);
+            }
+        }
+    }
+
+    /**
+     * The readings of a single store operation that may update the most recent
+     * reading of a smart water meter.
+     */
+    private static class LatestReadingCandidates {
+
+        private final String serial;
+
+        private final byte[] serialHash;
+
+        private final MeasurementFailureListener listener;
+
+        private final Put[] puts;
+
+        private final long[] timestamps;
+
+        private final float[] volumes;
+
+        private int size = 0;
+
+        public LatestReadingCandidates(String serial, byte[] serialHash, MeasurementFailureListener listener, int capacity) {
+            this.serial = serial;
+            this.serialHash = serialHash;
+            this.listener = listener;
+            this.puts = new Put[capacity];
+            this.timestamps = new long[capacity];
+            this.volumes = new float[capacity];
+        }
+
+        public void add(Put put, long timestamp, float volume) {
+            puts[size] = put;
+            timestamps[size] = timestamp;
+            volumes[size] = volume;
+            size++;
+        }
+
+        /**
+         * Returns the index of the most recent reading whose
+         * {@link EnumHBaseTable#SWM_USER} mutation has not failed.
+         *
+         * @return the reading index or -1 if all mutations have failed.
+         */
+        public int getLatest() {
+            int latest = -1;
+            for (int i = 0; i < size; i++) {
+                if ((!listener.hasFailed(puts[i])) && ((latest < 0) || (timestamps[latest] <= timestamps[i]))) {
+                    latest = i;
+                }
+            }
+            return latest;
+        }
+    }
+
 }
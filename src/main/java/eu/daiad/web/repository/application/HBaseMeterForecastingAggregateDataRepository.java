@@ -1,12 +1,12 @@
 package eu.daiad.web.repository.application;
 
-import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,6 +21,7 @@ import org.springframework.stereotype.Repository;
 
 import eu.daiad.web.hbase.EnumHBaseColumnFamily;
 import eu.daiad.web.hbase.EnumHBaseTable;
+import eu.daiad.web.hbase.HBaseScanStatistics;
 import eu.daiad.web.model.error.ApplicationException;
 import eu.daiad.web.model.error.DataErrorCode;
 import eu.daiad.web.model.error.SharedErrorCode;
@@ -33,6 +34,7 @@ import eu.daiad.web.model.query.ExpandedPopulationFilter;
 import eu.daiad.web.model.query.GroupDataSeries;
 import eu.daiad.web.model.query.MeterDataPoint;
 import eu.daiad.web.model.query.MeterUserDataPoint;
+import eu.daiad.web.model.query.QueryExecutionProfile;
 import eu.daiad.web.model.query.RankingDataPoint;
 import eu.daiad.web.model.query.UserDataPoint;
 
@@ -44,6 +46,13 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
      */
     private static final Log logger = LogFactory.getLog(HBaseMeterForecastingAggregateDataRepository.class);
 
+    /**
+     * Execution profile phases of smart water meter forecasting queries.
+     */
+    private static final String PHASE_SCAN = "forecast." + QueryExecutionProfile.PHASE_SCAN;
+
+    private static final String PHASE_RANKING = "forecast." + QueryExecutionProfile.PHASE_RANKING;
+
     public HBaseMeterForecastingAggregateDataRepository() {
         interval = EnumTimeInterval.DAY;
     }
@@ -57,6 +66,10 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
      */
     @Override
     public List<GroupDataSeries> forecast(ExpandedDataQuery query) throws ApplicationException {
+        long phaseStart = System.currentTimeMillis();
+
+        HBaseScanStatistics statistics = new HBaseScanStatistics();
+
         Table detailTable = null;
         Table aggregateTable = null;
         ResultScanner scanner = null;
@@ -139,8 +152,11 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
                         scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(createMeterRowKey(filter.getSerialHashes().get(index), startDate.getMillis())));
 
                         scanner = detailTable.getScanner(scan);
+                        statistics.addScan();
 
                         for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                            statistics.addRow(r);
+
                             NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
 
                             long timeBucket = Bytes.toLong(Arrays.copyOfRange(r.getRow(), 16, 24));
@@ -186,7 +202,26 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
                 } else {
                     Scan scan = new Scan();
                     scan.setCaching(scanCacheSize);
-                    scan.addFamily(columnFamily);
+                    if (filter.getRanking() == null) {
+                        scan.addFamily(columnFamily);
+                    } else {
+                        // Fetch only the cell of the requested ranking type. The
+                        // sum column is also fetched so that every time bucket
+                        // still returns a row
+                        scan.addColumn(columnFamily, AGGREGATE_SUM_QUALIFIER);
+
+                        switch (filter.getRanking().getType()) {
+                            case TOP:
+                                scan.addColumn(columnFamily, RANKING_TOP_QUALIFIER);
+                                break;
+                            case BOTTOM:
+                                scan.addColumn(columnFamily, RANKING_BOTTOM_QUALIFIER);
+                                break;
+                            default:
+                                scan.addFamily(columnFamily);
+                                break;
+                        }
+                    }
 
                     Long from = unixTimestampToLong(startDate.getMillis(), query.getTimezone(), query.getGranularity());
                     Long to = unixTimestampToLong(endDate.getMillis(), query.getTimezone(), query.getGranularity());
@@ -198,8 +233,11 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
                     scan.setStopRow(rowKey);
 
                     scanner = aggregateTable.getScanner(scan);
+                    statistics.addScan();
 
                     for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                        statistics.addRow(r);
+
                         NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
 
                         // The row key has the form [MD5 Hash(16), Aggregation Level(1), Time(8)]
@@ -248,7 +286,7 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
                                                 rankingDataPoint.getUsers().addAll(
                                                     parseMeterUserDataPoints(filter.getRanking().getType(),
                                                                              timestamp,
-                                                                             new String(entry.getValue(), StandardCharsets.UTF_8),
+                                                                             entry.getValue(),
                                                                              filter.getRanking().getLimit()));
                                             }
                                             break;
@@ -257,7 +295,7 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
                                                 rankingDataPoint.getUsers().addAll(
                                                     parseMeterUserDataPoints(filter.getRanking().getType(),
                                                                              timestamp,
-                                                                             new String(entry.getValue(), StandardCharsets.UTF_8),
+                                                                             entry.getValue(),
                                                                              filter.getRanking().getLimit()));
                                             }
                                             break;
@@ -273,6 +311,8 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
                 }
                 result.add(series);
             }
+
+            statistics.addTo(query.getProfile());
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
         } finally {
@@ -294,8 +334,12 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
             }
         }
 
+        phaseStart = query.getProfile().endPhase(PHASE_SCAN, phaseStart);
+
         cleanSeries(query, result);
 
+        query.getProfile().endPhase(PHASE_RANKING, phaseStart);
+
         return result;
     }
 
@@ -330,4 +374,16 @@ public class HBaseMeterForecastingAggregateDataRepository  extends AbstractHBase
         }
     }
 
+    /**
+     * Converts the top-k/bottom-k cells stored using the legacy text format to
+     * the binary format. Cells converted before a stop request are persisted.
+     *
+     * @param stopped flag set when the conversion must stop.
+     * @return the number of converted cells.
+     * @throws ApplicationException if an error occurs or the conversion is stopped.
+     */
+    @Override
+    public long convertRankingCells(AtomicBoolean stopped) throws ApplicationException {
+        return convertRankingCells(EnumHBaseTable.SWM_FORECAST_AGGREGATE.getValue(), stopped);
+    }
 }
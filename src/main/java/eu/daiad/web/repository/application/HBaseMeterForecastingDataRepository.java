@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 
@@ -23,6 +24,7 @@ import org.springframework.stereotype.Repository;
 
 import eu.daiad.web.hbase.EnumHBaseColumnFamily;
 import eu.daiad.web.hbase.EnumHBaseTable;
+import eu.daiad.web.hbase.HBaseScanStatistics;
 import eu.daiad.web.model.error.ApplicationException;
 import eu.daiad.web.model.error.DataErrorCode;
 import eu.daiad.web.model.error.SharedErrorCode;
@@ -33,6 +35,8 @@ import eu.daiad.web.model.query.EnumMetric;
 import eu.daiad.web.model.query.ExpandedDataQuery;
 import eu.daiad.web.model.query.ExpandedPopulationFilter;
 import eu.daiad.web.model.query.GroupDataSeries;
+import eu.daiad.web.model.query.PopulationHashIndex;
+import eu.daiad.web.model.query.QueryExecutionProfile;
 import eu.daiad.web.model.query.MeterDataPoint;
 import eu.daiad.web.model.query.MeterUserDataPoint;
 import eu.daiad.web.model.query.RankingDataPoint;
@@ -46,6 +50,13 @@ public class HBaseMeterForecastingDataRepository extends AbstractHBaseMeterDataR
      */
     private static final Log logger = LogFactory.getLog(HBaseMeterForecastingDataRepository.class);
 
+    /**
+     * Execution profile phases of smart water meter forecasting queries.
+     */
+    private static final String PHASE_SCAN = "forecast." + QueryExecutionProfile.PHASE_SCAN;
+
+    private static final String PHASE_RANKING = "forecast." + QueryExecutionProfile.PHASE_RANKING;
+
     public HBaseMeterForecastingDataRepository() {
         interval = EnumTimeInterval.DAY;
     }
@@ -194,12 +205,16 @@ public class HBaseMeterForecastingDataRepository extends AbstractHBaseMeterDataR
      */
     @Override
     public ArrayList<GroupDataSeries> forecast(ExpandedDataQuery query) throws ApplicationException {
+        long phaseStart = System.currentTimeMillis();
+
+        HBaseScanStatistics statistics = new HBaseScanStatistics();
+
         Table table = null;
         ResultScanner scanner = null;
 
         ArrayList<GroupDataSeries> result = new ArrayList<GroupDataSeries>();
         for (ExpandedPopulationFilter filter : query.getGroups()) {
-            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId()));
+            result.add(new GroupDataSeries(filter.getLabel(), filter.getSize(), filter.getAreaId(), query.getCalendar()));
         }
         try {
             table = connection.getTable(EnumHBaseTable.SWM_FORECAST_TIME.getValue());
@@ -243,6 +258,10 @@ public class HBaseMeterForecastingDataRepository extends AbstractHBaseMeterDataR
                     throw createApplicationException(DataErrorCode.TIME_GRANULARITY_NOT_SUPPORTED).set("level", query.getGranularity());
             }
 
+            PopulationHashIndex populationIndex = PopulationHashIndex.bySerialHash(query.getGroups());
+
+            query.getProfile().addPartitions(timePartitions);
+
             for (short p = 0; p < timePartitions; p++) {
                 Scan scan = new Scan();
                 scan.setCaching(scanCacheSize);
@@ -255,12 +274,19 @@ public class HBaseMeterForecastingDataRepository extends AbstractHBaseMeterDataR
                 scan.setStopRow(calculateTheClosestNextRowKeyForPrefix(rowKey));
 
                 scanner = table.getScanner(scan);
+                statistics.addScan();
 
                 for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                    statistics.addRow(r);
+
+                    List<PopulationHashIndex.Member> members = populationIndex.get(r.getRow(), 10, 16);
+                    if (members.isEmpty()) {
+                        continue;
+                    }
+
                     NavigableMap<byte[], byte[]> map = r.getFamilyMap(columnFamily);
 
                     long timeBucket = Bytes.toLong(Arrays.copyOfRange(r.getRow(), 2, 10));
-                    byte[] serialHash = Arrays.copyOfRange(r.getRow(), 10, 26);
 
                     for (Entry<byte[], byte[]> entry : map.entrySet()) {
                         int offset = Bytes.toInt(Arrays.copyOfRange(entry.getKey(), 0, 4));
@@ -274,30 +300,26 @@ public class HBaseMeterForecastingDataRepository extends AbstractHBaseMeterDataR
                             if (columnQualifier.equals("d")) {
                                 float difference = Bytes.toFloat(entry.getValue());
 
-                                int filterIndex = 0;
-                                for (ExpandedPopulationFilter filter : query.getGroups()) {
-                                    GroupDataSeries series = result.get(filterIndex);
-
-                                    int index = inArray(filter.getSerialHashes(), serialHash);
-                                    if (index >= 0) {
-                                        series.addMeterRankingDataPoint(
-                                            query.getGranularity(),
-                                            filter.getUserKeys().get(index),
-                                            filter.getLabels().get(index),
-                                            timestamp,
-                                            difference,
-                                            0,
-                                            query.getMetrics(),
-                                            query.getTimezone());
-                                    }
-
-                                    filterIndex++;
+                                for (PopulationHashIndex.Member member : members) {
+                                    ExpandedPopulationFilter filter = query.getGroups().get(member.getGroup());
+
+                                    result.get(member.getGroup()).addMeterRankingDataPoint(
+                                        query.getGranularity(),
+                                        filter.getUserKeys().get(member.getIndex()),
+                                        filter.getLabels().get(member.getIndex()),
+                                        timestamp,
+                                        difference,
+                                        0,
+                                        query.getMetrics(),
+                                        query.getTimezone());
                                 }
                             }
                         }
                     }
                 }
             }
+
+            statistics.addTo(query.getProfile());
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
         } finally {
@@ -315,6 +337,8 @@ public class HBaseMeterForecastingDataRepository extends AbstractHBaseMeterDataR
             }
         }
 
+        phaseStart = query.getProfile().endPhase(PHASE_SCAN, phaseStart);
+
         // Post process results
         int filterIndex = 0;
         for (final ExpandedPopulationFilter filter : query.getGroups()) {
@@ -323,58 +347,18 @@ public class HBaseMeterForecastingDataRepository extends AbstractHBaseMeterDataR
             if (filter.getRanking() == null) {
                 // Aggregate all user data points of a ranking data point to a
                 // single meter data point
-                ArrayList<DataPoint> points = new ArrayList<DataPoint>();
-
-                for (DataPoint point : series.getPoints()) {
-                    points.add(((RankingDataPoint) point).aggregate(query.getMetrics(), DataPoint.EnumDataPointType.METER));
-                }
-
-                series.setPoints(points);
+                series.aggregateRankings(query.getMetrics(), DataPoint.EnumDataPointType.METER);
             } else {
-                // Truncate (n-k) users and keep top/bottom-k only
-                for (DataPoint point : series.getPoints()) {
-                    RankingDataPoint ranking = (RankingDataPoint) point;
-
-                    Collections.sort(ranking.getUsers(), new Comparator<UserDataPoint>() {
-
-                        @Override
-                        public int compare(UserDataPoint u1, UserDataPoint u2) {
-                            MeterUserDataPoint m1 = (MeterUserDataPoint) u1;
-                            MeterUserDataPoint m2 = (MeterUserDataPoint) u2;
-
-                            if (m1.getVolume().get(EnumMetric.SUM) < m2.getVolume().get(EnumMetric.SUM)) {
-                                return -1;
-                            }
-                            if (m1.getVolume().get(EnumMetric.SUM) > m2.getVolume().get(EnumMetric.SUM)) {
-                                return 1;
-                            }
-                            return 0;
-                        }
-                    });
-
-                    int limit = filter.getRanking().getLimit();
-                    switch (filter.getRanking().getType()) {
-                        case TOP:
-                            for (int i = 0, max = ranking.getUsers().size() - limit; i < max; i++) {
-                                ranking.getUsers().remove(0);
-                            }
-                            break;
-                        case BOTTOM:
-                            for (int i = ranking.getUsers().size() - 1, max = limit - 1; i > max; i--) {
-                                ranking.getUsers().remove(i);
-                            }
-                            break;
-                        default:
-                            series.getPoints().clear();
-                            break;
-                    }
-                }
+                // Keep top/bottom-k users only
+                selectRankingUsers(filter, series);
             }
             filterIndex++;
         }
 
         cleanSeries(query, result);
 
+        query.getProfile().endPhase(PHASE_RANKING, phaseStart);
+
         return result;
     }
 
@@ -37,6 +37,19 @@ public interface IAmphiroIndexOrderedRepository {
      */
     AmphiroSessionUpdateCollection store(AuthenticatedUser user, AmphiroDevice device, AmphiroMeasurementCollection data) throws ApplicationException;
 
+    /**
+     * Validates and normalizes session and measurement data for an amphiro b1
+     * device without storing it. The same checks are performed by
+     * {@link IAmphiroIndexOrderedRepository#store}; data that passes
+     * validation is not rejected when it is stored later.
+     *
+     * @param user the owner of the device.
+     * @param device  the device.
+     * @param data a collection of amphiro b1 sessions and measurement time series.
+     * @throws ApplicationException if the data is not valid.
+     */
+    void validate(AuthenticatedUser user, AmphiroDevice device, AmphiroMeasurementCollection data) throws ApplicationException;
+
     /**
      * Searches for amphiro b1 session measurement time series.
      *
@@ -0,0 +1,74 @@
+package eu.daiad.web.repository.application;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import eu.daiad.web.model.EnumTimeAggregation;
+import eu.daiad.web.model.error.ApplicationException;
+import eu.daiad.web.model.meter.MeterAggregate;
+import eu.daiad.web.model.meter.MeterAggregationGroup;
+
+/**
+ * Provides access to the smart water meter data required for incrementally
+ * computing pre-aggregated group data.
+ */
+public interface IMeterAggregationRepository {
+
+    /**
+     * Returns the time up to which smart water meter data has been aggregated.
+     *
+     * @return the watermark or 0 if no data has been aggregated yet.
+     * @throws ApplicationException if an error occurs.
+     */
+    long getWatermark() throws ApplicationException;
+
+    /**
+     * Sets the time up to which smart water meter data has been aggregated.
+     *
+     * @param timestamp the new watermark.
+     * @throws ApplicationException if an error occurs.
+     */
+    void setWatermark(long timestamp) throws ApplicationException;
+
+    /**
+     * Finds the smart water meters whose readings have been stored during the
+     * given time interval.
+     *
+     * @param startTime the time interval lower limit (inclusive).
+     * @param endTime the time interval upper limit (exclusive).
+     * @return for every changed smart water meter serial number hash, the
+     *         earliest and the latest timestamp of the stored readings.
+     * @throws ApplicationException if an error occurs.
+     */
+    Map<ByteBuffer, long[]> getChangedMeters(long startTime, long endTime) throws ApplicationException;
+
+    /**
+     * Reads the readings of a smart water meter.
+     *
+     * @param serialHash the MD5 hash of the meter serial number.
+     * @param startTime the time interval lower limit.
+     * @param endTime the time interval upper limit.
+     * @param callback the callback that receives the readings.
+     * @throws ApplicationException if an error occurs.
+     */
+    void readMeter(byte[] serialHash, long startTime, long endTime, MeterRowDecoder.Callback callback) throws ApplicationException;
+
+    /**
+     * Stores the aggregate of a group for a single time bucket.
+     *
+     * @param group the group.
+     * @param granularity the time granularity.
+     * @param timestamp the time bucket timestamp.
+     * @param aggregate the aggregate.
+     * @throws ApplicationException if an error occurs.
+     */
+    void store(MeterAggregationGroup group, EnumTimeAggregation granularity, long timestamp, MeterAggregate aggregate) throws ApplicationException;
+
+    /**
+     * Persists all stored aggregates.
+     *
+     * @throws ApplicationException if an error occurs or any aggregate has failed to be persisted.
+     */
+    void flush() throws ApplicationException;
+
+}
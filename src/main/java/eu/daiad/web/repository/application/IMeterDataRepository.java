@@ -1,6 +1,7 @@
 package eu.daiad.web.repository.application;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.joda.time.DateTimeZone;
 
@@ -27,6 +28,28 @@ public interface IMeterDataRepository {
      */
     MeterDataStoreStats store(String serial, WaterMeterMeasurementCollection data);
 
+    /**
+     * Flushes all buffered smart water meter readings. Readings stored with
+     * {@link IMeterDataRepository#store(String, WaterMeterMeasurementCollection)}
+     * are buffered and become durable only after a flush. When the method
+     * returns, failed readings have been reported to the corresponding
+     * {@link MeterDataStoreStats}. Daily rollups of the days with new readings
+     * are recomputed asynchronously; until then, queries read the raw readings
+     * of these days.
+     */
+    void flush();
+
+    /**
+     * Recomputes the daily rollups of all days whose rollups have not been
+     * updated after new readings have been stored, e.g. because the
+     * application has stopped or a rollup update has failed.
+     *
+     * @param stopped flag set when the repair must stop.
+     * @return the number of repaired days.
+     * @throws ApplicationException if an error occurs or the repair is stopped.
+     */
+    long repairDailyRollups(AtomicBoolean stopped) throws ApplicationException;
+
     /**
      * Returns the current status for a set of smart water meters.
      *
@@ -1,6 +1,7 @@
 package eu.daiad.web.repository.application;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.daiad.web.model.error.ApplicationException;
 import eu.daiad.web.model.query.ExpandedDataQuery;
@@ -16,4 +17,15 @@ public interface IMeterForecastingAggregateDataRepository {
      * @throws ApplicationException if an error occurs or query validation fails.
      */
     List<GroupDataSeries> forecast(ExpandedDataQuery query) throws ApplicationException;
+
+    /**
+     * Converts the top-k/bottom-k cells stored using the legacy text format to
+     * the binary format. Cells converted before a stop request are persisted.
+     *
+     * @param stopped flag set when the conversion must stop.
+     * @return the number of converted cells.
+     * @throws ApplicationException if an error occurs or the conversion is stopped.
+     */
+    long convertRankingCells(AtomicBoolean stopped) throws ApplicationException;
+
 }
@@ -0,0 +1,46 @@
+package eu.daiad.web.repository.application;
+
+import java.util.List;
+import java.util.UUID;
+
+import eu.daiad.web.model.query.PopulationMember;
+
+/**
+ * Resolves the members of groups and utilities in bulk for expanding query
+ * populations. Resolved populations are cached until they are invalidated.
+ */
+public interface IPopulationMemberRepository {
+
+    /**
+     * Returns the members of a group.
+     *
+     * @param groupKey the group key.
+     * @return a list of {@link PopulationMember}.
+     */
+    List<PopulationMember> getGroupMembers(UUID groupKey);
+
+    /**
+     * Returns the members of a utility.
+     *
+     * @param utilityKey the utility key.
+     * @return a list of {@link PopulationMember}.
+     */
+    List<PopulationMember> getUtilityMembers(UUID utilityKey);
+
+    /**
+     * Invalidates the cached members of a group or utility. If a transaction
+     * is active, the members are invalidated again after the transaction
+     * commits.
+     *
+     * @param key the group or utility key.
+     */
+    void invalidate(UUID key);
+
+    /**
+     * Invalidates the cached members of all groups and utilities, e.g. when
+     * a device is registered or removed. If a transaction is active, the
+     * members are invalidated again after the transaction commits.
+     */
+    void invalidateAll();
+
+}
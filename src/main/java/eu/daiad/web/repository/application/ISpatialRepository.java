@@ -1,6 +1,8 @@
 package eu.daiad.web.repository.application;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import com.vividsolutions.jts.geom.Geometry;
@@ -22,6 +24,15 @@ public interface ISpatialRepository {
      */
     Geometry getUserLocationByUserKey(UUID userKey);
 
+    /**
+     * Gets the locations of many users. The location of every user is resolved
+     * as in {@link #getUserLocationByUserKey(UUID)}.
+     *
+     * @param userKeys the user keys.
+     * @return a map from user key to location. Users with an unknown location are not included.
+     */
+    Map<UUID, Geometry> getUserLocationsByUserKey(Collection<UUID> userKeys);
+
     /**
      * Gets the default area for the user with the given key.
      *
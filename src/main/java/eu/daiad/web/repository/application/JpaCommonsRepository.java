@@ -11,6 +11,7 @@ import javax.persistence.TypedQuery;
 
 import org.apache.commons.lang.StringUtils;
 import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -43,6 +44,12 @@ public class JpaCommonsRepository extends BaseRepository implements ICommonsRepo
     @PersistenceContext(unitName = "default")
     EntityManager entityManager;
 
+    /**
+     * Repository for resolving population members used by data queries.
+     */
+    @Autowired
+    private IPopulationMemberRepository populationMemberRepository;
+
     /**
      * Gets a user by its key.
      *
@@ -198,6 +205,8 @@ public class JpaCommonsRepository extends BaseRepository implements ICommonsRepo
 
         entityManager.flush();
 
+        populationMemberRepository.invalidate(commons.getKey());
+
         return commons.getKey();
     }
 
@@ -263,6 +272,8 @@ public class JpaCommonsRepository extends BaseRepository implements ICommonsRepo
 
         entityManager.remove(commonsResult.get(0));
         entityManager.flush();
+
+        populationMemberRepository.invalidate(commonsKey);
     }
 
     /**
@@ -305,6 +316,8 @@ public class JpaCommonsRepository extends BaseRepository implements ICommonsRepo
             commons.setSize(commons.getSize() + 1);
 
             entityManager.flush();
+
+            populationMemberRepository.invalidate(commonsKey);
         }
     }
 
@@ -354,6 +367,8 @@ public class JpaCommonsRepository extends BaseRepository implements ICommonsRepo
             commons.setSize(commons.getSize() - 1);
 
             entityManager.flush();
+
+            populationMemberRepository.invalidate(commonsKey);
         }
     }
 
@@ -12,6 +12,7 @@ import javax.persistence.TypedQuery;
 
 import org.joda.time.DateTime;
 import org.joda.time.Days;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -59,6 +60,9 @@ public class JpaDeviceRepository extends BaseRepository implements IDeviceReposi
     @PersistenceContext(unitName = "default")
     EntityManager entityManager;
 
+    @Autowired
+    private IPopulationMemberRepository populationMemberRepository;
+
     public JpaDeviceRepository(DefaultAmphiroProperties defaultAmphiroProperties) {
         this.defaultAmphiroProperties = defaultAmphiroProperties;
     }
@@ -192,6 +196,8 @@ public class JpaDeviceRepository extends BaseRepository implements IDeviceReposi
 
             entityManager.persist(account);
 
+            populationMemberRepository.invalidateAll();
+
             deviceKey = meter.getKey();
         } else if (enforceWhiteListCheck) {
             // If the user does not exist, update white list
@@ -816,9 +822,14 @@ public class JpaDeviceRepository extends BaseRepository implements IDeviceReposi
             for (DeviceEntity d : result) {
                 switch (d.getType()) {
                     case AMPHIRO:
+                        d.getAccount().getDevices().remove(d);
+                        entityManager.remove(d);
+                        break;
                     case METER:
                         d.getAccount().getDevices().remove(d);
                         entityManager.remove(d);
+
+                        populationMemberRepository.invalidateAll();
                         break;
                     default:
                         throw createApplicationException(DeviceErrorCode.NOT_SUPPORTED).set("type", d.getType());
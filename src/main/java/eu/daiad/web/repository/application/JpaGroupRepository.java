@@ -13,6 +13,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Repository;
@@ -50,6 +51,8 @@ public class JpaGroupRepository extends BaseRepository implements IGroupReposito
     @PersistenceContext(unitName = "default")
     EntityManager entityManager;
 
+    @Autowired
+    private IPopulationMemberRepository populationMemberRepository;
 
     @Override
     public Group getByKey(UUID key) {
@@ -303,6 +306,8 @@ public class JpaGroupRepository extends BaseRepository implements IGroupReposito
             entityManager.persist(segmentEntity);
             entityManager.flush();
 
+            populationMemberRepository.invalidate(segmentEntity.getKey());
+
             TypedQuery<AccountEntity> accountQuery = entityManager
                             .createQuery("select a from account a where a.key = :key",
                                             AccountEntity.class);
@@ -371,6 +376,8 @@ public class JpaGroupRepository extends BaseRepository implements IGroupReposito
 
         entityManager.persist(groupEntity);
 
+        populationMemberRepository.invalidate(groupEntity.getKey());
+
         for (UUID userKey : members) {
             accountQuery.setParameter("key", userKey);
             accountQuery.setParameter("utility_id", utilityId);
@@ -415,6 +422,8 @@ public class JpaGroupRepository extends BaseRepository implements IGroupReposito
             }
 
             entityManager.remove(groups.get(0));
+
+            populationMemberRepository.invalidate(groupKey);
         }
     }
 
@@ -431,6 +440,8 @@ public class JpaGroupRepository extends BaseRepository implements IGroupReposito
             ClusterEntity cluster = clusters.get(0);
             for (GroupSegmentEntity segment : cluster.getGroups()) {
                 entityManager.remove(segment);
+
+                populationMemberRepository.invalidate(segment.getKey());
             }
             entityManager.remove(cluster);
         }
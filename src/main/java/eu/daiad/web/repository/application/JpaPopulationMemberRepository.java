@@ -0,0 +1,230 @@
+package eu.daiad.web.repository.application;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import eu.daiad.web.model.error.SharedErrorCode;
+import eu.daiad.web.model.query.PopulationMember;
+import eu.daiad.web.repository.BaseRepository;
+
+/**
+ * Resolves the members of a group or utility using two queries, one for the
+ * accounts and one for the smart water meters, instead of two queries per
+ * member. Resolved populations are kept in a bounded LRU cache. A cached
+ * population is removed when it is invalidated or when its time to live
+ * expires.
+ */
+@Repository
+@Transactional("applicationTransactionManager")
+public class JpaPopulationMemberRepository extends BaseRepository implements IPopulationMemberRepository {
+
+    /**
+     * Maximum number of cached populations. Set to 0 to disable the cache.
+     */
+    @Value("${daiad.query.population.cache.size:200}")
+    private int capacity;
+
+    /**
+     * Time to live in seconds of a cached population.
+     */
+    @Value("${daiad.query.population.cache.ttl:600}")
+    private int ttl;
+
+    @PersistenceContext(unitName = "default")
+    EntityManager entityManager;
+
+    /**
+     * Incremented on every invalidation. A population is cached only if no
+     * invalidation has occurred while it was being loaded.
+     */
+    private long generation = 0;
+
+    private final LinkedHashMap<UUID, CachedPopulation> populations = new LinkedHashMap<UUID, CachedPopulation>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, CachedPopulation> eldest) {
+            return (size() > capacity);
+        }
+    };
+
+    @Override
+    public List<PopulationMember> getGroupMembers(UUID groupKey) {
+        List<PopulationMember> members = getCachedPopulation(groupKey);
+        if (members != null) {
+            return members;
+        }
+
+        long loadGeneration = getGeneration();
+
+        String accountQueryString = "select a.key, a.username from group_member gm join gm.account a " +
+                                    "where gm.group.key = :key";
+
+        String meterQueryString = "select d.account.key, d.serial from device_meter d " +
+                                  "where d.account.id in (select gm.account.id from group_member gm where gm.group.key = :key) " +
+                                  "order by d.registeredOn";
+
+        members = loadMembers(accountQueryString, meterQueryString, groupKey);
+
+        putCachedPopulation(groupKey, members, loadGeneration);
+
+        return members;
+    }
+
+    @Override
+    public List<PopulationMember> getUtilityMembers(UUID utilityKey) {
+        List<PopulationMember> members = getCachedPopulation(utilityKey);
+        if (members != null) {
+            return members;
+        }
+
+        long loadGeneration = getGeneration();
+
+        String accountQueryString = "select a.key, a.username from account a where a.utility.key = :key";
+
+        String meterQueryString = "select d.account.key, d.serial from device_meter d " +
+                                  "where d.account.utility.key = :key " +
+                                  "order by d.registeredOn";
+
+        members = loadMembers(accountQueryString, meterQueryString, utilityKey);
+
+        putCachedPopulation(utilityKey, members, loadGeneration);
+
+        return members;
+    }
+
+    @Override
+    public void invalidate(final UUID key) {
+        remove(key);
+
+        // Readers may load the previous members until the transaction commits
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCommit() {
+                    remove(key);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        remove(null);
+
+        // Readers may load the previous members until the transaction commits
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCommit() {
+                    remove(null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the members of a population. When a user has more than one smart
+     * water meter, the meter registered first is selected.
+     *
+     * @param accountQueryString query that returns the key and user name of every member.
+     * @param meterQueryString query that returns the user key and serial number of every member meter.
+     * @param key the group or utility key.
+     * @return an immutable list of {@link PopulationMember}.
+     */
+    private List<PopulationMember> loadMembers(String accountQueryString, String meterQueryString, UUID key) {
+        try {
+            TypedQuery<Object[]> meterQuery = entityManager.createQuery(meterQueryString, Object[].class);
+            meterQuery.setParameter("key", key);
+
+            Map<UUID, String> serials = new HashMap<UUID, String>();
+            for (Object[] row : meterQuery.getResultList()) {
+                if (!serials.containsKey(row[0])) {
+                    serials.put((UUID) row[0], (String) row[1]);
+                }
+            }
+
+            TypedQuery<Object[]> accountQuery = entityManager.createQuery(accountQueryString, Object[].class);
+            accountQuery.setParameter("key", key);
+
+            List<Object[]> accounts = accountQuery.getResultList();
+
+            MessageDigest md = MessageDigest.getInstance("MD5");
+
+            List<PopulationMember> members = new ArrayList<PopulationMember>(accounts.size());
+            for (Object[] row : accounts) {
+                UUID userKey = (UUID) row[0];
+
+                members.add(new PopulationMember(md, userKey, (String) row[1], serials.get(userKey)));
+            }
+
+            return Collections.unmodifiableList(members);
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+    }
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+    private synchronized List<PopulationMember> getCachedPopulation(UUID key) {
+        CachedPopulation population = populations.get(key);
+        if (population == null) {
+            return null;
+        }
+        if (population.expiresOn <= System.currentTimeMillis()) {
+            populations.remove(key);
+            return null;
+        }
+        return population.members;
+    }
+
+    private synchronized void putCachedPopulation(UUID key, List<PopulationMember> members, long loadGeneration) {
+        if ((capacity > 0) && (generation == loadGeneration)) {
+            populations.put(key, new CachedPopulation(members, System.currentTimeMillis() + ttl * 1000L));
+        }
+    }
+
+    private synchronized void remove(UUID key) {
+        generation++;
+
+        if (key == null) {
+            populations.clear();
+        } else {
+            populations.remove(key);
+        }
+    }
+
+    private static class CachedPopulation {
+
+        private final List<PopulationMember> members;
+
+        private final long expiresOn;
+
+        CachedPopulation(List<PopulationMember> members, long expiresOn) {
+            this.members = members;
+            this.expiresOn = expiresOn;
+        }
+    }
+
+}
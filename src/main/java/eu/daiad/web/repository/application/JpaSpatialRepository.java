@@ -1,6 +1,12 @@
 package eu.daiad.web.repository.application;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.persistence.EntityManager;
@@ -25,6 +31,11 @@ import eu.daiad.web.repository.BaseRepository;
 @Repository
 public class JpaSpatialRepository extends BaseRepository implements ISpatialRepository {
 
+    /**
+     * Maximum number of user keys used as parameters of a single query.
+     */
+    private static final int MAX_KEYS_PER_QUERY = 1000;
+
     @Value("${daiad.spatial.neighbourhood.group}")
     private String defaultAreaGroup;
 
@@ -83,6 +94,60 @@ public class JpaSpatialRepository extends BaseRepository implements ISpatialRepo
         return null;
     }
 
+    /**
+     * Gets the locations of many users. The account location is preferred. If
+     * it is not set, the location of the first smart water meter registration
+     * is used.
+     *
+     * @param userKeys the user keys.
+     * @return a map from user key to location. Users with an unknown location are not included.
+     */
+    @Override
+    public Map<UUID, Geometry> getUserLocationsByUserKey(Collection<UUID> userKeys) {
+        Map<UUID, Geometry> locations = new HashMap<UUID, Geometry>();
+
+        List<UUID> keys = new ArrayList<UUID>(new HashSet<UUID>(userKeys));
+
+        String accountQueryString = "select a.key, a.location from account a where a.key in :userKeys";
+
+        String meterQueryString = "select d.account.key, d.location from device_meter d where d.account.key in :userKeys";
+
+        for (int offset = 0, count = keys.size(); offset < count; offset += MAX_KEYS_PER_QUERY) {
+            List<UUID> batch = keys.subList(offset, Math.min(offset + MAX_KEYS_PER_QUERY, count));
+
+            // Get account locations
+            TypedQuery<Object[]> accountQuery = entityManager.createQuery(accountQueryString, Object[].class)
+                                                             .setParameter("userKeys", batch);
+
+            Set<UUID> pending = new HashSet<UUID>();
+
+            for (Object[] row : accountQuery.getResultList()) {
+                if (row[1] != null) {
+                    locations.put((UUID) row[0], (Geometry) row[1]);
+                } else {
+                    pending.add((UUID) row[0]);
+                }
+            }
+
+            if (pending.isEmpty()) {
+                continue;
+            }
+
+            // Use the location of the first smart water meter registration
+            // for accounts with no location
+            TypedQuery<Object[]> meterQuery = entityManager.createQuery(meterQueryString, Object[].class)
+                                                           .setParameter("userKeys", new ArrayList<UUID>(pending));
+
+            for (Object[] row : meterQuery.getResultList()) {
+                if ((pending.remove(row[0])) && (row[1] != null)) {
+                    locations.put((UUID) row[0], (Geometry) row[1]);
+                }
+            }
+        }
+
+        return locations;
+    }
+
     /**
      * Gets the default area for the user with the given key.
      *
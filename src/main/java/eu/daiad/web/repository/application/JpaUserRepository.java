@@ -20,6 +20,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.joda.time.DateTime;
 import org.joda.time.Period;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
@@ -102,6 +103,12 @@ public class JpaUserRepository extends BaseRepository implements IUserRepository
     @PersistenceContext(unitName = "default")
     EntityManager entityManager;
 
+    /**
+     * Repository for resolving population members used by data queries.
+     */
+    @Autowired
+    private IPopulationMemberRepository populationMemberRepository;
+
     /**
      * Initializes roles.
      *
@@ -474,6 +481,8 @@ public class JpaUserRepository extends BaseRepository implements IUserRepository
             entityManager.persist(householdMember);
             entityManager.flush();
 
+            populationMemberRepository.invalidate(utility.getKey());
+
             return account.getKey();
         } catch (Exception ex) {
             throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
@@ -0,0 +1,263 @@
+package eu.daiad.web.repository.application;
+
+import java.util.UUID;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * The readings of a smart water meter for a single day, pre-aggregated and
+ * stored in the {@link eu.daiad.web.hbase.EnumHBaseTable#SWM_DAILY} table.
+ *
+ * The row key is composed of the MD5 hash of the serial number (16) and the
+ * month of the day in the rollup time zone as a yyyyMM integer (4). Every day
+ * is stored as a single cell whose qualifier is the day start
+ * instant. The value is composed of the day end instant (8), the number of
+ * readings (4), the sum of the reading differences (4), the minimum volume
+ * before any reading (4) and the maximum volume after any reading (4). Since
+ * a cell records its exact interval, a query may use it only if the interval
+ * is a day in the query time zone.
+ *
+ * A day whose readings have changed after its rollup was computed is marked
+ * as dirty by a marker cell in the same row. The marker qualifier is the
+ * marker prefix (1) followed by the day start instant (8). The value is the
+ * marker state (1) followed by a random nonce (16); the nonce identifies the
+ * writer so that a marker is only replaced or removed by the operation that
+ * has read it. A marker is {@link MeterDailyRollup#MARKER_PENDING} while the
+ * readings that caused it may not be persisted yet and
+ * {@link MeterDailyRollup#MARKER_READY} once they are. The rollup of a marked
+ * day must not be used.
+ */
+public final class MeterDailyRollup {
+
+    /**
+     * Marker state of a day whose readings may not be persisted yet.
+     */
+    public static final byte MARKER_PENDING = 1;
+
+    /**
+     * Marker state of a day whose readings are persisted and whose rollup can
+     * be recomputed.
+     */
+    public static final byte MARKER_READY = 2;
+
+    /**
+     * First byte of the qualifier of a marker cell. Rollup qualifiers are
+     * positive instants, hence their first byte is always zero.
+     */
+    public static final byte MARKER_PREFIX = 'm';
+
+    private static final int VALUE_SIZE = 24;
+
+    private static final int MARKER_QUALIFIER_SIZE = 9;
+
+    private static final int MARKER_VALUE_SIZE = 17;
+
+    private long start;
+
+    private long end;
+
+    private int count;
+
+    private double difference;
+
+    private double min = Double.MAX_VALUE;
+
+    private double max = -Double.MAX_VALUE;
+
+    public MeterDailyRollup(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Creates the row key of the rollups of the month of a timestamp.
+     *
+     * @param serialHash the MD5 hash of the serial number.
+     * @param timestamp the timestamp.
+     * @param timezone the rollup time zone.
+     * @return a HBase row key.
+     */
+    public static byte[] createRowKey(byte[] serialHash, long timestamp, DateTimeZone timezone) {
+        DateTime date = new DateTime(timestamp, timezone);
+
+        byte[] rowKey = new byte[serialHash.length + 4];
+        System.arraycopy(serialHash, 0, rowKey, 0, serialHash.length);
+        Bytes.putInt(rowKey, serialHash.length, date.getYear() * 100 + date.getMonthOfYear());
+
+        return rowKey;
+    }
+
+    /**
+     * Creates the qualifier of the marker cell of a day.
+     *
+     * @param start the day start instant.
+     * @return the qualifier.
+     */
+    public static byte[] createMarkerQualifier(long start) {
+        byte[] qualifier = new byte[MARKER_QUALIFIER_SIZE];
+
+        qualifier[0] = MARKER_PREFIX;
+        Bytes.putLong(qualifier, 1, start);
+
+        return qualifier;
+    }
+
+    /**
+     * Creates the value of a marker cell with a new nonce.
+     *
+     * @param state the marker state.
+     * @return the value.
+     */
+    public static byte[] createMarkerValue(byte state) {
+        UUID nonce = UUID.randomUUID();
+
+        byte[] value = new byte[MARKER_VALUE_SIZE];
+
+        value[0] = state;
+        Bytes.putLong(value, 1, nonce.getMostSignificantBits());
+        Bytes.putLong(value, 9, nonce.getLeastSignificantBits());
+
+        return value;
+    }
+
+    /**
+     * Returns true if the cell is a marker cell.
+     *
+     * @param cell the cell.
+     * @return true if the cell is a marker; Otherwise false.
+     */
+    public static boolean isMarker(Cell cell) {
+        return ((cell.getQualifierLength() == MARKER_QUALIFIER_SIZE) &&
+                (cell.getQualifierArray()[cell.getQualifierOffset()] == MARKER_PREFIX));
+    }
+
+    /**
+     * Returns the day start instant of a marker cell.
+     *
+     * @param cell the marker cell.
+     * @return the day start instant.
+     */
+    public static long getMarkerDay(Cell cell) {
+        return Bytes.toLong(cell.getQualifierArray(), cell.getQualifierOffset() + 1);
+    }
+
+    /**
+     * Returns the state of a marker cell value.
+     *
+     * @param value the marker cell value.
+     * @return the marker state or 0 if the value is not valid.
+     */
+    public static byte getMarkerState(byte[] value) {
+        if ((value == null) || (value.length != MARKER_VALUE_SIZE)) {
+            return 0;
+        }
+        return value[0];
+    }
+
+    /**
+     * Decodes a rollup cell.
+     *
+     * @param cell the cell.
+     * @return the rollup or null if the cell is not a valid rollup.
+     */
+    public static MeterDailyRollup fromCell(Cell cell) {
+        if ((cell.getQualifierLength() != 8) || (cell.getValueLength() != VALUE_SIZE)) {
+            return null;
+        }
+
+        byte[] value = cell.getValueArray();
+        int offset = cell.getValueOffset();
+
+        MeterDailyRollup rollup = new MeterDailyRollup(Bytes.toLong(cell.getQualifierArray(), cell.getQualifierOffset()),
+                                                       Bytes.toLong(value, offset));
+        rollup.count = Bytes.toInt(value, offset + 8);
+        rollup.difference = Bytes.toFloat(value, offset + 12);
+        rollup.min = Bytes.toFloat(value, offset + 16);
+        rollup.max = Bytes.toFloat(value, offset + 20);
+
+        return rollup;
+    }
+
+    /**
+     * Adds a reading to the rollup.
+     *
+     * @param volume the reading volume.
+     * @param difference the volume difference from the previous reading.
+     */
+    public void add(float volume, float difference) {
+        count++;
+        this.difference += difference;
+        min = Math.min(min, volume - difference);
+        max = Math.max(max, volume);
+    }
+
+    /**
+     * Returns the cell qualifier.
+     *
+     * @return the qualifier.
+     */
+    public byte[] getQualifier() {
+        return Bytes.toBytes(start);
+    }
+
+    /**
+     * Returns the cell value.
+     *
+     * @return the value.
+     */
+    public byte[] getValue() {
+        byte[] value = new byte[VALUE_SIZE];
+
+        Bytes.putLong(value, 0, end);
+        Bytes.putInt(value, 8, count);
+        Bytes.putFloat(value, 12, (float) difference);
+        Bytes.putFloat(value, 16, (float) min);
+        Bytes.putFloat(value, 20, (float) max);
+
+        return value;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getDifference() {
+        return difference;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Receives the readings of a smart water meter read either from daily
+     * rollups or from the raw readings.
+     */
+    public static abstract class Callback extends MeterRowDecoder.Callback {
+
+        /**
+         * Invoked for every daily rollup with at least one reading.
+         *
+         * @param serialHash the MD5 hash of the serial number.
+         * @param rollup the rollup.
+         */
+        public abstract void onRollup(byte[] serialHash, MeterDailyRollup rollup);
+
+    }
+
+}
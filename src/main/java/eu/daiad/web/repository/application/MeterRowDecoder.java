@@ -0,0 +1,160 @@
+package eu.daiad.web.repository.application;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import eu.daiad.web.hbase.HBaseScanStatistics;
+
+/**
+ * Decodes the smart water meter readings stored in a row of either the
+ * {@link eu.daiad.web.hbase.EnumHBaseTable#SWM_USER} or the
+ * {@link eu.daiad.web.hbase.EnumHBaseTable#SWM_TIME} table.
+ *
+ * Every reading is stored as a set of columns whose qualifier is composed of
+ * the 2 byte time offset, the length of the column name and the column name.
+ * The decoder walks the cells of a row in place using offsets and lengths and
+ * pushes a single tuple for every reading that has both a volume and a
+ * difference value. No objects are allocated per cell.
+ */
+public final class MeterRowDecoder {
+
+    private static final byte COLUMN_VOLUME = (byte) 'v';
+
+    private static final byte COLUMN_DIFFERENCE = (byte) 'd';
+
+    private MeterRowDecoder() {
+
+    }
+
+    /**
+     * Decodes the readings of a row whose timestamps are inside a time interval.
+     *
+     * @param result the row to decode.
+     * @param columnFamily the column family of the readings.
+     * @param timeBucketOffset the offset of the time bucket in the row key.
+     * @param serialHashOffset the offset of the serial number hash in the row key.
+     * @param startTime the time interval lower limit.
+     * @param endTime the time interval upper limit.
+     * @param callback the callback that receives the readings.
+     * @return false if the callback has requested to stop decoding; Otherwise true.
+     */
+    public static boolean decode(Result result,
+                                 byte[] columnFamily,
+                                 int timeBucketOffset,
+                                 int serialHashOffset,
+                                 long startTime,
+                                 long endTime,
+                                 Callback callback) {
+        Cell[] cells = result.rawCells();
+        if ((cells == null) || (cells.length == 0)) {
+            return true;
+        }
+
+        byte[] row = cells[0].getRowArray();
+        int rowOffset = cells[0].getRowOffset();
+
+        if (!callback.accept(row, rowOffset + serialHashOffset)) {
+            return true;
+        }
+
+        long timeBucket = Bytes.toLong(row, rowOffset + timeBucketOffset);
+
+        int currentOffset = -1;
+        float volume = 0, difference = 0;
+        boolean hasVolume = false, hasDifference = false;
+
+        for (Cell cell : cells) {
+            if (!Bytes.equals(cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength(),
+                              columnFamily, 0, columnFamily.length)) {
+                continue;
+            }
+
+            byte[] qualifier = cell.getQualifierArray();
+            int qualifierOffset = cell.getQualifierOffset();
+
+            short offset = Bytes.toShort(qualifier, qualifierOffset);
+            long timestamp = ((Long.MAX_VALUE / 1000L) - (timeBucket + (long) offset)) * 1000L;
+
+            if ((timestamp < startTime) || (endTime < timestamp)) {
+                continue;
+            }
+
+            if (offset != currentOffset) {
+                currentOffset = offset;
+                hasVolume = hasDifference = false;
+            }
+
+            // Only single character column names are decoded
+            if ((cell.getQualifierLength() != 4) || (qualifier[qualifierOffset + 2] != 1)) {
+                continue;
+            }
+
+            switch (qualifier[qualifierOffset + 3]) {
+                case COLUMN_VOLUME:
+                    volume = Bytes.toFloat(cell.getValueArray(), cell.getValueOffset());
+                    hasVolume = true;
+                    break;
+                case COLUMN_DIFFERENCE:
+                    difference = Bytes.toFloat(cell.getValueArray(), cell.getValueOffset());
+                    hasDifference = true;
+                    break;
+                default:
+                    continue;
+            }
+
+            if ((hasVolume) && (hasDifference)) {
+                hasVolume = hasDifference = false;
+
+                if (!callback.onReading(row, rowOffset + serialHashOffset, timestamp, volume, difference)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Receives the readings decoded by {@link MeterRowDecoder}. The serial
+     * number hash is passed as an offset in the row key array; the array must
+     * not be modified or retained.
+     */
+    public static abstract class Callback {
+
+        /**
+         * Invoked once per row before any reading is decoded.
+         *
+         * @param row the array that contains the row key.
+         * @param serialHashOffset the offset of the serial number hash.
+         * @return true if the row readings should be decoded; Otherwise false.
+         */
+        public boolean accept(byte[] row, int serialHashOffset) {
+            return true;
+        }
+
+        /**
+         * Invoked for every reading of the row.
+         *
+         * @param row the array that contains the row key.
+         * @param serialHashOffset the offset of the serial number hash.
+         * @param timestamp the reading timestamp.
+         * @param volume the reading volume.
+         * @param difference the volume difference from the previous reading.
+         * @return true to continue decoding; Otherwise false.
+         */
+        public abstract boolean onReading(byte[] row, int serialHashOffset, long timestamp, float volume, float difference);
+
+        /**
+         * Returns the statistics that are updated by the scans that feed this
+         * callback.
+         *
+         * @return the scan statistics or null if no statistics are collected.
+         */
+        public HBaseScanStatistics getStatistics() {
+            return null;
+        }
+
+    }
+
+}
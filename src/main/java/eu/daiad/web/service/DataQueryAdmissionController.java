@@ -0,0 +1,290 @@
+package eu.daiad.web.service;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import eu.daiad.web.model.admin.QueryAdmissionStatistics;
+import eu.daiad.web.model.query.EnumQueryCaller;
+import eu.daiad.web.model.query.ExpandedDataQuery;
+import eu.daiad.web.model.query.ExpandedPopulationFilter;
+import eu.daiad.web.model.security.AuthenticatedUser;
+import eu.daiad.web.model.security.EnumRole;
+
+/**
+ * Admission control for data queries. Every caller class has a budget of
+ * weight units shared by its concurrently executed queries. The weight of a
+ * query is the number of users, or population groups for pre-aggregated
+ * queries, multiplied by the number of time buckets of the query interval;
+ * hence it approximates the number of HBase rows the query reads. A query
+ * heavier than the whole budget of its class is admitted only when no other
+ * query of the class is executing.
+ *
+ * A query waits until enough budget is available or the queue timeout of its
+ * class expires, in which case the query is rejected. Budgets are fair; once a
+ * heavy query is waiting, lighter queries of the same class queue behind it.
+ * Queries of other classes are not affected.
+ */
+@Component
+public class DataQueryAdmissionController implements InitializingBean {
+
+    /**
+     * Budget in weight units of end user queries. Set to 0 to disable
+     * admission control for the class.
+     */
+    @Value("${daiad.query.admission.mobile.capacity:100000}")
+    private long mobileCapacity;
+
+    /**
+     * Maximum time in seconds an end user query waits for budget.
+     */
+    @Value("${daiad.query.admission.mobile.timeout:5}")
+    private int mobileTimeout;
+
+    /**
+     * Budget in weight units of utility and system administrator queries. Set
+     * to 0 to disable admission control for the class.
+     */
+    @Value("${daiad.query.admission.utility.capacity:10000000}")
+    private long utilityCapacity;
+
+    /**
+     * Maximum time in seconds a utility query waits for budget.
+     */
+    @Value("${daiad.query.admission.utility.timeout:30}")
+    private int utilityTimeout;
+
+    /**
+     * Budget in weight units of queries with no authenticated user. Set to 0
+     * to disable admission control for the class.
+     */
+    @Value("${daiad.query.admission.batch.capacity:10000000}")
+    private long batchCapacity;
+
+    /**
+     * Maximum time in seconds a batch query waits for budget.
+     */
+    @Value("${daiad.query.admission.batch.timeout:300}")
+    private int batchTimeout;
+
+    private final Map<EnumQueryCaller, Budget> budgets = new EnumMap<EnumQueryCaller, Budget>(EnumQueryCaller.class);
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        budgets.put(EnumQueryCaller.MOBILE, new Budget(EnumQueryCaller.MOBILE, mobileCapacity, mobileTimeout));
+        budgets.put(EnumQueryCaller.UTILITY, new Budget(EnumQueryCaller.UTILITY, utilityCapacity, utilityTimeout));
+        budgets.put(EnumQueryCaller.BATCH, new Budget(EnumQueryCaller.BATCH, batchCapacity, batchTimeout));
+    }
+
+    /**
+     * Returns the caller class of a query executor.
+     *
+     * @param executor the query executor or null if no user is authenticated.
+     * @return the caller class.
+     */
+    public EnumQueryCaller getCaller(AuthenticatedUser executor) {
+        if (executor == null) {
+            return EnumQueryCaller.BATCH;
+        }
+        if (executor.hasRole(EnumRole.ROLE_UTILITY_ADMIN, EnumRole.ROLE_SYSTEM_ADMIN)) {
+            return EnumQueryCaller.UTILITY;
+        }
+        return EnumQueryCaller.MOBILE;
+    }
+
+    /**
+     * Estimates the weight of an expanded query.
+     *
+     * @param query the expanded query.
+     * @param usingPreAggregation true if the query reads pre-aggregated data.
+     * @return the query weight.
+     */
+    public long getWeight(ExpandedDataQuery query, boolean usingPreAggregation) {
+        long population = 0;
+
+        for (ExpandedPopulationFilter group : query.getGroups()) {
+            population += (usingPreAggregation ? 1 : group.getSize());
+        }
+
+        long interval = Math.max(0, query.getEndDateTime() - query.getStartDateTime());
+        long bucket;
+
+        switch (query.getGranularity()) {
+            case HOUR:
+                bucket = 3600000L;
+                break;
+            case DAY:
+                bucket = 86400000L;
+                break;
+            case WEEK:
+                bucket = 7 * 86400000L;
+                break;
+            case MONTH:
+                bucket = 30 * 86400000L;
+                break;
+            default:
+                bucket = 365 * 86400000L;
+                break;
+        }
+
+        // Raw data is read regardless of the granularity
+        if (!usingPreAggregation) {
+            bucket = Math.min(bucket, 86400000L);
+        }
+
+        return Math.max(1L, population * Math.max(1L, (interval + bucket - 1) / bucket));
+    }
+
+    /**
+     * Admits a query, waiting for budget if required.
+     *
+     * @param caller the caller class.
+     * @param weight the query weight.
+     * @return the admission that must be released once the query completes or
+     *         null if the query has been rejected.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public Admission admit(EnumQueryCaller caller, long weight) throws InterruptedException {
+        return budgets.get(caller).acquire(weight);
+    }
+
+    /**
+     * Returns the budget usage and the admitted, queued and rejected query
+     * counters of every caller class.
+     *
+     * @return the admission statistics.
+     */
+    public List<QueryAdmissionStatistics> getStatistics() {
+        List<QueryAdmissionStatistics> result = new ArrayList<QueryAdmissionStatistics>();
+
+        for (Budget budget : budgets.values()) {
+            result.add(budget.getStatistics());
+        }
+
+        return result;
+    }
+
+    /**
+     * An admitted query.
+     */
+    public static class Admission {
+
+        private final Budget budget;
+
+        private final int permits;
+
+        private final long queueTime;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Admission(Budget budget, int permits, long queueTime) {
+            this.budget = budget;
+            this.permits = permits;
+            this.queueTime = queueTime;
+        }
+
+        /**
+         * Returns the time in milliseconds the query has waited for budget.
+         *
+         * @return the queue time.
+         */
+        public long getQueueTime() {
+            return queueTime;
+        }
+
+        /**
+         * Releases the budget of the query. The method has no effect if it is
+         * invoked more than once.
+         */
+        public void release() {
+            if ((budget != null) && (released.compareAndSet(false, true))) {
+                budget.semaphore.release(permits);
+            }
+        }
+    }
+
+    private static class Budget {
+
+        private final EnumQueryCaller caller;
+
+        private final int capacity;
+
+        private final int timeout;
+
+        private final Semaphore semaphore;
+
+        private final AtomicLong admitted = new AtomicLong();
+
+        private final AtomicLong queued = new AtomicLong();
+
+        private final AtomicLong rejected = new AtomicLong();
+
+        private final AtomicLong queueTime = new AtomicLong();
+
+        Budget(EnumQueryCaller caller, long capacity, int timeout) {
+            this.caller = caller;
+            this.capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(0L, capacity));
+            this.timeout = timeout;
+
+            semaphore = (this.capacity > 0 ? new Semaphore(this.capacity, true) : null);
+        }
+
+        Admission acquire(long weight) throws InterruptedException {
+            if (semaphore == null) {
+                admitted.incrementAndGet();
+                return new Admission(null, 0, 0);
+            }
+
+            int permits = (int) Math.min(capacity, Math.max(1L, weight));
+
+            // A zero timeout respects fairness unlike tryAcquire(permits)
+            if (semaphore.tryAcquire(permits, 0, TimeUnit.SECONDS)) {
+                admitted.incrementAndGet();
+                return new Admission(this, permits, 0);
+            }
+
+            queued.incrementAndGet();
+
+            long startTime = System.currentTimeMillis();
+
+            if (semaphore.tryAcquire(permits, timeout, TimeUnit.SECONDS)) {
+                long duration = System.currentTimeMillis() - startTime;
+
+                admitted.incrementAndGet();
+                queueTime.addAndGet(duration);
+
+                return new Admission(this, permits, duration);
+            }
+
+            rejected.incrementAndGet();
+            queueTime.addAndGet(System.currentTimeMillis() - startTime);
+
+            return null;
+        }
+
+        QueryAdmissionStatistics getStatistics() {
+            QueryAdmissionStatistics statistics = new QueryAdmissionStatistics();
+
+            statistics.setCaller(caller);
+            statistics.setCapacity(capacity);
+            statistics.setAvailable(semaphore == null ? 0 : semaphore.availablePermits());
+            statistics.setTimeout(timeout);
+            statistics.setAdmitted(admitted.get());
+            statistics.setQueued(queued.get());
+            statistics.setRejected(rejected.get());
+            statistics.setQueueTime(queueTime.get());
+
+            return statistics;
+        }
+    }
+
+}
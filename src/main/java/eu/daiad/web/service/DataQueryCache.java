@@ -0,0 +1,499 @@
+package eu.daiad.web.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import eu.daiad.web.model.admin.QueryCacheStatistics;
+import eu.daiad.web.model.query.AreaSpatialFilter;
+import eu.daiad.web.model.query.ClusterPopulationFilter;
+import eu.daiad.web.model.query.ConstraintSpatialFilter;
+import eu.daiad.web.model.query.DataQuery;
+import eu.daiad.web.model.query.DataQueryResponse;
+import eu.daiad.web.model.query.EnumMeasurementDataSource;
+import eu.daiad.web.model.query.EnumMetric;
+import eu.daiad.web.model.query.ExpandedDataQuery;
+import eu.daiad.web.model.query.ExpandedPopulationFilter;
+import eu.daiad.web.model.query.GroupDataSeries;
+import eu.daiad.web.model.query.GroupPopulationFilter;
+import eu.daiad.web.model.query.GroupSpatialFilter;
+import eu.daiad.web.model.query.PopulationFilter;
+import eu.daiad.web.model.query.Ranking;
+import eu.daiad.web.model.query.SpatialFilter;
+import eu.daiad.web.model.query.TimeFilter;
+import eu.daiad.web.model.query.UserPopulationFilter;
+import eu.daiad.web.model.query.UtilityPopulationFilter;
+
+/**
+ * Bounded LRU cache of smart water meter data query results. Only queries
+ * whose time interval has ended are cached. Entries are keyed by a canonical
+ * form of the query that includes the executing user, since population
+ * filters are authorized and resolved for the executing user.
+ *
+ * An entry is invalidated when readings inside its time interval are stored
+ * for one of its meters. Entries with too many meters to track and entries
+ * computed from pre-aggregated data are invalidated by readings of any meter.
+ * Pre-aggregated entries are also invalidated whenever aggregates are stored.
+ * Changes that are not reported to the cache, e.g. group membership updates
+ * or writes by other application instances, are bounded by the entry time to
+ * live.
+ *
+ * Cached data series are copied when an entry is stored and again for every
+ * response returned for it, hence callers may modify them, e.g. release data
+ * points while serializing a response.
+ */
+@Component
+public class DataQueryCache {
+
+    /**
+     * Maximum number of meters tracked per entry.
+     */
+    private static final int MAX_TRACKED_METERS = 256;
+
+    /**
+     * Maximum length of a key. Longer queries, e.g. with large user lists, are
+     * not cached.
+     */
+    private static final int MAX_KEY_LENGTH = 8192;
+
+    /**
+     * Number of recent invalidations checked before a result is cached.
+     */
+    private static final int MAX_RECENT_INVALIDATIONS = 1024;
+
+    /**
+     * Maximum number of entries. Set to 0 to disable the cache.
+     */
+    @Value("${daiad.query.cache.size:500}")
+    private int capacity;
+
+    /**
+     * Entry time to live in seconds.
+     */
+    @Value("${daiad.query.cache.ttl:3600}")
+    private int ttl;
+
+    /**
+     * Incremented on every invalidation. A result is cached only if no
+     * invalidation that affects it has occurred while it was being computed.
+     */
+    private long generation = 0;
+
+    private final ArrayDeque<Invalidation> recentInvalidations = new ArrayDeque<Invalidation>();
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    private long invalidations = 0;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > capacity) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Creates the cache key of a query.
+     *
+     * @param query the query.
+     * @return the key or null if the query cannot be cached.
+     */
+    public String createKey(DataQuery query) {
+        if ((capacity <= 0) || (query.getSource() != EnumMeasurementDataSource.METER) || (query.getTime() == null)) {
+            return null;
+        }
+
+        TimeFilter time = query.getTime();
+        DateTimeZone timezone = DateTimeZone.forID(query.getTimezone());
+
+        // Skip queries whose time interval has not ended. The check is
+        // repeated for the exact interval before a result is stored
+        if (getApproximateEnd(time, timezone) >= System.currentTimeMillis()) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+
+        key.append(query.getExecutor() == null ? "-" : query.getExecutor().getKey().toString());
+        key.append('|').append(timezone.getID());
+        key.append('|').append(query.getSource());
+        key.append('|').append(query.isUsingPreAggregation());
+
+        key.append('|').append(time.getType()).append(':').append(time.getGranularity()).append(':').append(time.getStart());
+        switch (time.getType()) {
+            case ABSOLUTE:
+                key.append(':').append(time.getEnd());
+                break;
+            case SLIDING:
+                key.append(':').append(time.getDuration()).append(':').append(time.getDurationTimeUnit());
+                break;
+            default:
+                return null;
+        }
+
+        // Metrics are independent of each other
+        Set<String> metrics = new TreeSet<String>();
+        if (query.getMetrics() != null) {
+            for (EnumMetric metric : query.getMetrics()) {
+                metrics.add(metric.toString());
+            }
+        }
+        key.append('|').append(metrics);
+
+        // Filter order determines the order of the data series
+        for (PopulationFilter filter : query.getPopulation()) {
+            key.append("|P:").append(filter.getType()).append(':').append(filter.getLabel());
+
+            if (filter instanceof UtilityPopulationFilter) {
+                key.append(':').append(((UtilityPopulationFilter) filter).getUtility());
+            } else if (filter instanceof GroupPopulationFilter) {
+                key.append(':').append(((GroupPopulationFilter) filter).getGroup());
+            } else if (filter instanceof ClusterPopulationFilter) {
+                ClusterPopulationFilter cluster = (ClusterPopulationFilter) filter;
+
+                key.append(':').append(cluster.getCluster())
+                   .append(':').append(cluster.getName())
+                   .append(':').append(cluster.getClusterType());
+            } else if (filter instanceof UserPopulationFilter) {
+                key.append(':').append(((UserPopulationFilter) filter).getUsers());
+            } else {
+                return null;
+            }
+
+            Ranking ranking = filter.getRanking();
+            if (ranking != null) {
+                key.append(":R:").append(ranking.getType())
+                   .append(':').append(ranking.getField())
+                   .append(':').append(ranking.getMetric())
+                   .append(':').append(ranking.getLimit());
+            }
+        }
+
+        if (query.getSpatial() != null) {
+            for (SpatialFilter filter : query.getSpatial()) {
+                key.append("|S:").append(filter.getType());
+
+                if (filter instanceof AreaSpatialFilter) {
+                    key.append(':').append(((AreaSpatialFilter) filter).getAreas());
+                } else if (filter instanceof GroupSpatialFilter) {
+                    key.append(':').append(((GroupSpatialFilter) filter).getGroup());
+                } else if (filter instanceof ConstraintSpatialFilter) {
+                    ConstraintSpatialFilter constraint = (ConstraintSpatialFilter) filter;
+
+                    key.append(':').append(constraint.getOperation())
+                       .append(':').append(constraint.getDistance());
+                    if (constraint.getGeometry() != null) {
+                        key.append(':').append(constraint.getGeometry().getSRID())
+                           .append(':').append(constraint.getGeometry().toText());
+                    }
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        if (key.length() > MAX_KEY_LENGTH) {
+            return null;
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Returns the current generation. The value must be read before a query
+     * is executed and passed to {@link DataQueryCache#put}.
+     *
+     * @return the generation.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns a new response with the cached result of a query.
+     *
+     * @param key the query key.
+     * @return the response or null if no valid entry exists.
+     */
+    public DataQueryResponse get(String key) {
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if ((entry != null) && (entry.expiresOn <= System.currentTimeMillis())) {
+                entries.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+
+        DataQueryResponse response = new DataQueryResponse(entry.response.getTimezone());
+
+        response.setDevices(copy(entry.response.getDevices()));
+        response.setMeters(copy(entry.response.getMeters()));
+        response.getAreas().putAll(entry.response.getAreas());
+        response.getExecution().getPlans().addAll(entry.response.getExecution().getPlans());
+        response.getExecution().getPlans().add("Query result cache hit");
+
+        return response;
+    }
+
+    /**
+     * Caches the result of a query. The result is ignored if it has failed,
+     * if the query time interval has not ended or if an invalidation that
+     * affects it has occurred after the given generation.
+     *
+     * @param key the query key.
+     * @param generation the generation before the query has been executed.
+     * @param query the expanded query.
+     * @param response the query response.
+     */
+    public void put(String key, long generation, ExpandedDataQuery query, DataQueryResponse response) {
+        if ((key == null) || (query == null) || (!response.getSuccess()) || (query.getEndDateTime() >= System.currentTimeMillis())) {
+            return;
+        }
+
+        Set<ByteBuffer> meters = null;
+        if (!query.isUsingPreAggregation()) {
+            meters = new HashSet<ByteBuffer>();
+            for (ExpandedPopulationFilter group : query.getGroups()) {
+                for (byte[] serialHash : group.getSerialHashes()) {
+                    // Users without a meter have no serial number hash
+                    if (serialHash != null) {
+                        meters.add(ByteBuffer.wrap(serialHash));
+                    }
+                }
+                if (meters.size() > MAX_TRACKED_METERS) {
+                    meters = null;
+                    break;
+                }
+            }
+        }
+
+        DataQueryResponse value = new DataQueryResponse(response.getTimezone());
+        value.setDevices(copy(response.getDevices()));
+        value.setMeters(copy(response.getMeters()));
+        value.getAreas().putAll(response.getAreas());
+        value.getExecution().getPlans().addAll(response.getExecution().getPlans());
+
+        Entry entry = new Entry(query.getStartDateTime(),
+                                query.getEndDateTime(),
+                                query.isUsingPreAggregation(),
+                                meters,
+                                System.currentTimeMillis() + ttl * 1000L,
+                                value);
+
+        synchronized (this) {
+            if (this.generation != generation) {
+                // The result is discarded if older invalidations are not
+                // available
+                if ((recentInvalidations.isEmpty()) || (recentInvalidations.peekFirst().generation > generation + 1)) {
+                    return;
+                }
+                for (Invalidation invalidation : recentInvalidations) {
+                    if ((invalidation.generation > generation) && (entry.isInvalidatedBy(invalidation))) {
+                        return;
+                    }
+                }
+            }
+
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Invalidates all entries affected by readings of a smart water meter.
+     *
+     * @param serialHash the MD5 hash of the meter serial number.
+     * @param start the timestamp of the earliest reading.
+     * @param end the timestamp of the latest reading.
+     */
+    public void invalidateMeter(byte[] serialHash, long start, long end) {
+        invalidate(new Invalidation(ByteBuffer.wrap(serialHash), start, end));
+    }
+
+    /**
+     * Invalidates all entries computed from pre-aggregated data.
+     */
+    public void invalidatePreAggregated() {
+        invalidate(new Invalidation(null, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    private synchronized void invalidate(Invalidation invalidation) {
+        invalidation.generation = ++generation;
+
+        recentInvalidations.addLast(invalidation);
+        if (recentInvalidations.size() > MAX_RECENT_INVALIDATIONS) {
+            recentInvalidations.removeFirst();
+        }
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isInvalidatedBy(invalidation)) {
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Returns the cache statistics.
+     *
+     * @return an instance of {@link QueryCacheStatistics}.
+     */
+    public synchronized QueryCacheStatistics getStatistics() {
+        QueryCacheStatistics statistics = new QueryCacheStatistics();
+
+        statistics.setSize(entries.size());
+        statistics.setCapacity(capacity);
+        statistics.setHits(hits);
+        statistics.setMisses(misses);
+        statistics.setEvictions(evictions);
+        statistics.setInvalidations(invalidations);
+
+        return statistics;
+    }
+
+    /**
+     * Creates a deep copy of a list of data series.
+     *
+     * @param series the data series.
+     * @return the copy or null if the list is null.
+     */
+    private static List<GroupDataSeries> copy(List<GroupDataSeries> series) {
+        if (series == null) {
+            return null;
+        }
+
+        List<GroupDataSeries> result = new ArrayList<GroupDataSeries>(series.size());
+        for (GroupDataSeries s : series) {
+            result.add(s.copy());
+        }
+
+        return result;
+    }
+
+    private static long getApproximateEnd(TimeFilter time, DateTimeZone timezone) {
+        switch (time.getType()) {
+            case ABSOLUTE:
+                return (time.getEnd() == null ? Long.MAX_VALUE : Math.max(time.getStart(), time.getEnd()));
+            case SLIDING:
+                if ((time.getDuration() == null) || (time.getDurationTimeUnit() == null)) {
+                    return Long.MAX_VALUE;
+                }
+
+                DateTime start = new DateTime(time.getStart(), timezone);
+                DateTime end;
+
+                switch (time.getDurationTimeUnit()) {
+                    case HOUR:
+                        end = start.plusHours(time.getDuration());
+                        break;
+                    case DAY:
+                        end = start.plusDays(time.getDuration());
+                        break;
+                    case WEEK:
+                        end = start.plusWeeks(time.getDuration());
+                        break;
+                    case MONTH:
+                        end = start.plusMonths(time.getDuration());
+                        break;
+                    case YEAR:
+                        end = start.plusYears(time.getDuration());
+                        break;
+                    default:
+                        return Long.MAX_VALUE;
+                }
+
+                return Math.max(start.getMillis(), end.getMillis());
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    private static class Entry {
+
+        private final long start;
+
+        private final long end;
+
+        private final boolean preAggregated;
+
+        /**
+         * Serial number hashes of the meters of the query or null if they are
+         * not tracked.
+         */
+        private final Set<ByteBuffer> meters;
+
+        private final long expiresOn;
+
+        private final DataQueryResponse response;
+
+        Entry(long start, long end, boolean preAggregated, Set<ByteBuffer> meters, long expiresOn, DataQueryResponse response) {
+            this.start = start;
+            this.end = end;
+            this.preAggregated = preAggregated;
+            this.meters = meters;
+            this.expiresOn = expiresOn;
+            this.response = response;
+        }
+
+        boolean isInvalidatedBy(Invalidation invalidation) {
+            if ((invalidation.end < start) || (end < invalidation.start)) {
+                return false;
+            }
+            if (invalidation.meter == null) {
+                return preAggregated;
+            }
+            return ((meters == null) || (meters.contains(invalidation.meter)));
+        }
+    }
+
+    /**
+     * Stored readings of a meter or, if no meter is set, stored aggregates.
+     */
+    private static class Invalidation {
+
+        private long generation;
+
+        private final ByteBuffer meter;
+
+        private final long start;
+
+        private final long end;
+
+        Invalidation(ByteBuffer meter, long start, long end) {
+            this.meter = meter;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+package eu.daiad.web.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.concurrent.DelegatingSecurityContextCallable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded executor for running the independent sub-queries of a data query
+ * concurrently, e.g. the amphiro b1 and the smart water meter sub-queries of
+ * a query for both sources. The number of sub-queries that are executed in
+ * parallel is shared by all queries. When all threads are busy, a sub-query
+ * is executed by the calling thread. Results can be handled in completion
+ * order, e.g. for streaming the data series of a sub-query before its sibling
+ * completes.
+ *
+ * Sub-queries must not be executed by the {@link eu.daiad.web.hbase.HBaseScanExecutor}
+ * since they wait for the scans they submit to it.
+ */
+@Component
+public class DataQueryExecutor implements InitializingBean, DisposableBean {
+
+    /**
+     * Maximum number of concurrent sub-queries. If the value is less than 2,
+     * sub-queries are executed by the calling thread.
+     */
+    @Value("${daiad.query.executor.parallelism:8}")
+    private int parallelism;
+
+    /**
+     * Maximum time in seconds to wait for the sub-queries of a query. Set to 0
+     * for no limit.
+     */
+    @Value("${daiad.query.executor.timeout:120}")
+    private int timeout;
+
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (parallelism > 1) {
+            executor = new ThreadPoolExecutor(parallelism,
+                                              parallelism,
+                                              60L,
+                                              TimeUnit.SECONDS,
+                                              new SynchronousQueue<Runnable>(),
+                                              new ThreadFactory() {
+
+                                                  private final AtomicInteger counter = new AtomicInteger();
+
+                                                  @Override
+                                                  public Thread newThread(Runnable runnable) {
+                                                      Thread thread = new Thread(runnable, "data-query-" + counter.incrementAndGet());
+                                                      thread.setDaemon(true);
+                                                      return thread;
+                                                  }
+                                              },
+                                              new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Receives the result of a sub-query as soon as the sub-query completes.
+     */
+    public interface ResultHandler<T> {
+
+        /**
+         * Invoked by the calling thread for every completed sub-query.
+         *
+         * @param index the index of the sub-query.
+         * @param result the sub-query result.
+         * @throws Exception if the result cannot be handled.
+         */
+        void completed(int index, T result) throws Exception;
+
+    }
+
+    /**
+     * Executes a list of sub-queries and waits for all of them to complete.
+     * The security context of the calling thread is propagated to every
+     * sub-query. If any sub-query fails, the remaining sub-queries are
+     * cancelled and the first failure is rethrown.
+     *
+     * @param tasks the sub-queries to execute.
+     * @return the sub-query results in the same order as the sub-queries.
+     * @throws TimeoutException if the sub-queries have not completed within the configured timeout.
+     * @throws Exception if any sub-query fails or the calling thread is interrupted.
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws Exception {
+        final List<T> results = new ArrayList<T>(Collections.<T> nCopies(tasks.size(), null));
+
+        invokeAll(tasks, new ResultHandler<T>() {
+
+            @Override
+            public void completed(int index, T result) {
+                results.set(index, result);
+            }
+        });
+
+        return results;
+    }
+
+    /**
+     * Executes a list of sub-queries and hands every result to the given
+     * handler in the order the sub-queries complete, while the remaining
+     * sub-queries are still running. The handler is invoked by the calling
+     * thread. If any sub-query or the handler fails, the remaining
+     * sub-queries are cancelled and the first failure is rethrown.
+     *
+     * @param tasks the sub-queries to execute.
+     * @param handler the handler of the sub-query results.
+     * @throws TimeoutException if the sub-queries have not completed within the configured timeout.
+     * @throws Exception if any sub-query or the handler fails or the calling thread is interrupted.
+     */
+    public <T> void invokeAll(List<? extends Callable<T>> tasks, ResultHandler<T> handler) throws Exception {
+        if ((executor == null) || (tasks.size() < 2)) {
+            for (int i = 0; i < tasks.size(); i++) {
+                handler.completed(i, tasks.get(i).call());
+            }
+            return;
+        }
+
+        long deadline = (timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : Long.MAX_VALUE);
+
+        CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+        Map<Future<T>, Integer> futures = new HashMap<Future<T>, Integer>();
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                futures.put(completionService.submit(new DelegatingSecurityContextCallable<T>(tasks.get(i))), i);
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                Future<T> future;
+                if (deadline == Long.MAX_VALUE) {
+                    future = completionService.take();
+                } else {
+                    future = completionService.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        throw new TimeoutException();
+                    }
+                }
+
+                handler.completed(futures.get(future), future.get());
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        } finally {
+            for (Future<T> future : futures.keySet()) {
+                if (!future.isDone()) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes a single sub-query using the configured timeout.
+     *
+     * @param task the sub-query to execute.
+     * @return the sub-query result.
+     * @throws TimeoutException if the sub-query has not completed within the configured timeout.
+     * @throws Exception if the sub-query fails or the calling thread is interrupted.
+     */
+    public <T> T invoke(Callable<T> task) throws Exception {
+        if ((executor == null) || (timeout <= 0)) {
+            return task.call();
+        }
+
+        Future<T> future = executor.submit(new DelegatingSecurityContextCallable<T>(task));
+        try {
+            return future.get(timeout, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        } finally {
+            if (!future.isDone()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+}
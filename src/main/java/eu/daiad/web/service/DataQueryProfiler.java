@@ -0,0 +1,144 @@
+package eu.daiad.web.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import eu.daiad.web.model.admin.QueryShapeStatistics;
+import eu.daiad.web.model.query.AbstractDataQuery;
+import eu.daiad.web.model.query.DataQuery;
+import eu.daiad.web.model.query.PopulationFilter;
+import eu.daiad.web.model.query.QueryExecutionProfile;
+import eu.daiad.web.model.query.QueryResponse;
+import eu.daiad.web.model.query.SpatialFilter;
+
+/**
+ * Aggregates the execution profiles of data queries per query shape and logs
+ * slow queries. The shape of a query consists of the data source, the use of
+ * pre-aggregated data, the time filter, the types of the population and
+ * spatial filters and the use of ranking; hence queries with the same shape
+ * differ only in their parameters e.g. the users or the time interval.
+ */
+@Component
+public class DataQueryProfiler {
+
+    private static final Log logger = LogFactory.getLog(DataQueryProfiler.class);
+
+    /**
+     * Maximum number of query shapes. The least recently executed shape is
+     * removed when the limit is exceeded.
+     */
+    private static final int MAX_SHAPES = 1000;
+
+    /**
+     * Duration in milliseconds above which a query is logged. Set to 0 to
+     * disable logging.
+     */
+    @Value("${daiad.query.profile.slow-threshold:5000}")
+    private long slowThreshold;
+
+    private final LinkedHashMap<String, QueryShapeStatistics> shapes = new LinkedHashMap<String, QueryShapeStatistics>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryShapeStatistics> eldest) {
+            return (size() > MAX_SHAPES);
+        }
+    };
+
+    /**
+     * Records the execution of a query.
+     *
+     * @param query the executed query.
+     * @param response the query response.
+     * @param profile the query execution profile or null if the query has not been executed e.g. validation failed.
+     */
+    public void record(AbstractDataQuery query, QueryResponse response, QueryExecutionProfile profile) {
+        String shape = getShape(query);
+        long duration = response.getExecution().getDuration();
+        boolean slow = ((slowThreshold > 0) && (duration > slowThreshold));
+
+        synchronized (this) {
+            QueryShapeStatistics statistics = shapes.get(shape);
+            if (statistics == null) {
+                statistics = new QueryShapeStatistics(shape);
+                shapes.put(shape, statistics);
+            }
+            if (profile == null) {
+                statistics.add(duration, slow, 0, 0, 0);
+            } else {
+                statistics.add(duration, slow, profile.getRows(), profile.getCells(), profile.getBytes());
+            }
+        }
+
+        if (slow) {
+            logger.warn(String.format("Slow data query [%s] completed in %d ms. Profile: [%s]. Plans: %s",
+                                      shape, duration, profile, response.getExecution().getPlans()));
+        }
+    }
+
+    /**
+     * Returns the statistics of all query shapes.
+     *
+     * @return a list of {@link QueryShapeStatistics}.
+     */
+    public synchronized List<QueryShapeStatistics> getStatistics() {
+        List<QueryShapeStatistics> result = new ArrayList<QueryShapeStatistics>();
+
+        for (QueryShapeStatistics statistics : shapes.values()) {
+            result.add(new QueryShapeStatistics(statistics));
+        }
+
+        return result;
+    }
+
+    private static String getShape(AbstractDataQuery query) {
+        StringBuilder shape = new StringBuilder();
+
+        if (query instanceof DataQuery) {
+            shape.append(((DataQuery) query).getSource());
+        } else {
+            shape.append("FORECAST");
+        }
+
+        shape.append('|').append(query.isUsingPreAggregation() ? "aggregate" : "raw");
+
+        if (query.getTime() == null) {
+            shape.append("|-");
+        } else {
+            shape.append('|').append(query.getTime().getType()).append(':').append(query.getTime().getGranularity());
+        }
+
+        boolean ranking = false;
+        TreeSet<String> populationTypes = new TreeSet<String>();
+        if (query.getPopulation() != null) {
+            for (PopulationFilter filter : query.getPopulation()) {
+                populationTypes.add(filter.getType().toString());
+                ranking |= (filter.getRanking() != null);
+            }
+        }
+
+        TreeSet<String> spatialTypes = new TreeSet<String>();
+        if (query.getSpatial() != null) {
+            for (SpatialFilter filter : query.getSpatial()) {
+                spatialTypes.add(filter.getType().toString());
+            }
+        }
+
+        shape.append('|').append(populationTypes.isEmpty() ? "-" : StringUtils.join(populationTypes, ','));
+        shape.append('|').append(spatialTypes.isEmpty() ? "-" : StringUtils.join(spatialTypes, ','));
+        shape.append('|').append(ranking ? "ranking" : "series");
+
+        return shape.toString();
+    }
+
+}
@@ -4,9 +4,13 @@ import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang.StringUtils;
 import org.joda.time.DateTime;
@@ -40,11 +44,13 @@ import eu.daiad.web.model.query.ClusterPopulationFilter;
 import eu.daiad.web.model.query.ConstraintSpatialFilter;
 import eu.daiad.web.model.query.DataQuery;
 import eu.daiad.web.model.query.DataQueryResponse;
+import eu.daiad.web.model.query.DataQueryResponseWriter;
 import eu.daiad.web.model.query.EnumClusterType;
 import eu.daiad.web.model.query.EnumDataField;
 import eu.daiad.web.model.query.EnumMeasurementDataSource;
 import eu.daiad.web.model.query.EnumMetric;
 import eu.daiad.web.model.query.EnumPopulationFilterType;
+import eu.daiad.web.model.query.EnumQueryCaller;
 import eu.daiad.web.model.query.EnumRankingType;
 import eu.daiad.web.model.query.ExpandedDataQuery;
 import eu.daiad.web.model.query.ExpandedPopulationFilter;
@@ -55,12 +61,17 @@ import eu.daiad.web.model.query.GroupPopulationFilter;
 import eu.daiad.web.model.query.GroupSpatialFilter;
 import eu.daiad.web.model.query.NamedDataQuery;
 import eu.daiad.web.model.query.PopulationFilter;
+import eu.daiad.web.model.query.PopulationMember;
+import eu.daiad.web.model.query.QueryExecutionProfile;
+import eu.daiad.web.model.query.QueryResponse;
+import eu.daiad.web.model.query.Ranking;
 import eu.daiad.web.model.query.SpatialFilter;
 import eu.daiad.web.model.query.UserPopulationFilter;
 import eu.daiad.web.model.query.UtilityPopulationFilter;
 import eu.daiad.web.model.security.AuthenticatedUser;
 import eu.daiad.web.model.security.EnumRole;
 import eu.daiad.web.model.spatial.LabeledGeometry;
+import eu.daiad.web.model.spatial.LabeledGeometryIndex;
 import eu.daiad.web.repository.application.IAmphiroIndexOrderedRepository;
 import eu.daiad.web.repository.application.ICommonsRepository;
 import eu.daiad.web.repository.application.IDeviceRepository;
@@ -70,6 +81,7 @@ import eu.daiad.web.repository.application.IMeterAggregateDataRepository;
 import eu.daiad.web.repository.application.IMeterDataRepository;
 import eu.daiad.web.repository.application.IMeterForecastingAggregateDataRepository;
 import eu.daiad.web.repository.application.IMeterForecastingDataRepository;
+import eu.daiad.web.repository.application.IPopulationMemberRepository;
 import eu.daiad.web.repository.application.ISpatialRepository;
 import eu.daiad.web.repository.application.IUserRepository;
 import eu.daiad.web.repository.application.IUtilityRepository;
@@ -95,6 +107,9 @@ public class DataService extends BaseService implements IDataService {
     @Autowired
     private ISpatialRepository spatialRepository;
 
+    @Autowired
+    private IPopulationMemberRepository populationMemberRepository;
+
     @Autowired
     IAmphiroIndexOrderedRepository amphiroIndexOrderedRepository;
 
@@ -113,6 +128,18 @@ public class DataService extends BaseService implements IDataService {
     @Autowired
     IFavouriteRepository favouriteRepository;
 
+    @Autowired
+    private DataQueryExecutor dataQueryExecutor;
+
+    @Autowired
+    private DataQueryCache dataQueryCache;
+
+    @Autowired
+    private DataQueryProfiler dataQueryProfiler;
+
+    @Autowired
+    private DataQueryAdmissionController admissionController;
+
     protected Error getError(ErrorCode error) {
         return new Error(error.getMessageKey(), this.getMessage(error));
     }
@@ -402,6 +429,20 @@ public class DataService extends BaseService implements IDataService {
      */
     @Override
     public DataQueryResponse execute(DataQuery query) {
+        return execute(query, null);
+    }
+
+    /**
+     * Executes a generic query for amphiro b1 sessions and smart water meter
+     * readings and writes the data series to the given writer as soon as they
+     * are computed. The data series are not added to the returned response.
+     *
+     * @param query the query to execute.
+     * @param writer the writer of the data series or null if the data series should be added to the response.
+     * @return the query response.
+     */
+    @Override
+    public DataQueryResponse execute(DataQuery query, DataQueryResponseWriter writer) {
         long startTime = System.currentTimeMillis();
 
         // Set executor
@@ -413,6 +454,8 @@ public class DataService extends BaseService implements IDataService {
         // Initialize response
         DataQueryResponse response = new DataQueryResponse(query.getTimezone());
 
+        ExpandedDataQuery expandedQuery = null;
+
         // Validate query
         this.validate(query, response);
 
@@ -422,21 +465,330 @@ public class DataService extends BaseService implements IDataService {
                 query.setUsingPreAggregation(false);
             }
 
-            if(query.isUsingPreAggregation()){
-                executeWithPreAggregation(query, response);
-            } else {
-                executeWithoutPreAggregation(query, response);
+            // Streamed results are not cached since the writer releases
+            // the data points
+            String key = (writer == null ? dataQueryCache.createKey(query) : null);
+
+            if (key != null) {
+                DataQueryResponse cachedResponse = dataQueryCache.get(key);
+
+                if (cachedResponse != null) {
+                    long stopTime = System.currentTimeMillis();
+                    cachedResponse.getExecution().setDuration(stopTime - startTime);
+
+                    QueryExecutionProfile profile = new QueryExecutionProfile();
+                    profile.addPhase(QueryExecutionProfile.PHASE_CACHE, stopTime - startTime);
+
+                    setProfile(query, cachedResponse, profile);
+
+                    return cachedResponse;
+                }
             }
+
+            long generation = dataQueryCache.getGeneration();
+
+            expandedQuery = expand(query, response);
+            if (expandedQuery != null) {
+                execute(query, expandedQuery, response, writer);
+            }
+
+            dataQueryCache.put(key, generation, expandedQuery, response);
         }
 
         long stopTime = System.currentTimeMillis();
         response.getExecution().setDuration(stopTime - startTime);
 
+        setProfile(query, response, (expandedQuery == null ? null : expandedQuery.getProfile()));
+
         return response;
     }
 
-    private void executeWithPreAggregation(DataQuery query, DataQueryResponse response) {
+    /**
+     * Executes a batch of generic queries for amphiro b1 sessions and smart
+     * water meter readings. Queries are expanded separately. Expanded queries
+     * with the same source, time interval, granularity and time zone are
+     * merged and executed once; hence every table partition is scanned once
+     * and its rows are aggregated to the population groups of all the merged
+     * queries. A query that fails does not affect queries that are not merged
+     * with it.
+     *
+     * @param queries the queries to execute.
+     * @return the query responses in the same order as the queries.
+     */
+    @Override
+    public List<DataQueryResponse> execute(List<DataQuery> queries) {
+        long startTime = System.currentTimeMillis();
+
+        long generation = dataQueryCache.getGeneration();
+
+        List<DataQueryResponse> responses = new ArrayList<DataQueryResponse>(queries.size());
+        List<ExpandedDataQuery> expandedQueries = new ArrayList<ExpandedDataQuery>(queries.size());
+        List<String> keys = new ArrayList<String>(queries.size());
+        boolean[] cached = new boolean[queries.size()];
+
+        // Expand queries that are not cached
+        Map<String, List<Integer>> batches = new LinkedHashMap<String, List<Integer>>();
+
+        for (int index = 0, count = queries.size(); index < count; index++) {
+            DataQuery query = queries.get(index);
+
+            setExecutor(query);
+            ensureDateTimeZone(query);
+
+            DataQueryResponse response = new DataQueryResponse(query.getTimezone());
+            ExpandedDataQuery expandedQuery = null;
+            String key = null;
+
+            this.validate(query, response);
+
+            if (response.getSuccess()) {
+                // Amphiro data does not support aggregation
+                if (query.getSource() != EnumMeasurementDataSource.METER) {
+                    query.setUsingPreAggregation(false);
+                }
+
+                key = dataQueryCache.createKey(query);
+
+                DataQueryResponse cachedResponse = (key == null ? null : dataQueryCache.get(key));
+
+                if (cachedResponse != null) {
+                    response = cachedResponse;
+                    cached[index] = true;
+                } else {
+                    try {
+                        expandedQuery = expand(query, response);
+                    } catch (ApplicationException ex) {
+                        response.add(new Error(ex.getCode().getMessageKey(), ex.getMessage()));
+                    }
+                }
+            }
+
+            if (expandedQuery != null) {
+                String batchKey = getBatchKey(query, expandedQuery);
+
+                List<Integer> batch = batches.get(batchKey);
+                if (batch == null) {
+                    batch = new ArrayList<Integer>();
+                    batches.put(batchKey, batch);
+                }
+                batch.add(index);
+            }
+
+            responses.add(response);
+            expandedQueries.add(expandedQuery);
+            keys.add(key);
+        }
+
+        // Execute merged queries
+        for (List<Integer> batch : batches.values()) {
+            executeBatch(queries, expandedQueries, responses, batch);
+        }
+
+        long stopTime = System.currentTimeMillis();
+
+        for (int index = 0, count = queries.size(); index < count; index++) {
+            DataQuery query = queries.get(index);
+            DataQueryResponse response = responses.get(index);
+            ExpandedDataQuery expandedQuery = expandedQueries.get(index);
+
+            response.getExecution().setDuration(stopTime - startTime);
+
+            if (expandedQuery != null) {
+                dataQueryCache.put(keys.get(index), generation, expandedQuery, response);
+
+                setProfile(query, response, expandedQuery.getProfile());
+            } else if (cached[index]) {
+                QueryExecutionProfile profile = new QueryExecutionProfile();
+                profile.addPhase(QueryExecutionProfile.PHASE_CACHE, stopTime - startTime);
+
+                setProfile(query, response, profile);
+            } else {
+                setProfile(query, response, null);
+            }
+        }
+
+        return responses;
+    }
+
+    /**
+     * Returns a key that is equal for expanded queries that can be merged.
+     *
+     * @param query the query.
+     * @param expandedQuery the expanded query.
+     * @return the key.
+     */
+    private String getBatchKey(DataQuery query, ExpandedDataQuery expandedQuery) {
+        return String.format("%s|%s|%s|%s|%d|%d|%s",
+                             admissionController.getCaller(query.getExecutor()),
+                             query.getSource(),
+                             expandedQuery.isUsingPreAggregation(),
+                             expandedQuery.getTimezone().getID(),
+                             expandedQuery.getStartDateTime(),
+                             expandedQuery.getEndDateTime(),
+                             expandedQuery.getGranularity());
+    }
+
+    /**
+     * Merges and executes a batch of compatible expanded queries. Identical
+     * population groups of different queries, e.g. the utility group that
+     * every query compares against, are added to the merged query once. The
+     * data series of the merged query are mapped back to the query responses
+     * in the order of their population groups; a series shared by several
+     * queries is copied for every query after the first. The merged query
+     * execution plans and profile are added to every query. If the execution
+     * fails, an error is added to every query response.
+     *
+     * @param queries all the queries.
+     * @param expandedQueries all the expanded queries.
+     * @param responses all the query responses.
+     * @param batch the indexes of the queries to merge.
+     */
+    private void executeBatch(List<DataQuery> queries, List<ExpandedDataQuery> expandedQueries, List<DataQueryResponse> responses, List<Integer> batch) {
+        DataQuery query = queries.get(batch.get(0));
+        ExpandedDataQuery mergedQuery = expandedQueries.get(batch.get(0));
+
+        // Index of the merged query group of every group of every query
+        int[][] groupIndexes = new int[batch.size()][];
+
         try {
+            if (batch.size() > 1) {
+                ExpandedDataQuery firstQuery = mergedQuery;
+
+                mergedQuery = new ExpandedDataQuery(firstQuery.getTimezone());
+                mergedQuery.setStartDateTime(firstQuery.getStartDateTime());
+                mergedQuery.setEndDateTime(firstQuery.getEndDateTime());
+                mergedQuery.setGranularity(firstQuery.getGranularity());
+                mergedQuery.setUsingPreAggregation(firstQuery.isUsingPreAggregation());
+
+                Map<PopulationGroupKey, Integer> mergedGroups = new HashMap<PopulationGroupKey, Integer>();
+                int sharedCount = 0;
+
+                for (int b = 0; b < batch.size(); b++) {
+                    List<ExpandedPopulationFilter> groups = expandedQueries.get(batch.get(b)).getGroups();
+
+                    groupIndexes[b] = new int[groups.size()];
+                    for (int g = 0; g < groups.size(); g++) {
+                        PopulationGroupKey key = new PopulationGroupKey(groups.get(g));
+
+                        Integer mergedIndex = mergedGroups.get(key);
+                        if (mergedIndex == null) {
+                            mergedIndex = mergedQuery.getGroups().size();
+                            mergedQuery.getGroups().add(groups.get(g));
+                            mergedGroups.put(key, mergedIndex);
+                        } else {
+                            sharedCount++;
+                        }
+                        groupIndexes[b][g] = mergedIndex;
+                    }
+                }
+
+                mergedQuery.addPlan(String.format("Merged %d queries", batch.size()));
+                if (sharedCount > 0) {
+                    mergedQuery.addPlan(String.format("Shared %d identical population groups", sharedCount));
+                }
+            } else {
+                groupIndexes[0] = new int[mergedQuery.getGroups().size()];
+                for (int g = 0; g < groupIndexes[0].length; g++) {
+                    groupIndexes[0][g] = g;
+                }
+            }
+
+            // Wait for the budget of the query caller
+            DataQueryAdmissionController.Admission admission = admit(query, mergedQuery);
+
+            List<List<GroupDataSeries>> results;
+            try {
+                results = querySeries(query.getSource(), mergedQuery);
+            } finally {
+                admission.release();
+            }
+
+            boolean[] assigned = new boolean[mergedQuery.getGroups().size()];
+
+            for (int b = 0; b < batch.size(); b++) {
+                int index = batch.get(b);
+
+                ExpandedDataQuery expandedQuery = expandedQueries.get(index);
+                DataQueryResponse response = responses.get(index);
+
+                if (results.get(0) != null) {
+                    response.setDevices(getSeries(results.get(0), groupIndexes[b], assigned));
+                }
+                if (results.get(1) != null) {
+                    response.setMeters(getSeries(results.get(1), groupIndexes[b], assigned));
+                }
+                for (int mergedIndex : groupIndexes[b]) {
+                    assigned[mergedIndex] = true;
+                }
+
+                if (expandedQuery != mergedQuery) {
+                    expandedQuery.getPlans().addAll(mergedQuery.getPlans());
+                    expandedQuery.getProfile().add(mergedQuery.getProfile());
+                }
+
+                response.getExecution().getPlans().addAll(expandedQuery.getPlans());
+            }
+        } catch (Exception ex) {
+            ApplicationException applicationException;
+            if (ex instanceof TimeoutException) {
+                applicationException = wrapApplicationException(ex, QueryErrorCode.TIMEOUT);
+            } else {
+                applicationException = wrapApplicationException(ex);
+            }
+
+            for (int index : batch) {
+                responses.get(index).add(new Error(applicationException.getCode().getMessageKey(), applicationException.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Returns the data series of a single query of a merged query. A series
+     * that has already been assigned to another query is copied.
+     *
+     * @param series the data series of the merged query.
+     * @param indexes the index of the merged query series of every group of the query.
+     * @param assigned true for every series already assigned to another query.
+     * @return the data series of the query.
+     */
+    private List<GroupDataSeries> getSeries(List<GroupDataSeries> series, int[] indexes, boolean[] assigned) {
+        List<GroupDataSeries> result = new ArrayList<GroupDataSeries>(indexes.length);
+
+        for (int index : indexes) {
+            result.add(assigned[index] ? series.get(index).copy() : series.get(index));
+        }
+
+        return result;
+    }
+
+    /**
+     * Records the execution profile of a query and adds it to the response if
+     * the query has requested it.
+     *
+     * @param query the executed query.
+     * @param response the query response.
+     * @param profile the execution profile or null if the query has not been executed.
+     */
+    private void setProfile(AbstractDataQuery query, QueryResponse response, QueryExecutionProfile profile) {
+        dataQueryProfiler.record(query, response, profile);
+
+        if (query.isProfile()) {
+            response.getExecution().setProfile(profile);
+        }
+    }
+
+    /**
+     * Expands the population, spatial and time filters of a query that reads
+     * pre-aggregated smart water meter data.
+     *
+     * @param query the query to expand.
+     * @param response the query response whose areas are updated.
+     * @return the expanded query or null if the time filter is not supported.
+     */
+    private ExpandedDataQuery expandWithPreAggregation(DataQuery query, DataQueryResponse response) {
+        try {
+            long phaseStart = System.currentTimeMillis();
+
             // Create new query
             ExpandedDataQuery expandedQuery = new ExpandedDataQuery(query.getTimezone());
 
@@ -489,35 +841,38 @@ public class DataService extends BaseService implements IDataService {
                 }
             }
 
-            // Helper store for caching user location
-            Map<UUID, Geometry> userLocations = new HashMap<UUID, Geometry>();
-
             // Step 1: Generate groups based on the population
             ArrayList<ExpandedPopulationFilter> populationGroups = new ArrayList<ExpandedPopulationFilter>();
 
             if ((query.getPopulation() != null) && (!query.getPopulation().isEmpty())) {
                 MessageDigest md = MessageDigest.getInstance("MD5");
 
+                // Smart water meter data is required only for meter queries
+                boolean meterRequired = ((query.getSource() == EnumMeasurementDataSource.BOTH) ||
+                                         (query.getSource() == EnumMeasurementDataSource.METER));
+
                 for (int p = 0; p < query.getPopulation().size(); p++) {
                     PopulationFilter filter = query.getPopulation().get(p);
 
-                    List<UUID> filterUsers = null;
+                    List<PopulationMember> members = null;
 
                     switch (filter.getType()) {
                         case USER:
-                            filterUsers = ((UserPopulationFilter) filter).getUsers();
+                            List<UUID> filterUsers = ((UserPopulationFilter) filter).getUsers();
                             if (filterUsers != null) {
                                 for (UUID userKey : filterUsers) {
                                     authorize(query.getExecutor(), EnumPopulationFilterType.USER, userKey);
                                 }
                             }
+
+                            members = getUserMembers(filterUsers, meterRequired, md);
                             break;
                         case GROUP:
                             UUID groupKey = ((GroupPopulationFilter) filter).getGroup();
 
                             authorize(query.getExecutor(), EnumPopulationFilterType.GROUP, groupKey);
 
-                            filterUsers = groupRepository.getGroupMemberKeys(groupKey);
+                            members = populationMemberRepository.getGroupMembers(groupKey);
                             break;
                         case CLUSTER:
                             ClusterPopulationFilter clusterFilter = (ClusterPopulationFilter) filter;
@@ -545,46 +900,17 @@ public class DataService extends BaseService implements IDataService {
 
                             authorize(query.getExecutor(), EnumPopulationFilterType.UTILITY, utilityKey);
 
-                            filterUsers = groupRepository.getUtilityByKeyMemberKeys(utilityKey);
+                            members = populationMemberRepository.getUtilityMembers(utilityKey);
                             break;
                         default:
                             throw new IllegalArgumentException(String.format("Filter of type [%s] is not supported.", filter.getType()));
                     }
 
                     // Construct expanded spatial and population filter
-                    ExpandedPopulationFilter expandedPopulationFilter = new ExpandedPopulationFilter(filter, filterUsers.size());
-
-                    if ((filter.getType() == EnumPopulationFilterType.USER) && (filterUsers.size() > 0)) {
-                        for (UUID userKey : filterUsers) {
-                            AuthenticatedUser user = userRepository.getUserByKey(userKey);
-                            if (user == null) {
-                                throw createApplicationException(UserErrorCode.USERNANE_NOT_FOUND).set("username", userKey);
-                            }
+                    ExpandedPopulationFilter expandedPopulationFilter = new ExpandedPopulationFilter(filter, members.size());
 
-
-                            // Decide if the user must be included in the group
-                            boolean includeUser = true;
-                            WaterMeterDevice userMeter = null;
-
-                            // Fetch meter only if it is needed
-                            if ((query.getSource() == EnumMeasurementDataSource.BOTH) || (query.getSource() == EnumMeasurementDataSource.METER)) {
-                                userMeter = getUserWaterMeter(userKey);
-                                includeUser = userMeter != null;
-                            }
-
-                            // Decide if user should be included in the query
-                            if (includeUser) {
-                                expandedPopulationFilter.getUserKeys().add(userKey);
-                                expandedPopulationFilter.getLabels().add(user.getUsername());
-                                expandedPopulationFilter.getUserKeyHashes().add(md.digest(userKey.toString().getBytes("UTF-8")));
-                                if (userMeter != null) {
-                                    expandedPopulationFilter.getSerialHashes().add(md.digest(userMeter.getSerial().getBytes("UTF-8")));
-                                } else {
-                                    expandedPopulationFilter.getSerialHashes().add(null);
-                                }
-                            }
-
-                        }
+                    if (filter.getType() == EnumPopulationFilterType.USER) {
+                        addMembers(expandedPopulationFilter, members, meterRequired);
                     }
 
                     // Include population groups that either are not of type
@@ -596,38 +922,18 @@ public class DataService extends BaseService implements IDataService {
                 }
             }
 
+            phaseStart = expandedQuery.getProfile().endPhase(QueryExecutionProfile.PHASE_POPULATION, phaseStart);
+
             // Step 2: Split population groups depending on the areas
             if (areas.isEmpty()) {
                 expandedQuery.getGroups().addAll(populationGroups);
             } else {
-                long areaCounter = 0;
-
-                for (LabeledGeometry area : areas) {
-                    response.getAreas().put(++areaCounter, area);
-
-                    for (ExpandedPopulationFilter population : populationGroups) {
-                        ExpandedPopulationFilter areaPopulation = new ExpandedPopulationFilter(population, areaCounter, area.getKey());
-
-                        for (int i = 0, count = population.getUserKeys().size(); i < count; i++) {
-                            if (area.contains(getUserLocation(userLocations, population.getUserKeys().get(i)))) {
-                                // Copy fields
-                                areaPopulation.getUserKeys().add(population.getUserKeys().get(i));
-                                areaPopulation.getLabels().add(population.getLabels().get(i));
-                                areaPopulation.getUserKeyHashes().add(population.getUserKeyHashes().get(i));
-                                areaPopulation.getSerialHashes().add(population.getSerialHashes().get(i));
-                            }
-                        }
-
-                        // Include population groups that either are not of type
-                        // USER or have at least one user
-                        if ((areaPopulation.getType() != EnumPopulationFilterType.USER) ||
-                            (!areaPopulation.getUserKeys().isEmpty())) {
-                            expandedQuery.getGroups().add(areaPopulation);
-                        }
-                    }
-                }
+                expandedQuery.getGroups().addAll(splitPopulationByArea(populationGroups, areas, response.getAreas(), true));
             }
 
+            expandedQuery.getProfile().endPhase(QueryExecutionProfile.PHASE_SPATIAL, phaseStart);
+            expandedQuery.getProfile().setUsers(countUsers(populationGroups));
+
             // Compute time constraints
             long startDateTime, endDateTime;
 
@@ -660,7 +966,7 @@ public class DataService extends BaseService implements IDataService {
                                            query.getTime().getDuration()).getMillis());
                             break;
                         default:
-                            return;
+                            return null;
                     }
 
                     // Invert start/end dates if needed e.g. a negative interval
@@ -672,7 +978,7 @@ public class DataService extends BaseService implements IDataService {
                     }
                     break;
                 default:
-                    return;
+                    return null;
             }
 
             // Construct expanded query
@@ -680,14 +986,26 @@ public class DataService extends BaseService implements IDataService {
             expandedQuery.setEndDateTime(endDateTime);
             expandedQuery.setGranularity(query.getTime().getGranularity());
 
-            response.setMeters(meterAggregateDataRepository.query(expandedQuery));
+            expandedQuery.setUsingPreAggregation(true);
+
+            return expandedQuery;
         } catch (Exception ex) {
             throw wrapApplicationException(ex);
         }
     }
 
-    private void executeWithoutPreAggregation(DataQuery query, DataQueryResponse response) {
+    /**
+     * Expands the population, spatial and time filters of a query that reads
+     * amphiro b1 sessions or smart water meter readings.
+     *
+     * @param query the query to expand.
+     * @param response the query response whose areas are updated.
+     * @return the expanded query or null if the time filter is not supported.
+     */
+    private ExpandedDataQuery expandWithoutPreAggregation(DataQuery query, DataQueryResponse response) {
         try {
+            long phaseStart = System.currentTimeMillis();
+
             // Create new query
             ExpandedDataQuery expandedQuery = new ExpandedDataQuery(query.getTimezone());
 
@@ -740,35 +1058,38 @@ public class DataService extends BaseService implements IDataService {
                 }
             }
 
-            // Helper store for caching user location
-            Map<UUID, Geometry> userLocations = new HashMap<UUID, Geometry>();
-
             // Step 1: Generate groups based on the population
             ArrayList<ExpandedPopulationFilter> populationGroups = new ArrayList<ExpandedPopulationFilter>();
 
             if ((query.getPopulation() != null) && (!query.getPopulation().isEmpty())) {
                 MessageDigest md = MessageDigest.getInstance("MD5");
 
+                // Smart water meter data is required only for meter queries
+                boolean meterRequired = ((query.getSource() == EnumMeasurementDataSource.BOTH) ||
+                                         (query.getSource() == EnumMeasurementDataSource.METER));
+
                 for (int p = 0; p < query.getPopulation().size(); p++) {
                     PopulationFilter filter = query.getPopulation().get(p);
 
-                    List<UUID> filterUsers = null;
+                    List<PopulationMember> members = null;
 
                     switch (filter.getType()) {
                         case USER:
-                            filterUsers = ((UserPopulationFilter) filter).getUsers();
+                            List<UUID> filterUsers = ((UserPopulationFilter) filter).getUsers();
                             if (filterUsers != null) {
                                 for (UUID userKey : filterUsers) {
                                     authorize(query.getExecutor(), EnumPopulationFilterType.USER, userKey);
                                 }
                             }
+
+                            members = getUserMembers(filterUsers, meterRequired, md);
                             break;
                         case GROUP:
                             UUID groupKey = ((GroupPopulationFilter) filter).getGroup();
 
                             authorize(query.getExecutor(), EnumPopulationFilterType.GROUP, groupKey);
 
-                            filterUsers = groupRepository.getGroupMemberKeys(groupKey);
+                            members = populationMemberRepository.getGroupMembers(groupKey);
                             break;
                         case CLUSTER:
                             ClusterPopulationFilter clusterFilter = (ClusterPopulationFilter) filter;
@@ -796,47 +1117,16 @@ public class DataService extends BaseService implements IDataService {
 
                             authorize(query.getExecutor(), EnumPopulationFilterType.UTILITY, utilityKey);
 
-                            filterUsers = groupRepository.getUtilityByKeyMemberKeys(utilityKey);
+                            members = populationMemberRepository.getUtilityMembers(utilityKey);
                             break;
                         default:
                             // Ignore
                     }
 
                     // Construct expanded spatial and population filter
-                    ExpandedPopulationFilter expandedPopulationFilter = new ExpandedPopulationFilter(filter, filterUsers.size());
-
-                    if (filterUsers.size() > 0) {
-                        for (UUID userKey : filterUsers) {
-                            AuthenticatedUser user = userRepository.getUserByKey(userKey);
-                            if (user == null) {
-                                throw createApplicationException(UserErrorCode.USERNANE_NOT_FOUND).set("username", userKey);
-                            }
-
-                            // Decide if the user must be included in the group
-                            boolean includeUser = true;
-                            WaterMeterDevice userMeter = null;
-
-                            // Fetch meter only if it is needed
-                            if ((query.getSource() == EnumMeasurementDataSource.BOTH) || (query.getSource() == EnumMeasurementDataSource.METER)) {
-                                userMeter = getUserWaterMeter(userKey);
-                                if (userMeter == null) {
-                                    includeUser = false;
-                                }
-                            }
+                    ExpandedPopulationFilter expandedPopulationFilter = new ExpandedPopulationFilter(filter, members.size());
 
-                            // Decide if user should be included in the query
-                            if (includeUser) {
-                                expandedPopulationFilter.getUserKeys().add(userKey);
-                                expandedPopulationFilter.getLabels().add(user.getUsername());
-                                expandedPopulationFilter.getUserKeyHashes().add(md.digest(userKey.toString().getBytes("UTF-8")));
-                                if (userMeter != null) {
-                                    expandedPopulationFilter.getSerialHashes().add(md.digest(userMeter.getSerial().getBytes("UTF-8")));
-                                } else {
-                                    expandedPopulationFilter.getSerialHashes().add(null);
-                                }
-                            }
-                        }
-                    }
+                    addMembers(expandedPopulationFilter, members, meterRequired);
 
                     // Add group only if it has at least one user
                     if (!expandedPopulationFilter.getUserKeys().isEmpty()) {
@@ -845,35 +1135,18 @@ public class DataService extends BaseService implements IDataService {
                 }
             }
 
+            phaseStart = expandedQuery.getProfile().endPhase(QueryExecutionProfile.PHASE_POPULATION, phaseStart);
+
             // Step 2: Split population groups depending on the areas
             if (areas.isEmpty()) {
                 expandedQuery.getGroups().addAll(populationGroups);
             } else {
-                long areaCounter = 0;
-
-                for (LabeledGeometry area : areas) {
-                    response.getAreas().put(++areaCounter, area);
-
-                    for (ExpandedPopulationFilter population : populationGroups) {
-                        ExpandedPopulationFilter areaPopulation = new ExpandedPopulationFilter(population, areaCounter, area.getKey());
-
-                        for (int i = 0, count = population.getUserKeys().size(); i < count; i++) {
-                            if (area.contains(getUserLocation(userLocations, population.getUserKeys().get(i)))) {
-                                // Copy fields
-                                areaPopulation.getUserKeys().add(population.getUserKeys().get(i));
-                                areaPopulation.getLabels().add(population.getLabels().get(i));
-                                areaPopulation.getUserKeyHashes().add(population.getUserKeyHashes().get(i));
-                                areaPopulation.getSerialHashes().add(population.getSerialHashes().get(i));
-                            }
-                        }
-
-                        if (!areaPopulation.getUserKeys().isEmpty()) {
-                            expandedQuery.getGroups().add(areaPopulation);
-                        }
-                    }
-                }
+                expandedQuery.getGroups().addAll(splitPopulationByArea(populationGroups, areas, response.getAreas(), false));
             }
 
+            expandedQuery.getProfile().endPhase(QueryExecutionProfile.PHASE_SPATIAL, phaseStart);
+            expandedQuery.getProfile().setUsers(countUsers(populationGroups));
+
             // Compute time constraints
             DateTime dateFrom = new DateTime(query.getTime().getStart(), DateTimeZone.forID(query.getTimezone()));
             DateTime dateTo;
@@ -900,7 +1173,7 @@ public class DataService extends BaseService implements IDataService {
                             dateTo = dateFrom.plusYears(query.getTime().getDuration());
                             break;
                         default:
-                            return;
+                            return null;
                     }
 
                     // Invert start/end dates if needed e.g. a negative interval
@@ -912,7 +1185,7 @@ public class DataService extends BaseService implements IDataService {
                     }
                     break;
                 default:
-                    return;
+                    return null;
             }
 
             // Construct expanded query
@@ -920,26 +1193,170 @@ public class DataService extends BaseService implements IDataService {
             expandedQuery.setEndDateTime(dateTo.getMillis());
             expandedQuery.setGranularity(query.getTime().getGranularity());
 
-            switch (query.getSource()) {
-                case BOTH:
-                    response.setDevices(amphiroIndexOrderedRepository.query(expandedQuery));
-                    response.setMeters(meterDataRepository.query(expandedQuery));
-                    break;
-                case AMPHIRO: case DEVICE:
-                    response.setDevices(amphiroIndexOrderedRepository.query(expandedQuery));
-                    break;
-                case METER:
-                    response.setMeters(meterDataRepository.query(expandedQuery));
-                    break;
-                case NONE:
-                    // Ignore
-                    break;
+            return expandedQuery;
+        } catch (Exception ex) {
+            throw wrapApplicationException(ex);
+        }
+    }
+
+    /**
+     * Expands a query depending on whether it reads pre-aggregated data.
+     *
+     * @param query the query to expand.
+     * @param response the query response whose areas are updated.
+     * @return the expanded query or null if the time filter is not supported.
+     */
+    private ExpandedDataQuery expand(DataQuery query, DataQueryResponse response) {
+        if (query.isUsingPreAggregation()) {
+            return expandWithPreAggregation(query, response);
+        }
+        return expandWithoutPreAggregation(query, response);
+    }
+
+    /**
+     * Executes an expanded query and adds its data series to the response.
+     *
+     * @param query the query.
+     * @param expandedQuery the expanded query.
+     * @param response the query response.
+     * @param writer the writer of the data series or null if the data series should be added to the response.
+     */
+    private void execute(DataQuery query,
+                         ExpandedDataQuery expandedQuery,
+                         final DataQueryResponse response,
+                         final DataQueryResponseWriter writer) {
+        try {
+            // Wait for the budget of the query caller
+            DataQueryAdmissionController.Admission admission = admit(query, expandedQuery);
+
+            try {
+                // The series of a sub-query are written while its sibling is still running
+                querySeries(query.getSource(), expandedQuery, new DataQueryExecutor.ResultHandler<List<GroupDataSeries>>() {
+
+                    @Override
+                    public void completed(int index, List<GroupDataSeries> series) throws Exception {
+                        if (index == 0) {
+                            setDevices(response, writer, series);
+                        } else {
+                            setMeters(response, writer, series);
+                        }
+                    }
+                });
+            } finally {
+                admission.release();
             }
+
+            response.getExecution().getPlans().addAll(expandedQuery.getPlans());
+        } catch (TimeoutException ex) {
+            throw wrapApplicationException(ex, QueryErrorCode.TIMEOUT);
         } catch (Exception ex) {
             throw wrapApplicationException(ex);
         }
     }
 
+    /**
+     * Reads the data series of an expanded query from the repositories of the
+     * query data source.
+     *
+     * @param source the query data source.
+     * @param expandedQuery the expanded query.
+     * @return the amphiro b1 and the smart water meter data series, one per
+     *         population group. A list is null if its source is not queried.
+     * @throws Exception if a repository fails or the query times out.
+     */
+    private List<List<GroupDataSeries>> querySeries(EnumMeasurementDataSource source, ExpandedDataQuery expandedQuery) throws Exception {
+        final List<List<GroupDataSeries>> series = new ArrayList<List<GroupDataSeries>>(2);
+        series.add(null);
+        series.add(null);
+
+        querySeries(source, expandedQuery, new DataQueryExecutor.ResultHandler<List<GroupDataSeries>>() {
+
+            @Override
+            public void completed(int index, List<GroupDataSeries> result) {
+                series.set(index, result);
+            }
+        });
+
+        return series;
+    }
+
+    /**
+     * Reads the data series of an expanded query from the repositories of the
+     * query data source and hands the series of every sub-query to the given
+     * handler as soon as the sub-query completes. The handler is invoked by
+     * the calling thread with index 0 for the amphiro b1 data series and 1 for
+     * the smart water meter data series.
+     *
+     * @param source the query data source.
+     * @param expandedQuery the expanded query.
+     * @param handler the handler of the data series.
+     * @throws Exception if a repository or the handler fails or the query times out.
+     */
+    private void querySeries(EnumMeasurementDataSource source,
+                             ExpandedDataQuery expandedQuery,
+                             DataQueryExecutor.ResultHandler<List<GroupDataSeries>> handler) throws Exception {
+        if (expandedQuery.isUsingPreAggregation()) {
+            handler.completed(1, meterAggregateDataRepository.query(expandedQuery));
+            return;
+        }
+
+        switch (source) {
+            case BOTH:
+                // Sub-queries are independent and are executed concurrently
+                List<Callable<List<GroupDataSeries>>> tasks = new ArrayList<Callable<List<GroupDataSeries>>>();
+                tasks.add(createAmphiroQueryTask(expandedQuery));
+                tasks.add(createMeterQueryTask(expandedQuery));
+
+                dataQueryExecutor.invokeAll(tasks, handler);
+                break;
+            case AMPHIRO: case DEVICE:
+                handler.completed(0, amphiroIndexOrderedRepository.query(expandedQuery));
+                break;
+            case METER:
+                handler.completed(1, meterDataRepository.query(expandedQuery));
+                break;
+            case NONE:
+                // Ignore
+                break;
+        }
+    }
+
+    private Callable<List<GroupDataSeries>> createAmphiroQueryTask(final ExpandedDataQuery expandedQuery) {
+        return new Callable<List<GroupDataSeries>>() {
+
+            @Override
+            public List<GroupDataSeries> call() throws Exception {
+                return amphiroIndexOrderedRepository.query(expandedQuery);
+            }
+        };
+    }
+
+    private Callable<List<GroupDataSeries>> createMeterQueryTask(final ExpandedDataQuery expandedQuery) {
+        return new Callable<List<GroupDataSeries>>() {
+
+            @Override
+            public List<GroupDataSeries> call() throws Exception {
+                return meterDataRepository.query(expandedQuery);
+            }
+        };
+    }
+
+    private void setDevices(DataQueryResponse response, DataQueryResponseWriter writer, List<GroupDataSeries> series) throws IOException {
+        if (writer == null) {
+            response.setDevices(series);
+        } else {
+            writer.writeDevices(series);
+        }
+    }
+
+    private void setMeters(DataQueryResponse response, DataQueryResponseWriter writer, List<GroupDataSeries> series) throws IOException {
+        if (writer == null) {
+            response.setMeters(series);
+        } else {
+            writer.writeMeters(series);
+        }
+    }
+
     /**
      * Executes a generic query for smart water meter forecasting data.
      *
@@ -962,22 +1379,28 @@ public class DataService extends BaseService implements IDataService {
         // Validate query
         this.validate(query, response);
 
+        ExpandedDataQuery expandedQuery = null;
+
         if (response.getSuccess()) {
             if(query.isUsingPreAggregation()){
-                executeWithPreAggregation(query, response);
+                expandedQuery = executeWithPreAggregation(query, response);
             } else {
-                executeWithoutPreAggregation(query, response);
+                expandedQuery = executeWithoutPreAggregation(query, response);
             }
         }
 
         long stopTime = System.currentTimeMillis();
         response.getExecution().setDuration(stopTime - startTime);
 
+        setProfile(query, response, (expandedQuery == null ? null : expandedQuery.getProfile()));
+
         return response;
     }
 
-    private void executeWithPreAggregation(ForecastQuery query, ForecastQueryResponse response) {
+    private ExpandedDataQuery executeWithPreAggregation(ForecastQuery query, ForecastQueryResponse response) {
         try {
+            long phaseStart = System.currentTimeMillis();
+
             // Create new query
             ExpandedDataQuery expandedQuery = new ExpandedDataQuery(query.getTimezone());
 
@@ -1030,9 +1453,6 @@ public class DataService extends BaseService implements IDataService {
                 }
             }
 
-            // Helper store for caching user location
-            Map<UUID, Geometry> userLocations = new HashMap<UUID, Geometry>();
-
             // Step 1: Generate groups based on the population
             ArrayList<ExpandedPopulationFilter> populationGroups = new ArrayList<ExpandedPopulationFilter>();
 
@@ -1042,23 +1462,25 @@ public class DataService extends BaseService implements IDataService {
                 for (int p = 0; p < query.getPopulation().size(); p++) {
                     PopulationFilter filter = query.getPopulation().get(p);
 
-                    List<UUID> filterUsers = null;
+                    List<PopulationMember> members = null;
 
                     switch (filter.getType()) {
                         case USER:
-                            filterUsers = ((UserPopulationFilter) filter).getUsers();
+                            List<UUID> filterUsers = ((UserPopulationFilter) filter).getUsers();
                             if (filterUsers != null) {
                                 for (UUID userKey : filterUsers) {
                                     authorize(query.getExecutor(), EnumPopulationFilterType.USER, userKey);
                                 }
                             }
+
+                            members = getUserMembers(filterUsers, true, md);
                             break;
                         case GROUP:
                             UUID groupKey = ((GroupPopulationFilter) filter).getGroup();
 
                             authorize(query.getExecutor(), EnumPopulationFilterType.GROUP, groupKey);
 
-                            filterUsers = groupRepository.getGroupMemberKeys(groupKey);
+                            members = populationMemberRepository.getGroupMembers(groupKey);
                             break;
                         case CLUSTER:
                             ClusterPopulationFilter clusterFilter = (ClusterPopulationFilter) filter;
@@ -1086,41 +1508,17 @@ public class DataService extends BaseService implements IDataService {
 
                             authorize(query.getExecutor(), EnumPopulationFilterType.UTILITY, utilityKey);
 
-                            filterUsers = groupRepository.getUtilityByKeyMemberKeys(utilityKey);
+                            members = populationMemberRepository.getUtilityMembers(utilityKey);
                             break;
                         default:
                             throw new IllegalArgumentException(String.format("Filter of type [%s] is not supported.", filter.getType()));
                     }
 
                     // Construct expanded spatial and population filter
-                    ExpandedPopulationFilter expandedPopulationFilter = new ExpandedPopulationFilter(filter, filterUsers.size());
-
-                    if ((filter.getType() == EnumPopulationFilterType.USER) && (filterUsers.size() > 0)) {
-                        for (UUID userKey : filterUsers) {
-                            AuthenticatedUser user = userRepository.getUserByKey(userKey);
-                            if (user == null) {
-                                throw createApplicationException(UserErrorCode.USERNANE_NOT_FOUND).set("username", userKey);
-                            }
-
+                    ExpandedPopulationFilter expandedPopulationFilter = new ExpandedPopulationFilter(filter, members.size());
 
-                            // Decide if the user must be included in the group
-                            boolean includeUser = true;
-
-                            WaterMeterDevice userMeter = getUserWaterMeter(userKey);
-                            if (userMeter == null) {
-                                includeUser = false;
-                            }
-
-                            // Decide if user should be added to the final
-                            // result
-                            if (includeUser) {
-                                expandedPopulationFilter.getUserKeys().add(userKey);
-                                expandedPopulationFilter.getLabels().add(user.getUsername());
-                                expandedPopulationFilter.getUserKeyHashes().add(md.digest(userKey.toString().getBytes("UTF-8")));
-                                expandedPopulationFilter.getSerialHashes().add(md.digest(userMeter.getSerial().getBytes("UTF-8")));
-                            }
-
-                        }
+                    if (filter.getType() == EnumPopulationFilterType.USER) {
+                        addMembers(expandedPopulationFilter, members, true);
                     }
 
                     // Include population groups that either are not of type
@@ -1132,38 +1530,18 @@ public class DataService extends BaseService implements IDataService {
                 }
             }
 
+            phaseStart = expandedQuery.getProfile().endPhase(QueryExecutionProfile.PHASE_POPULATION, phaseStart);
+
             // Step 2: Split population groups depending on the areas
             if (areas.isEmpty()) {
                 expandedQuery.getGroups().addAll(populationGroups);
             } else {
-                long areaCounter = 0;
-
-                for (LabeledGeometry area : areas) {
-                    response.getAreas().put(++areaCounter, area);
-
-                    for (ExpandedPopulationFilter population : populationGroups) {
-                        ExpandedPopulationFilter areaPopulation = new ExpandedPopulationFilter(population, areaCounter, area.getKey());
-
-                        for (int i = 0, count = population.getUserKeys().size(); i < count; i++) {
-                            if (area.contains(getUserLocation(userLocations, population.getUserKeys().get(i)))) {
-                                // Copy fields
-                                areaPopulation.getUserKeys().add(population.getUserKeys().get(i));
-                                areaPopulation.getLabels().add(population.getLabels().get(i));
-                                areaPopulation.getUserKeyHashes().add(population.getUserKeyHashes().get(i));
-                                areaPopulation.getSerialHashes().add(population.getSerialHashes().get(i));
-                            }
-                        }
-
-                        // Include population groups that either are not of type
-                        // USER or have at least one user
-                        if ((areaPopulation.getType() != EnumPopulationFilterType.USER) ||
-                            (!areaPopulation.getUserKeys().isEmpty())) {
-                            expandedQuery.getGroups().add(areaPopulation);
-                        }
-                    }
-                }
+                expandedQuery.getGroups().addAll(splitPopulationByArea(populationGroups, areas, response.getAreas(), true));
             }
 
+            expandedQuery.getProfile().endPhase(QueryExecutionProfile.PHASE_SPATIAL, phaseStart);
+            expandedQuery.getProfile().setUsers(countUsers(populationGroups));
+
             // Compute time constraints
             long startDateTime, endDateTime;
 
@@ -1196,7 +1574,7 @@ public class DataService extends BaseService implements IDataService {
                                            query.getTime().getDuration()).getMillis());
                             break;
                         default:
-                            return;
+                            return null;
                     }
 
                     // Invert start/end dates if needed e.g. a negative interval
@@ -1208,7 +1586,7 @@ public class DataService extends BaseService implements IDataService {
                     }
                     break;
                 default:
-                    return;
+                    return null;
             }
 
             // Construct expanded query
@@ -1216,14 +1594,37 @@ public class DataService extends BaseService implements IDataService {
             expandedQuery.setEndDateTime(endDateTime);
             expandedQuery.setGranularity(query.getTime().getGranularity());
 
-            response.setMeters(meterForecastingAggregateDataRepository.forecast(expandedQuery));
+            final ExpandedDataQuery forecastQuery = expandedQuery;
+
+            // Wait for the budget of the query caller
+            DataQueryAdmissionController.Admission admission = admit(query, expandedQuery);
+
+            try {
+                response.setMeters(dataQueryExecutor.invoke(new Callable<List<GroupDataSeries>>() {
+
+                    @Override
+                    public List<GroupDataSeries> call() throws Exception {
+                        return meterForecastingAggregateDataRepository.forecast(forecastQuery);
+                    }
+                }));
+            } finally {
+                admission.release();
+            }
+
+            response.getExecution().getPlans().addAll(expandedQuery.getPlans());
+
+            return expandedQuery;
+        } catch (TimeoutException ex) {
+            throw wrapApplicationException(ex, QueryErrorCode.TIMEOUT);
         } catch (Exception ex) {
             throw wrapApplicationException(ex);
         }
     }
 
-    private void executeWithoutPreAggregation(ForecastQuery query, ForecastQueryResponse response) {
+    private ExpandedDataQuery executeWithoutPreAggregation(ForecastQuery query, ForecastQueryResponse response) {
         try {
+            long phaseStart = System.currentTimeMillis();
+
             // Create new query
             ExpandedDataQuery expandedQuery = new ExpandedDataQuery(query.getTimezone());
 
@@ -1276,9 +1677,6 @@ public class DataService extends BaseService implements IDataService {
                 }
             }
 
-            // Helper store for caching user location
-            Map<UUID, Geometry> userLocations = new HashMap<UUID, Geometry>();
-
             // Step 1: Generate groups based on the population
             ArrayList<ExpandedPopulationFilter> populationGroups = new ArrayList<ExpandedPopulationFilter>();
 
@@ -1288,23 +1686,25 @@ public class DataService extends BaseService implements IDataService {
                 for (int p = 0; p < query.getPopulation().size(); p++) {
                     PopulationFilter filter = query.getPopulation().get(p);
 
-                    List<UUID> filterUsers = null;
+                    List<PopulationMember> members = null;
 
                     switch (filter.getType()) {
                         case USER:
-                            filterUsers = ((UserPopulationFilter) filter).getUsers();
+                            List<UUID> filterUsers = ((UserPopulationFilter) filter).getUsers();
                             if (filterUsers != null) {
                                 for (UUID userKey : filterUsers) {
                                     authorize(query.getExecutor(), EnumPopulationFilterType.USER, userKey);
                                 }
                             }
+
+                            members = getUserMembers(filterUsers, true, md);
                             break;
                         case GROUP:
                             UUID groupKey = ((GroupPopulationFilter) filter).getGroup();
 
                             authorize(query.getExecutor(), EnumPopulationFilterType.GROUP, groupKey);
 
-                            filterUsers = groupRepository.getGroupMemberKeys(groupKey);
+                            members = populationMemberRepository.getGroupMembers(groupKey);
                             break;
                         case CLUSTER:
                             ClusterPopulationFilter clusterFilter = (ClusterPopulationFilter) filter;
@@ -1332,44 +1732,16 @@ public class DataService extends BaseService implements IDataService {
 
                             authorize(query.getExecutor(), EnumPopulationFilterType.UTILITY, utilityKey);
 
-                            filterUsers = groupRepository.getUtilityByKeyMemberKeys(utilityKey);
+                            members = populationMemberRepository.getUtilityMembers(utilityKey);
                             break;
                         default:
                             // Ignore
                     }
 
                     // Construct expanded spatial and population filter
-                    ExpandedPopulationFilter expandedPopulationFilter = new ExpandedPopulationFilter(filter, filterUsers.size());
-
-                    if (filterUsers.size() > 0) {
-                        for (UUID userKey : filterUsers) {
-                            AuthenticatedUser user = userRepository.getUserByKey(userKey);
-                            if (user == null) {
-                                throw createApplicationException(UserErrorCode.USERNANE_NOT_FOUND).set("username", userKey);
-                            }
+                    ExpandedPopulationFilter expandedPopulationFilter = new ExpandedPopulationFilter(filter, members.size());
 
-                            // Decide if the user must be included in the group
-                            boolean includeUser = true;
-
-                            WaterMeterDevice userMeter = getUserWaterMeter(userKey);
-                            if (userMeter == null) {
-                                includeUser = false;
-                            }
-
-                            // Decide if user should be added to the final
-                            // result
-                            if (includeUser) {
-                                expandedPopulationFilter.getUserKeys().add(userKey);
-                                expandedPopulationFilter.getLabels().add(user.getUsername());
-                                expandedPopulationFilter.getUserKeyHashes().add(md.digest(userKey.toString().getBytes("UTF-8")));
-                                if (userMeter != null) {
-                                    expandedPopulationFilter.getSerialHashes().add(md.digest(userMeter.getSerial().getBytes("UTF-8")));
-                                } else {
-                                    expandedPopulationFilter.getSerialHashes().add(null);
-                                }
-                            }
-                        }
-                    }
+                    addMembers(expandedPopulationFilter, members, true);
 
                     // Add group only if it has at least one user
                     if (!expandedPopulationFilter.getUserKeys().isEmpty()) {
@@ -1378,35 +1750,18 @@ public class DataService extends BaseService implements IDataService {
                 }
             }
 
+            phaseStart = expandedQuery.getProfile().endPhase(QueryExecutionProfile.PHASE_POPULATION, phaseStart);
+
             // Step 2: Split population groups depending on the areas
             if (areas.isEmpty()) {
                 expandedQuery.getGroups().addAll(populationGroups);
             } else {
-                long areaCounter = 0;
-
-                for (LabeledGeometry area : areas) {
-                    response.getAreas().put(++areaCounter, area);
-
-                    for (ExpandedPopulationFilter population : populationGroups) {
-                        ExpandedPopulationFilter areaPopulation = new ExpandedPopulationFilter(population, areaCounter, area.getKey());
-
-                        for (int i = 0, count = population.getUserKeys().size(); i < count; i++) {
-                            if (area.contains(getUserLocation(userLocations, population.getUserKeys().get(i)))) {
-                                // Copy fields
-                                areaPopulation.getUserKeys().add(population.getUserKeys().get(i));
-                                areaPopulation.getLabels().add(population.getLabels().get(i));
-                                areaPopulation.getUserKeyHashes().add(population.getUserKeyHashes().get(i));
-                                areaPopulation.getSerialHashes().add(population.getSerialHashes().get(i));
-                            }
-                        }
-
-                        if (!areaPopulation.getUserKeys().isEmpty()) {
-                            expandedQuery.getGroups().add(areaPopulation);
-                        }
-                    }
-                }
+                expandedQuery.getGroups().addAll(splitPopulationByArea(populationGroups, areas, response.getAreas(), false));
             }
 
+            expandedQuery.getProfile().endPhase(QueryExecutionProfile.PHASE_SPATIAL, phaseStart);
+            expandedQuery.getProfile().setUsers(countUsers(populationGroups));
+
             // Compute time constraints
             DateTime dateFrom = new DateTime(query.getTime().getStart(), DateTimeZone.forID(query.getTimezone()));
             DateTime dateTo;
@@ -1433,7 +1788,7 @@ public class DataService extends BaseService implements IDataService {
                             dateTo = dateFrom.plusYears(query.getTime().getDuration());
                             break;
                         default:
-                            return;
+                            return null;
                     }
 
                     // Invert start/end dates if needed e.g. a negative interval
@@ -1445,7 +1800,7 @@ public class DataService extends BaseService implements IDataService {
                     }
                     break;
                 default:
-                    return;
+                    return null;
             }
 
             // Construct expanded query
@@ -1453,22 +1808,211 @@ public class DataService extends BaseService implements IDataService {
             expandedQuery.setEndDateTime(dateTo.getMillis());
             expandedQuery.setGranularity(query.getTime().getGranularity());
 
-            response.setMeters(meterForecastingDataRepository.forecast(expandedQuery));
+            final ExpandedDataQuery forecastQuery = expandedQuery;
+
+            // Wait for the budget of the query caller
+            DataQueryAdmissionController.Admission admission = admit(query, expandedQuery);
+
+            try {
+                response.setMeters(dataQueryExecutor.invoke(new Callable<List<GroupDataSeries>>() {
+
+                    @Override
+                    public List<GroupDataSeries> call() throws Exception {
+                        return meterForecastingDataRepository.forecast(forecastQuery);
+                    }
+                }));
+            } finally {
+                admission.release();
+            }
+
+            response.getExecution().getPlans().addAll(expandedQuery.getPlans());
+
+            return expandedQuery;
+        } catch (TimeoutException ex) {
+            throw wrapApplicationException(ex, QueryErrorCode.TIMEOUT);
         } catch (Exception ex) {
             throw wrapApplicationException(ex);
         }
     }
 
-    private Geometry getUserLocation(Map<UUID, Geometry> userLocations, UUID userKey) {
-        if (userLocations.containsKey(userKey)) {
-            return userLocations.get(userKey);
+    /**
+     * Waits until the budget of the query caller can accommodate an expanded
+     * query. The time spent waiting is added to the query execution profile.
+     *
+     * @param query the query.
+     * @param expandedQuery the expanded query.
+     * @return the admission that must be released once the query completes.
+     * @throws ApplicationException if the query has been rejected.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    private DataQueryAdmissionController.Admission admit(AbstractDataQuery query, ExpandedDataQuery expandedQuery) throws InterruptedException {
+        EnumQueryCaller caller = admissionController.getCaller(query.getExecutor());
+        long weight = admissionController.getWeight(expandedQuery, query.isUsingPreAggregation());
+
+        DataQueryAdmissionController.Admission admission = admissionController.admit(caller, weight);
+        if (admission == null) {
+            throw createApplicationException(QueryErrorCode.REJECTED).set("caller", caller).set("weight", weight);
         }
 
-        Geometry location = spatialRepository.getUserLocationByUserKey(userKey);
+        expandedQuery.getProfile().addPhase(QueryExecutionProfile.PHASE_QUEUE, admission.getQueueTime());
 
-        userLocations.put(userKey, location);
+        return admission;
+    }
+
+    /**
+     * Returns the number of users of a list of population groups.
+     *
+     * @param populationGroups the population groups.
+     * @return the number of users.
+     */
+    private long countUsers(List<ExpandedPopulationFilter> populationGroups) {
+        long users = 0;
 
-        return location;
+        for (ExpandedPopulationFilter group : populationGroups) {
+            users += group.getSize();
+        }
+
+        return users;
+    }
+
+    /**
+     * Splits population groups by area. A new group is created for every
+     * combination of area and population group. Groups are ordered by area
+     * and then by population group. User locations are loaded in bulk and
+     * every location is tested only against the areas whose envelope
+     * contains it.
+     *
+     * @param populationGroups the population groups to split.
+     * @param areas the areas.
+     * @param responseAreas the response areas, indexed by area identifier, to update.
+     * @param includeEmptyGroups true if groups with no users that are not of type USER must be included.
+     * @return the groups of every area.
+     */
+    private List<ExpandedPopulationFilter> splitPopulationByArea(List<ExpandedPopulationFilter> populationGroups,
+                                                                 List<LabeledGeometry> areas,
+                                                                 Map<Long, LabeledGeometry> responseAreas,
+                                                                 boolean includeEmptyGroups) {
+        LabeledGeometryIndex index = new LabeledGeometryIndex(areas);
+
+        ExpandedPopulationFilter[][] areaPopulations = new ExpandedPopulationFilter[areas.size()][populationGroups.size()];
+
+        for (int a = 0; a < areas.size(); a++) {
+            LabeledGeometry area = areas.get(a);
+            long areaId = a + 1;
+
+            responseAreas.put(areaId, area);
+
+            for (int p = 0; p < populationGroups.size(); p++) {
+                areaPopulations[a][p] = new ExpandedPopulationFilter(populationGroups.get(p), areaId, area.getKey());
+            }
+        }
+
+        HashSet<UUID> userKeys = new HashSet<UUID>();
+        for (ExpandedPopulationFilter population : populationGroups) {
+            userKeys.addAll(population.getUserKeys());
+        }
+
+        Map<UUID, Geometry> userLocations = spatialRepository.getUserLocationsByUserKey(userKeys);
+
+        // Helper store for caching the areas of every user
+        Map<UUID, List<Integer>> userAreas = new HashMap<UUID, List<Integer>>();
+
+        for (int p = 0; p < populationGroups.size(); p++) {
+            ExpandedPopulationFilter population = populationGroups.get(p);
+
+            for (int i = 0, count = population.getUserKeys().size(); i < count; i++) {
+                UUID userKey = population.getUserKeys().get(i);
+
+                List<Integer> userAreaIndexes = userAreas.get(userKey);
+                if (userAreaIndexes == null) {
+                    userAreaIndexes = index.contains(userLocations.get(userKey));
+                    userAreas.put(userKey, userAreaIndexes);
+                }
+
+                for (int a : userAreaIndexes) {
+                    // Copy fields
+                    ExpandedPopulationFilter areaPopulation = areaPopulations[a][p];
+
+                    areaPopulation.getUserKeys().add(userKey);
+                    areaPopulation.getLabels().add(population.getLabels().get(i));
+                    areaPopulation.getUserKeyHashes().add(population.getUserKeyHashes().get(i));
+                    areaPopulation.getSerialHashes().add(population.getSerialHashes().get(i));
+                }
+            }
+        }
+
+        List<ExpandedPopulationFilter> result = new ArrayList<ExpandedPopulationFilter>();
+
+        for (int a = 0; a < areas.size(); a++) {
+            for (int p = 0; p < populationGroups.size(); p++) {
+                ExpandedPopulationFilter areaPopulation = areaPopulations[a][p];
+
+                // Include population groups that either have at least one user
+                // or, if requested, are not of type USER
+                if ((!areaPopulation.getUserKeys().isEmpty()) ||
+                    ((includeEmptyGroups) && (areaPopulation.getType() != EnumPopulationFilterType.USER))) {
+                    result.add(areaPopulation);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Resolves the members of a user population filter.
+     *
+     * @param userKeys the user keys.
+     * @param includeMeter true if the smart water meter of every user must be resolved.
+     * @param md an MD5 message digest.
+     * @return a list of {@link PopulationMember}.
+     */
+    private List<PopulationMember> getUserMembers(List<UUID> userKeys, boolean includeMeter, MessageDigest md) {
+        List<PopulationMember> members = new ArrayList<PopulationMember>();
+
+        if (userKeys == null) {
+            return members;
+        }
+
+        for (UUID userKey : userKeys) {
+            AuthenticatedUser user = userRepository.getUserByKey(userKey);
+            if (user == null) {
+                throw createApplicationException(UserErrorCode.USERNANE_NOT_FOUND).set("username", userKey);
+            }
+
+            String serial = null;
+            if (includeMeter) {
+                WaterMeterDevice userMeter = getUserWaterMeter(userKey);
+                if (userMeter != null) {
+                    serial = userMeter.getSerial();
+                }
+            }
+
+            members.add(new PopulationMember(md, userKey, user.getUsername(), serial));
+        }
+
+        return members;
+    }
+
+    /**
+     * Adds population members to an expanded population filter. If a smart
+     * water meter is required, users without a meter are excluded.
+     *
+     * @param filter the expanded population filter.
+     * @param members the members to add.
+     * @param meterRequired true if only users with a smart water meter must be added.
+     */
+    private void addMembers(ExpandedPopulationFilter filter, List<PopulationMember> members, boolean meterRequired) {
+        for (PopulationMember member : members) {
+            if ((meterRequired) && (member.getSerialHash() == null)) {
+                continue;
+            }
+
+            filter.getUserKeys().add(member.getUserKey());
+            filter.getLabels().add(member.getUsername());
+            filter.getUserKeyHashes().add(member.getUserKeyHash());
+            filter.getSerialHashes().add(meterRequired ? member.getSerialHash() : null);
+        }
     }
 
     private WaterMeterDevice getUserWaterMeter(UUID userKey) {
@@ -1723,4 +2267,53 @@ public class DataService extends BaseService implements IDataService {
 
         throw createApplicationException(SharedErrorCode.AUTHORIZATION);
     }
+
+    /**
+     * Key of an expanded population group used for detecting identical groups
+     * of merged queries. Groups are equal if they have the same type, label,
+     * group, area and ranking and they are expanded to the same users.
+     */
+    private static class PopulationGroupKey {
+
+        private final String key;
+
+        private final List<UUID> userKeys;
+
+        PopulationGroupKey(ExpandedPopulationFilter group) {
+            StringBuilder text = new StringBuilder();
+
+            text.append(group.getType())
+                .append('|').append(group.getLabel())
+                .append('|').append(group.getGroupKey())
+                .append('|').append(group.getAreaId())
+                .append('|').append(group.getAreaKey());
+
+            Ranking ranking = group.getRanking();
+            if (ranking != null) {
+                text.append('|').append(ranking.getType())
+                    .append(':').append(ranking.getField())
+                    .append(':').append(ranking.getMetric())
+                    .append(':').append(ranking.getLimit());
+            }
+
+            key = text.toString();
+            userKeys = group.getUserKeys();
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * key.hashCode()) + userKeys.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PopulationGroupKey)) {
+                return false;
+            }
+
+            PopulationGroupKey other = (PopulationGroupKey) obj;
+
+            return ((key.equals(other.key)) && (userKeys.equals(other.userKeys)));
+        }
+    }
 }
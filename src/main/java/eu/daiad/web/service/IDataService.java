@@ -9,6 +9,7 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 
 import eu.daiad.web.model.query.DataQuery;
 import eu.daiad.web.model.query.DataQueryResponse;
+import eu.daiad.web.model.query.DataQueryResponseWriter;
 import eu.daiad.web.model.query.ForecastQuery;
 import eu.daiad.web.model.query.ForecastQueryResponse;
 import eu.daiad.web.model.query.GroupDataSeries;
@@ -24,6 +25,27 @@ public interface IDataService {
 	 */
 	abstract DataQueryResponse execute(DataQuery query);
 
+    /**
+     * Executes a generic query for amphiro b1 sessions and smart water meter
+     * readings and writes every data series to the given writer as soon as it
+     * is computed. The data series are not added to the returned response.
+     *
+     * @param query the query to execute.
+     * @param writer the writer of the data series.
+     * @return the query response.
+     */
+    abstract DataQueryResponse execute(DataQuery query, DataQueryResponseWriter writer);
+
+    /**
+     * Executes a batch of generic queries for amphiro b1 sessions and smart
+     * water meter readings. Queries with the same source and time filter are
+     * merged and share the same scans.
+     *
+     * @param queries the queries to execute.
+     * @return the query responses in the same order as the queries.
+     */
+    abstract List<DataQueryResponse> execute(List<DataQuery> queries);
+
     /**
      * Executes a generic query for smart water meter forecasting.
      *
@@ -0,0 +1,639 @@
+package eu.daiad.web.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import eu.daiad.web.hbase.RankingCellCodec;
+import eu.daiad.web.model.EnumTimeAggregation;
+import eu.daiad.web.model.meter.MeterAggregate;
+import eu.daiad.web.model.meter.MeterAggregationGroup;
+import eu.daiad.web.model.query.TimeBucketCalendar;
+import eu.daiad.web.repository.application.IMeterAggregationRepository;
+import eu.daiad.web.repository.application.MeterRowDecoder;
+
+/**
+ * Incrementally computes the pre-aggregated smart water meter data of
+ * population groups for every supported time granularity.
+ *
+ * Only the time buckets that contain changed readings are recomputed. For
+ * every group with at least one changed member, the interval between the
+ * earliest and the latest changed reading is recomputed in chunks of a
+ * calendar year in the group time zone. The readings of every member meter are
+ * read once per chunk and aggregated to the time buckets of all granularities
+ * and all groups the meter belongs to. Meters are processed concurrently.
+ *
+ * The engine accesses data only through {@link IMeterAggregationRepository}
+ * and has no dependency to a Hadoop cluster.
+ */
+public class MeterAggregationEngine {
+
+    /**
+     * Computed time granularities.
+     */
+    private static final EnumTimeAggregation[] GRANULARITIES = { EnumTimeAggregation.HOUR,
+                                                                 EnumTimeAggregation.DAY,
+                                                                 EnumTimeAggregation.WEEK,
+                                                                 EnumTimeAggregation.MONTH,
+                                                                 EnumTimeAggregation.YEAR };
+
+    /**
+     * Orders ranking entries in ascending order of value. Entries with equal
+     * values are ordered by serial number.
+     */
+    private static final Comparator<RankingCellCodec.Entry> ASCENDING = new Comparator<RankingCellCodec.Entry>() {
+
+        @Override
+        public int compare(RankingCellCodec.Entry e1, RankingCellCodec.Entry e2) {
+            int result = Float.compare(e1.getValue(), e2.getValue());
+            if (result == 0) {
+                result = e1.getSerial().compareTo(e2.getSerial());
+            }
+            return result;
+        }
+    };
+
+    private static final Comparator<RankingCellCodec.Entry> DESCENDING = Collections.reverseOrder(ASCENDING);
+
+    private final IMeterAggregationRepository repository;
+
+    private final int parallelism;
+
+    private final int limit;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a new engine.
+     *
+     * @param repository the repository for reading meter data and storing aggregates.
+     * @param parallelism the number of meters that are processed concurrently.
+     * @param limit the number of users stored for top-k/bottom-k rankings.
+     */
+    public MeterAggregationEngine(IMeterAggregationRepository repository, int parallelism, int limit) {
+        this.repository = repository;
+        this.parallelism = Math.max(1, parallelism);
+        this.limit = Math.max(0, limit);
+    }
+
+    /**
+     * Requests the engine to stop. Aggregates of the chunk being processed are
+     * not stored.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Recomputes the aggregates of the groups affected by the given changes.
+     *
+     * @param groups the groups.
+     * @param changes for every changed meter serial number hash, the earliest
+     *                and the latest timestamp of the changed readings.
+     * @return execution statistics.
+     * @throws Exception if aggregation fails or the engine is stopped.
+     */
+    public Statistics execute(List<MeterAggregationGroup> groups, Map<ByteBuffer, long[]> changes) throws Exception {
+        Statistics statistics = new Statistics();
+
+        // Compute the changed interval of every group and index groups by time zone
+        Map<DateTimeZone, List<DirtyGroup>> groupsByTimezone = new LinkedHashMap<DateTimeZone, List<DirtyGroup>>();
+
+        for (MeterAggregationGroup group : groups) {
+            long[] interval = null;
+
+            for (MeterAggregationGroup.Member member : group.getMembers()) {
+                long[] changed = changes.get(ByteBuffer.wrap(member.getSerialHash()));
+                if (changed == null) {
+                    continue;
+                }
+                if (interval == null) {
+                    interval = new long[] { changed[0], changed[1] };
+                } else {
+                    interval[0] = Math.min(interval[0], changed[0]);
+                    interval[1] = Math.max(interval[1], changed[1]);
+                }
+            }
+
+            if (interval != null) {
+                List<DirtyGroup> entries = groupsByTimezone.get(group.getTimezone());
+                if (entries == null) {
+                    entries = new ArrayList<DirtyGroup>();
+                    groupsByTimezone.put(group.getTimezone(), entries);
+                }
+                entries.add(new DirtyGroup(group, interval[0], interval[1]));
+                statistics.groups++;
+            }
+        }
+
+        for (Map.Entry<DateTimeZone, List<DirtyGroup>> entry : groupsByTimezone.entrySet()) {
+            DateTimeZone timezone = entry.getKey();
+
+            TreeSet<Integer> years = new TreeSet<Integer>();
+            for (DirtyGroup group : entry.getValue()) {
+                int last = new DateTime(group.endTime, timezone).getYear();
+                for (int year = new DateTime(group.startTime, timezone).getYear(); year <= last; year++) {
+                    years.add(year);
+                }
+            }
+
+            for (int year : years) {
+                executeChunk(timezone, year, entry.getValue(), statistics);
+            }
+        }
+
+        return statistics;
+    }
+
+    /**
+     * Recomputes the aggregates of a single calendar year.
+     */
+    private void executeChunk(DateTimeZone timezone, int year, List<DirtyGroup> groups, Statistics statistics) throws Exception {
+        long yearStart = new DateTime(year, 1, 1, 0, 0, 0, timezone).getMillis();
+        long yearEnd = new DateTime(year + 1, 1, 1, 0, 0, 0, timezone).getMillis();
+
+        // Weeks may span two years; read all the readings of the first and
+        // the last week of the year
+        TimeBucketCalendar weeks = TimeBucketCalendar.create(EnumTimeAggregation.WEEK, timezone, yearStart, yearEnd - 1);
+        if (weeks == null) {
+            throw new IllegalArgumentException(String.format("Time buckets cannot be computed for time zone [%s].", timezone.getID()));
+        }
+
+        final long readStart = weeks.getStart();
+        final long readEnd = weeks.getEnd() - 1;
+
+        final TimeBucketCalendar[] calendars = new TimeBucketCalendar[GRANULARITIES.length];
+        for (int g = 0; g < GRANULARITIES.length; g++) {
+            calendars[g] = TimeBucketCalendar.create(GRANULARITIES[g], timezone, readStart, readEnd);
+            if (calendars[g] == null) {
+                throw new IllegalArgumentException(String.format("Time buckets cannot be computed for time zone [%s].", timezone.getID()));
+            }
+        }
+
+        // Select the groups with changes in this year and index them by meter
+        List<GroupBuckets[]> chunkGroups = new ArrayList<GroupBuckets[]>();
+        final Map<ByteBuffer, MeterTarget> meters = new LinkedHashMap<ByteBuffer, MeterTarget>();
+
+        for (DirtyGroup group : groups) {
+            long startTime = Math.max(group.startTime, yearStart);
+            long endTime = Math.min(group.endTime, yearEnd - 1);
+            if (startTime > endTime) {
+                continue;
+            }
+
+            GroupBuckets[] buckets = new GroupBuckets[GRANULARITIES.length];
+            for (int g = 0; g < GRANULARITIES.length; g++) {
+                buckets[g] = new GroupBuckets(calendars[g].getIndex(startTime), calendars[g].getIndex(endTime), limit);
+            }
+            chunkGroups.add(buckets);
+
+            for (MeterAggregationGroup.Member member : group.group.getMembers()) {
+                ByteBuffer key = ByteBuffer.wrap(member.getSerialHash());
+
+                MeterTarget target = meters.get(key);
+                if (target == null) {
+                    target = new MeterTarget(member);
+                    meters.put(key, target);
+                }
+                target.groups.add(buckets);
+            }
+        }
+
+        if (chunkGroups.isEmpty()) {
+            return;
+        }
+
+        // Aggregate the readings of all meters concurrently
+        final List<MeterTarget> targets = new ArrayList<MeterTarget>(meters.values());
+        final AtomicInteger cursor = new AtomicInteger();
+        final AtomicLong readings = new AtomicLong();
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0, count = Math.min(parallelism, targets.size()); t < count; t++) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    MeterBuckets buckets = new MeterBuckets(calendars);
+
+                    for (int i = cursor.getAndIncrement(); i < targets.size(); i = cursor.getAndIncrement()) {
+                        if (stopped) {
+                            throw new InterruptedException("Meter data aggregation has been stopped.");
+                        }
+
+                        MeterTarget target = targets.get(i);
+
+                        buckets.reset();
+                        repository.readMeter(target.member.getSerialHash(), readStart, readEnd, buckets);
+
+                        for (GroupBuckets[] group : target.groups) {
+                            for (int g = 0; g < GRANULARITIES.length; g++) {
+                                group[g].merge(buckets, g, target.member);
+                            }
+                        }
+
+                        readings.addAndGet(buckets.readings);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        invokeAll(tasks);
+
+        // Store aggregates
+        int index = 0;
+        for (DirtyGroup group : groups) {
+            long startTime = Math.max(group.startTime, yearStart);
+            long endTime = Math.min(group.endTime, yearEnd - 1);
+            if (startTime > endTime) {
+                continue;
+            }
+
+            GroupBuckets[] buckets = chunkGroups.get(index++);
+            for (int g = 0; g < GRANULARITIES.length; g++) {
+                for (int b = buckets[g].first; b <= buckets[g].last; b++) {
+                    MeterAggregate aggregate = buckets[g].getAggregate(b);
+                    if (aggregate != null) {
+                        repository.store(group.group, GRANULARITIES[g], calendars[g].getBucketAt(b), aggregate);
+                        statistics.rows++;
+                    }
+                }
+            }
+        }
+
+        repository.flush();
+
+        statistics.meters += targets.size();
+        statistics.readings += readings.get();
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) throws Exception {
+        if (tasks.size() < 2) {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), new ThreadFactory() {
+
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "meter-aggregation-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            stopped = true;
+
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A group with changed members and the interval of the changed readings.
+     */
+    private static class DirtyGroup {
+
+        private final MeterAggregationGroup group;
+
+        private final long startTime;
+
+        private final long endTime;
+
+        public DirtyGroup(MeterAggregationGroup group, long startTime, long endTime) {
+            this.group = group;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+
+    /**
+     * A meter and the buckets of all the groups it belongs to.
+     */
+    private static class MeterTarget {
+
+        private final MeterAggregationGroup.Member member;
+
+        private final List<GroupBuckets[]> groups = new ArrayList<GroupBuckets[]>(2);
+
+        public MeterTarget(MeterAggregationGroup.Member member) {
+            this.member = member;
+        }
+    }
+
+    /**
+     * Per granularity time buckets of the readings of a single meter. An
+     * instance is reused for all the meters processed by a thread; only the
+     * buckets touched by a meter are reset.
+     */
+    private static class MeterBuckets extends MeterRowDecoder.Callback {
+
+        private final TimeBucketCalendar[] calendars;
+
+        private final double[][] sum;
+
+        private final double[][] min;
+
+        private final double[][] max;
+
+        private final int[][] count;
+
+        private final int[][] touched;
+
+        private final int[] touchedCount;
+
+        private long readings;
+
+        public MeterBuckets(TimeBucketCalendar[] calendars) {
+            this.calendars = calendars;
+
+            sum = new double[calendars.length][];
+            min = new double[calendars.length][];
+            max = new double[calendars.length][];
+            count = new int[calendars.length][];
+            touched = new int[calendars.length][];
+            touchedCount = new int[calendars.length];
+
+            for (int g = 0; g < calendars.length; g++) {
+                int size = calendars[g].size();
+
+                sum[g] = new double[size];
+                min[g] = new double[size];
+                max[g] = new double[size];
+                count[g] = new int[size];
+                touched[g] = new int[size];
+            }
+        }
+
+        public void reset() {
+            for (int g = 0; g < calendars.length; g++) {
+                for (int i = 0; i < touchedCount[g]; i++) {
+                    count[g][touched[g][i]] = 0;
+                }
+                touchedCount[g] = 0;
+            }
+            readings = 0;
+        }
+
+        @Override
+        public boolean onReading(byte[] row, int serialHashOffset, long timestamp, float volume, float difference) {
+            readings++;
+
+            for (int g = 0; g < calendars.length; g++) {
+                int index = calendars[g].getIndex(timestamp);
+                if (index < 0) {
+                    continue;
+                }
+
+                if (count[g][index] == 0) {
+                    touched[g][touchedCount[g]++] = index;
+
+                    sum[g][index] = difference;
+                    min[g][index] = difference;
+                    max[g][index] = difference;
+                } else {
+                    sum[g][index] += difference;
+                    min[g][index] = Math.min(min[g][index], difference);
+                    max[g][index] = Math.max(max[g][index], difference);
+                }
+                count[g][index]++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The changed time buckets of a group for a single granularity.
+     */
+    private static class GroupBuckets {
+
+        private final int first;
+
+        private final int last;
+
+        private final int limit;
+
+        private final double[] sum;
+
+        private final double[] min;
+
+        private final double[] max;
+
+        private final int[] count;
+
+        private final Ranking[] rankings;
+
+        public GroupBuckets(int first, int last, int limit) {
+            this.first = first;
+            this.last = last;
+            this.limit = limit;
+
+            int size = Math.max(0, last - first + 1);
+
+            sum = new double[size];
+            min = new double[size];
+            max = new double[size];
+            count = new int[size];
+            rankings = new Ranking[size];
+        }
+
+        public synchronized void merge(MeterBuckets meter, int g, MeterAggregationGroup.Member member) {
+            for (int i = 0; i < meter.touchedCount[g]; i++) {
+                int index = meter.touched[g][i];
+                if ((index < first) || (index > last)) {
+                    continue;
+                }
+
+                int b = index - first;
+                if (count[b] == 0) {
+                    sum[b] = meter.sum[g][index];
+                    min[b] = meter.min[g][index];
+                    max[b] = meter.max[g][index];
+                } else {
+                    sum[b] += meter.sum[g][index];
+                    min[b] = Math.min(min[b], meter.min[g][index]);
+                    max[b] = Math.max(max[b], meter.max[g][index]);
+                }
+                count[b] += meter.count[g][index];
+
+                if (limit > 0) {
+                    if (rankings[b] == null) {
+                        rankings[b] = new Ranking(limit);
+                    }
+                    rankings[b].offer(member, (float) meter.sum[g][index]);
+                }
+            }
+        }
+
+        public MeterAggregate getAggregate(int index) {
+            int b = index - first;
+            if (count[b] == 0) {
+                return null;
+            }
+
+            List<RankingCellCodec.Entry> top = Collections.emptyList();
+            List<RankingCellCodec.Entry> bottom = Collections.emptyList();
+            if (rankings[b] != null) {
+                top = rankings[b].getTop();
+                bottom = rankings[b].getBottom();
+            }
+
+            return new MeterAggregate(sum[b], min[b], max[b], count[b], top, bottom);
+        }
+    }
+
+    /**
+     * Bounded selection of the users with the highest and the lowest
+     * consumption in a time bucket.
+     */
+    private static class Ranking {
+
+        private final int limit;
+
+        /**
+         * The highest values; the root is the lowest selected value.
+         */
+        private final PriorityQueue<RankingCellCodec.Entry> top;
+
+        /**
+         * The lowest values; the root is the highest selected value.
+         */
+        private final PriorityQueue<RankingCellCodec.Entry> bottom;
+
+        public Ranking(int limit) {
+            this.limit = limit;
+
+            top = new PriorityQueue<RankingCellCodec.Entry>(limit, ASCENDING);
+            bottom = new PriorityQueue<RankingCellCodec.Entry>(limit, DESCENDING);
+        }
+
+        public void offer(MeterAggregationGroup.Member member, float value) {
+            RankingCellCodec.Entry entry = null;
+
+            if ((top.size() < limit) || (value >= top.peek().getValue())) {
+                entry = new RankingCellCodec.Entry(member.getUserKey(), member.getLabel(), member.getSerial(), value);
+                offer(top, entry, ASCENDING);
+            }
+            if ((bottom.size() < limit) || (value <= bottom.peek().getValue())) {
+                if (entry == null) {
+                    entry = new RankingCellCodec.Entry(member.getUserKey(), member.getLabel(), member.getSerial(), value);
+                }
+                offer(bottom, entry, DESCENDING);
+            }
+        }
+
+        private void offer(PriorityQueue<RankingCellCodec.Entry> heap, RankingCellCodec.Entry entry, Comparator<RankingCellCodec.Entry> order) {
+            if (heap.size() < limit) {
+                heap.add(entry);
+            } else if (order.compare(entry, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+
+        public List<RankingCellCodec.Entry> getTop() {
+            return sort(top);
+        }
+
+        public List<RankingCellCodec.Entry> getBottom() {
+            return sort(bottom);
+        }
+
+        private List<RankingCellCodec.Entry> sort(PriorityQueue<RankingCellCodec.Entry> heap) {
+            RankingCellCodec.Entry[] entries = heap.toArray(new RankingCellCodec.Entry[heap.size()]);
+            Arrays.sort(entries, ASCENDING);
+
+            return Arrays.asList(entries);
+        }
+    }
+
+    /**
+     * Aggregation execution statistics.
+     */
+    public static class Statistics {
+
+        private int groups;
+
+        private long meters;
+
+        private long readings;
+
+        private long rows;
+
+        /**
+         * Returns the number of groups with changed members.
+         *
+         * @return the number of groups.
+         */
+        public int getGroups() {
+            return groups;
+        }
+
+        /**
+         * Returns the number of meters whose readings have been read. A meter
+         * is counted once per processed year.
+         *
+         * @return the number of meters.
+         */
+        public long getMeters() {
+            return meters;
+        }
+
+        /**
+         * Returns the number of aggregated readings.
+         *
+         * @return the number of readings.
+         */
+        public long getReadings() {
+            return readings;
+        }
+
+        /**
+         * Returns the number of stored aggregate rows.
+         *
+         * @return the number of rows.
+         */
+        public long getRows() {
+            return rows;
+        }
+    }
+
+}
@@ -2,9 +2,11 @@ package eu.daiad.web.service;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -36,10 +38,10 @@ import eu.daiad.web.model.error.ImportErrorCode;
 import eu.daiad.web.model.error.SharedErrorCode;
 import eu.daiad.web.model.loader.EnumUploadFileType;
 import eu.daiad.web.model.loader.FileProcessingStatus;
+import eu.daiad.web.model.meter.MeterDataStoreStats;
 import eu.daiad.web.model.meter.WaterMeterForecast;
 import eu.daiad.web.model.meter.WaterMeterForecastCollection;
 import eu.daiad.web.model.meter.WaterMeterMeasurementCollection;
-import eu.daiad.web.model.meter.WaterMeterStatusQueryResult;
 import eu.daiad.web.repository.application.IMeterDataRepository;
 import eu.daiad.web.repository.application.IMeterForecastingDataRepository;
 
@@ -55,6 +57,11 @@ public class WaterMeterDataLoaderService extends BaseService implements IWaterMe
      */
     private static final int CHUNK_SIZE = 100000;
 
+    /**
+     * Buffer size in characters for reading meter data files.
+     */
+    private static final int READER_BUFFER_SIZE = 1 << 16;
+
     /**
      * Logger instance for writing events using the configured logging API.
      */
@@ -186,7 +193,7 @@ public class WaterMeterDataLoaderService extends BaseService implements IWaterMe
             throw createApplicationException(SharedErrorCode.RESOURCE_DOES_NOT_EXIST).set("resource", filename);
         }
 
-        Scanner scan = null;
+        BufferedReader reader = null;
 
         FileProcessingStatus status = new FileProcessingStatus();
 
@@ -201,12 +208,10 @@ public class WaterMeterDataLoaderService extends BaseService implements IWaterMe
         try {
             List<MeterDataRow> rows = new ArrayList<MeterDataRow>();
 
-            // Count rows
-            scan = new Scanner(new File(filename));
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), READER_BUFFER_SIZE);
 
-            while (scan.hasNextLine()) {
+            while ((line = reader.readLine()) != null) {
                 lineIndex++;
-                line = scan.nextLine();
 
                 String[] tokens = StringUtils.split(line, ";");
 
@@ -300,8 +305,8 @@ public class WaterMeterDataLoaderService extends BaseService implements IWaterMe
                 }
             }
 
-            scan.close();
-            scan = null;
+            reader.close();
+            reader = null;
 
             status.setTotalRows(lineIndex);
 
@@ -316,9 +321,15 @@ public class WaterMeterDataLoaderService extends BaseService implements IWaterMe
 
         } catch (FileNotFoundException fileEx) {
             logger.error(String.format("File [%s] was not found.", filename), fileEx);
+        } catch (IOException ioEx) {
+            throw wrapApplicationException(ioEx, SharedErrorCode.UNKNOWN);
         } finally {
-            if (scan != null) {
-                scan.close();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ioEx) {
+                    logger.error(getMessage(SharedErrorCode.RESOURCE_RELEASE_FAILED), ioEx);
+                }
             }
         }
 
@@ -366,63 +377,74 @@ public class WaterMeterDataLoaderService extends BaseService implements IWaterMe
             }
         }
 
-        // Compute any missing values
-        for (int i = 0, count = rows.size(); i < count; i++) {
-            // Set difference for the first row for every unique serial number
-            if ((i == 0) || (!rows.get(i).serial.equals(rows.get(i - 1).serial))) {
-                WaterMeterStatusQueryResult meterStatus = waterMeterMeasurementRepository.getStatusBefore(new String[] { rows.get(i).serial },
-                                                                                                          rows.get(i).timestamp - 1);
-
-                if ((meterStatus == null) || (meterStatus.getDevices().isEmpty())) {
-                    rows.get(i).difference = 0f;
-                } else {
-                    rows.get(i).difference = rows.get(i).volume - meterStatus.getDevices().get(0).getVolume();
-
-                    if (rows.get(i).difference < 0) {
-                        status.increaseNegativeDifference();
-                    }
-                }
-            } else if ((rows.get(i).serial.equals(rows.get(i - 1).serial)) && (rows.get(i).difference == null)) {
-                rows.get(i).difference = rows.get(i).volume - rows.get(i - 1).volume;
+        // Import rows to HBASE in a single batch per serial number
+        List<MeterDataStoreStats> batches = new ArrayList<MeterDataStoreStats>();
 
-                if (rows.get(i).difference < 0) {
-                    status.increaseNegativeDifference();
-                }
+        int first = 0;
+        for (int i = 1, count = rows.size(); i <= count; i++) {
+            if ((i == count) || (!rows.get(i).serial.equals(rows.get(first).serial))) {
+                batches.add(insert(status, rows.subList(first, i)));
+                first = i;
             }
+        }
 
-            // Validate difference
-            if ((i != 0) && (rows.get(i).difference != null) && (rows.get(i).serial.equals(rows.get(i - 1).serial))) {
-                rows.get(i).difference = rows.get(i).volume - rows.get(i - 1).volume;
-                if (rows.get(i).difference < 0) {
-                    status.increaseNegativeDifference();
-                }
-            }
+        // Wait for all buffered readings to be persisted
+        try {
+            waterMeterMeasurementRepository.flush();
+        } catch (Exception ex) {
+            logger.warn("Failed to flush meter readings.", ex);
         }
 
-        // Import rows to HBASE
-        for (MeterDataRow row : rows) {
-            insert(status, row);
+        for (MeterDataStoreStats stats : batches) {
+            if (stats != null) {
+                for (int i = 0, count = stats.getFailed(); i < count; i++) {
+                    status.ignoreRow();
+                }
+            }
         }
     }
 
     /**
-     * Imports a single of meter reading to HBASE.
+     * Imports all the readings of a single meter to HBASE. The readings must
+     * be sorted by timestamp. The difference of the first reading is computed
+     * by the repository using the most recent stored reading; differences for
+     * all other readings are computed in memory.
      *
      * @param status statistics about the process execution.
-     * @param row the data to import.
+     * @param rows the data to import.
+     * @return statistics for the insert operations or null if the import has failed.
      */
-    private void insert(FileProcessingStatus status, MeterDataRow row) {
-        try {
-            WaterMeterMeasurementCollection data = new WaterMeterMeasurementCollection();
+    private MeterDataStoreStats insert(FileProcessingStatus status, List<MeterDataRow> rows) {
+        MeterDataStoreStats stats = null;
+
+        String serial = rows.get(0).serial;
 
-            data.add(row.timestamp, row.volume, row.difference);
+        WaterMeterMeasurementCollection data = new WaterMeterMeasurementCollection();
+        for (MeterDataRow row : rows) {
+            data.add(row.timestamp, row.volume, (row.difference == null ? 0f : row.difference));
+        }
+
+        try {
+            stats = waterMeterMeasurementRepository.store(serial, data);
 
-            waterMeterMeasurementRepository.store(row.serial, data);
+            // The repository may append the reading that follows the imported ones
+            for (int i = 0, count = rows.size(); i < count; i++) {
+                if (data.getMeasurements().get(i).getDifference() < 0) {
+                    status.increaseNegativeDifference();
+                }
+            }
         } catch (Exception ex) {
-            logger.warn(String.format("Failed to import row %s;%d;%f;%f. Reason:\n", row.serial, row.timestamp, row.volume, row.difference), ex);
-            status.ignoreRow();
+            logger.warn(String.format("Failed to import %d rows for serial %s. Reason:\n", rows.size(), serial), ex);
+            for (int i = 0, count = rows.size(); i < count; i++) {
+                status.ignoreRow();
+            }
         }
-        status.processRow();
+
+        for (int i = 0, count = rows.size(); i < count; i++) {
+            status.processRow();
+        }
+
+        return stats;
     }
 
     /**
@@ -0,0 +1,562 @@
+package eu.daiad.web.service.ingestion;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.daiad.web.model.DeviceMeasurementCollection;
+import eu.daiad.web.model.amphiro.AmphiroMeasurementCollection;
+import eu.daiad.web.model.device.AmphiroDevice;
+import eu.daiad.web.model.device.Device;
+import eu.daiad.web.model.device.WaterMeterDevice;
+import eu.daiad.web.model.error.ApplicationException;
+import eu.daiad.web.model.error.DataErrorCode;
+import eu.daiad.web.model.error.DeviceErrorCode;
+import eu.daiad.web.model.error.SharedErrorCode;
+import eu.daiad.web.model.error.UserErrorCode;
+import eu.daiad.web.model.meter.MeterDataStoreStats;
+import eu.daiad.web.model.meter.WaterMeterMeasurementCollection;
+import eu.daiad.web.model.security.AuthenticatedUser;
+import eu.daiad.web.repository.application.IAmphiroIndexOrderedRepository;
+import eu.daiad.web.repository.application.IDeviceRepository;
+import eu.daiad.web.repository.application.IMeterDataRepository;
+import eu.daiad.web.repository.application.IUserRepository;
+import eu.daiad.web.service.BaseService;
+
+/**
+ * Stores device data uploads asynchronously. An accepted upload is appended to
+ * a {@link WriteAheadLog} before the request is acknowledged and it is applied
+ * to HBase later by a pool of workers. Uploads of the same device are always
+ * applied by the same worker in the order they have been accepted. Failed
+ * uploads are retried with a capped exponential backoff until they succeed and
+ * remain in the log until then; uploads that are still pending when the
+ * application stops are applied again when it starts. Only uploads that can
+ * never succeed, e.g. whose user or device no longer exists, are discarded;
+ * they are appended to a dead-letter file in the log folder. Callers must
+ * validate uploads before submitting them, so that invalid data is reported
+ * to the client instead of being discarded.
+ *
+ * The number of accepted uploads that have not been applied yet is bounded.
+ * When the limit is reached, new uploads wait for a free slot and are rejected
+ * if none becomes available before the timeout expires.
+ */
+@Component
+public class DataIngestionQueue extends BaseService implements InitializingBean, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(DataIngestionQueue.class);
+
+    /**
+     * Name of the file in the log folder where discarded uploads are appended.
+     */
+    private static final String DEAD_LETTER_FILE = "dead-letter.json";
+
+    /**
+     * Enables asynchronous storage of device data uploads.
+     */
+    @Value("${daiad.ingestion.async.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Folder of the write-ahead log segment files.
+     */
+    @Value("${daiad.ingestion.wal.folder:${tmp.folder}/ingestion}")
+    private String folder;
+
+    /**
+     * Size in bytes of a write-ahead log segment file.
+     */
+    @Value("${daiad.ingestion.wal.segment-size:67108864}")
+    private int segmentSize;
+
+    /**
+     * Forces every upload to the storage device before it is acknowledged.
+     */
+    @Value("${daiad.ingestion.wal.sync:true}")
+    private boolean sync;
+
+    /**
+     * Number of workers that apply uploads to HBase.
+     */
+    @Value("${daiad.ingestion.workers:4}")
+    private int workerCount;
+
+    /**
+     * Maximum number of accepted uploads that have not been applied yet.
+     */
+    @Value("${daiad.ingestion.capacity:10000}")
+    private int capacity;
+
+    /**
+     * Maximum time in seconds an upload waits for a free slot.
+     */
+    @Value("${daiad.ingestion.timeout:5}")
+    private int timeout;
+
+    /**
+     * Interval in milliseconds before retrying a failed upload for the first
+     * time. The interval is doubled after every failed attempt.
+     */
+    @Value("${daiad.ingestion.retry-interval:1000}")
+    private long retryInterval;
+
+    /**
+     * Maximum interval in milliseconds before retrying a failed upload.
+     */
+    @Value("${daiad.ingestion.retry-interval.max:60000}")
+    private long maxRetryInterval;
+
+    @Autowired
+    private IAmphiroIndexOrderedRepository amphiroIndexOrderedRepository;
+
+    @Autowired
+    private IMeterDataRepository meterDataRepository;
+
+    @Autowired
+    private IUserRepository userRepository;
+
+    @Autowired
+    private IDeviceRepository deviceRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private WriteAheadLog log;
+
+    private ExecutorService[] workers;
+
+    private Semaphore slots;
+
+    private final AtomicLong applied = new AtomicLong();
+
+    private final AtomicLong discarded = new AtomicLong();
+
+    private File deadLetterFile;
+
+    /**
+     * Set when the queue stops accepting uploads. Uploads are appended and
+     * scheduled while holding the read lock; the flag is set while holding
+     * the write lock, hence no upload is appended after it is set.
+     */
+    private boolean closed = false;
+
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            return;
+        }
+
+        slots = new Semaphore(Math.max(1, capacity), true);
+
+        workers = new ExecutorService[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            final String name = "data-ingestion-" + (i + 1);
+
+            workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        log = new WriteAheadLog(new File(folder), segmentSize, sync);
+        log.open();
+
+        deadLetterFile = new File(folder, DEAD_LETTER_FILE);
+
+        int recovered = 0;
+        for (WriteAheadLog.Record record : log.recover()) {
+            Upload upload = objectMapper.readValue(record.getPayload(), Upload.class);
+
+            schedule(record.getSequence(), upload, false);
+            recovered++;
+        }
+
+        if (recovered > 0) {
+            logger.info(String.format("Recovered %d pending device data uploads.", recovered));
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+
+        if (workers != null) {
+            for (ExecutorService worker : workers) {
+                worker.shutdown();
+            }
+            for (ExecutorService worker : workers) {
+                // Pending uploads remain in the log and are applied on restart
+                if (!worker.awaitTermination(30, TimeUnit.SECONDS)) {
+                    worker.shutdownNow();
+                }
+            }
+            workers = null;
+        }
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Returns true if device data uploads are stored asynchronously.
+     *
+     * @return true if the queue is enabled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Accepts a device data upload. When the method returns, the upload has
+     * been persisted to the write-ahead log. If the method fails, the upload
+     * has not been accepted and it is never applied; hence the client can
+     * safely send it again.
+     *
+     * @param user the authenticated user.
+     * @param data the data to store.
+     * @throws ApplicationException if the queue is full or stopping, or the upload cannot be persisted.
+     */
+    public void submit(AuthenticatedUser user, DeviceMeasurementCollection data) throws ApplicationException {
+        boolean acquired = false;
+
+        try {
+            if (!slots.tryAcquire(timeout, TimeUnit.SECONDS)) {
+                throw createApplicationException(DataErrorCode.INGESTION_QUEUE_FULL);
+            }
+            acquired = true;
+
+            Upload upload = new Upload();
+            upload.setUserKey(user.getKey());
+            upload.setData(data);
+
+            byte[] payload = objectMapper.writeValueAsBytes(upload);
+
+            closeLock.readLock().lock();
+            try {
+                if (closed) {
+                    throw createApplicationException(DataErrorCode.INGESTION_QUEUE_FULL);
+                }
+
+                long sequence = log.append(payload);
+
+                try {
+                    schedule(sequence, upload, true);
+                } catch (RuntimeException ex) {
+                    // The record must not be applied on restart
+                    log.cancel(sequence);
+                    throw ex;
+                }
+            } finally {
+                closeLock.readLock().unlock();
+            }
+        } catch (ApplicationException ex) {
+            if (acquired) {
+                slots.release();
+            }
+            throw ex;
+        } catch (Exception ex) {
+            if (acquired) {
+                slots.release();
+            }
+            throw wrapApplicationException(ex, SharedErrorCode.UNKNOWN);
+        }
+    }
+
+    /**
+     * Returns the number of accepted uploads that have not been applied yet.
+     *
+     * @return the number of uploads.
+     */
+    public int getPendingCount() {
+        return (log == null ? 0 : log.getPendingCount());
+    }
+
+    /**
+     * Returns the number of applied uploads since the application started.
+     *
+     * @return the number of uploads.
+     */
+    public long getAppliedCount() {
+        return applied.get();
+    }
+
+    /**
+     * Returns the number of uploads written to the dead-letter file since the
+     * application started.
+     *
+     * @return the number of uploads.
+     */
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    private void schedule(final long sequence, final Upload upload, final boolean releaseSlot) {
+        final WriteAheadLog log = this.log;
+
+        UUID deviceKey = upload.getData().getDeviceKey();
+        int worker = (deviceKey.hashCode() & Integer.MAX_VALUE) % workers.length;
+
+        workers[worker].execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (apply(sequence, upload)) {
+                        log.acknowledge(sequence);
+                    }
+                } finally {
+                    if (releaseSlot) {
+                        slots.release();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies an upload to HBase. Transient failures are retried until the
+     * upload is applied. An upload that can never be applied is written to
+     * the dead-letter file.
+     *
+     * @param sequence the upload sequence number.
+     * @param upload the upload.
+     * @return false if the worker has been interrupted and the upload must be
+     *         applied again on restart.
+     */
+    private boolean apply(long sequence, Upload upload) {
+        long interval = retryInterval;
+
+        for (int attempt = 1;; attempt++) {
+            try {
+                store(upload);
+                applied.incrementAndGet();
+                return true;
+            } catch (Exception ex) {
+                if (isPermanentFailure(ex)) {
+                    try {
+                        writeDeadLetter(sequence, upload, ex);
+                        discarded.incrementAndGet();
+
+                        logger.error(String.format("Discarded device data upload %d. The upload has been written to [%s].",
+                                                   sequence, deadLetterFile.getAbsolutePath()), ex);
+                        return true;
+                    } catch (Exception deadLetterException) {
+                        // The upload is kept until it is written to the file
+                        logger.error(String.format("Failed to write device data upload %d to [%s]. Attempt %d.",
+                                                   sequence, deadLetterFile.getAbsolutePath(), attempt), deadLetterException);
+                    }
+                } else {
+                    logger.warn(String.format("Failed to store device data upload %d. Attempt %d.", sequence, attempt), ex);
+                }
+            }
+
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            interval = Math.min(interval * 2, maxRetryInterval);
+        }
+    }
+
+    /**
+     * Returns true if retrying a failed upload never succeeds, e.g. its user
+     * or device no longer exists or its data is not valid. Every
+     * {@link ApplicationException} is permanent unless it is caused by an I/O
+     * or HBase error, i.e. an {@link IOException}, or it reports readings that
+     * have not been written to HBase.
+     *
+     * @param ex the failure.
+     * @return true if the failure is permanent.
+     */
+    private static boolean isPermanentFailure(Exception ex) {
+        if (!(ex instanceof ApplicationException)) {
+            return false;
+        }
+        if (((ApplicationException) ex).getCode() == DataErrorCode.METER_DATA_STORE_FAILED) {
+            return false;
+        }
+
+        for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Appends a discarded upload to the dead-letter file as a single JSON line.
+     *
+     * @param sequence the upload sequence number.
+     * @param upload the upload.
+     * @param cause the failure.
+     * @throws IOException if the file cannot be written.
+     */
+    private synchronized void writeDeadLetter(long sequence, Upload upload, Exception cause) throws IOException {
+        DeadLetter deadLetter = new DeadLetter();
+        deadLetter.setSequence(sequence);
+        deadLetter.setTimestamp(System.currentTimeMillis());
+        deadLetter.setError(cause.getMessage());
+        deadLetter.setUpload(upload);
+
+        byte[] line = objectMapper.writeValueAsBytes(deadLetter);
+
+        FileOutputStream output = new FileOutputStream(deadLetterFile, true);
+        try {
+            output.write(line);
+            output.write('\n');
+            if (sync) {
+                output.getFD().sync();
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private void store(Upload upload) throws Exception {
+        DeviceMeasurementCollection data = upload.getData();
+
+        switch (data.getType()) {
+            case AMPHIRO: {
+                AuthenticatedUser user = userRepository.getUserByKey(upload.getUserKey());
+                if (user == null) {
+                    throw createApplicationException(UserErrorCode.USER_KEY_NOT_FOUND).set("key", upload.getUserKey().toString());
+                }
+
+                Device device = deviceRepository.getUserDeviceByKey(user.getKey(), data.getDeviceKey());
+                if (!(device instanceof AmphiroDevice)) {
+                    throw createApplicationException(DeviceErrorCode.NOT_FOUND).set("key", data.getDeviceKey().toString());
+                }
+
+                amphiroIndexOrderedRepository.store(user, (AmphiroDevice) device, (AmphiroMeasurementCollection) data);
+                break;
+            }
+            case METER: {
+                Device device = deviceRepository.getDeviceByKey(data.getDeviceKey());
+                if (!(device instanceof WaterMeterDevice)) {
+                    throw createApplicationException(DeviceErrorCode.NOT_FOUND).set("key", data.getDeviceKey().toString());
+                }
+
+                MeterDataStoreStats stats = meterDataRepository.store(((WaterMeterDevice) device).getSerial(),
+                                                                      (WaterMeterMeasurementCollection) data);
+                meterDataRepository.flush();
+
+                if (stats.getFailed() > 0) {
+                    // Readings are idempotent puts, hence the upload is retried
+                    throw createApplicationException(DataErrorCode.METER_DATA_STORE_FAILED).set("count", stats.getFailed());
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * A device data upload as stored in the write-ahead log. User credentials
+     * are never serialized.
+     */
+    public static class Upload {
+
+        private UUID userKey;
+
+        private DeviceMeasurementCollection data;
+
+        public UUID getUserKey() {
+            return userKey;
+        }
+
+        public void setUserKey(UUID userKey) {
+            this.userKey = userKey;
+        }
+
+        public DeviceMeasurementCollection getData() {
+            return data;
+        }
+
+        public void setData(DeviceMeasurementCollection data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * A discarded upload as stored in the dead-letter file.
+     */
+    public static class DeadLetter {
+
+        private long sequence;
+
+        private long timestamp;
+
+        private String error;
+
+        private Upload upload;
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public void setSequence(long sequence) {
+            this.sequence = sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public void setTimestamp(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+
+        public Upload getUpload() {
+            return upload;
+        }
+
+        public void setUpload(Upload upload) {
+            this.upload = upload;
+        }
+    }
+
+}
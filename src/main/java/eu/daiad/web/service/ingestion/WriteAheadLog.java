@@ -0,0 +1,413 @@
+package eu.daiad.web.service.ingestion;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only write-ahead log stored in memory-mapped segment files of fixed
+ * size. Every record consists of its length, a sequence number, a checksum of
+ * the payload and the payload. A record larger than the segment size is stored
+ * in a dedicated segment.
+ *
+ * Records must be acknowledged once they have been processed. A record that
+ * must never be processed is cancelled. The sequence number of an
+ * acknowledged or cancelled record is stored negated in place, hence the
+ * record is never recovered. A segment is deleted when all its records are
+ * acknowledged and records are no longer appended to it, or when the log is
+ * closed. Records that have not been acknowledged when the log is closed are
+ * returned by {@link WriteAheadLog#recover()} the next time the log is
+ * opened.
+ *
+ * Acknowledgements are forced to the storage device only when the log is
+ * closed; if the system fails before, a processed record may be recovered
+ * again. Cancellations are forced immediately if the log is synchronous.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final Log logger = LogFactory.getLog(WriteAheadLog.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    /**
+     * Record length, sequence number and checksum.
+     */
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+
+    /**
+     * Zero record length that marks the end of a segment. Mapped regions are
+     * initialized with zeros, hence the marker is always present.
+     */
+    private static final int TERMINATOR_SIZE = 4;
+
+    private final File folder;
+
+    private final int segmentSize;
+
+    private final boolean sync;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    /**
+     * Location of every record that has not been acknowledged indexed by
+     * sequence number.
+     */
+    private final Map<Long, Location> pending = new HashMap<Long, Location>();
+
+    private final List<Record> recovered = new ArrayList<Record>();
+
+    private Segment active;
+
+    private long nextSequence = 1;
+
+    /**
+     * Creates a new log.
+     *
+     * @param folder the folder of the segment files.
+     * @param segmentSize the segment size in bytes.
+     * @param sync if true, every record is forced to the storage device before
+     *            {@link WriteAheadLog#append(byte[])} returns.
+     */
+    public WriteAheadLog(File folder, int segmentSize, boolean sync) {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+    }
+
+    /**
+     * Opens the log and reads the records of any existing segments.
+     *
+     * @throws IOException if the folder cannot be created or a segment cannot be read.
+     */
+    public synchronized void open() throws IOException {
+        if ((!folder.isDirectory()) && (!folder.mkdirs())) {
+            throw new IOException(String.format("Failed to create folder [%s].", folder.getAbsolutePath()));
+        }
+
+        File[] files = folder.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return ((name.startsWith(SEGMENT_PREFIX)) && (name.endsWith(SEGMENT_SUFFIX)));
+            }
+        });
+
+        TreeMap<Long, File> existing = new TreeMap<Long, File>();
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                existing.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException ex) {
+                logger.warn(String.format("Ignoring invalid segment file [%s].", file.getAbsolutePath()));
+            }
+        }
+
+        long nextSegmentId = 1;
+
+        for (Map.Entry<Long, File> entry : existing.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), entry.getValue(), (int) entry.getValue().length());
+
+            readSegment(segment);
+
+            if (segment.pending == 0) {
+                segment.delete();
+            } else {
+                segments.put(segment.id, segment);
+            }
+
+            nextSegmentId = entry.getKey() + 1;
+        }
+
+        active = createSegment(nextSegmentId, segmentSize);
+    }
+
+    /**
+     * Returns the records that had not been acknowledged when the log was last
+     * closed in the order they were appended. The records must be acknowledged
+     * too.
+     *
+     * @return a list of {@link Record}.
+     */
+    public synchronized List<Record> recover() {
+        List<Record> result = new ArrayList<Record>(recovered);
+        recovered.clear();
+        return result;
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param payload the record payload.
+     * @return the record sequence number.
+     * @throws IOException if a new segment cannot be created.
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        int size = HEADER_SIZE + payload.length;
+
+        if (active.buffer.remaining() < size + TERMINATOR_SIZE) {
+            Segment previous = active;
+
+            active = createSegment(previous.id + 1, Math.max(segmentSize, size + TERMINATOR_SIZE));
+
+            if (previous.pending == 0) {
+                removeSegment(previous);
+            }
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+
+        long sequence = nextSequence++;
+
+        int position = active.buffer.position();
+
+        active.buffer.putInt(payload.length);
+        active.buffer.putLong(sequence);
+        active.buffer.putLong(checksum.getValue());
+        active.buffer.put(payload);
+
+        if (sync) {
+            active.buffer.force();
+        }
+
+        active.pending++;
+        pending.put(sequence, new Location(active, position));
+
+        return sequence;
+    }
+
+    /**
+     * Acknowledges a processed record.
+     *
+     * @param sequence the record sequence number.
+     */
+    public synchronized void acknowledge(long sequence) {
+        Location location = pending.remove(sequence);
+        if (location == null) {
+            return;
+        }
+
+        Segment segment = location.segment;
+
+        // The record is not recovered even if the segment is not deleted
+        segment.buffer.putLong(location.position + 4, -sequence);
+
+        segment.pending--;
+        if ((segment.pending == 0) && (segment != active)) {
+            removeSegment(segment);
+        }
+    }
+
+    /**
+     * Cancels a record that has not been processed, e.g. because it could not
+     * be scheduled after it has been appended. Unlike an acknowledgement, the
+     * cancellation is forced to the storage device if the log is synchronous,
+     * hence the record is never recovered.
+     *
+     * @param sequence the record sequence number.
+     */
+    public synchronized void cancel(long sequence) {
+        Location location = pending.get(sequence);
+        if (location == null) {
+            return;
+        }
+
+        MappedByteBuffer buffer = location.segment.buffer;
+
+        acknowledge(sequence);
+
+        // The segment is closed if it has been deleted
+        if ((sync) && (location.segment.buffer != null)) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Returns the number of records that have not been acknowledged.
+     *
+     * @return the number of records.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            if (segment.pending == 0) {
+                segment.delete();
+            } else {
+                segment.close();
+            }
+        }
+        segments.clear();
+        pending.clear();
+        active = null;
+    }
+
+    private Segment createSegment(long id, int size) throws IOException {
+        Segment segment = new Segment(id, new File(folder, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)), size);
+
+        segments.put(id, segment);
+
+        return segment;
+    }
+
+    private void removeSegment(Segment segment) {
+        segments.remove(segment.id);
+
+        try {
+            segment.delete();
+        } catch (IOException ex) {
+            logger.error(String.format("Failed to delete segment file [%s].", segment.file.getAbsolutePath()), ex);
+        }
+    }
+
+    private void readSegment(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int position = buffer.position();
+            int length = buffer.getInt();
+
+            if ((length <= 0) || (length > buffer.remaining() - 16)) {
+                buffer.position(position);
+                break;
+            }
+
+            long sequence = buffer.getLong();
+            long value = buffer.getLong();
+
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+
+            CRC32 checksum = new CRC32();
+            checksum.update(payload);
+
+            if (checksum.getValue() != value) {
+                // A partially written record; nothing follows it
+                logger.warn(String.format("Invalid record checksum found in segment file [%s] at position %d.",
+                                          segment.file.getAbsolutePath(), position));
+                buffer.position(position);
+                break;
+            }
+
+            if (sequence < 0) {
+                // An acknowledged or cancelled record
+                nextSequence = Math.max(nextSequence, 1 - sequence);
+                continue;
+            }
+
+            recovered.add(new Record(sequence, payload));
+
+            segment.pending++;
+            pending.put(sequence, new Location(segment, position));
+
+            nextSequence = Math.max(nextSequence, sequence + 1);
+        }
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static class Segment {
+
+        private final long id;
+
+        private final File file;
+
+        private RandomAccessFile randomAccessFile;
+
+        private FileChannel channel;
+
+        private MappedByteBuffer buffer;
+
+        private int pending = 0;
+
+        Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void close() throws IOException {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+                randomAccessFile = null;
+            }
+        }
+
+        void delete() throws IOException {
+            close();
+
+            if ((file.exists()) && (!file.delete())) {
+                throw new IOException(String.format("Failed to delete file [%s].", file.getAbsolutePath()));
+            }
+        }
+    }
+
+    /**
+     * The segment and position of a record.
+     */
+    private static class Location {
+
+        private final Segment segment;
+
+        private final int position;
+
+        Location(Segment segment, int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    /**
+     * A log record.
+     */
+    public static class Record {
+
+        private final long sequence;
+
+        private final byte[] payload;
+
+        public Record(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Contains classes for storing device data uploads asynchronously.
+ */
+package eu.daiad.web.service.ingestion;
\ No newline at end of file
@@ -0,0 +1,129 @@
+package eu.daiad.web.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class RankingCellCodecTest {
+
+    private static final float DELTA = 0.0001f;
+
+    private static List<RankingCellCodec.Entry> createEntries(int count) {
+        List<RankingCellCodec.Entry> entries = new ArrayList<RankingCellCodec.Entry>();
+
+        for (int i = 0; i < count; i++) {
+            // Labels are shared by consecutive entries to exercise the string dictionary
+            entries.add(new RankingCellCodec.Entry(new UUID(i, i * 31L), "user-" + (i / 2), "serial-" + i, i * 1.5f));
+        }
+
+        return entries;
+    }
+
+    private static String toText(List<RankingCellCodec.Entry> entries) {
+        StringBuilder text = new StringBuilder();
+
+        for (RankingCellCodec.Entry entry : entries) {
+            text.append(entry.getKey()).append(";")
+                .append(entry.getLabel()).append(";")
+                .append(entry.getSerial()).append(";")
+                .append(entry.getValue()).append(";");
+        }
+
+        return text.toString();
+    }
+
+    private static void assertEntries(List<RankingCellCodec.Entry> expected, List<RankingCellCodec.Entry> actual) {
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+            assertEquals(expected.get(i).getLabel(), actual.get(i).getLabel());
+            assertEquals(expected.get(i).getSerial(), actual.get(i).getSerial());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue(), DELTA);
+        }
+    }
+
+    @Test
+    public void encodeDecodeRoundTrip() {
+        List<RankingCellCodec.Entry> entries = createEntries(7);
+
+        byte[] data = RankingCellCodec.encode(entries);
+
+        assertTrue(RankingCellCodec.isBinary(data));
+        assertEntries(entries, RankingCellCodec.decode(data));
+    }
+
+    @Test
+    public void encodeDecodeEmpty() {
+        byte[] data = RankingCellCodec.encode(new ArrayList<RankingCellCodec.Entry>());
+
+        assertTrue(RankingCellCodec.isBinary(data));
+        assertTrue(RankingCellCodec.decode(data).isEmpty());
+    }
+
+    @Test
+    public void encodeNullStringsAsEmpty() {
+        List<RankingCellCodec.Entry> entries = new ArrayList<RankingCellCodec.Entry>();
+        entries.add(new RankingCellCodec.Entry(UUID.randomUUID(), null, null, 3f));
+
+        List<RankingCellCodec.Entry> decoded = RankingCellCodec.decode(RankingCellCodec.encode(entries));
+
+        assertEquals(1, decoded.size());
+        assertEquals("", decoded.get(0).getLabel());
+        assertEquals("", decoded.get(0).getSerial());
+    }
+
+    @Test
+    public void decodeFirstAndLastBinary() {
+        List<RankingCellCodec.Entry> entries = createEntries(10);
+
+        byte[] data = RankingCellCodec.encode(entries);
+
+        assertEntries(entries.subList(0, 3), RankingCellCodec.decode(data, true, 3));
+        assertEntries(entries.subList(7, 10), RankingCellCodec.decode(data, false, 3));
+        assertEntries(entries, RankingCellCodec.decode(data, false, 20));
+        assertTrue(RankingCellCodec.decode(data, true, 0).isEmpty());
+    }
+
+    @Test
+    public void decodeFirstAndLastText() {
+        List<RankingCellCodec.Entry> entries = createEntries(10);
+
+        byte[] data = toText(entries).getBytes(StandardCharsets.UTF_8);
+
+        assertEntries(entries, RankingCellCodec.decode(data));
+        assertEntries(entries.subList(0, 4), RankingCellCodec.decode(data, true, 4));
+        assertEntries(entries.subList(6, 10), RankingCellCodec.decode(data, false, 4));
+        assertTrue(RankingCellCodec.decode(data, false, 0).isEmpty());
+    }
+
+    @Test
+    public void detectLegacyText() {
+        List<RankingCellCodec.Entry> entries = createEntries(3);
+
+        byte[] text = toText(entries).getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(RankingCellCodec.isBinary(text));
+        assertFalse(RankingCellCodec.isBinary(null));
+        assertFalse(RankingCellCodec.isBinary(new byte[] { RankingCellCodec.FORMAT_VERSION_1 }));
+
+        // Converting a legacy cell yields the same entries in the binary format
+        byte[] converted = RankingCellCodec.encode(RankingCellCodec.decode(text));
+
+        assertTrue(RankingCellCodec.isBinary(converted));
+        assertEntries(entries, RankingCellCodec.decode(converted));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectInvalidText() {
+        RankingCellCodec.decode("a;b;c".getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,182 @@
+package eu.daiad.web.repository.application;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import eu.daiad.web.model.EnumTimeAggregation;
+import eu.daiad.web.model.error.ApplicationException;
+import eu.daiad.web.model.meter.MeterAggregate;
+import eu.daiad.web.model.meter.MeterAggregationGroup;
+
+/**
+ * In-memory implementation of {@link IMeterAggregationRepository} for testing
+ * the aggregation engine without an HBase cluster. Readings are stored per
+ * meter in timestamp order. Every reading is registered as a change at the
+ * time it is added, as the HBase implementation does using the cell write
+ * time. Stored aggregates replace any existing aggregate of the same group,
+ * granularity and time bucket.
+ */
+public class InMemoryMeterAggregationRepository implements IMeterAggregationRepository {
+
+    private final Map<ByteBuffer, NavigableMap<Long, float[]>> readings = new HashMap<ByteBuffer, NavigableMap<Long, float[]>>();
+
+    private final Map<ByteBuffer, NavigableMap<Long, long[]>> writes = new HashMap<ByteBuffer, NavigableMap<Long, long[]>>();
+
+    private final Map<String, Map<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>>> aggregates = new HashMap<String, Map<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>>>();
+
+    private final Map<String, Map<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>>> buffered = new HashMap<String, Map<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>>>();
+
+    private long watermark = 0;
+
+    private long writeTime = 0;
+
+    private int flushCount = 0;
+
+    /**
+     * Adds a reading of a smart water meter.
+     *
+     * @param serialHash the MD5 hash of the meter serial number.
+     * @param timestamp the reading timestamp.
+     * @param volume the reading volume.
+     * @param difference the volume difference from the previous reading.
+     * @return the write time of the reading.
+     */
+    public synchronized long addReading(byte[] serialHash, long timestamp, float volume, float difference) {
+        ByteBuffer key = ByteBuffer.wrap(serialHash);
+
+        NavigableMap<Long, float[]> meter = readings.get(key);
+        if (meter == null) {
+            meter = new TreeMap<Long, float[]>();
+            readings.put(key, meter);
+        }
+        meter.put(timestamp, new float[] { volume, difference });
+
+        NavigableMap<Long, long[]> meterWrites = writes.get(key);
+        if (meterWrites == null) {
+            meterWrites = new TreeMap<Long, long[]>();
+            writes.put(key, meterWrites);
+        }
+
+        long time = ++writeTime;
+        meterWrites.put(time, new long[] { timestamp });
+
+        return time;
+    }
+
+    /**
+     * Returns the persisted aggregates of a group for a single granularity.
+     *
+     * @param group the group.
+     * @param granularity the time granularity.
+     * @return the aggregates indexed by time bucket timestamp.
+     */
+    public synchronized NavigableMap<Long, MeterAggregate> getAggregates(MeterAggregationGroup group, EnumTimeAggregation granularity) {
+        Map<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>> groupAggregates = aggregates.get(getGroupKey(group));
+        if ((groupAggregates == null) || (!groupAggregates.containsKey(granularity))) {
+            return new TreeMap<Long, MeterAggregate>();
+        }
+        return new TreeMap<Long, MeterAggregate>(groupAggregates.get(granularity));
+    }
+
+    /**
+     * Returns the number of flush operations.
+     *
+     * @return the number of flush operations.
+     */
+    public synchronized int getFlushCount() {
+        return flushCount;
+    }
+
+    @Override
+    public synchronized long getWatermark() throws ApplicationException {
+        return watermark;
+    }
+
+    @Override
+    public synchronized void setWatermark(long timestamp) throws ApplicationException {
+        watermark = timestamp;
+    }
+
+    @Override
+    public synchronized Map<ByteBuffer, long[]> getChangedMeters(long startTime, long endTime) throws ApplicationException {
+        Map<ByteBuffer, long[]> changes = new HashMap<ByteBuffer, long[]>();
+
+        for (Map.Entry<ByteBuffer, NavigableMap<Long, long[]>> entry : writes.entrySet()) {
+            for (long[] write : entry.getValue().subMap(startTime, true, endTime, false).values()) {
+                long[] interval = changes.get(entry.getKey());
+                if (interval == null) {
+                    changes.put(entry.getKey(), new long[] { write[0], write[0] });
+                } else {
+                    interval[0] = Math.min(interval[0], write[0]);
+                    interval[1] = Math.max(interval[1], write[0]);
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    @Override
+    public void readMeter(byte[] serialHash, long startTime, long endTime, MeterRowDecoder.Callback callback) throws ApplicationException {
+        NavigableMap<Long, float[]> meter;
+        synchronized (this) {
+            meter = readings.get(ByteBuffer.wrap(serialHash));
+            if (meter == null) {
+                return;
+            }
+            meter = new TreeMap<Long, float[]>(meter.subMap(startTime, true, endTime, true));
+        }
+
+        for (Map.Entry<Long, float[]> entry : meter.entrySet()) {
+            if (!callback.onReading(serialHash, 0, entry.getKey(), entry.getValue()[0], entry.getValue()[1])) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void store(MeterAggregationGroup group, EnumTimeAggregation granularity, long timestamp, MeterAggregate aggregate) throws ApplicationException {
+        put(buffered, getGroupKey(group), granularity, timestamp, aggregate);
+    }
+
+    @Override
+    public synchronized void flush() throws ApplicationException {
+        for (Map.Entry<String, Map<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>>> group : buffered.entrySet()) {
+            for (Map.Entry<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>> granularity : group.getValue().entrySet()) {
+                for (Map.Entry<Long, MeterAggregate> aggregate : granularity.getValue().entrySet()) {
+                    put(aggregates, group.getKey(), granularity.getKey(), aggregate.getKey(), aggregate.getValue());
+                }
+            }
+        }
+        buffered.clear();
+        flushCount++;
+    }
+
+    private static void put(Map<String, Map<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>>> target,
+                            String groupKey,
+                            EnumTimeAggregation granularity,
+                            long timestamp,
+                            MeterAggregate aggregate) {
+        Map<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>> groupAggregates = target.get(groupKey);
+        if (groupAggregates == null) {
+            groupAggregates = new HashMap<EnumTimeAggregation, NavigableMap<Long, MeterAggregate>>();
+            target.put(groupKey, groupAggregates);
+        }
+
+        NavigableMap<Long, MeterAggregate> buckets = groupAggregates.get(granularity);
+        if (buckets == null) {
+            buckets = new TreeMap<Long, MeterAggregate>();
+            groupAggregates.put(granularity, buckets);
+        }
+
+        buckets.put(timestamp, aggregate);
+    }
+
+    private static String getGroupKey(MeterAggregationGroup group) {
+        return group.getGroupKey() + "/" + group.getAreaKey();
+    }
+
+}
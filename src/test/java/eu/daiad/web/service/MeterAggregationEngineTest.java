@@ -0,0 +1,385 @@
+package eu.daiad.web.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.daiad.web.hbase.RankingCellCodec;
+import eu.daiad.web.model.EnumTimeAggregation;
+import eu.daiad.web.model.meter.MeterAggregate;
+import eu.daiad.web.model.meter.MeterAggregationGroup;
+import eu.daiad.web.repository.application.InMemoryMeterAggregationRepository;
+
+/**
+ * Tests {@link MeterAggregationEngine} against
+ * {@link InMemoryMeterAggregationRepository}. Expected aggregates are computed
+ * using {@link GregorianCalendar} instead of the Joda-Time based
+ * {@link eu.daiad.web.model.query.TimeBucketCalendar} used by the engine.
+ *
+ * Readings are generated every hour in three intervals that include both
+ * daylight saving time changes of 2019 and the week from Monday 2019-12-30 to
+ * Sunday 2020-01-05.
+ */
+public class MeterAggregationEngineTest {
+
+    private static final String TIMEZONE = "Europe/Athens";
+
+    private static final EnumTimeAggregation[] GRANULARITIES = { EnumTimeAggregation.HOUR,
+                                                                 EnumTimeAggregation.DAY,
+                                                                 EnumTimeAggregation.WEEK,
+                                                                 EnumTimeAggregation.MONTH,
+                                                                 EnumTimeAggregation.YEAR };
+
+    /**
+     * Consumption scale of every member; members are ranked by this value.
+     */
+    private static final int[] SCALES = { 3, 1, 5, 2, 4 };
+
+    /**
+     * Member without readings in the interval of the October change.
+     */
+    private static final int OCTOBER_MISSING_MEMBER = 4;
+
+    private static final int RANKING_LIMIT = 2;
+
+    private static final double DELTA = 0.000001;
+
+    private InMemoryMeterAggregationRepository repository;
+
+    private MeterAggregationGroup group;
+
+    private List<Reading> readings;
+
+    private MeterAggregationEngine.Statistics statistics;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new InMemoryMeterAggregationRepository();
+
+        group = new MeterAggregationGroup(UUID.randomUUID(), null, DateTimeZone.forID(TIMEZONE));
+        for (int m = 0; m < SCALES.length; m++) {
+            byte[] serialHash = new byte[16];
+            serialHash[15] = (byte) m;
+
+            group.getMembers().add(new MeterAggregationGroup.Member(serialHash, "serial-" + m, new UUID(0, m), "user-" + m));
+        }
+
+        readings = new ArrayList<Reading>();
+        generate(utc(2019, 3, 29), utc(2019, 4, 2), false);
+        generate(utc(2019, 10, 25), utc(2019, 10, 29), true);
+        generate(utc(2019, 12, 26), utc(2020, 1, 9), false);
+
+        MeterAggregationEngine engine = new MeterAggregationEngine(repository, 3, RANKING_LIMIT);
+
+        statistics = engine.execute(Collections.singletonList(group), repository.getChangedMeters(0, Long.MAX_VALUE));
+    }
+
+    private void generate(long startTime, long endTime, boolean october) {
+        int index = 0;
+
+        for (long timestamp = startTime + 30 * 60000L; timestamp < endTime; timestamp += 3600000L, index++) {
+            for (int m = 0; m < SCALES.length; m++) {
+                if ((october) && (m == OCTOBER_MISSING_MEMBER)) {
+                    continue;
+                }
+
+                float difference = SCALES[m] * (1 + (index % 4)) * 0.25f;
+
+                Reading reading = new Reading(m, timestamp, difference);
+                readings.add(reading);
+
+                repository.addReading(group.getMembers().get(m).getSerialHash(), timestamp, 1000f + index, difference);
+            }
+        }
+    }
+
+    @Test
+    public void aggregatesMatchCalendarExpectation() {
+        assertEquals(2, repository.getFlushCount());
+        assertEquals(readings.size(), countReadings(EnumTimeAggregation.YEAR));
+
+        for (EnumTimeAggregation granularity : GRANULARITIES) {
+            Map<String, Expected> expected = computeExpected(granularity);
+            Map<String, MeterAggregate> actual = getAggregates(granularity);
+
+            assertEquals(granularity.toString(), expected.keySet(), actual.keySet());
+
+            for (Map.Entry<String, Expected> entry : expected.entrySet()) {
+                MeterAggregate aggregate = actual.get(entry.getKey());
+                String message = granularity + " " + entry.getKey();
+
+                assertEquals(message, entry.getValue().count, aggregate.getCount());
+                assertEquals(message, entry.getValue().sum, aggregate.getSum(), DELTA);
+                assertEquals(message, entry.getValue().min, aggregate.getMin(), DELTA);
+                assertEquals(message, entry.getValue().max, aggregate.getMax(), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void bucketsAcrossDaylightSavingTime() {
+        Map<String, MeterAggregate> days = getAggregates(EnumTimeAggregation.DAY);
+
+        // Clocks are set forward on 2019-03-31 and back on 2019-10-27
+        assertEquals(23 * SCALES.length, days.get("2019-03-31").getCount());
+        assertEquals(25 * (SCALES.length - 1), days.get("2019-10-27").getCount());
+        assertEquals(24 * SCALES.length, days.get("2019-03-30").getCount());
+
+        Map<String, MeterAggregate> hours = getAggregates(EnumTimeAggregation.HOUR);
+
+        // Local hour 03:00 occurs twice when clocks are set back and does not
+        // exist when clocks are set forward
+        assertEquals(2 * (SCALES.length - 1), hours.get("2019-10-27T03").getCount());
+        assertEquals(SCALES.length - 1, hours.get("2019-10-27T04").getCount());
+        assertEquals(null, hours.get("2019-03-31T03"));
+        assertEquals(SCALES.length, hours.get("2019-03-31T04").getCount());
+    }
+
+    @Test
+    public void weekSpanningTwoYears() {
+        long startTime = local(2019, 12, 30);
+        long endTime = local(2020, 1, 6);
+
+        double sum = 0;
+        int count = 0;
+        for (Reading reading : readings) {
+            if ((startTime <= reading.timestamp) && (reading.timestamp < endTime)) {
+                sum += reading.difference;
+                count++;
+            }
+        }
+
+        MeterAggregate week = getAggregates(EnumTimeAggregation.WEEK).get("2019-12-30");
+
+        assertNotNull(week);
+        assertEquals(7 * 24 * SCALES.length, count);
+        assertEquals(count, week.getCount());
+        assertEquals(sum, week.getSum(), DELTA);
+
+        // The aggregates of 2019 and 2020 are computed in separate chunks
+        assertEquals(2 * SCALES.length, statistics.getMeters());
+    }
+
+    @Test
+    public void topAndBottomUsers() {
+        for (EnumTimeAggregation granularity : GRANULARITIES) {
+            Map<String, List<MemberTotal>> expected = computeMemberTotals(granularity);
+            Map<String, MeterAggregate> actual = getAggregates(granularity);
+
+            for (Map.Entry<String, List<MemberTotal>> entry : expected.entrySet()) {
+                List<MemberTotal> totals = entry.getValue();
+                MeterAggregate aggregate = actual.get(entry.getKey());
+                String message = granularity + " " + entry.getKey();
+
+                int size = Math.min(RANKING_LIMIT, totals.size());
+
+                assertRanking(message, totals.subList(totals.size() - size, totals.size()), aggregate.getTop());
+                assertRanking(message, totals.subList(0, size), aggregate.getBottom());
+            }
+        }
+
+        // Member 4 has no readings in October; the next highest users are selected
+        List<RankingCellCodec.Entry> top = getAggregates(EnumTimeAggregation.DAY).get("2019-10-26").getTop();
+
+        assertEquals(new UUID(0, 0), top.get(0).getKey());
+        assertEquals(new UUID(0, 2), top.get(1).getKey());
+    }
+
+    private void assertRanking(String message, List<MemberTotal> expected, List<RankingCellCodec.Entry> actual) {
+        assertEquals(message, expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message, new UUID(0, expected.get(i).member), actual.get(i).getKey());
+            assertEquals(message, "serial-" + expected.get(i).member, actual.get(i).getSerial());
+            assertEquals(message, expected.get(i).sum, actual.get(i).getValue(), DELTA);
+        }
+    }
+
+    private int countReadings(EnumTimeAggregation granularity) {
+        int count = 0;
+        for (MeterAggregate aggregate : getAggregates(granularity).values()) {
+            count += aggregate.getCount();
+        }
+        return count;
+    }
+
+    private Map<String, MeterAggregate> getAggregates(EnumTimeAggregation granularity) {
+        Map<String, MeterAggregate> result = new TreeMap<String, MeterAggregate>();
+
+        for (Map.Entry<Long, MeterAggregate> entry : repository.getAggregates(group, granularity).entrySet()) {
+            String key = getBucketKey(granularity, entry.getKey());
+
+            if (result.put(key, entry.getValue()) != null) {
+                throw new AssertionError(String.format("Bucket %s %s is stored twice.", granularity, key));
+            }
+        }
+
+        return result;
+    }
+
+    private Map<String, Expected> computeExpected(EnumTimeAggregation granularity) {
+        Map<String, Expected> result = new TreeMap<String, Expected>();
+
+        for (Reading reading : readings) {
+            String key = getBucketKey(granularity, reading.timestamp);
+
+            Expected expected = result.get(key);
+            if (expected == null) {
+                expected = new Expected();
+                result.put(key, expected);
+            }
+            expected.add(reading.difference);
+        }
+
+        return result;
+    }
+
+    private Map<String, List<MemberTotal>> computeMemberTotals(EnumTimeAggregation granularity) {
+        Map<String, MemberTotal[]> totals = new TreeMap<String, MemberTotal[]>();
+
+        for (Reading reading : readings) {
+            String key = getBucketKey(granularity, reading.timestamp);
+
+            MemberTotal[] members = totals.get(key);
+            if (members == null) {
+                members = new MemberTotal[SCALES.length];
+                totals.put(key, members);
+            }
+            if (members[reading.member] == null) {
+                members[reading.member] = new MemberTotal(reading.member);
+            }
+            members[reading.member].sum += reading.difference;
+        }
+
+        Map<String, List<MemberTotal>> result = new TreeMap<String, List<MemberTotal>>();
+        for (Map.Entry<String, MemberTotal[]> entry : totals.entrySet()) {
+            List<MemberTotal> members = new ArrayList<MemberTotal>();
+            for (MemberTotal member : entry.getValue()) {
+                if (member != null) {
+                    members.add(member);
+                }
+            }
+
+            Collections.sort(members, new Comparator<MemberTotal>() {
+
+                @Override
+                public int compare(MemberTotal m1, MemberTotal m2) {
+                    return Double.compare(m1.sum, m2.sum);
+                }
+            });
+
+            result.put(entry.getKey(), members);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the local date and time that identifies the bucket of a
+     * timestamp. Weeks start on Monday and are identified by their first day.
+     */
+    private static String getBucketKey(EnumTimeAggregation granularity, long timestamp) {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone(TIMEZONE));
+        calendar.setTimeInMillis(timestamp);
+
+        switch (granularity) {
+            case HOUR:
+                return String.format("%s-%02d-%02dT%02d",
+                                     calendar.get(Calendar.YEAR),
+                                     calendar.get(Calendar.MONTH) + 1,
+                                     calendar.get(Calendar.DAY_OF_MONTH),
+                                     calendar.get(Calendar.HOUR_OF_DAY));
+            case DAY:
+                break;
+            case WEEK:
+                // Calendar.MONDAY is 2 and Calendar.SUNDAY is 1
+                calendar.add(Calendar.DAY_OF_MONTH, -((calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7));
+                break;
+            case MONTH:
+                return String.format("%s-%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+            case YEAR:
+                return Integer.toString(calendar.get(Calendar.YEAR));
+            default:
+                throw new IllegalArgumentException("Granularity level not supported.");
+        }
+
+        return String.format("%s-%02d-%02d",
+                             calendar.get(Calendar.YEAR),
+                             calendar.get(Calendar.MONTH) + 1,
+                             calendar.get(Calendar.DAY_OF_MONTH));
+    }
+
+    private static long utc(int year, int month, int day) {
+        return midnight(TimeZone.getTimeZone("UTC"), year, month, day);
+    }
+
+    private static long local(int year, int month, int day) {
+        return midnight(TimeZone.getTimeZone(TIMEZONE), year, month, day);
+    }
+
+    private static long midnight(TimeZone timezone, int year, int month, int day) {
+        Calendar calendar = new GregorianCalendar(timezone);
+        calendar.clear();
+        calendar.set(year, month - 1, day, 0, 0, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static class Reading {
+
+        private final int member;
+
+        private final long timestamp;
+
+        private final float difference;
+
+        public Reading(int member, long timestamp, float difference) {
+            this.member = member;
+            this.timestamp = timestamp;
+            this.difference = difference;
+        }
+    }
+
+    private static class Expected {
+
+        private double sum = 0;
+
+        private double min = Double.MAX_VALUE;
+
+        private double max = -Double.MAX_VALUE;
+
+        private int count = 0;
+
+        public void add(float value) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            count++;
+        }
+    }
+
+    private static class MemberTotal {
+
+        private final int member;
+
+        private double sum = 0;
+
+        public MemberTotal(int member) {
+            this.member = member;
+        }
+    }
+
+}